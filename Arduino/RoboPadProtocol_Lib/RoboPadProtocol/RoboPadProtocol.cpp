@@ -0,0 +1,344 @@
+//--------------------------------------------------------------
+//-- RoboPadProtocol
+//-- Decoder of the binary frames sent by the RoboPad app
+//--------------------------------------------------------------
+//-- GPL license
+//--------------------------------------------------------------
+#include <string.h>
+
+#include "RoboPadProtocol.h"
+
+void RoboPadFrameDecoder::reset()
+{
+  _count = 0;
+  _position = 0;
+  _state = STATE_HEADER;
+  _opcode = 0;
+  _hasSequence = false;
+  _sequence = 0;
+  _argCount = 0;
+}
+
+void RoboPadFrameDecoder::startFrame(byte header)
+{
+  _argsLength = header & RP_ARGS_LENGTH_MASK;
+  _hasSequence = header & RP_SEQUENCE_FLAG;
+  _received = 0;
+  _crc = crc8(0, header);
+  _opcode = 0;
+  _sequence = 0;
+  _argCount = 0;
+  _varint = 0;
+  _shift = 0;
+}
+
+//-- Remove the first bytes of the buffer and start again with the
+//-- next header
+void RoboPadFrameDecoder::discard(byte length)
+{
+  memmove(_buffer, _buffer + length, _count - length);
+  _count -= length;
+  _position = 0;
+  _state = STATE_HEADER;
+}
+
+//-- CRC-8 with polynomial 0x07, the same one computed by the app
+byte RoboPadFrameDecoder::crc8(byte crc, byte data)
+{
+  crc ^= data;
+
+  for (byte bit = 0; bit < 8; bit++) {
+    crc = (crc & 0x80) ? (crc << 1) ^ 0x07 : (crc << 1);
+  }
+
+  return crc;
+}
+
+void RoboPadFrameDecoder::sendAck(Print &out)
+{
+  if (!_hasSequence) {
+    return;
+  }
+
+  out.print("&&A");
+  out.print(_sequence);
+  out.print("%%");
+}
+
+void RoboPadStateTracker::reset()
+{
+  _appliedFields = 0;
+  _nextField = 0;
+}
+
+byte RoboPadStateTracker::fieldOpcode(byte field)
+{
+  switch (field) {
+    case RP_FIELD_MODE:             return RP_MODE;
+    case RP_FIELD_CLAW:             return RP_CLAW;
+    case RP_FIELD_LEFT_TRACK:       return RP_LEFT_TRACK;
+    case RP_FIELD_RIGHT_TRACK:      return RP_RIGHT_TRACK;
+    case RP_FIELD_LEFT_AMPLITUDE:   return RP_LEFT_AMPLITUDE;
+    case RP_FIELD_RIGHT_AMPLITUDE:  return RP_RIGHT_AMPLITUDE;
+    case RP_FIELD_PERIOD:           return RP_PERIOD;
+    case RP_FIELD_PHASE:            return RP_PHASE;
+  }
+
+  return 0;
+}
+
+bool RoboPadStateTracker::nextChange(RoboPadFrameDecoder &decoder, byte &opcode, long &arg)
+{
+  unsigned int knownFields = decoder.arg(0);
+
+  while (_nextField < RP_FIELD_COUNT) {
+    byte field = _nextField++;
+    unsigned int bit = 1 << field;
+    long value = decoder.arg(field + 1);
+
+    if (!(knownFields & bit)) {
+      continue;
+    }
+
+    if ((_appliedFields & bit) && _applied[field] == value) {
+      continue;
+    }
+
+    _applied[field] = value;
+    _appliedFields |= bit;
+
+    if (field == RP_FIELD_MOTION) {
+      opcode = value & 0xFF;
+      arg = value >> 8;
+    } else {
+      opcode = fieldOpcode(field);
+      arg = value;
+    }
+    return true;
+  }
+
+  _nextField = 0;
+  return false;
+}
+
+bool RoboPadFrameDecoder::feed(byte data)
+{
+  //-- Only if resume() was not called after a frame
+  if (_count == RP_MAX_FRAME_LENGTH) {
+    reset();
+  }
+
+  _buffer[_count++] = data;
+  return decode();
+}
+
+bool RoboPadFrameDecoder::resume()
+{
+  return decode();
+}
+
+bool RoboPadFrameDecoder::decode()
+{
+  while (_position < _count) {
+    switch (step(_buffer[_position++])) {
+
+      case STEP_FRAME:
+        //-- The bytes after the frame stay for resume()
+        discard(_position);
+        _hasFrames = true;
+        return true;
+
+      case STEP_ERROR:
+        //-- The first byte was not the header of a good frame, so
+        //-- the next header can be in the bytes after it
+        discard(1);
+        break;
+    }
+  }
+
+  return false;
+}
+
+byte RoboPadFrameDecoder::step(byte data)
+{
+  switch (_state) {
+
+    case STATE_HEADER:
+      //-- Ignore anything until the start of a frame
+      if (!isFrameStart(data)) {
+        return STEP_ERROR;
+      }
+
+      startFrame(data);
+      _state = STATE_OPCODE;
+      return STEP_CONTINUE;
+
+    case STATE_OPCODE:
+      //-- The opcodes never have the high bit, so the header was a
+      //-- byte of the middle of a frame
+      if (isFrameStart(data)) {
+        return STEP_ERROR;
+      }
+
+      _opcode = data;
+      _crc = crc8(_crc, data);
+      if (_hasSequence) {
+        _state = STATE_SEQUENCE;
+      } else {
+        _state = _argsLength > 0 ? STATE_ARGS : STATE_CHECKSUM;
+      }
+      return STEP_CONTINUE;
+
+    case STATE_SEQUENCE:
+      _sequence = data;
+      _crc = crc8(_crc, data);
+      _state = _argsLength > 0 ? STATE_ARGS : STATE_CHECKSUM;
+      return STEP_CONTINUE;
+
+    case STATE_ARGS:
+      _crc = crc8(_crc, data);
+      _varint |= (unsigned long) (data & 0x7F) << _shift;
+
+      if (data & 0x80) {
+        _shift += 7;
+
+      } else {
+        //-- Zigzag decoding
+        if (_argCount < RP_MAX_ARGS) {
+          _args[_argCount++] = (long) (_varint >> 1) ^ -(long) (_varint & 1);
+        }
+        _varint = 0;
+        _shift = 0;
+      }
+
+      if (++_received == _argsLength) {
+        _state = STATE_CHECKSUM;
+      }
+      return STEP_CONTINUE;
+
+    case STATE_CHECKSUM:
+      return data == _crc ? STEP_FRAME : STEP_ERROR;
+  }
+
+  return STEP_ERROR;
+}
+
+void RoboPadCommandReader::reset()
+{
+  _length = 0;
+  _complete = false;
+  _lastTime = 0;
+  _command[0] = 0;
+}
+
+bool RoboPadCommandReader::finish()
+{
+  _command[_length] = 0;
+  _complete = true;
+  return true;
+}
+
+bool RoboPadCommandReader::feed(byte data, unsigned long now)
+{
+  //-- The previous command was already managed
+  if (_complete) {
+    _length = 0;
+    _complete = false;
+  }
+
+  if (data == RP_COMMAND_DELIMITER || data == '\r') {
+    return _length > 0 && finish();
+  }
+
+  _lastTime = now;
+
+  //-- The longest commands have 6 characters, so this is noise
+  if (_length < RP_MAX_COMMAND_LENGTH) {
+    _command[_length++] = data;
+  }
+
+  return false;
+}
+
+bool RoboPadCommandReader::poll(unsigned long now)
+{
+  if (_complete || _length == 0 || now - _lastTime < RP_COMMAND_GAP_MICROS) {
+    return false;
+  }
+
+  return finish();
+}
+
+
+void RoboPadHeartbeat::update(RoboPadFrameDecoder &decoder, unsigned long now)
+{
+  _lastFrame = now;
+
+  switch (decoder.opcode()) {
+    case RP_HEARTBEAT:
+      _timeout = decoder.arg(0) > 0 ? decoder.arg(0) : 0;
+      break;
+
+    //-- The robot stops or moves by itself, nothing to watch
+    case RP_STOP:
+    case RP_MODE:
+      _timeout = 0;
+      break;
+
+    case RP_STATE:
+      if ((decoder.arg(0) & (1 << RP_FIELD_MOTION))
+          && decoder.arg(RP_FIELD_MOTION + 1) == RP_STOP) {
+        _timeout = 0;
+      }
+      break;
+  }
+}
+
+bool RoboPadHeartbeat::expired(unsigned long now)
+{
+  if (_timeout == 0 || now - _lastFrame < _timeout) {
+    return false;
+  }
+
+  _timeout = 0;
+  return true;
+}
+
+void RoboPadTelemetry::set(byte sensor, int value)
+{
+  if (sensor >= RP_SENSOR_COUNT) {
+    return;
+  }
+
+  _values[sensor] = value;
+  _readSensors |= 1 << sensor;
+}
+
+void RoboPadTelemetry::send(Print &out, unsigned long now)
+{
+  if (_readSensors == 0 || now - _lastSend < RP_TELEMETRY_INTERVAL) {
+    return;
+  }
+
+  byte crc = RoboPadFrameDecoder::crc8(0, _readSensors);
+
+  out.print("&&T");
+  out.print(_readSensors);
+
+  for (byte sensor = 0; sensor < RP_SENSOR_COUNT; sensor++) {
+    if (_readSensors & (1 << sensor)) {
+      out.print(',');
+      out.print(_values[sensor]);
+
+      crc = RoboPadFrameDecoder::crc8(crc, (_values[sensor] >> 8) & 0xFF);
+      crc = RoboPadFrameDecoder::crc8(crc, _values[sensor] & 0xFF);
+    }
+  }
+
+  out.print(',');
+  out.print(crc);
+  out.print("%%");
+
+  _readSensors = 0;
+  _lastSend = now;
+}
@@ -0,0 +1,328 @@
+//--------------------------------------------------------------
+//-- RoboPadProtocol
+//-- Decoder of the binary frames sent by the RoboPad app
+//--------------------------------------------------------------
+//-- Each command is a frame with this format:
+//--
+//--   header    1 byte    0x80 | 0x40 if it has sequence number
+//--                         | number of bytes of the arguments
+//--   opcode    1 byte    one of the RP_* opcodes
+//--   sequence  1 byte    only if the 0x40 flag is set
+//--   args      n bytes   zigzag varints
+//--   checksum  1 byte    CRC-8 (polynomial 0x07) of the previous bytes
+//--
+//-- The header always has the high bit set and the legacy ASCII
+//-- commands never have it, so a sketch can understand both.
+//--
+//-- The frames with sequence number must be acknowledged once they
+//-- are applied with sendAck(), so the app can measure the round
+//-- trip time and the frames lost.
+//--
+//-- The legacy ASCII commands, as "U" or "T1500", are read with
+//-- RoboPadCommandReader until the first frame arrives. Both are
+//-- decoded as the bytes arrive, without delays, so the sketch never
+//-- waits for the serial port.
+//--------------------------------------------------------------
+//-- GPL license
+//--------------------------------------------------------------
+#ifndef RoboPadProtocol_h
+#define RoboPadProtocol_h
+
+#if defined(ARDUINO) && ARDUINO >= 100
+  #include "Arduino.h"
+#else
+  #include "WProgram.h"
+#endif
+
+//-- Opcodes. The same values of the RobotCommand class of the app
+#define RP_STOP                 0x01
+#define RP_FORWARD              0x02
+#define RP_BACKWARD             0x03
+#define RP_LEFT                 0x04
+#define RP_RIGHT                0x05
+
+//-- Sent by the app while the user holds a movement. The argument is
+//-- the time in milliseconds that the robot can keep moving without
+//-- receiving another frame, see RoboPadHeartbeat
+#define RP_HEARTBEAT            0x06
+
+//-- Proportional speed of each wheel, sent by the analog joystick. The
+//-- argument holds the left speed in its bits 31..8 and the right one
+//-- in its bits 7..0, both signed in percent of the full speed, from
+//-- -RP_DRIVE_MAX_SPEED backwards to RP_DRIVE_MAX_SPEED forwards
+#define RP_DRIVE                0x07
+#define RP_DRIVE_MAX_SPEED       100
+#define RP_DRIVE_LEFT(arg)      ((int) ((arg) >> 8))
+#define RP_DRIVE_RIGHT(arg)     ((int) (signed char) ((arg) & 0xFF))
+
+#define RP_MODE                 0x10
+#define RP_CLAW                 0x20
+#define RP_CHARGE               0x21
+#define RP_LEFT_TRACK           0x22
+#define RP_RIGHT_TRACK          0x23
+#define RP_LEFT_AMPLITUDE       0x30
+#define RP_RIGHT_AMPLITUDE      0x31
+#define RP_PERIOD               0x32
+#define RP_PHASE                0x33
+#define RP_RESET                0x34
+
+//-- The four parameters of the Crab oscillators at once. The
+//-- arguments are the left amplitude, the right amplitude, the period
+//-- and the phase, to be applied together before the next refresh
+#define RP_GAIT                 0x35
+
+#define RP_USER_COMMAND         0x40
+
+//-- Composite frame with the whole state of the controller, sent on
+//-- each tick of the control loop of the app. The first argument is a
+//-- mask of the known fields, then the value of each field in this
+//-- order. The value of the motion field is one of the opcodes
+//-- RP_STOP, RP_FORWARD, RP_BACKWARD, RP_LEFT or RP_RIGHT, or
+//-- RP_DRIVE in its low byte with the argument of the drive above it
+#define RP_STATE                0x50
+
+#define RP_FIELD_MODE              0
+#define RP_FIELD_MOTION            1
+#define RP_FIELD_CLAW              2
+#define RP_FIELD_LEFT_TRACK        3
+#define RP_FIELD_RIGHT_TRACK       4
+#define RP_FIELD_LEFT_AMPLITUDE    5
+#define RP_FIELD_RIGHT_AMPLITUDE   6
+#define RP_FIELD_PERIOD            7
+#define RP_FIELD_PHASE             8
+#define RP_FIELD_COUNT             9
+
+//-- Arguments of RP_MODE
+#define RP_MODE_MANUAL_CONTROL      0
+#define RP_MODE_LINE_FOLLOWER       1
+#define RP_MODE_LIGHT_AVOIDER       2
+#define RP_MODE_OBSTACLES_AVOIDER   3
+
+//-- Arguments of RP_LEFT_TRACK and RP_RIGHT_TRACK
+#define RP_TRACK_DOWN          -1
+#define RP_TRACK_STOP           0
+#define RP_TRACK_UP             1
+
+//-- Sensors sent to the app by RoboPadTelemetry, the bits of the
+//-- mask of the message
+#define RP_SENSOR_IR_LEFT          0
+#define RP_SENSOR_IR_RIGHT         1
+#define RP_SENSOR_LDR_LEFT         2
+#define RP_SENSOR_LDR_RIGHT        3
+#define RP_SENSOR_DISTANCE         4
+#define RP_SENSOR_COUNT            5
+
+//-- Minimum milliseconds between two telemetry messages. A message
+//-- has about 30 characters, so they use a small part of the link
+//-- and the acks of the commands are not delayed
+#define RP_TELEMETRY_INTERVAL    100
+
+#define RP_HEADER_FLAG       0x80
+#define RP_SEQUENCE_FLAG     0x40
+#define RP_ARGS_LENGTH_MASK  0x3F
+
+//-- Max number of arguments stored for a frame
+#define RP_MAX_ARGS             (RP_FIELD_COUNT + 1)
+
+//-- Header, opcode, sequence, arguments and checksum
+#define RP_MAX_FRAME_LENGTH     (3 + RP_ARGS_LENGTH_MASK + 1)
+
+//-- The legacy commands have no length, so a command ends with a new
+//-- line or when no more characters arrive for RP_COMMAND_GAP_MICROS,
+//-- almost 8 characters at 38400 bauds. The app writes each command
+//-- at once, so its characters arrive together
+#define RP_COMMAND_DELIMITER    '\n'
+#define RP_MAX_COMMAND_LENGTH   20
+#define RP_COMMAND_GAP_MICROS   2000
+
+//-- The decoder keeps the bytes of the frame being decoded. When the
+//-- frame is bad, because a byte was lost or changed, it looks for
+//-- the next header in those bytes and decodes them again, so only
+//-- the frame with the error is lost
+class RoboPadFrameDecoder
+{
+  public:
+    RoboPadFrameDecoder() {_hasFrames = false; reset();};
+
+    //-- Give the next received byte to the decoder. Returns true
+    //-- when it completes a frame with a valid checksum. Then call
+    //-- resume() after applying it, until it returns false
+    bool feed(byte data);
+
+    //-- Continue decoding the bytes kept after the last frame, that
+    //-- can have more frames. Returns true when it completes another
+    bool resume();
+
+    //-- True while in the middle of a frame
+    bool isReceiving() {return _count > 0;};
+
+    //-- True after the first good frame. Then the app sends frames,
+    //-- so every byte must be given to the decoder: the bytes of a
+    //-- bad frame are not ASCII commands
+    bool hasFrames() {return _hasFrames;};
+
+    static bool isFrameStart(byte data) {return data & RP_HEADER_FLAG;};
+
+    byte opcode() {return _opcode;};
+    byte argCount() {return _argCount;};
+    long arg(byte i) {return i < _argCount ? _args[i] : 0;};
+
+    bool hasSequence() {return _hasSequence;};
+    byte sequence() {return _sequence;};
+
+    //-- Write the ack of the last frame if it has sequence number, as
+    //-- the droid2ino message "&&A<sequence>%%". Call it after applying
+    //-- the frame
+    void sendAck(Print &out);
+
+    //-- Forget the bytes received
+    void reset();
+
+    //-- CRC-8 (polynomial 0x07) of the previous bytes and this one,
+    //-- also the checksum of the telemetry
+    static byte crc8(byte crc, byte data);
+
+  private:
+    bool decode();
+    byte step(byte data);
+    void startFrame(byte header);
+    void discard(byte length);
+
+  private:
+    enum {STATE_HEADER, STATE_OPCODE, STATE_SEQUENCE, STATE_ARGS, STATE_CHECKSUM};
+    enum {STEP_CONTINUE, STEP_FRAME, STEP_ERROR};
+
+    //-- Bytes from the header of the frame being decoded
+    byte _buffer[RP_MAX_FRAME_LENGTH];
+    byte _count;
+    byte _position;       //-- Next byte of the buffer to decode
+    bool _hasFrames;
+
+    byte _state;
+    byte _argsLength;     //-- Bytes of the arguments of the frame
+    byte _received;       //-- Bytes of the arguments received
+    byte _crc;
+
+    byte _opcode;
+    bool _hasSequence;
+    byte _sequence;
+    byte _argCount;
+    long _args[RP_MAX_ARGS];
+
+    unsigned long _varint; //-- Argument being decoded
+    byte _shift;
+};
+
+//-- Reader of the legacy ASCII commands, as "U", "C30" or "T1500".
+//-- The command is kept until the next character is given, so the
+//-- sketch manages it as the buffer of the old reads
+class RoboPadCommandReader
+{
+  public:
+    RoboPadCommandReader() {reset();};
+
+    //-- Give the next received character. Returns true when it ends
+    //-- a command with RP_COMMAND_DELIMITER
+    bool feed(byte data, unsigned long now);
+
+    //-- Call it on each loop with micros(). Returns true when the
+    //-- command being read ends because no more characters arrived
+    bool poll(unsigned long now);
+
+    //-- The last command read, ended with a 0
+    char* command() {return _command;};
+
+    void reset();
+
+  private:
+    bool finish();
+
+  private:
+    char _command[RP_MAX_COMMAND_LENGTH + 1];
+    byte _length;
+    bool _complete;
+    unsigned long _lastTime;
+};
+
+//-- Dead-man stop of the movements. While the user holds a movement
+//-- the app sends RP_HEARTBEAT frames, so if they stop arriving the
+//-- link was lost and the robot must stop by itself instead of going
+//-- on until the batteries run out. Give every frame to update() and
+//-- stop the robot when expired() returns true
+class RoboPadHeartbeat
+{
+  public:
+    RoboPadHeartbeat() {_timeout = 0; _lastFrame = 0;};
+
+    //-- Call it with millis() for each frame, after applying it
+    void update(RoboPadFrameDecoder &decoder, unsigned long now);
+
+    //-- Call it on each loop with millis(). Returns true once when no
+    //-- frame arrived in the time of the last heartbeat, in the middle
+    //-- of a movement
+    bool expired(unsigned long now);
+
+    //-- True while the robot moves waiting for the heartbeats
+    bool isArmed() {return _timeout > 0;};
+
+  private:
+    unsigned long _timeout;
+    unsigned long _lastFrame;
+};
+
+//-- Values of the sensors sent to the app, so the user can see what
+//-- the robot sees in the autonomous modes. Give each value read to
+//-- set() and call send() on each loop: it writes the droid2ino
+//-- message "&&T<mask>,<value>,...,<checksum>%%", with the mask of
+//-- the sensors read since the last message, their values in the
+//-- order of their bits and the CRC-8 of the mask and the two bytes
+//-- of each value, high byte first. Nothing is sent while no sensor
+//-- is read
+class RoboPadTelemetry
+{
+  public:
+    RoboPadTelemetry() {_lastSend = 0; reset();};
+
+    //-- Keep the last value read of one of the RP_SENSOR_* sensors
+    void set(byte sensor, int value);
+
+    //-- Call it on each loop with millis(). Writes the values set
+    //-- since the last message, at most every RP_TELEMETRY_INTERVAL
+    void send(Print &out, unsigned long now);
+
+    //-- Forget the values set
+    void reset() {_readSensors = 0;};
+
+  private:
+    int _values[RP_SENSOR_COUNT];
+    byte _readSensors;
+    unsigned long _lastSend;
+};
+
+//-- The state frames are sent many times per second, so only the
+//-- fields that changed since the previous frame must be applied.
+//-- For each one nextChange() gives the same opcode and argument
+//-- than the single command, so the sketch manages both the same way
+class RoboPadStateTracker
+{
+  public:
+    RoboPadStateTracker() {reset();};
+
+    //-- Returns true while there are changed fields in the state frame
+    //-- of the decoder, giving the command of the next one
+    bool nextChange(RoboPadFrameDecoder &decoder, byte &opcode, long &arg);
+
+    //-- Forget the applied values, so every known field of the next
+    //-- state frame is applied
+    void reset();
+
+  private:
+    static byte fieldOpcode(byte field);
+
+  private:
+    long _applied[RP_FIELD_COUNT];
+    unsigned int _appliedFields;
+    byte _nextField;
+};
+
+#endif
@@ -36,6 +36,7 @@
  ******************************************************************/ 
 
 #include <Servo.h>
+#include <RoboPadProtocol.h>
 #include <Oscillator.h>
 
 
@@ -62,14 +63,15 @@ int Offset=0;    // OFFSET
 double dif_fase = DEG2RAD(-90); 
 
 
-/* Variables of the Bluetooth communication                       */
-#define bufferSize 20  // Size of the received data (buffer)
-int i = 0;             // Buffer iterator
-int numChar = 0;       // NNumber of characters availables in the Serial
+/* Decoder of the binary frames sent by the app */
+RoboPadFrameDecoder frameDecoder;
+RoboPadStateTracker stateTracker;
 
-/*  A char vector to storage the received data from the Bluetooth
-    Serial           */
-char dataBuffer[bufferSize]; 
+/* Stops the robot if the link is lost in the middle of a movement */
+RoboPadHeartbeat heartbeat;
+
+/* Reader of the ASCII commands of the old versions of the app */
+RoboPadCommandReader commandReader;
 
 
 
@@ -186,6 +188,133 @@ void setMaxAmplitude() {
       osc[1].SetA(Ai); 
 }
 
+/* Function that changes the whole gait at once, the oscillators are
+   not refreshed until all the parameters have their new values     */
+void setGait(long leftAmplitude, long rightAmplitude, long period, long phase) {
+
+      Ai = leftAmplitude;
+      Ad = rightAmplitude;
+      T = period;
+      dif_fase = DEG2RAD(phase);
+
+      osc[0].SetA(Ad);
+      osc[1].SetA(Ai);
+      osc[0].SetT(T);
+      osc[1].SetT(T);
+      osc[2].SetT(T);
+      osc[2].SetPh(dif_fase);
+}
+
+
+
+/* Binary command, the same actions than setAction        */
+void applyCommand(byte opcode, long arg) {
+
+  switch(opcode) {
+
+    //-- AMPLITUDE OF THE ARCS DESCRIBED BY THE LEGS
+     case RP_RIGHT_AMPLITUDE:
+        Ad = arg;
+        osc[0].SetA(Ad);
+        break;
+
+     case RP_LEFT_AMPLITUDE:
+        Ai = arg;
+        osc[1].SetA(Ai);
+        break;
+
+    //-- PERIOD
+     case RP_PERIOD:
+        T = arg;
+        osc[0].SetT(T);
+        osc[1].SetT(T);
+        osc[2].SetT(T);
+        break;
+
+    //-- DIFERENCE OF PHASE
+     case RP_PHASE:
+        dif_fase = DEG2RAD(arg);
+        osc[2].SetPh(dif_fase);
+        break;
+
+    //-- STOP
+     case RP_STOP:
+        osc[0].SetA(0);
+        osc[1].SetA(0);
+        setNormalPeriod();
+        break;
+
+    //-- RESET TO DEFAULT VALUES
+     case RP_RESET:
+        setMaxAmplitude();
+        setNormalPeriod();
+        dif_fase = DEG2RAD(-90);
+        osc[2].SetPh(dif_fase);
+        break;
+
+    //-- Up - GO FORWARD
+     case RP_FORWARD:
+        setMaxAmplitude();
+        dif_fase = DEG2RAD(-90);
+        osc[2].SetPh(dif_fase);
+        break;
+
+    //-- Down - GO BACKWARD
+     case RP_BACKWARD:
+        setMaxAmplitude();
+        dif_fase = DEG2RAD(90);
+        osc[2].SetPh(dif_fase);
+        break;
+
+    //-- Right - RIGHT
+     case RP_RIGHT:
+        Ad=0;   Ai=40;
+        osc[0].SetA(Ad);
+        osc[1].SetA(Ai);
+        dif_fase = DEG2RAD(-90);
+        osc[2].SetPh(dif_fase);
+        break;
+
+    //-- Left - LEFT
+     case RP_LEFT:
+        Ad=40;   Ai=0;
+        osc[0].SetA(Ad);
+        osc[1].SetA(Ai);
+        dif_fase = DEG2RAD(-90);
+        osc[2].SetPh(dif_fase);
+        break;
+  }
+}
+
+
+/* Manage a binary frame. The state frames are managed as the single
+   commands of the fields that changed, and the gait frames change
+   all the oscillators at once */
+void checkFrame() {
+
+  if (frameDecoder.opcode() == RP_STATE) {
+    byte opcode;
+    long arg;
+
+    while (stateTracker.nextChange(frameDecoder, opcode, arg)) {
+      applyCommand(opcode, arg);
+    }
+
+  } else if (frameDecoder.opcode() == RP_GAIT) {
+    setGait(frameDecoder.arg(0), frameDecoder.arg(1),
+            frameDecoder.arg(2), frameDecoder.arg(3));
+
+  } else {
+    applyCommand(frameDecoder.opcode(), frameDecoder.arg(0));
+  }
+
+  /* Any frame tells that the app is still there */
+  heartbeat.update(frameDecoder, millis());
+
+  /* Tell the app that the frame was applied, if it asked for it */
+  frameDecoder.sendAck(Serial);
+
+}
 
 
 /******************************************************************
@@ -235,33 +364,41 @@ void loop() {
    * // the Bluetooth module                                   // 
    * ////////////////////////////////////////////////////////////   */
   
-  /* If there is something in the Bluetooth serial port             */
-  if (Serial.available() > 0) { 
-   
-        /* Reset the iterator and clear the bufferSize              */
-        i = 0;
-        memset(dataBuffer, 0, sizeof(dataBuffer));  
-        
-        /* Wait for let the buffer fills up. Depends on the length of 
-           the data, 1 ms for each character more or less.          */
-        delay(bufferSize); 
-
-        /* Number of characters availables in the Bluetooth Serial  */
-        numChar = Serial.available();   
-        
-        /* Limit the number of characters that will be read from the
-           Serial to avoid reading more than the size of the buffer */
-        if (numChar > bufferSize) {
-              numChar = bufferSize;
-        }
-
-        /* Read the Bluetooth Serial and store it in the buffer    */
-        while (numChar--) {
-            dataBuffer[i++] = Serial.read();
-            delay(3);    // Wait for this process required
-        } 
-        setAction(dataBuffer);
+  /* Read the bytes as they arrive, without waiting for the rest of
+     the command. The binary frames start with a byte with the high
+     bit set, the ASCII commands never have it, and once the app has
+     sent a frame all the bytes are part of frames */
+  while (Serial.available() > 0) {
+    byte data = Serial.read();
+
+    if (frameDecoder.isReceiving() || frameDecoder.hasFrames()
+        || RoboPadFrameDecoder::isFrameStart(data)) {
+      /* A bad frame can hide the next ones, so resume() decodes the
+         bytes kept by the decoder */
+      bool complete = frameDecoder.feed(data);
+      while (complete) {
+        checkFrame();
+        complete = frameDecoder.resume();
+      }
+
+    } else if (commandReader.feed(data, micros())) {
+      setAction(commandReader.command());
     }
+  }
+
+  /* The ASCII commands without new line end when no more characters
+     arrive */
+  if (commandReader.poll(micros())) {
+    setAction(commandReader.command());
+  }
+
+  /* The app stopped sending heartbeats while the user held a
+     movement, so the link was lost: stop as the user would have done,
+     and apply the whole next state frame when the link comes back */
+  if (heartbeat.expired(millis())) {
+    applyCommand(RP_STOP, 0);
+    stateTracker.reset();
+  }
 
 
    /* //////////////////////////////////////////////////////////
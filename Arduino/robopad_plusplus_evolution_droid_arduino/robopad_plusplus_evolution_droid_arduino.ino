@@ -29,6 +29,7 @@
  ******************************************************************/ 
 
 #include <Servo.h>
+#include <RoboPadProtocol.h>
 
 
 /******************************************************************
@@ -66,9 +67,6 @@
 #define LIGHT_FOLLOWER          2
 #define OBSTACLES_AVOIDER       3
 
-/* Size of the received data buffer */
-#define bufferSize 5
-
 /* Default delay */
 #define defaultDelay        10
 
@@ -118,15 +116,18 @@ int lastHeadAngle;
 int lastUsState = US_STATE_CHECK_NOT_STARTED;
 
 
-/*  A char buffer to storage the received data from the Bluetooth
-    Serial */
-char dataBuffer[bufferSize]; 
+/* Decoder of the binary frames sent by the app */
+RoboPadFrameDecoder frameDecoder;
+RoboPadStateTracker stateTracker;
+
+/* Stops the robot if the link is lost in the middle of a movement */
+RoboPadHeartbeat heartbeat;
 
-/* Buffer iterator */
-int i = 0;
+/* Sends the values of the sensors to the app */
+RoboPadTelemetry telemetry;
 
-/* Number of characters availables in the Serial */
-int numChar = 0;    
+/* Reader of the ASCII commands of the old versions of the app */
+RoboPadCommandReader commandReader;
 
 
 /******************************************************************
@@ -149,6 +150,7 @@ long distance_4_5() {
   long microseconds = TP_init_4_5();
   long distance;
   distance = microseconds/29/2;
+  telemetry.set(RP_SENSOR_DISTANCE, distance);
   return distance;
 }
 
@@ -204,10 +206,7 @@ int checkCenterObstacle() {
 
 void stopWheels() {
   leftWheel.write(wheelStopValue);
-  delay(defaultDelay);
-
   rightWheel.write(wheelStopValue);
-  delay(defaultDelay);
 }
 
 
@@ -218,10 +217,7 @@ void goForwards() {
   }
 
   leftWheel.write(leftWheelFordwardValue);
-  delay(defaultDelay);
-
   rightWheel.write(rightWheelFordwardValue);
-  delay(defaultDelay);
 }
 
 
@@ -241,10 +237,7 @@ void goBackwards() {
   }
 
   leftWheel.write(leftWheelBackwardsValue);
-  delay(defaultDelay);
-
   rightWheel.write(rightWheelBackwardsValue);
-  delay(defaultDelay);
 }
 
 
@@ -255,10 +248,7 @@ void goLeft() {
   }
 
   leftWheel.write(wheelStopValue);
-  delay(defaultDelay);
-
   rightWheel.write(rightWheelFordwardValue);
-  delay(defaultDelay);
 }
 
 
@@ -268,11 +258,18 @@ void goRight() {
     turnHead(US_RIGHT_ANGLE, defaultDelay);
   }
 
-  leftWheel.write(leftWheelFordwardValue);
-  delay(defaultDelay);
 
+/* Each wheel at a speed in percent of its full speed, negative
+   backwards, as sent by the analog joystick of the app */
+void drive(int leftSpeed, int rightSpeed) {
+  leftWheel.write(wheelStopValue
+      + (long) (leftWheelFordwardValue - wheelStopValue) * leftSpeed / RP_DRIVE_MAX_SPEED);
+  rightWheel.write(wheelStopValue
+      + (long) (rightWheelFordwardValue - wheelStopValue) * rightSpeed / RP_DRIVE_MAX_SPEED);
+}
+
+  leftWheel.write(leftWheelFordwardValue);
   rightWheel.write(wheelStopValue);
-  delay(defaultDelay);
 }
 
 
@@ -344,9 +341,6 @@ void checkData(char* data){
     
   } 
 
-  /* Empty the Serial */   
-  Serial.flush();
-
 }
 
 
@@ -355,6 +349,9 @@ void followTheLine() {
   /* Read the state of the IR sensors */
   rightIR = digitalRead(pinSensorIRLeft);
   leftIR = digitalRead(pinSensorIRRight);
+  /* rightIR is read from the left sensor */
+  telemetry.set(RP_SENSOR_IR_LEFT, rightIR);
+  telemetry.set(RP_SENSOR_IR_RIGHT, leftIR);
 
   if (rightIR == WHITE && leftIR == BLACK) {
     goRight();
@@ -374,6 +371,8 @@ void avoidTheLight() {
   /* Read the state of the LDR sensors */
   rightLDR = analogRead(pinSensorLDRRight);
   leftLDR = analogRead(pinSensorLDRLeft);
+  telemetry.set(RP_SENSOR_LDR_LEFT, leftLDR);
+  telemetry.set(RP_SENSOR_LDR_RIGHT, rightLDR);
   
   /* If the user covers the right LDR, we stop the right wheel,
      and go forward if it is receiving light */
@@ -485,6 +484,87 @@ void avoidTheObstacles() {
 }
     
 
+/* Binary command, the same actions than checkData */
+void applyCommand(byte opcode, long arg) {
+
+  switch(opcode) {
+
+    case RP_MODE:
+      switch(arg) {
+        case RP_MODE_LINE_FOLLOWER:
+          currentState = LINE_FOLLOWER;
+          break;
+
+        case RP_MODE_LIGHT_AVOIDER:
+          currentState = LIGHT_FOLLOWER;
+          break;
+
+        case RP_MODE_OBSTACLES_AVOIDER:
+          currentState = OBSTACLES_AVOIDER;
+          lastUsState = US_STATE_CHECK_NOT_STARTED;
+          break;
+
+        case RP_MODE_MANUAL_CONTROL:
+          currentState = MANUAL_CONTROL_STATE;
+          stopWheels();
+          break;
+      }
+      break;
+
+    case RP_STOP:
+      stopWheels();
+      break;
+
+    case RP_FORWARD:
+      goForwards();
+      break;
+
+    case RP_BACKWARD:
+      goBackwards();
+      break;
+
+    case RP_LEFT:
+      goLeft();
+      break;
+
+    case RP_RIGHT:
+      goRight();
+      break;
+
+    case RP_DRIVE:
+      drive(RP_DRIVE_LEFT(arg), RP_DRIVE_RIGHT(arg));
+      break;
+
+  }
+
+}
+
+
+/* Manage a binary frame. The state frames are managed as the single
+   commands of the fields that changed */
+void checkFrame() {
+
+  if (frameDecoder.opcode() == RP_STATE) {
+    byte opcode;
+    long arg;
+
+    while (stateTracker.nextChange(frameDecoder, opcode, arg)) {
+      applyCommand(opcode, arg);
+    }
+
+  } else {
+    applyCommand(frameDecoder.opcode(), frameDecoder.arg(0));
+  }
+
+  /* Any frame tells that the app is still there */
+  heartbeat.update(frameDecoder, millis());
+
+  /* Tell the app that the frame was applied, if it asked for it */
+  frameDecoder.sendAck(Serial);
+
+}
+
+
 /******************************************************************
  *                             Setup                              *
  ******************************************************************/
@@ -528,42 +608,40 @@ void setup() {
 
 void loop() {
  
-   /* If there is something in the Bluetooth serial port */
-  if (Serial.available() > 0) { 
-   
-    /* Reset the iterator and clear the buffer */
-    i = 0;
-    memset(dataBuffer, 0, sizeof(dataBuffer));  
-    
-    /* Wait for let the buffer fills up. Depends on the length of 
-       the data, 1 ms for each character more or less */
-    delay(bufferSize); 
-
-    /* Number of characters availables in the Bluetooth Serial */
-    numChar = Serial.available();   
-    
-    /* Limit the number of characters that will be read from the
-       Serial to avoid reading more than the size of the buffer */
-    if (numChar > bufferSize) {
-          numChar = bufferSize;
+  /* Read the bytes as they arrive, without waiting for the rest of
+     the command. The binary frames start with a byte with the high
+     bit set, the ASCII commands never have it, and once the app has
+     sent a frame all the bytes are part of frames */
+  while (Serial.available() > 0) {
+    byte data = Serial.read();
+
+    if (frameDecoder.isReceiving() || frameDecoder.hasFrames()
+        || RoboPadFrameDecoder::isFrameStart(data)) {
+      /* A bad frame can hide the next ones, so resume() decodes the
+         bytes kept by the decoder */
+      bool complete = frameDecoder.feed(data);
+      while (complete) {
+        checkFrame();
+        complete = frameDecoder.resume();
+      }
+
+    } else if (commandReader.feed(data, micros())) {
+      checkData(commandReader.command());
     }
+  }
 
-    /* Read the Bluetooth Serial and store it in the buffer */
-    while (numChar--) {
-        dataBuffer[i++] = Serial.read();
-
-        /* As data trickles in from your serial port you are 
-         grabbing as much as you can, but then when it runs out 
-         (as it will after a few bytes because the processor is 
-         much faster than a 9600 baud device) you exit loop, which
-         then restarts, and resets i to zero, and someChar to an 
-         empty array.So please be sure to keep this delay */
-        delay(3);
-    } 
-
-    /* Manage the data */   
-    checkData(dataBuffer);
-    
+  /* The ASCII commands without new line end when no more characters
+     arrive */
+  if (commandReader.poll(micros())) {
+    checkData(commandReader.command());
+  }
+
+  /* The app stopped sending heartbeats while the user held a
+     movement, so the link was lost: stop as the user would have done,
+     and apply the whole next state frame when the link comes back */
+  if (heartbeat.expired(millis())) {
+    applyCommand(RP_STOP, 0);
+    stateTracker.reset();
   }
 
   if(currentState == LINE_FOLLOWER) {
@@ -574,7 +652,13 @@ void loop() {
   
   } else if(currentState == OBSTACLES_AVOIDER) {
     avoidTheObstacles();
-  } 
-  
+  }
+
+  /* Show the app what the sensors read, only to the versions of the
+     app that send frames, the old ones don't expect any message */
+  if (frameDecoder.hasFrames()) {
+    telemetry.send(Serial, millis());
+  }
+
 }  
   
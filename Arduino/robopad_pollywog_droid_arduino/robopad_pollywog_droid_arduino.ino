@@ -29,6 +29,7 @@
  ******************************************************************/ 
 
 #include <Servo.h>
+#include <RoboPadProtocol.h>
 
 
 /******************************************************************
@@ -57,9 +58,6 @@
 #define rightWheelFordwardValue   180
 #define rightWheelBackwardsValue  0
 
-/* Size of the received data buffer */
-#define bufferSize 1
-
 /* Default delay */
 #define defaultDelay        10
 
@@ -76,15 +74,18 @@ int leftIR;
 int BLACK = 0;
 int WHITE = 1;
 
-/*  A char buffer to storage the received data from the Bluetooth
-    Serial */
-char dataBuffer[bufferSize]; 
+/* Decoder of the binary frames sent by the app */
+RoboPadFrameDecoder frameDecoder;
+RoboPadStateTracker stateTracker;
+
+/* Stops the robot if the link is lost in the middle of a movement */
+RoboPadHeartbeat heartbeat;
 
-/* Buffer iterator */
-int i = 0;
+/* Sends the values of the sensors to the app */
+RoboPadTelemetry telemetry;
 
-/* Number of characters availables in the Serial */
-int numChar = 0;
+/* Reader of the ASCII commands of the old versions of the app */
+RoboPadCommandReader commandReader;
 
 
 /******************************************************************
@@ -93,42 +94,36 @@ int numChar = 0;
 
 void stopWheels() {
   leftWheel.write(wheelStopValue);
-  delay(defaultDelay);
-
   rightWheel.write(wheelStopValue);
-  delay(defaultDelay);
 }
 
 void goForwards() {
   leftWheel.write(leftWheelFordwardValue);
-  delay(defaultDelay);
-
   rightWheel.write(rightWheelFordwardValue);
-  delay(defaultDelay);
 }
 
 void goBackwards() {
   leftWheel.write(leftWheelBackwardsValue);
-  delay(defaultDelay);
-
   rightWheel.write(rightWheelBackwardsValue);
-  delay(defaultDelay);
 }
 
 void goLeft() {
   leftWheel.write(wheelStopValue);
-  delay(defaultDelay);
-
   rightWheel.write(rightWheelFordwardValue);
-  delay(defaultDelay);
 }
 
 void goRight() {
   leftWheel.write(leftWheelFordwardValue);
-  delay(defaultDelay);
-
   rightWheel.write(wheelStopValue);
-  delay(defaultDelay);
+}
+
+/* Each wheel at a speed in percent of its full speed, negative
+   backwards, as sent by the analog joystick of the app */
+void drive(int leftSpeed, int rightSpeed) {
+  leftWheel.write(wheelStopValue
+      + (long) (leftWheelFordwardValue - wheelStopValue) * leftSpeed / RP_DRIVE_MAX_SPEED);
+  rightWheel.write(wheelStopValue
+      + (long) (rightWheelFordwardValue - wheelStopValue) * rightSpeed / RP_DRIVE_MAX_SPEED);
 }
 
 /*
@@ -176,9 +171,6 @@ void setAction(char* data) {
    
   }
     
-  /* Empty the Serial */      
-  Serial.flush();
-    
 }
 
 
@@ -186,6 +178,9 @@ void followTheLine() {
   /* Read the state of the sensors */
   rightIR = digitalRead(pinSensorIRLeft);
   leftIR = digitalRead(pinSensorIRRight);
+  /* rightIR is read from the left sensor */
+  telemetry.set(RP_SENSOR_IR_LEFT, rightIR);
+  telemetry.set(RP_SENSOR_IR_RIGHT, leftIR);
 
   /* If the right sensor reads black, we go straight forward, else
      if it reads white, we turn to the left */
@@ -211,6 +206,75 @@ void followTheLine() {
 }
 
 
+/* Binary command, the same actions than setAction */
+void applyCommand(byte opcode, long arg) {
+
+  switch(opcode) {
+
+    case RP_MODE:
+      if (arg == RP_MODE_LINE_FOLLOWER) {
+        currentState = LINE_FOLLOWER;
+
+      } else if (arg == RP_MODE_MANUAL_CONTROL) {
+        currentState = MANUAL_CONTROL_STATE;
+        stopWheels();
+      }
+      break;
+
+    case RP_STOP:
+      stopWheels();
+      break;
+
+    case RP_FORWARD:
+      goForwards();
+      break;
+
+    case RP_BACKWARD:
+      goBackwards();
+      break;
+
+    case RP_LEFT:
+      goLeft();
+      break;
+
+    case RP_RIGHT:
+      goRight();
+      break;
+
+    case RP_DRIVE:
+      drive(RP_DRIVE_LEFT(arg), RP_DRIVE_RIGHT(arg));
+      break;
+
+  }
+
+}
+
+
+/* Manage a binary frame. The state frames are managed as the single
+   commands of the fields that changed */
+void checkFrame() {
+
+  if (frameDecoder.opcode() == RP_STATE) {
+    byte opcode;
+    long arg;
+
+    while (stateTracker.nextChange(frameDecoder, opcode, arg)) {
+      applyCommand(opcode, arg);
+    }
+
+  } else {
+    applyCommand(frameDecoder.opcode(), frameDecoder.arg(0));
+  }
+
+  /* Any frame tells that the app is still there */
+  heartbeat.update(frameDecoder, millis());
+
+  /* Tell the app that the frame was applied, if it asked for it */
+  frameDecoder.sendAck(Serial);
+
+}
+
+
 /******************************************************************
  *                             Setup                              *
  ******************************************************************/
@@ -244,47 +308,51 @@ void setup(){
 
 void loop() {
  
-   /* If there is something in the Bluetooth serial port */
-  if (Serial.available() > 0) { 
-   
-    /* Reset the iterator and clear the buffer */
-    i = 0;
-    memset(dataBuffer, 0, sizeof(dataBuffer));  
-    
-    /* Wait for let the buffer fills up. Depends on the length of 
-       the data, 1 ms for each character more or less */
-    delay(bufferSize); 
-
-    /* Number of characters availables in the Bluetooth Serial */
-    numChar = Serial.available();   
-    
-    /* Limit the number of characters that will be read from the
-       Serial to avoid reading more than the size of the buffer */
-    if (numChar > bufferSize) {
-          numChar = bufferSize;
+  /* Read the bytes as they arrive, without waiting for the rest of
+     the command. The binary frames start with a byte with the high
+     bit set, the ASCII commands never have it, and once the app has
+     sent a frame all the bytes are part of frames */
+  while (Serial.available() > 0) {
+    byte data = Serial.read();
+
+    if (frameDecoder.isReceiving() || frameDecoder.hasFrames()
+        || RoboPadFrameDecoder::isFrameStart(data)) {
+      /* A bad frame can hide the next ones, so resume() decodes the
+         bytes kept by the decoder */
+      bool complete = frameDecoder.feed(data);
+      while (complete) {
+        checkFrame();
+        complete = frameDecoder.resume();
+      }
+
+    } else if (commandReader.feed(data, micros())) {
+      setAction(commandReader.command());
     }
+  }
 
-    /* Read the Bluetooth Serial and store it in the buffer*/
-    while (numChar--) {
-        dataBuffer[i++] = Serial.read();
-
-        /* As data trickles in from your serial port you are 
-         grabbing as much as you can, but then when it runs out 
-         (as it will after a few bytes because the processor is 
-         much faster than a 9600 baud device) you exit loop, which
-         then restarts, and resets i to zero, and someChar to an 
-         empty array.So please be sure to keep this delay */
-        delay(3);
-    } 
-
-    /* Manage the data */
-    setAction(dataBuffer);
-    
+  /* The ASCII commands without new line end when no more characters
+     arrive */
+  if (commandReader.poll(micros())) {
+    setAction(commandReader.command());
+  }
+
+  /* The app stopped sending heartbeats while the user held a
+     movement, so the link was lost: stop as the user would have done,
+     and apply the whole next state frame when the link comes back */
+  if (heartbeat.expired(millis())) {
+    applyCommand(RP_STOP, 0);
+    stateTracker.reset();
   }
 
   if(currentState == LINE_FOLLOWER) {
     followTheLine();
   }
 
+  /* Show the app what the sensors read, only to the versions of the
+     app that send frames, the old ones don't expect any message */
+  if (frameDecoder.hasFrames()) {
+    telemetry.send(Serial, millis());
+  }
+
 }  
  
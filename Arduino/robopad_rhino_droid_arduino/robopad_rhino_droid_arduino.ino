@@ -29,6 +29,7 @@
  ******************************************************************/ 
 
 #include <Servo.h>
+#include <RoboPadProtocol.h>
 
 /******************************************************************
  *                    Definition of variables                     *
@@ -46,22 +47,19 @@
 #define rightWheelFordwardValue 180
 #define rightWheelBackwardsValue 0
 
-/* Size of the received data buffer */
-#define bufferSize 2
-
 /* A object from the Servo class is created for each servo */
 Servo leftWheel;                       /*  Values from 0 to 180  */
 Servo rightWheel;                      /*  Values from 0 to 180  */
 
-/*  A char buffer to storage the received data from the Bluetooth
-    Serial */
-char dataBuffer[bufferSize]; 
+/* Decoder of the binary frames sent by the app */
+RoboPadFrameDecoder frameDecoder;
+RoboPadStateTracker stateTracker;
 
-/* Buffer iterator */
-int i = 0;
+/* Stops the robot if the link is lost in the middle of a movement */
+RoboPadHeartbeat heartbeat;
 
-/* Number of characters availables in the Serial */
-int numChar = 0;    
+/* Reader of the ASCII commands of the old versions of the app */
+RoboPadCommandReader commandReader;
 
 /* Received postion for the slider */
 int sliderPos = 0; 
@@ -73,44 +71,35 @@ int sliderPos = 0;
 
 void stopWheels() {
   leftWheel.write(wheelStopValue);
-  delay(3);
-
   rightWheel.write(wheelStopValue);
-  delay(3);
 }
 
 
 void moveLeftWheelUp() {
   leftWheel.write(leftWheelFordwardValue);
-  delay(3);
 }
 
 
 void moveRightWheelUp() {
   rightWheel.write(rightWheelFordwardValue);
-  delay(3);
 }
 
 void moveLeftWheelDown() {
   leftWheel.write(leftWheelBackwardsValue);
-  delay(3);
 }
 
 
 void moveRightWheelDown() {
   rightWheel.write(rightWheelBackwardsValue);
-  delay(3);
 }
 
 void moveLeftWheelStop() {
   leftWheel.write(wheelStopValue);
-  delay(3);
 }
 
 
 void moveRightWheelStop() {
   rightWheel.write(wheelStopValue);
-  delay(3);
 }
 
 
@@ -152,9 +141,76 @@ void checkData(char* data){
        } 
 
   }
-      
-  /* Empty the Serial */  
-  Serial.flush();
+
+}
+
+
+/* Binary command, the same actions than checkData */
+void applyCommand(byte opcode, long arg) {
+
+  switch(opcode) {
+
+    case RP_STOP:
+      leftWheel.write(wheelStopValue);
+      rightWheel.write(wheelStopValue);
+      break;
+
+    case RP_CHARGE:
+      moveLeftWheelDown();
+      moveRightWheelDown();
+      delay(800);
+      moveLeftWheelUp();
+      moveRightWheelUp();
+      delay(1400);
+      stopWheels();
+      break;
+
+    case RP_LEFT_TRACK:
+      if (arg == RP_TRACK_UP) {
+        moveLeftWheelUp();
+      } else if (arg == RP_TRACK_DOWN) {
+        moveLeftWheelDown();
+      } else {
+        moveLeftWheelStop();
+      }
+      break;
+
+    case RP_RIGHT_TRACK:
+      if (arg == RP_TRACK_UP) {
+        moveRightWheelUp();
+      } else if (arg == RP_TRACK_DOWN) {
+        moveRightWheelDown();
+      } else {
+        moveRightWheelStop();
+      }
+      break;
+
+  }
+
+}
+
+
+/* Manage a binary frame. The state frames are managed as the single
+   commands of the fields that changed */
+void checkFrame() {
+
+  if (frameDecoder.opcode() == RP_STATE) {
+    byte opcode;
+    long arg;
+
+    while (stateTracker.nextChange(frameDecoder, opcode, arg)) {
+      applyCommand(opcode, arg);
+    }
+
+  } else {
+    applyCommand(frameDecoder.opcode(), frameDecoder.arg(0));
+  }
+
+  /* Any frame tells that the app is still there */
+  heartbeat.update(frameDecoder, millis());
+
+  /* Tell the app that the frame was applied, if it asked for it */
+  frameDecoder.sendAck(Serial);
 
 }
 
@@ -185,42 +241,40 @@ void setup(){
 
 void loop() {
  
-   /* If there is something in the Bluetooth serial port */
-  if (Serial.available() > 0) { 
-   
-    /* Reset the iterator and clear the buffer */
-    i = 0;
-    memset(dataBuffer, 0, sizeof(dataBuffer));  
-    
-    /* Wait for let the buffer fills up. Depends on the length of 
-       the data, 1 ms for each character more or less */
-    delay(bufferSize); 
-
-    /* Number of characters availables in the Bluetooth Serial */
-    numChar = Serial.available();   
-    
-    /* Limit the number of characters that will be read from the
-       Serial to avoid reading more than the size of the buffer */
-    if (numChar > bufferSize) {
-          numChar = bufferSize;
+  /* Read the bytes as they arrive, without waiting for the rest of
+     the command. The binary frames start with a byte with the high
+     bit set, the ASCII commands never have it, and once the app has
+     sent a frame all the bytes are part of frames */
+  while (Serial.available() > 0) {
+    byte data = Serial.read();
+
+    if (frameDecoder.isReceiving() || frameDecoder.hasFrames()
+        || RoboPadFrameDecoder::isFrameStart(data)) {
+      /* A bad frame can hide the next ones, so resume() decodes the
+         bytes kept by the decoder */
+      bool complete = frameDecoder.feed(data);
+      while (complete) {
+        checkFrame();
+        complete = frameDecoder.resume();
+      }
+
+    } else if (commandReader.feed(data, micros())) {
+      checkData(commandReader.command());
     }
+  }
 
-    /* Read the Bluetooth Serial and store it in the buffer*/
-    while (numChar--) {
-        dataBuffer[i++] = Serial.read();
-
-        /* As data trickles in from your serial port you are 
-         grabbing as much as you can, but then when it runs out 
-         (as it will after a few bytes because the processor is 
-         much faster than a 9600 baud device) you exit loop, which
-         then restarts, and resets i to zero, and someChar to an 
-         empty array.So please be sure to keep this delay */
-        delay(3);
-    } 
-
-    /* Manage the data */   
-    checkData(dataBuffer);
-    
+  /* The ASCII commands without new line end when no more characters
+     arrive */
+  if (commandReader.poll(micros())) {
+    checkData(commandReader.command());
+  }
+
+  /* The app stopped sending heartbeats while the user held a
+     movement, so the link was lost: stop as the user would have done,
+     and apply the whole next state frame when the link comes back */
+  if (heartbeat.expired(millis())) {
+    applyCommand(RP_STOP, 0);
+    stateTracker.reset();
   }
 }
  
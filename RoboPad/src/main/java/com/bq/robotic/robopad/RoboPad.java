@@ -27,18 +27,39 @@ import android.app.AlertDialog;
 import android.content.DialogInterface;
 import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
 import android.util.Log;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.view.animation.Interpolator;
 import android.widget.ImageButton;
+import android.widget.TextView;
+import android.widget.Toast;
 
-import com.bq.robotic.droid2ino.activities.BaseBluetoothSendOnlyActivity;
+import com.bq.robotic.droid2ino.activities.BaseBluetoothConnectionActivity;
 import com.bq.robotic.droid2ino.utils.Droid2InoConstants;
+import com.bq.robotic.robopad.connection.AckTracker;
+import com.bq.robotic.robopad.connection.BluetoothTransport;
+import com.bq.robotic.robopad.connection.Choreography;
+import com.bq.robotic.robopad.connection.ChoreographyPlayer;
+import com.bq.robotic.robopad.connection.CommandDispatcher;
+import com.bq.robotic.robopad.connection.CommandEncoder;
+import com.bq.robotic.robopad.connection.CommandQueue;
+import com.bq.robotic.robopad.connection.CommandWriter;
+import com.bq.robotic.robopad.connection.FrameCommandEncoder;
+import com.bq.robotic.robopad.connection.LatencyRecorder;
+import com.bq.robotic.robopad.connection.LegacyCommandEncoder;
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.connection.RobotTelemetry;
+import com.bq.robotic.robopad.connection.RobotTransport;
+import com.bq.robotic.robopad.connection.SendRateLimiter;
+import com.bq.robotic.robopad.connection.SessionRecorder;
+import com.bq.robotic.robopad.connection.SessionReplayer;
 import com.bq.robotic.robopad.fragments.BeetleFragment;
 import com.bq.robotic.robopad.fragments.CrabFragment;
 import com.bq.robotic.robopad.fragments.EvolutionFragment;
@@ -50,12 +71,16 @@ import com.bq.robotic.robopad.utils.RoboPadConstants;
 import com.bq.robotic.robopad.utils.RoboPadConstants.robotType;
 import com.bq.robotic.robopad.listeners.RobotListener;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
 
 /**
  * Main activity of the app that contains the different fragments to show to the user 
  */
 
-public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListener {
+public class RoboPad extends BaseBluetoothConnectionActivity implements RobotListener {
 	
 	// Debugging
     private static final String LOG_TAG = "RoboPad";
@@ -65,8 +90,57 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
 
     private ImageButton connectButton;
     private ImageButton disconnectButton;
+    private View bluetoothSpinnerView;
 
     private Animation anim;
+
+    // Single thread that writes the commands of the fragments to the robot
+    private CommandWriter mCommandWriter;
+    private BluetoothTransport mTransport;
+
+    // Round trip times and lost frames of the current connection, in the acknowledged mode
+    private final AckTracker mAckTracker = new AckTracker();
+
+    // Latencies from the touch to the write of the commands, of all the robot controllers since
+    // the app started
+    private static LatencyRecorder sLatencyRecorder;
+
+    // Time of the touch that is being dispatched in the System.nanoTime() clock, 0 if none
+    private long mInputTime;
+
+    private static final long LATENCY_OVERLAY_REFRESH_TIME = 500;
+    private TextView mLatencyOverlay;
+    private final Handler mLatencyOverlayHandler = new Handler();
+    private final StringBuilder mLatencyText = new StringBuilder();
+
+    // Values of the sensors sent by the robot, shown in their overlay at most 10 times per second
+    // and only when they change
+    private final RobotTelemetry mTelemetry = new RobotTelemetry();
+    private static final long TELEMETRY_OVERLAY_REFRESH_TIME = 100;
+    private TextView mTelemetryOverlay;
+    private final StringBuilder mTelemetryText = new StringBuilder();
+    private long mShownTelemetrySamples = -1;
+    private int mShownTelemetrySensors;
+
+    // Recording and replay of the sessions
+    private static final String SESSION_DIRECTORY = "sessions";
+    private static final String SESSION_EXTENSION = ".rps";
+    private robotType mRobotType;
+    private boolean mRecordSessions;
+    private final SessionRecorder mSessionRecorder = new SessionRecorder();
+    private SessionReplayer mSessionReplayer;
+    private ImageButton mReplayButton;
+    private final Handler mReplayHandler = new Handler();
+
+    // Macros of the user. The player thread gives their commands to the UI thread through the
+    // queue, because the command writer only accepts them from the UI thread
+    private ChoreographyPlayer mChoreographyPlayer;
+    private final CommandQueue mChoreographyCommands = new CommandQueue(CommandWriter.DEFAULT_CAPACITY);
+    private final Handler mChoreographyHandler = new Handler();
+    private volatile Choreography mFinishedChoreography;
+
+    // The commands of the fragments, to the macros, the session and the command writer
+    private CommandDispatcher mCommandDispatcher;
     
 
     @Override
@@ -74,12 +148,46 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.activity_robopad);
 
+        mTransport = new BluetoothTransport(mDroid2InoConnection);
+        mCommandWriter = new CommandWriter(mTransport, new LegacyCommandEncoder());
+        mCommandWriter.start();
+
+        mChoreographyPlayer = new ChoreographyPlayer(mChoreographyTarget);
+        mChoreographyPlayer.start();
+
+        mCommandDispatcher = new CommandDispatcher(mCommandWriter, mChoreographyPlayer, mSessionRecorder);
+
         robotType robotTypeSelected = (robotType) getIntent().getSerializableExtra(RoboPadConstants.ROBOT_SELECTED_KEY);
+
+        if (sLatencyRecorder == null) {
+            robotType[] robotTypes = robotType.values();
+            String[] robotNames = new String[robotTypes.length];
+            for (int i = 0; i < robotTypes.length; i++) {
+                robotNames[i] = robotTypes[i].name();
+            }
+            sLatencyRecorder = new LatencyRecorder(robotNames);
+        }
+        sLatencyRecorder.setRobot(robotTypeSelected.ordinal());
+        mRobotType = robotTypeSelected;
+        mCommandWriter.setLatencyRecorder(sLatencyRecorder);
+
+        mLatencyOverlay = (TextView) findViewById(R.id.latency_overlay);
+        mLatencyOverlay.setOnLongClickListener(new View.OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View v) {
+                dumpLatencies();
+                return true;
+            }
+        });
+
+        mTelemetryOverlay = (TextView) findViewById(R.id.telemetry_overlay);
+        mReplayButton = (ImageButton) findViewById(R.id.replay_button);
 		
 		mFragmentManager = getSupportFragmentManager();
 
         connectButton = (ImageButton) findViewById(R.id.connect_button);
         disconnectButton = (ImageButton) findViewById(R.id.disconnect_button);
+        bluetoothSpinnerView = findViewById(R.id.bluetooth_spinner_view);
         anim = AnimationUtils.loadAnimation(this, R.anim.bluetooth_spiner);
 
         // If we're being restored from a previous state,
@@ -143,6 +251,503 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
         // Store values between instances here
         SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getApplicationContext());
         wasEnableBluetoothAllowed = preferences.getBoolean(RoboPadConstants.WAS_ENABLING_BLUETOOTH_ALLOWED_KEY, false);
+
+        CommandEncoder encoder = getSelectedEncoder(preferences);
+        mCommandWriter.setEncoder(encoder);
+        mCommandWriter.setControlLoopRate(getSelectedControlLoopRate(preferences, encoder));
+        mCommandWriter.setHeartbeatInterval(getSelectedHeartbeatInterval(preferences, encoder));
+
+        if (preferences.getBoolean(RoboPadConstants.LATENCY_OVERLAY_KEY, false)) {
+            mLatencyOverlay.setVisibility(View.VISIBLE);
+            mLatencyOverlayHandler.post(mRefreshLatencyOverlay);
+        } else {
+            mLatencyOverlay.setVisibility(View.GONE);
+        }
+
+        if (preferences.getBoolean(RoboPadConstants.TELEMETRY_OVERLAY_KEY, false)) {
+            mShownTelemetrySamples = -1;
+            mLatencyOverlayHandler.post(mRefreshTelemetryOverlay);
+        } else {
+            mTelemetryOverlay.setVisibility(View.GONE);
+        }
+
+        mRecordSessions = preferences.getBoolean(RoboPadConstants.SESSION_RECORDING_KEY, false);
+        if (mRecordSessions && mTransport.isConnected()) {
+            startSessionRecording();
+        }
+        mReplayButton.setVisibility(mRecordSessions && mTransport.isConnected() ? View.VISIBLE : View.GONE);
+    }
+
+
+    @Override
+    protected void onStop() {
+        mLatencyOverlayHandler.removeCallbacks(mRefreshLatencyOverlay);
+        mLatencyOverlayHandler.removeCallbacks(mRefreshTelemetryOverlay);
+        mCommandDispatcher.cancelChoreography();
+
+        // The session ends here, the app may be killed in the background
+        if (mSessionReplayer != null) {
+            stopSessionReplay();
+            onSendCommand(RobotCommand.of(RobotCommand.STOP));
+        }
+        stopSessionRecording();
+        super.onStop();
+    }
+
+
+    /**
+     * Refresh the debug overlay with the latency histograms while it is visible
+     */
+    private final Runnable mRefreshLatencyOverlay = new Runnable() {
+        @Override
+        public void run() {
+            mLatencyText.setLength(0);
+            appendLatencies(mLatencyText);
+            mLatencyOverlay.setText(mLatencyText);
+
+            mLatencyOverlayHandler.postDelayed(this, LATENCY_OVERLAY_REFRESH_TIME);
+        }
+    };
+
+
+    /**
+     * Refresh the overlay with the sensors of the robot while it is enabled. The text is only
+     * built again when a new message arrived or a value became old, and the overlay is hidden
+     * while the robot sends nothing, as in the manual control
+     */
+    private final Runnable mRefreshTelemetryOverlay = new Runnable() {
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            int freshSensors = mTelemetry.getFreshSensors(now);
+
+            if (mTelemetry.getSamples() != mShownTelemetrySamples
+                    || freshSensors != mShownTelemetrySensors) {
+                mShownTelemetrySamples = mTelemetry.getSamples();
+                mShownTelemetrySensors = freshSensors;
+
+                mTelemetryText.setLength(0);
+                mTelemetry.appendTo(mTelemetryText, now);
+                mTelemetryOverlay.setText(mTelemetryText);
+                mTelemetryOverlay.setVisibility(freshSensors != 0 ? View.VISIBLE : View.GONE);
+            }
+
+            mLatencyOverlayHandler.postDelayed(this, TELEMETRY_OVERLAY_REFRESH_TIME);
+        }
+    };
+
+
+    /**
+     * Append the latency histograms, in the acknowledged mode the round trip times, and the
+     * estimate of the speed of the link
+     */
+    private void appendLatencies(StringBuilder out) {
+        sLatencyRecorder.appendTo(out);
+
+        if (mAckTracker.getSent() > 0) {
+            mAckTracker.appendTo(out);
+        }
+
+        mCommandWriter.getRateLimiter().appendTo(out);
+    }
+
+
+    /**
+     * Write the latency histograms in a text file in the files directory of the app, in the
+     * external storage if available
+     */
+    private void dumpLatencies() {
+        File directory = getExternalFilesDir(null);
+        if (directory == null) {
+            directory = getFilesDir();
+        }
+
+        File file = new File(directory, "latencies_" + System.currentTimeMillis() + ".txt");
+        StringBuilder text = new StringBuilder();
+        appendLatencies(text);
+
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(file);
+            writer.write(text.toString());
+            Toast.makeText(this, getString(R.string.latencies_dumped, file.getAbsolutePath()),
+                    Toast.LENGTH_LONG).show();
+
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error writing the latencies in " + file, e);
+
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing " + file, e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return the directory of the recorded sessions, in the external storage if available
+     */
+    private File getSessionDirectory() {
+        File directory = getExternalFilesDir(SESSION_DIRECTORY);
+        if (directory == null) {
+            directory = new File(getFilesDir(), SESSION_DIRECTORY);
+            directory.mkdirs();
+        }
+
+        return directory;
+    }
+
+
+    /**
+     * Start recording the commands and the sensors of the connection in a new session file
+     */
+    private void startSessionRecording() {
+        stopSessionRecording();
+
+        File file = new File(getSessionDirectory(), "session_" + mRobotType.name() + "_"
+                + System.currentTimeMillis() + SESSION_EXTENSION);
+
+        try {
+            mSessionRecorder.start(file, mRobotType.ordinal(), System.nanoTime());
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error recording the session in " + file, e);
+        }
+    }
+
+
+    /**
+     * End the session being recorded, deleting it if nothing was sent in it
+     *
+     * @return the file of the session, or null if there is none
+     */
+    private File stopSessionRecording() {
+        if (!mSessionRecorder.isRecording()) {
+            return null;
+        }
+
+        File file = mSessionRecorder.stop();
+        if (mSessionRecorder.getDroppedRecords() > 0) {
+            Log.e(LOG_TAG, "records lost in " + file + ": " + mSessionRecorder.getDroppedRecords());
+        }
+
+        if (mSessionRecorder.getRecords() == 0) {
+            file.delete();
+            return null;
+        }
+
+        return file;
+    }
+
+
+    /**
+     * @return the last recorded session of the robot, or null if there is none
+     */
+    private File findLastSession() {
+        File[] files = getSessionDirectory().listFiles();
+        if (files == null) {
+            return null;
+        }
+
+        String prefix = "session_" + mRobotType.name() + "_";
+        File last = null;
+        for (File file : files) {
+            if (file.getName().startsWith(prefix) && file.getName().endsWith(SESSION_EXTENSION)
+                    && (last == null || file.lastModified() > last.lastModified())) {
+                last = file;
+            }
+        }
+
+        return last;
+    }
+
+
+    /**
+     * Callback for the replay button. It ends the session being recorded and makes the robot
+     * repeat it, or the last recorded session of the robot, or stops the replay if it is
+     * replaying
+     *
+     * @param v view pressed
+     */
+    public void onReplaySession(View v) {
+        if (mSessionReplayer != null) {
+            stopSessionReplay();
+            onSendCommand(RobotCommand.of(RobotCommand.STOP));
+            startSessionRecording();
+            return;
+        }
+
+        if (!isConnected()) {
+            return;
+        }
+
+        File session = stopSessionRecording();
+        if (session == null) {
+            session = findLastSession();
+        }
+
+        if (session == null) {
+            Toast.makeText(this, R.string.no_recorded_session, Toast.LENGTH_SHORT).show();
+            startSessionRecording();
+            return;
+        }
+
+        try {
+            mSessionReplayer = new SessionReplayer(session);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading the session " + session, e);
+            Toast.makeText(this, R.string.session_replay_error, Toast.LENGTH_SHORT).show();
+            startSessionRecording();
+            return;
+        }
+
+        Log.d(LOG_TAG, "replaying " + session + ", " + mSessionReplayer.getRecordCount()
+                + " records, " + mSessionReplayer.getDuration() / 1000000 + " ms");
+
+        // The commands of the fragments are not recorded during the replay
+        mSessionReplayer.start(System.nanoTime());
+        mReplayButton.setImageResource(android.R.drawable.ic_media_pause);
+        mReplayHandler.post(mReplaySession);
+    }
+
+
+    /**
+     * Send the commands of the session whose time has arrived, and wait for the next one
+     */
+    private final Runnable mReplaySession = new Runnable() {
+        @Override
+        public void run() {
+            long due = mSessionReplayer.replayDue(System.nanoTime(), mReplayTarget);
+
+            if (due == Long.MAX_VALUE) {
+                Log.d(LOG_TAG, "session replayed, " + mSessionReplayer.getReplayedCommands()
+                        + " commands");
+                stopSessionReplay();
+                startSessionRecording();
+                return;
+            }
+
+            // Rounded up, the handler would run it again before its time
+            long delay = (due - System.nanoTime() + 999999) / 1000000;
+            mReplayHandler.postDelayed(this, Math.max(0, delay));
+        }
+    };
+
+
+    private final SessionReplayer.Target mReplayTarget = new SessionReplayer.Target() {
+        @Override
+        public void onReplayCommand(long command) {
+            if (!mCommandWriter.send(command)) {
+                Log.e(LOG_TAG, "command queue full, replayed command dropped: "
+                        + Long.toHexString(command));
+            }
+        }
+    };
+
+
+    private void stopSessionReplay() {
+        if (mSessionReplayer == null) {
+            return;
+        }
+
+        mReplayHandler.removeCallbacks(mReplaySession);
+        mSessionReplayer = null;
+        mReplayButton.setImageResource(android.R.drawable.ic_media_play);
+    }
+
+
+    /**
+     * Receives the commands of the macros in the player thread, that gives them straight to the
+     * lane of the macros of the command writer. The UI thread only records them in the session
+     */
+    private final ChoreographyPlayer.Target mChoreographyTarget = new ChoreographyPlayer.Target() {
+        @Override
+        public void onChoreographyCommand(long command, long deadline) {
+            if (!mCommandWriter.sendChoreography(command, deadline)) {
+                Log.e(LOG_TAG, "choreography lane full, command dropped: "
+                        + Long.toHexString(command));
+            }
+
+            if (mChoreographyCommands.offer(command, deadline)) {
+                mChoreographyHandler.post(mRecordChoreographyCommands);
+            }
+        }
+
+        @Override
+        public void onChoreographyFinished(Choreography choreography, boolean completed) {
+            mCommandWriter.endChoreography();
+
+            if (!completed) {
+                Log.d(LOG_TAG, "choreography cancelled after "
+                        + mChoreographyPlayer.getPlayedSteps() + " steps");
+            }
+            mFinishedChoreography = choreography;
+            mChoreographyHandler.post(mLogChoreographyLateness);
+        }
+    };
+
+
+    /**
+     * Record in the session the commands of the macros that the player thread already gave to
+     * the writer, with their deadline as their time
+     */
+    private final Runnable mRecordChoreographyCommands = new Runnable() {
+        @Override
+        public void run() {
+            long command;
+            while ((command = mChoreographyCommands.poll()) != CommandQueue.EMPTY) {
+                mSessionRecorder.recordCommand(command, mChoreographyCommands.getPolledInputTime());
+            }
+        }
+    };
+
+
+    /**
+     * Log how late the player sent each step of the last macro
+     */
+    private final Runnable mLogChoreographyLateness = new Runnable() {
+        @Override
+        public void run() {
+            Choreography choreography = mFinishedChoreography;
+            int steps = mChoreographyPlayer.getPlayedSteps();
+            if (choreography == null || mChoreographyPlayer.isPlaying()) {
+                return;
+            }
+
+            StringBuilder text = new StringBuilder("choreography lateness:");
+            for (int step = 0; step < steps; step++) {
+                long command = choreography.getCommand(step);
+                text.append(' ').append(RobotCommand.nameOf(RobotCommand.opcode(command)))
+                        .append(' ').append(mChoreographyPlayer.getLateness(step) / 1000)
+                        .append(" us,");
+            }
+            text.append(" max ").append(mChoreographyPlayer.getMaxLateness() / 1000).append(" us");
+            Log.d(LOG_TAG, text.toString());
+        }
+    };
+
+
+    /**
+     * Keep the time of the touch while it is dispatched, so the commands sent by the fragments
+     * because of it are measured from the touch and not from when the UI thread handled it
+     */
+    @Override
+    public boolean dispatchTouchEvent(MotionEvent event) {
+        // The MotionEvent times are in the same monotonic clock than System.nanoTime(), in ms
+        mInputTime = event.getEventTime() * 1000000L;
+
+        try {
+            return super.dispatchTouchEvent(event);
+        } finally {
+            mInputTime = 0;
+        }
+    }
+
+
+    /**
+     * The robots with the original sketches only understand the legacy ASCII commands, so the
+     * binary frames are only used if the user selects them in the settings. The same for the acks,
+     * only the firmwares with the sequence numbers answer them
+     *
+     * @param preferences the shared preferences of the app
+     * @return the encoder of the protocol selected by the user
+     */
+    private CommandEncoder getSelectedEncoder(SharedPreferences preferences) {
+        int protocol = Integer.parseInt(preferences.getString(RoboPadConstants.COMMAND_PROTOCOL_KEY,
+                String.valueOf(RoboPadConstants.commandProtocolValues.LEGACY.ordinal())));
+
+        if (protocol == RoboPadConstants.commandProtocolValues.BINARY_FRAMES.ordinal()) {
+            if (preferences.getBoolean(RoboPadConstants.COMMAND_ACKS_KEY, false)) {
+                return new FrameCommandEncoder(mAckTracker);
+            }
+            return new FrameCommandEncoder();
+        }
+
+        return new LegacyCommandEncoder();
+    }
+
+
+    /**
+     * The control loop sends the whole state in a single frame, so it is only enabled with the
+     * binary frames protocol
+     *
+     * @param preferences the shared preferences of the app
+     * @param encoder the encoder of the protocol selected by the user
+     * @return the rate of the control loop selected by the user or 0 if it is disabled
+     */
+    private int getSelectedControlLoopRate(SharedPreferences preferences, CommandEncoder encoder) {
+        if (!(encoder instanceof FrameCommandEncoder)) {
+            return 0;
+        }
+
+        return Integer.parseInt(preferences.getString(RoboPadConstants.CONTROL_LOOP_RATE_KEY, "0"));
+    }
+
+
+    /**
+     * Only the firmwares that understand the binary frames stop the robot by themselves when the
+     * heartbeats end
+     *
+     * @param preferences the shared preferences of the app
+     * @param encoder the encoder of the protocol selected by the user
+     * @return the interval of the heartbeats selected by the user in milliseconds, or 0 if they
+     * are disabled
+     */
+    private int getSelectedHeartbeatInterval(SharedPreferences preferences, CommandEncoder encoder) {
+        if (!(encoder instanceof FrameCommandEncoder)) {
+            return 0;
+        }
+
+        return Integer.parseInt(preferences.getString(RoboPadConstants.HEARTBEAT_INTERVAL_KEY,
+                String.valueOf(RoboPadConstants.DEFAULT_HEARTBEAT_INTERVAL)));
+    }
+
+
+    /**
+     * The droid2ino Bluetooth connection of this activity, used by the {@link BluetoothTransport}
+     */
+    private final BluetoothTransport.Connection mDroid2InoConnection = new BluetoothTransport.Connection() {
+
+        @Override
+        public void connect() {
+            requestDeviceConnection();
+        }
+
+        @Override
+        public void disconnect() {
+            stopBluetoothConnection();
+        }
+
+        @Override
+        public boolean isConnected() {
+            return isConnectedWithoutToast();
+        }
+
+        @Override
+        public void write(byte[] frame) {
+            mBluetoothConnection.write(frame);
+        }
+    };
+
+
+    /**
+     * @param connectionState the state of the droid2ino connection
+     * @return the same state of the {@link RobotTransport}
+     */
+    private static int toTransportState(int connectionState) {
+        switch (connectionState) {
+            case Droid2InoConstants.STATE_CONNECTED:
+                return RobotTransport.STATE_CONNECTED;
+
+            case Droid2InoConstants.STATE_CONNECTING:
+                return RobotTransport.STATE_CONNECTING;
+
+            default:
+                return RobotTransport.STATE_DISCONNECTED;
+        }
     }
 
 
@@ -153,8 +758,22 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
      */
     @Override
     public void onConnectionStatusUpdate(int connectionState) {
+      mTransport.onConnectionStateChanged(toTransportState(connectionState));
+
       switch (connectionState) {
         case Droid2InoConstants.STATE_CONNECTED:
+            // The statistics of the acks and the sensors and the speed of the link are of each
+            // connection
+            mAckTracker.reset();
+            mTelemetry.reset();
+            mCommandWriter.getRateLimiter().reset();
+            // The state of the robot is unknown until the commands are sent again
+            mCommandWriter.forgetRobotState();
+
+            if (mRecordSessions) {
+                startSessionRecording();
+            }
+
             ((RobotFragment) mFragmentManager.findFragmentById(R.id.game_pad_container)).onBluetoothConnected();
 
             // If connected is because the Bluetooth enabling was allowed
@@ -165,6 +784,10 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
 
         case Droid2InoConstants.STATE_LISTEN:
         case Droid2InoConstants.STATE_NONE:
+            mCommandDispatcher.cancelChoreography();
+            stopSessionReplay();
+            stopSessionRecording();
+
             if (mFragmentManager.findFragmentById(R.id.game_pad_container) != null) {
                 ((RobotFragment) mFragmentManager.findFragmentById(R.id.game_pad_container)).onBluetoothDisconnected();
             }
@@ -174,6 +797,32 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
     }
 
 
+    /**
+     * Callback for the messages received from the robot. The acks of the frames are counted, the
+     * telemetry updates the values of the sensors and the rest of messages are ignored.
+     *
+     * @param message the message sent by the robot
+     */
+    @Override
+    public void onNewMessage(String message) {
+        long samples = mTelemetry.getSamples();
+
+        if (!mAckTracker.onMessage(message) && !mTelemetry.onMessage(message)) {
+            Log.d(LOG_TAG, "message from the robot: " + message);
+        }
+
+        if (mTelemetry.getSamples() != samples && mSessionRecorder.isRecording()) {
+            int sensors = mTelemetry.getLastSensors();
+            for (int sensor = 0; sensor < RobotTelemetry.SENSOR_COUNT; sensor++) {
+                if ((sensors & (1 << sensor)) != 0) {
+                    mSessionRecorder.recordTelemetry(sensor, mTelemetry.get(sensor),
+                            mTelemetry.getReceiveTime(sensor));
+                }
+            }
+        }
+    }
+
+
     /**
      * Change the visibility of some views as the connect/disconnect button depending on the
      * bluetooth connection state The state of the bluetooth connection
@@ -185,11 +834,12 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
         switch (connectionState) {
 
             case Droid2InoConstants.STATE_CONNECTED:
-                findViewById(R.id.bluetooth_spinner_view).setVisibility(View.INVISIBLE);
-                findViewById(R.id.bluetooth_spinner_view).clearAnimation();
+                bluetoothSpinnerView.setVisibility(View.INVISIBLE);
+                bluetoothSpinnerView.clearAnimation();
 
                 connectButton.setVisibility(View.GONE);
                 disconnectButton.setVisibility(View.VISIBLE);
+                mReplayButton.setVisibility(mRecordSessions ? View.VISIBLE : View.GONE);
                 break;
 
             case Droid2InoConstants.STATE_CONNECTING:
@@ -204,8 +854,8 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
                         }
                     });
 
-                    findViewById(R.id.bluetooth_spinner_view).setVisibility(View.VISIBLE);
-                    findViewById(R.id.bluetooth_spinner_view).startAnimation(anim);
+                    bluetoothSpinnerView.setVisibility(View.VISIBLE);
+                    bluetoothSpinnerView.startAnimation(anim);
                 } else {
                     Log.e(LOG_TAG, "Anim null!!!");
                 }
@@ -214,11 +864,12 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
 
             case Droid2InoConstants.STATE_LISTEN:
             case Droid2InoConstants.STATE_NONE:
-                findViewById(R.id.bluetooth_spinner_view).setVisibility(View.INVISIBLE);
-                findViewById(R.id.bluetooth_spinner_view).clearAnimation();
+                bluetoothSpinnerView.setVisibility(View.INVISIBLE);
+                bluetoothSpinnerView.clearAnimation();
 
                 connectButton.setVisibility(View.VISIBLE);
                 disconnectButton.setVisibility(View.GONE);
+                mReplayButton.setVisibility(View.GONE);
 
                 break;
         }
@@ -234,11 +885,11 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
         switch (v.getId()) {
 
             case R.id.connect_button:
-                requestDeviceConnection();
+                mTransport.open();
                 break;
 
             case R.id.disconnect_button:
-                stopBluetoothConnection();
+                mTransport.close();
                 break;
         }
     }
@@ -268,7 +919,7 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
 
                         @Override
                         public void onClick(DialogInterface dialog, int which) {
-                            stopBluetoothConnection();
+                            mTransport.close();
 
                             RoboPad.super.onBackPressed();
                         }
@@ -282,6 +933,47 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
     }
 
 
+    @Override
+    protected void onDestroy() {
+        Log.d(LOG_TAG, "superseded commands of the continuous controls: "
+                + mCommandWriter.getSupersededCommands());
+        Log.d(LOG_TAG, "redundant commands not sent: " + mCommandWriter.getSuppressedCommands());
+        SendRateLimiter rateLimiter = mCommandWriter.getRateLimiter();
+        Log.d(LOG_TAG, "link estimate: " + rateLimiter.getEstimatedBytesPerSecond() + " B/s"
+                + ", windows behind: " + rateLimiter.getLimitedWindows()
+                + ", throttled: " + rateLimiter.getThrottles()
+                + " times, " + rateLimiter.getThrottledNanos() / 1000000 + " ms"
+                + ", dropped: " + mCommandWriter.getDroppedCommands());
+        if (mCommandWriter.getStops() > 0) {
+            Log.d(LOG_TAG, "time to stop: mean "
+                    + mCommandWriter.getMeanTimeToStopNanos() / 1000 + " us"
+                    + ", max " + mCommandWriter.getMaxTimeToStopNanos() / 1000 + " us"
+                    + ", stops " + mCommandWriter.getStops()
+                    + ", flushed movements " + mCommandWriter.getFlushedCommands());
+        }
+        if (mCommandWriter.getControlLoopTicks() > 0) {
+            Log.d(LOG_TAG, "control loop ticks: " + mCommandWriter.getControlLoopTicks()
+                    + ", skipped: " + mCommandWriter.getControlLoopSkippedTicks()
+                    + ", mean jitter: " + mCommandWriter.getControlLoopMeanJitterNanos() / 1000 + " us"
+                    + ", max jitter: " + mCommandWriter.getControlLoopMaxJitterNanos() / 1000 + " us");
+        }
+        if (mAckTracker.getSent() > 0) {
+            Log.d(LOG_TAG, "acked frames: " + mAckTracker.getAcked()
+                    + ", lost: " + mAckTracker.getLost()
+                    + ", unexpected acks: " + mAckTracker.getUnexpectedAcks());
+        }
+        if (mTelemetry.getSamples() > 0 || mTelemetry.getMalformed() > 0) {
+            Log.d(LOG_TAG, "telemetry messages: " + mTelemetry.getSamples()
+                    + ", malformed: " + mTelemetry.getMalformed());
+        }
+        mChoreographyPlayer.stop();
+        stopSessionReplay();
+        stopSessionRecording();
+        mCommandWriter.stop();
+        super.onDestroy();
+    }
+
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
 
@@ -319,20 +1011,67 @@ public class RoboPad extends BaseBluetoothSendOnlyActivity implements RobotListe
 	 * @return true if is connected or false if not
 	 */
 	public boolean onCheckIsConnectedWithoutToast() {
-		return isConnectedWithoutToast();
+		return mTransport.isConnected();
+	}
+
+
+	/**
+	 * Callback from the RobotFragment for checking if the robot gets heartbeats while a movement
+	 * is held. The heartbeat interval is 0 with the legacy protocol.
+	 *
+	 * @return true if the command writer sends heartbeats or false if not
+	 */
+	@Override
+	public boolean onCheckHasHeartbeats() {
+		return mCommandDispatcher.hasHeartbeats();
 	}
 	
 	
 	/**
-	 * Callback from the RobotFragment for sending a message to the Arduino through the bluetooth 
-	 * connection. 
+	 * Callback from the RobotFragment for sending a command to the Arduino through the bluetooth 
+	 * connection. The command is queued and written by the command writer thread, so this never
+	 * blocks the UI thread. It is also recorded in the session, if the sessions are recorded. The
+	 * user takes the control again, so it cancels the macro being played.
 	 * 
-	 * @param message to be send to the Arduino
+	 * @param command the RobotCommand to be send to the Arduino
+	 */
+	@Override
+	public void onSendCommand(long command) {
+		long inputTime = mInputTime != 0 ? mInputTime : System.nanoTime();
+
+		if (!mCommandDispatcher.send(command, inputTime)) {
+			Log.e(LOG_TAG, "command queue full, command dropped: " + Long.toHexString(command));
+		}
+	}
+
+
+	/**
+	 * Callback from the RobotFragment for sending again a command, as the stop of a click. It
+	 * doesn't cancel the macro being played, and isn't sent while it plays.
+	 *
+	 * @param command the RobotCommand to be sent again
+	 */
+	@Override
+	public void onResendCommand(long command) {
+		if (!mCommandDispatcher.resend(command, System.nanoTime())) {
+			Log.e(LOG_TAG, "command queue full, command dropped: " + Long.toHexString(command));
+		}
+	}
+
+
+	/**
+	 * Callback from the RobotFragment for playing a macro of the user. The commands are sent at
+	 * their times by the choreography player thread.
+	 *
+	 * @param choreography the macro to play
 	 */
 	@Override
-	public void onSendMessage(String message) {
-//		Log.e(LOG_TAG, "message to send to arduino: " + message);
-		sendMessage(message);
+	public void onPlayChoreography(Choreography choreography) {
+		if (!isConnected()) {
+			return;
+		}
+
+		mChoreographyPlayer.play(choreography);
 	}
 
 }
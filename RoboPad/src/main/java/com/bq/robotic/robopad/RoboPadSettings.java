@@ -252,6 +252,12 @@ public class RoboPadSettings extends PreferenceActivity implements SharedPrefere
         getPreferenceScreen().addPreference(fakeHeader);
         addPreferencesFromResource(R.xml.pref_bluetooth);
 
+        // Add 'robot connection' preferences, and a corresponding header.
+        fakeHeader = new CustomPreferenceCategory(this);
+        fakeHeader.setTitle(R.string.pref_header_connection);
+        getPreferenceScreen().addPreference(fakeHeader);
+        addPreferencesFromResource(R.xml.pref_connection);
+
         // Add 'data and sync' preferences, and a corresponding header.
         fakeHeader = new CustomPreferenceCategory(this);
         fakeHeader.setTitle(R.string.pref_header_help_options);
@@ -262,6 +268,12 @@ public class RoboPadSettings extends PreferenceActivity implements SharedPrefere
         // their values. When their values change, their summaries are updated
         // to reflect the new value, per the Android Design guidelines.
         bindPreferenceSummaryToValue(findPreference("help_options"));
+        bindPreferenceSummaryToValue(findPreference(RoboPadConstants.COMMAND_PROTOCOL_KEY));
+        bindPreferenceSummaryToValue(findPreference(RoboPadConstants.CONTROL_LOOP_RATE_KEY));
+        bindPreferenceSummaryToValue(findPreference(RoboPadConstants.HEARTBEAT_INTERVAL_KEY));
+        for (int i = 1; i <= RoboPadConstants.MACRO_COUNT; i++) {
+            bindPreferenceSummaryToValue(findPreference(RoboPadConstants.MACRO_KEY_PREFIX + i));
+        }
     }
 
     /** {@inheritDoc} */
@@ -409,6 +421,48 @@ public class RoboPadSettings extends PreferenceActivity implements SharedPrefere
         }
     }
 
+    /**
+     * This fragment shows the preferences of the connection with the robot only. It is used when
+     * the activity is showing a two-pane settings UI.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static class ConnectionPreferenceFragment extends PreferenceFragment {
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            addPreferencesFromResource(R.xml.pref_connection);
+
+            bindPreferenceSummaryToValue(findPreference(RoboPadConstants.COMMAND_PROTOCOL_KEY));
+            bindPreferenceSummaryToValue(findPreference(RoboPadConstants.CONTROL_LOOP_RATE_KEY));
+            bindPreferenceSummaryToValue(findPreference(RoboPadConstants.HEARTBEAT_INTERVAL_KEY));
+            for (int i = 1; i <= RoboPadConstants.MACRO_COUNT; i++) {
+                bindPreferenceSummaryToValue(findPreference(RoboPadConstants.MACRO_KEY_PREFIX + i));
+            }
+        }
+
+        @Override
+        public void onActivityCreated(Bundle savedInstanceState) {
+            super.onActivityCreated(savedInstanceState);
+
+            View grandParent = (View) getView().getParent().getParent();
+            grandParent.setBackgroundResource(R.color.preferences_background);
+
+            View title = grandParent.findViewById(android.R.id.title);
+            if(title != null)
+                title.setVisibility(View.GONE);
+
+            if (grandParent.getLayoutParams() instanceof ViewGroup.MarginLayoutParams) {
+                ViewGroup.MarginLayoutParams p = (ViewGroup.MarginLayoutParams) grandParent.getLayoutParams();
+                int margin = getResources().getDimensionPixelSize(R.dimen.button_press_little_padding);
+                p.setMargins(0, margin, 0, margin);
+                grandParent.requestLayout();
+            }
+
+            ((RoboPadSettings) getActivity()).getSupportActionBar().setTitle(R.string.title_activity_robo_pad_sttings);
+        }
+
+    }
+
     /**
      * This fragment shows help options preferences only. It is used when the
      * activity is showing a two-pane settings UI.
@@ -541,6 +595,7 @@ public class RoboPadSettings extends PreferenceActivity implements SharedPrefere
 
     protected boolean isValidFragment(String fragmentName) {
         return BluetoothPreferenceFragment.class.getName().equals(fragmentName) ||
+                ConnectionPreferenceFragment.class.getName().equals(fragmentName) ||
                 TipsPreferenceFragment.class.getName().equals(fragmentName);
     }
 
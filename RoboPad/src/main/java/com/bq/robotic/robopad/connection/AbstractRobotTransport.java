@@ -0,0 +1,94 @@
+package com.bq.robotic.robopad.connection;
+
+
+/**
+ * Base of the transports that keeps their state, notifies the listener and counts the frames
+ * written, so the implementations only have to write the bytes.
+ */
+
+public abstract class AbstractRobotTransport implements RobotTransport {
+
+    private volatile int mState = STATE_DISCONNECTED;
+    private volatile StateListener mStateListener;
+
+    // Only written by the writer thread
+    private volatile long mFramesWritten;
+    private volatile long mBytesWritten;
+    private volatile long mFramesDropped;
+
+
+    /**
+     * Write the frame in the link. Called only from the writer thread when connected.
+     */
+    protected abstract void writeFrame(byte[] buffer, int offset, int length);
+
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {
+        if (!isConnected()) {
+            mFramesDropped++;
+            return;
+        }
+
+        writeFrame(buffer, offset, length);
+
+        mFramesWritten++;
+        mBytesWritten += length;
+    }
+
+
+    /**
+     * Change the state and notify the listener if it is a new one
+     *
+     * @param state one of the STATE_* values
+     */
+    protected void setState(int state) {
+        if (mState == state) {
+            return;
+        }
+
+        mState = state;
+
+        StateListener listener = mStateListener;
+        if (listener != null) {
+            listener.onTransportStateChanged(this, state);
+        }
+    }
+
+
+    @Override
+    public int getState() {
+        return mState;
+    }
+
+
+    @Override
+    public boolean isConnected() {
+        return mState == STATE_CONNECTED;
+    }
+
+
+    @Override
+    public void setStateListener(StateListener listener) {
+        mStateListener = listener;
+    }
+
+
+    @Override
+    public long getFramesWritten() {
+        return mFramesWritten;
+    }
+
+
+    @Override
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+
+    @Override
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+}
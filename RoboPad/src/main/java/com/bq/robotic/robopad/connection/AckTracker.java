@@ -0,0 +1,242 @@
+package com.bq.robotic.robopad.connection;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Commands in flight in the acknowledged mode of the binary frames protocol. The
+ * {@link FrameCommandEncoder} gives a sequence number to each frame and the firmware answers
+ * each one with an ack message once it has applied it, so this class measures the round trip
+ * time of the link and the firmware, and how many frames are lost.
+ *
+ * The serial link keeps the order of the frames, so when the ack of a sequence number arrives
+ * the older frames without ack are counted as lost. A frame is also lost when its sequence
+ * number is used again and it still has no ack.
+ *
+ * The sequence numbers are given by the {@link CommandWriter} thread and the acks are received
+ * in the UI thread.
+ */
+
+public class AckTracker {
+
+    /**
+     * The sequence number is a single byte in the frame
+     */
+    public static final int SEQUENCE_COUNT = 256;
+
+    /**
+     * The ack is a droid2ino message, "&&A" followed by the sequence number in decimal and "%%"
+     */
+    public static final char ACK_PREFIX = 'A';
+
+    private static final String MESSAGE_START = "&&";
+    private static final String MESSAGE_END = "%%";
+
+    private static final int UNKNOWN_SEQUENCE = -1;
+
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    // Send time of each sequence number in flight, 0 when it is not in flight
+    private final AtomicLongArray mSendTimes = new AtomicLongArray(SEQUENCE_COUNT);
+
+    // Only used by the writer thread
+    private int mNextSequence;
+
+    // Only used by the UI thread. Sequence number following the last acknowledged one, unknown
+    // until the first ack
+    private int mExpectedSequence = UNKNOWN_SEQUENCE;
+
+    private final LatencyHistogram mRoundTrips = new LatencyHistogram();
+
+    private volatile long mSent;
+    private volatile long mAcked;
+    private final AtomicLong mLost = new AtomicLong();
+    private volatile long mUnexpectedAcks;
+
+
+    /**
+     * Give a sequence number to a frame that is going to be written now. Must be called only
+     * from the writer thread.
+     *
+     * @return the sequence number of the frame
+     */
+    public int nextSequence() {
+        int sequence = mNextSequence;
+        mNextSequence = (sequence + 1) & (SEQUENCE_COUNT - 1);
+
+        // A whole round of sequence numbers without its ack
+        if (mSendTimes.getAndSet(sequence, System.nanoTime()) != 0) {
+            mLost.incrementAndGet();
+        }
+        mSent++;
+
+        return sequence;
+    }
+
+
+    /**
+     * Handle a message received from the robot. Must be called only from the UI thread.
+     *
+     * @param message the droid2ino message, with or without its start and end characters
+     * @return true if it was an ack, false if it is another message of the robot
+     */
+    public boolean onMessage(String message) {
+        int start = message.startsWith(MESSAGE_START) ? MESSAGE_START.length() : 0;
+        int end = message.endsWith(MESSAGE_END) ? message.length() - MESSAGE_END.length()
+                : message.length();
+
+        if (end - start < 2 || end - start > 4 || message.charAt(start) != ACK_PREFIX) {
+            return false;
+        }
+
+        int sequence = 0;
+        for (int i = start + 1; i < end; i++) {
+            char c = message.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+            sequence = sequence * 10 + c - '0';
+        }
+
+        if (sequence >= SEQUENCE_COUNT) {
+            return false;
+        }
+
+        onAck(sequence, System.nanoTime());
+
+        return true;
+    }
+
+
+    /**
+     * Must be called only from the UI thread
+     *
+     * @param sequence the sequence number acknowledged by the robot
+     * @param receiveTime when the ack was received, in the clock of {@link System#nanoTime()}
+     */
+    public void onAck(int sequence, long receiveTime) {
+        long sendTime = mSendTimes.getAndSet(sequence, 0);
+
+        if (sendTime == 0) {
+            // Duplicated or of a frame already counted as lost
+            mUnexpectedAcks++;
+            return;
+        }
+
+        // The older frames in flight will never get their ack
+        if (mExpectedSequence != UNKNOWN_SEQUENCE) {
+            for (int lost = mExpectedSequence; lost != sequence; lost = (lost + 1) & (SEQUENCE_COUNT - 1)) {
+                if (mSendTimes.getAndSet(lost, 0) != 0) {
+                    mLost.incrementAndGet();
+                }
+            }
+        }
+
+        mExpectedSequence = (sequence + 1) & (SEQUENCE_COUNT - 1);
+        mRoundTrips.record(receiveTime - sendTime);
+        mAcked++;
+    }
+
+
+    /**
+     * Forget the frames in flight and the statistics, i.e. for a new connection. Must be called
+     * only from the UI thread. The ack of a frame written meanwhile is counted as unexpected.
+     */
+    public void reset() {
+        for (int sequence = 0; sequence < SEQUENCE_COUNT; sequence++) {
+            mSendTimes.set(sequence, 0);
+        }
+
+        mExpectedSequence = UNKNOWN_SEQUENCE;
+        mRoundTrips.reset();
+        mSent = 0;
+        mAcked = 0;
+        mLost.set(0);
+        mUnexpectedAcks = 0;
+    }
+
+
+    /**
+     * @return round trip times from the write of a frame to the receive of its ack
+     */
+    public LatencyHistogram getRoundTrips() {
+        return mRoundTrips;
+    }
+
+
+    public long getSent() {
+        return mSent;
+    }
+
+
+    public long getAcked() {
+        return mAcked;
+    }
+
+
+    public long getLost() {
+        return mLost.get();
+    }
+
+
+    /**
+     * @return number of frames sent whose ack is not received yet
+     */
+    public long getInFlight() {
+        return Math.max(0, mSent - mAcked - mLost.get());
+    }
+
+
+    /**
+     * @return acks received of frames not in flight
+     */
+    public long getUnexpectedAcks() {
+        return mUnexpectedAcks;
+    }
+
+
+    /**
+     * @return fraction of the frames that got no ack, from 0 to 1
+     */
+    public double getLossRate() {
+        long lost = mLost.get();
+        long total = mAcked + lost;
+
+        return total == 0 ? 0 : (double) lost / total;
+    }
+
+
+    /**
+     * Append the counts of frames and the round trip times in milliseconds
+     *
+     * @param out where the text is written
+     */
+    public void appendTo(StringBuilder out) {
+        out.append("acks  sent ").append(mSent)
+                .append("  acked ").append(mAcked)
+                .append("  lost ").append(mLost.get())
+                .append(" (").append(Math.round(getLossRate() * 1000) / 10.0).append("%)")
+                .append("  in flight ").append(getInFlight())
+                .append('\n');
+
+        if (mRoundTrips.getCount() == 0) {
+            return;
+        }
+
+        out.append("rtt  ");
+        for (double percentile : PERCENTILES) {
+            appendMillis(out, "p" + (int) percentile, mRoundTrips.getPercentileMicros(percentile));
+        }
+        appendMillis(out, "max", mRoundTrips.getMaxMicros());
+        out.append(" (ms)\n");
+    }
+
+
+    private static void appendMillis(StringBuilder out, String name, long micros) {
+        out.append(' ').append(name).append(' ')
+                .append(micros / 1000).append('.').append((micros % 1000) / 100);
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.bq.robotic.robopad.connection;
+
+
+/**
+ * Transport over the Bluetooth connection of droid2ino. The connection is owned by the activity,
+ * so it is reached through a {@link Connection} and the activity reports the changes of its
+ * state with {@link #onConnectionStateChanged(int)}.
+ */
+
+public class BluetoothTransport extends AbstractRobotTransport {
+
+    /**
+     * The Bluetooth connection of the activity
+     */
+    public interface Connection {
+
+        void connect();
+
+        void disconnect();
+
+        /**
+         * Must not show any toast, it is called from the writer thread
+         */
+        boolean isConnected();
+
+        /**
+         * The droid2ino connection only writes whole arrays
+         */
+        void write(byte[] frame);
+    }
+
+    private final Connection mConnection;
+
+    // One array of each frame length is reused instead of allocating one for each frame. Only
+    // used by the writer thread
+    private final byte[][] mFrames = new byte[CommandEncoder.MAX_FRAME_LENGTH + 1][];
+
+
+    public BluetoothTransport(Connection connection) {
+        mConnection = connection;
+    }
+
+
+    @Override
+    public void open() {
+        mConnection.connect();
+    }
+
+
+    @Override
+    public void close() {
+        mConnection.disconnect();
+    }
+
+
+    /**
+     * Asks the connection instead of trusting the last state reported, so nothing is written if
+     * it was lost in the meanwhile
+     */
+    @Override
+    public boolean isConnected() {
+        return mConnection.isConnected();
+    }
+
+
+    /**
+     * @param state one of the STATE_* values of this transport, translated from the droid2ino
+     *              one by the activity
+     */
+    public void onConnectionStateChanged(int state) {
+        setState(state);
+    }
+
+
+    @Override
+    protected void writeFrame(byte[] buffer, int offset, int length) {
+        if (mFrames[length] == null) {
+            mFrames[length] = new byte[length];
+        }
+
+        System.arraycopy(buffer, offset, mFrames[length], 0, length);
+        mConnection.write(mFrames[length]);
+    }
+
+}
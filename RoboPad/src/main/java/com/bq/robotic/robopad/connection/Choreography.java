@@ -0,0 +1,168 @@
+package com.bq.robotic.robopad.connection;
+
+
+import java.util.Locale;
+
+
+/**
+ * Sequence of commands to send to the robot at fixed times, as a macro of the user. It is
+ * written as text, with the steps separated by semicolons or new lines, each one the name of a
+ * {@link RobotCommand} followed by its arguments, or WAIT and the milliseconds until the next
+ * command. The {@link RobotCommand#DRIVE} has the speeds of the left and the right wheels as
+ * two arguments. I.e. for the Beetle:
+ *
+ * <pre>
+ *  FORWARD; WAIT 800; CLAW 55; WAIT 300; BACKWARD; WAIT 800; STOP
+ * </pre>
+ *
+ * The text is compiled once into two primitive arrays: the time of each command from the start,
+ * and the command, so playing it with the {@link ChoreographyPlayer} reads them in place and
+ * the time of every command is known in advance.
+ */
+
+public final class Choreography {
+
+    public static final String WAIT = "WAIT";
+
+    public static final int MAX_STEPS = 256;
+    public static final int MAX_WAIT_MILLIS = 60000;
+
+    private final long[] mOffsets;
+    private final long[] mCommands;
+    private final long mDuration;
+
+
+    private Choreography(long[] offsets, long[] commands, long duration) {
+        mOffsets = offsets;
+        mCommands = commands;
+        mDuration = duration;
+    }
+
+
+    /**
+     * @param text the steps of the choreography
+     * @return the compiled choreography
+     * @throws IllegalArgumentException if a step is not a valid command or wait, with the
+     * number of the step in its message
+     */
+    public static Choreography compile(String text) {
+        String[] steps = text.split("[;\n]");
+
+        long[] offsets = new long[steps.length];
+        long[] commands = new long[steps.length];
+        int count = 0;
+        long time = 0;
+
+        for (int step = 0; step < steps.length; step++) {
+            String trimmed = steps[step].trim();
+            if (trimmed.length() == 0) {
+                continue;
+            }
+
+            String[] tokens = trimmed.split("\\s+");
+            String name = tokens[0].toUpperCase(Locale.US);
+            int[] args = parseArgs(tokens, step);
+
+            if (name.equals(WAIT)) {
+                if (args.length != 1 || args[0] <= 0 || args[0] > MAX_WAIT_MILLIS) {
+                    throw new IllegalArgumentException("step " + (step + 1)
+                            + ": WAIT needs the milliseconds, from 1 to " + MAX_WAIT_MILLIS);
+                }
+                time += args[0] * 1000000L;
+                continue;
+            }
+
+            int opcode = RobotCommand.opcodeOf(name);
+            if (opcode < 0 || opcode == RobotCommand.HEARTBEAT || opcode == RobotCommand.STATE) {
+                throw new IllegalArgumentException("step " + (step + 1) + ": unknown command "
+                        + tokens[0]);
+            }
+
+            int argCount = opcode == RobotCommand.DRIVE ? 2 : RobotCommand.argCount(opcode);
+            if (args.length != argCount) {
+                throw new IllegalArgumentException("step " + (step + 1) + ": " + name + " needs "
+                        + argCount + " arguments");
+            }
+
+            if (opcode == RobotCommand.DRIVE && (Math.abs(args[0]) > RobotCommand.DRIVE_MAX_SPEED
+                    || Math.abs(args[1]) > RobotCommand.DRIVE_MAX_SPEED)) {
+                throw new IllegalArgumentException("step " + (step + 1) + ": the speeds of "
+                        + name + " go from -" + RobotCommand.DRIVE_MAX_SPEED + " to "
+                        + RobotCommand.DRIVE_MAX_SPEED);
+            }
+
+            if (count == MAX_STEPS) {
+                throw new IllegalArgumentException("more than " + MAX_STEPS + " commands");
+            }
+
+            offsets[count] = time;
+            if (opcode == RobotCommand.GAIT) {
+                commands[count] = RobotCommand.gait(args[0], args[1], args[2], args[3]);
+            } else if (opcode == RobotCommand.DRIVE) {
+                commands[count] = RobotCommand.drive(args[0], args[1]);
+            } else if (args.length == 1) {
+                commands[count] = RobotCommand.of(opcode, args[0]);
+            } else {
+                commands[count] = RobotCommand.of(opcode);
+            }
+            count++;
+        }
+
+        if (count == 0) {
+            throw new IllegalArgumentException("no commands");
+        }
+
+        long[] compiledOffsets = new long[count];
+        long[] compiledCommands = new long[count];
+        System.arraycopy(offsets, 0, compiledOffsets, 0, count);
+        System.arraycopy(commands, 0, compiledCommands, 0, count);
+
+        return new Choreography(compiledOffsets, compiledCommands, time);
+    }
+
+
+    private static int[] parseArgs(String[] tokens, int step) {
+        int[] args = new int[tokens.length - 1];
+
+        for (int i = 1; i < tokens.length; i++) {
+            try {
+                args[i - 1] = Integer.parseInt(tokens[i]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("step " + (step + 1) + ": invalid number "
+                        + tokens[i]);
+            }
+        }
+
+        return args;
+    }
+
+
+    public int getStepCount() {
+        return mCommands.length;
+    }
+
+
+    /**
+     * @return nanoseconds from the start of the choreography to the command of the step
+     */
+    public long getOffset(int step) {
+        return mOffsets[step];
+    }
+
+
+    /**
+     * @return the {@link RobotCommand} of the step
+     */
+    public long getCommand(int step) {
+        return mCommands[step];
+    }
+
+
+    /**
+     * @return nanoseconds from the start to the end of the last wait
+     */
+    public long getDuration() {
+        return mDuration;
+    }
+
+}
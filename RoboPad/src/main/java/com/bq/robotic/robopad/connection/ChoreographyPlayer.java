@@ -0,0 +1,249 @@
+package com.bq.robotic.robopad.connection;
+
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Single long-lived thread that plays the {@link Choreography} macros of the user. The time of
+ * each command is an absolute deadline, the start of the choreography plus its offset, and not
+ * the wait after the previous command, so a late wake up never delays the next commands and
+ * the choreography doesn't drift. The thread parks until just before each deadline and yields
+ * the rest, because the park of the system usually oversleeps.
+ *
+ * The commands are given to a {@link Target} in the player thread, with their deadline. The
+ * lateness of each step of the last choreography, the time from its deadline to its command, is
+ * kept to be reported when it finishes.
+ */
+
+public class ChoreographyPlayer {
+
+    /**
+     * Receives the commands and the end of the choreographies, in the player thread
+     */
+    public interface Target {
+        /**
+         * @param command the {@link RobotCommand} of the step
+         * @param deadline when it was due, in the clock of {@link System#nanoTime()}
+         */
+        void onChoreographyCommand(long command, long deadline);
+
+        /**
+         * @param choreography the choreography played
+         * @param completed false if it was cancelled or replaced by another one
+         */
+        void onChoreographyFinished(Choreography choreography, boolean completed);
+    }
+
+    /**
+     * The thread parks until this time before the deadline and yields the rest
+     */
+    public static final long SPIN_NANOS = 200000;
+
+    private final Target mTarget;
+    private final AtomicReference<Choreography> mPending = new AtomicReference<Choreography>();
+    // Number of cancels, only written by the thread that controls the player
+    private volatile int mCancels;
+    private volatile Choreography mPlaying;
+
+    // Lateness of each step of the last choreography. Only written by the player thread
+    private final long[] mLateness = new long[Choreography.MAX_STEPS];
+    private volatile int mPlayedSteps;
+
+    private volatile Thread mThread;
+    private volatile boolean mRunning;
+
+
+    public ChoreographyPlayer(Target target) {
+        mTarget = target;
+    }
+
+
+    /**
+     * Start the player thread. Does nothing if it was already started.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+
+        mRunning = true;
+        mThread = new Thread(mPlayerLoop, "RoboPadChoreography");
+        mThread.start();
+    }
+
+
+    /**
+     * Stop the player thread, cancelling the choreography being played
+     */
+    public synchronized void stop() {
+        Thread thread = mThread;
+        if (thread == null) {
+            return;
+        }
+
+        mRunning = false;
+        LockSupport.unpark(thread);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        mThread = null;
+        mPending.set(null);
+    }
+
+
+    /**
+     * Play the choreography now, cancelling the one being played
+     */
+    public void play(Choreography choreography) {
+        mPending.set(choreography);
+
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+
+    /**
+     * Cancel the choreography being played, i.e. because the user took the control again. The
+     * commands already sent are not undone.
+     */
+    public void cancel() {
+        mPending.set(null);
+        mCancels++;
+
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+
+    public boolean isPlaying() {
+        return mPlaying != null || mPending.get() != null;
+    }
+
+
+    /**
+     * @return number of steps of the last choreography already sent
+     */
+    public int getPlayedSteps() {
+        return mPlayedSteps;
+    }
+
+
+    /**
+     * @param step a step of the last choreography, lower than {@link #getPlayedSteps()}
+     * @return nanoseconds from the deadline of the step to the sending of its command
+     */
+    public long getLateness(int step) {
+        return mLateness[step];
+    }
+
+
+    public long getMaxLateness() {
+        long max = 0;
+        for (int step = 0; step < mPlayedSteps; step++) {
+            max = Math.max(max, mLateness[step]);
+        }
+        return max;
+    }
+
+
+    public long getMeanLateness() {
+        int steps = mPlayedSteps;
+        if (steps == 0) {
+            return 0;
+        }
+
+        long total = 0;
+        for (int step = 0; step < steps; step++) {
+            total += mLateness[step];
+        }
+        return total / steps;
+    }
+
+
+    /**
+     * Block the player thread until the deadline, or until the choreography is cancelled or
+     * replaced by another one
+     *
+     * @param cancels the number of cancels when the choreography started
+     * @return true if the deadline arrived
+     */
+    private boolean waitUntil(long deadline, int cancels) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            if (isInterrupted(cancels)) {
+                return false;
+            }
+
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(this, remaining - SPIN_NANOS);
+            } else {
+                Thread.yield();
+            }
+        }
+
+        return !isInterrupted(cancels);
+    }
+
+
+    private boolean isInterrupted(int cancels) {
+        return !mRunning || mCancels != cancels || mPending.get() != null;
+    }
+
+
+    private void play(Choreography choreography, long start, int cancels) {
+        mPlaying = choreography;
+        mPlayedSteps = 0;
+
+        int steps = choreography.getStepCount();
+        int step = 0;
+        for (; step < steps; step++) {
+            long deadline = start + choreography.getOffset(step);
+            if (!waitUntil(deadline, cancels)) {
+                break;
+            }
+
+            mLateness[step] = System.nanoTime() - deadline;
+            mTarget.onChoreographyCommand(choreography.getCommand(step), deadline);
+            mPlayedSteps = step + 1;
+        }
+
+        // The final wait is part of the choreography, i.e. before a macro played again
+        boolean completed = step == steps && waitUntil(start + choreography.getDuration(), cancels);
+
+        mPlaying = null;
+        mTarget.onChoreographyFinished(choreography, completed);
+    }
+
+
+    private final Runnable mPlayerLoop = new Runnable() {
+
+        @Override
+        public void run() {
+
+            while (mRunning) {
+                // Read before taking the choreography, so a cancel made after it was played
+                // is never missed
+                int cancels = mCancels;
+                Choreography choreography = mPending.getAndSet(null);
+
+                if (choreography != null) {
+                    play(choreography, System.nanoTime(), cancels);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        }
+
+    };
+
+}
@@ -0,0 +1,209 @@
+package com.bq.robotic.robopad.connection;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Latest-value-wins stage for the continuous controls (the Crab seekbars, the Rhino tracks, the
+ * Beetle claw and the analog joystick). Each parameter has one slot that only holds the newest value not written
+ * yet, so when the user moves a control faster than the link can send the values, the
+ * intermediate ones are replaced instead of queued and the robot follows the current position
+ * of the control.
+ *
+ * As {@link CommandQueue}, the producer is the UI thread and the consumer is the
+ * {@link CommandWriter} thread.
+ */
+
+public class CommandCoalescer {
+
+    public static final int NO_CHANNEL = -1;
+
+    public static final int CHANNEL_LEFT_AMPLITUDE = 0;
+    public static final int CHANNEL_RIGHT_AMPLITUDE = 1;
+    public static final int CHANNEL_PERIOD = 2;
+    public static final int CHANNEL_PHASE = 3;
+    public static final int CHANNEL_LEFT_TRACK = 4;
+    public static final int CHANNEL_RIGHT_TRACK = 5;
+    public static final int CHANNEL_CLAW = 6;
+    public static final int CHANNEL_DRIVE = 7;
+
+    public static final int CHANNEL_COUNT = 8;
+
+    // Value of a slot without a pending command
+    private static final long EMPTY = CommandQueue.EMPTY;
+
+    private final AtomicLongArray mSlots = new AtomicLongArray(CHANNEL_COUNT);
+    private final AtomicLongArray mSuperseded = new AtomicLongArray(CHANNEL_COUNT);
+    // Input time of the pending command of each channel, for the latency histograms
+    private final AtomicLongArray mInputTimes = new AtomicLongArray(CHANNEL_COUNT);
+
+
+    /**
+     * @param command a {@link RobotCommand}
+     * @return the channel of the command or {@link #NO_CHANNEL} if every command of its type
+     * must be written
+     */
+    public static int channelOf(long command) {
+        switch (RobotCommand.opcode(command)) {
+            case RobotCommand.LEFT_AMPLITUDE:
+                return CHANNEL_LEFT_AMPLITUDE;
+            case RobotCommand.RIGHT_AMPLITUDE:
+                return CHANNEL_RIGHT_AMPLITUDE;
+            case RobotCommand.PERIOD:
+                return CHANNEL_PERIOD;
+            case RobotCommand.PHASE:
+                return CHANNEL_PHASE;
+            case RobotCommand.LEFT_TRACK:
+                return CHANNEL_LEFT_TRACK;
+            case RobotCommand.RIGHT_TRACK:
+                return CHANNEL_RIGHT_TRACK;
+            case RobotCommand.CLAW:
+                return CHANNEL_CLAW;
+            case RobotCommand.DRIVE:
+                return CHANNEL_DRIVE;
+            default:
+                return NO_CHANNEL;
+        }
+    }
+
+
+    /**
+     * @param channel one of the CHANNEL_* values
+     * @param command a {@link RobotCommand} that is not in a channel
+     * @return true if the command sets the parameter of the channel, as a
+     * {@link RobotCommand#GAIT} sets the ones of the Crab oscillators, so the pending value of
+     * the channel doesn't need to be written before it. A {@link RobotCommand#STOP} replaces
+     * the amplitudes and the period of the Crab and the tracks of the Rhino, that the firmwares
+     * reset when they stop, so their pending values must not be written after it either. Any
+     * other movement or mode replaces the pending speeds of the joystick, they would undo it
+     */
+    public static boolean isReplacedBy(int channel, long command) {
+        switch (RobotCommand.opcode(command)) {
+            case RobotCommand.GAIT:
+                return channel <= CHANNEL_PHASE;
+
+            case RobotCommand.STOP:
+                return channel == CHANNEL_LEFT_AMPLITUDE || channel == CHANNEL_RIGHT_AMPLITUDE
+                        || channel == CHANNEL_PERIOD || channel == CHANNEL_LEFT_TRACK
+                        || channel == CHANNEL_RIGHT_TRACK || channel == CHANNEL_DRIVE;
+
+            case RobotCommand.FORWARD:
+            case RobotCommand.BACKWARD:
+            case RobotCommand.LEFT:
+            case RobotCommand.RIGHT:
+            case RobotCommand.MODE:
+                return channel == CHANNEL_DRIVE;
+
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * Store the command as the newest value of its channel, replacing the pending one if any.
+     * Must be called only from the producer thread.
+     *
+     * @param channel the channel of the command, as returned by {@link #channelOf(long)}
+     * @param command the command
+     * @param inputTime when the user did the input that caused the command, in nanoseconds
+     */
+    public void offer(int channel, long command, long inputTime) {
+        // Set after the command and read by the consumer before taking it, so in the rare case
+        // that both threads race the latency measured is longer, never shorter
+        long previous = mSlots.getAndSet(channel, command);
+        mInputTimes.set(channel, inputTime);
+
+        if (previous != EMPTY) {
+            mSuperseded.incrementAndGet(channel);
+        }
+    }
+
+
+    /**
+     * Take the pending command of the channel. Can be called from both threads, each pending
+     * command is taken only once.
+     *
+     * @param channel the channel
+     * @return the command or {@link CommandQueue#EMPTY} if there is none
+     */
+    public long take(int channel) {
+        // Cheap read first, in order to not write the slot when there is nothing to take
+        if (mSlots.get(channel) == EMPTY) {
+            return EMPTY;
+        }
+
+        return mSlots.getAndSet(channel, EMPTY);
+    }
+
+
+    /**
+     * Drop the pending command of the channel, replaced by a command written through the queue.
+     * Must be called only from the producer thread.
+     *
+     * @param channel the channel
+     */
+    public void discard(int channel) {
+        if (take(channel) != EMPTY) {
+            mSuperseded.incrementAndGet(channel);
+        }
+    }
+
+
+    /**
+     * Must be read before {@link #take(int)} in the consumer thread.
+     *
+     * @param channel the channel
+     * @return the input time of the pending command of the channel
+     */
+    public long getInputTime(int channel) {
+        return mInputTimes.get(channel);
+    }
+
+
+    public boolean hasPending() {
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            if (mSlots.get(channel) != EMPTY) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Discard all the pending commands
+     */
+    public void clear() {
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            mSlots.set(channel, EMPTY);
+        }
+    }
+
+
+    /**
+     * @param channel the channel
+     * @return number of commands of the channel replaced by a newer one before being written
+     */
+    public long getSupersededCount(int channel) {
+        return mSuperseded.get(channel);
+    }
+
+
+    /**
+     * @return number of commands of all the channels replaced by a newer one before being
+     * written
+     */
+    public long getSupersededCount() {
+        long total = 0;
+
+        for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+            total += mSuperseded.get(channel);
+        }
+
+        return total;
+    }
+
+}
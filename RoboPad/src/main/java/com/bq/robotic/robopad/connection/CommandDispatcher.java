@@ -0,0 +1,76 @@
+package com.bq.robotic.robopad.connection;
+
+
+/**
+ * What the RoboPad activity does with each command of the robot fragments, without Android so
+ * the benchmarks run the same code: the user takes the control again, so the macro being played
+ * is cancelled, and the command is recorded in the session, if the sessions are recorded, and
+ * queued in the {@link CommandWriter}. It runs on every touch, so it doesn't create any object.
+ */
+
+public class CommandDispatcher {
+
+    private final CommandWriter mCommandWriter;
+    private final ChoreographyPlayer mChoreographyPlayer;
+    private final SessionRecorder mSessionRecorder;
+
+
+    public CommandDispatcher(CommandWriter commandWriter, ChoreographyPlayer choreographyPlayer,
+                             SessionRecorder sessionRecorder) {
+        mCommandWriter = commandWriter;
+        mChoreographyPlayer = choreographyPlayer;
+        mSessionRecorder = sessionRecorder;
+    }
+
+
+    /**
+     * Only from the UI thread, as {@link CommandWriter#send(long, long)}
+     *
+     * @param command   the {@link RobotCommand}
+     * @param inputTime time of the touch that sent it, in the clock of {@link System#nanoTime()}
+     * @return false if the queue of the writer was full and the command was dropped
+     */
+    public boolean send(long command, long inputTime) {
+        if (mChoreographyPlayer.isPlaying()) {
+            cancelChoreography();
+        }
+
+        mSessionRecorder.recordCommand(command, inputTime);
+        return mCommandWriter.send(command, inputTime);
+    }
+
+
+    /**
+     * Sends again a command that the user already sent, as the stop of a click without
+     * heartbeats. Only from the UI thread.
+     *
+     * @return false if the queue of the writer was full and the command was dropped
+     */
+    public boolean resend(long command, long inputTime) {
+        // The macro started after the command, it isn't cancelled nor stopped by it
+        if (mChoreographyPlayer.isPlaying()) {
+            return true;
+        }
+
+        mSessionRecorder.recordCommand(command, inputTime);
+        return mCommandWriter.send(command, inputTime);
+    }
+
+
+    /**
+     * Cancels the macro being played and drops its steps that the writer didn't write yet
+     */
+    public void cancelChoreography() {
+        mChoreographyPlayer.cancel();
+        mCommandWriter.cancelChoreography();
+    }
+
+
+    /**
+     * @return whether the robot gets heartbeats while a movement is held
+     */
+    public boolean hasHeartbeats() {
+        return mCommandWriter.isSendingHeartbeats();
+    }
+
+}
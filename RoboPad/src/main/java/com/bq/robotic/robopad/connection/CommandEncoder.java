@@ -0,0 +1,44 @@
+package com.bq.robotic.robopad.connection;
+
+
+/**
+ * Translate the {@link RobotCommand}s into the bytes that are written to the robot. The encoders
+ * write in a buffer given by the caller, so encoding a command doesn't allocate anything.
+ */
+
+public interface CommandEncoder {
+
+    /**
+     * Max number of bytes that a command can need, the {@link RobotCommand#STATE} frame included
+     */
+    int MAX_FRAME_LENGTH = 64;
+
+    /**
+     * Write the bytes of the command in the buffer.
+     *
+     * @param command the command to encode
+     * @param buffer where the bytes are written
+     * @param offset position of the buffer of the first byte
+     * @return number of bytes written, 0 if the command is not supported by this protocol
+     */
+    int encode(long command, byte[] buffer, int offset);
+
+    /**
+     * Write the bytes of a {@link RobotCommand#STATE} frame with the current values of the state.
+     *
+     * @param state the state to encode
+     * @param buffer where the bytes are written
+     * @param offset position of the buffer of the first byte
+     * @return number of bytes written, 0 if the protocol has no composite state frame
+     */
+    int encodeState(ControlState state, byte[] buffer, int offset);
+
+    /**
+     * Min time between the writes of two commands, so the firmware never reads them together.
+     *
+     * @return the time in nanoseconds from the start of the write of a command to the next one, 0
+     * if the commands can be written back to back
+     */
+    long getMinIntervalNanos();
+
+}
@@ -0,0 +1,153 @@
+package com.bq.robotic.robopad.connection;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Bounded lock-free ring buffer of commands for one producer and one consumer.
+ * The producer is always the UI thread (the robot fragments) and the consumer is the
+ * {@link CommandWriter} thread, so no locks are needed and the FIFO order of the commands is
+ * the order in which the fragments sent them.
+ */
+
+public class CommandQueue {
+
+    /**
+     * Value returned by {@link #poll()} when there is no command. It is not a valid
+     * {@link RobotCommand} because its opcode is 0
+     */
+    public static final long EMPTY = 0;
+
+    private final long[] mBuffer;
+    // Input time of each command, for the latency histograms
+    private final long[] mInputTimes;
+    private final int mMask;
+
+    // Input time and position of the last command polled. Only used by the consumer
+    private long mPolledInputTime;
+    private long mPolledPosition;
+
+    // Next slot to read. Only written by the consumer
+    private final AtomicLong mHead = new AtomicLong();
+    // Next slot to write. Only written by the producer
+    private final AtomicLong mTail = new AtomicLong();
+
+
+    /**
+     * @param capacity max number of commands waiting to be written. It is rounded up to the next
+     *                 power of two
+     */
+    public CommandQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+
+        mBuffer = new long[size];
+        mInputTimes = new long[size];
+        mMask = size - 1;
+    }
+
+
+    /**
+     * Add a command at the end of the queue. Must be called only from the producer thread.
+     *
+     * @param command the command to add
+     * @param inputTime when the user did the input that caused the command, in nanoseconds
+     * @return true if added or false if the queue was full
+     */
+    public boolean offer(long command, long inputTime) {
+        long tail = mTail.get();
+
+        if (tail - mHead.get() == mBuffer.length) {
+            return false;
+        }
+
+        mBuffer[(int) tail & mMask] = command;
+        mInputTimes[(int) tail & mMask] = inputTime;
+
+        // Volatile store, so the consumer sees the slot filled and so the producer can check
+        // afterwards if the consumer is waiting without losing a wake up
+        mTail.set(tail + 1);
+
+        return true;
+    }
+
+
+    /**
+     * Take the command at the head of the queue. Must be called only from the consumer thread.
+     *
+     * @return the command or {@link #EMPTY} if the queue is empty
+     */
+    public long poll() {
+        long head = mHead.get();
+
+        if (head == mTail.get()) {
+            return EMPTY;
+        }
+
+        long command = mBuffer[(int) head & mMask];
+        mPolledInputTime = mInputTimes[(int) head & mMask];
+        mPolledPosition = head;
+        mHead.lazySet(head + 1);
+
+        return command;
+    }
+
+
+    /**
+     * @return the input time of the last command returned by {@link #poll()}. Must be called only
+     * from the consumer thread
+     */
+    public long getPolledInputTime() {
+        return mPolledInputTime;
+    }
+
+
+    /**
+     * @return the position of the last command returned by {@link #poll()}, the number of
+     * commands offered before it. Must be called only from the consumer thread
+     */
+    public long getPolledPosition() {
+        return mPolledPosition;
+    }
+
+
+    /**
+     * @return number of commands offered since the queue was created, the position of the next
+     * one. Must be called only from the producer thread
+     */
+    public long getOffered() {
+        return mTail.get();
+    }
+
+
+    /**
+     * @return true if the next {@link #offer(long, long)} adds its command. Must be called only
+     * from the producer thread: the consumer can only make more room meanwhile
+     */
+    public boolean hasRoom() {
+        return mTail.get() - mHead.get() < mBuffer.length;
+    }
+
+
+    public boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+}
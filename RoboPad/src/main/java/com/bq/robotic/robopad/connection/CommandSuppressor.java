@@ -0,0 +1,182 @@
+package com.bq.robotic.robopad.connection;
+
+
+/**
+ * Drops the commands that can't change the state of the robot, as the manual control mode sent
+ * again by every press of a button or a Rhino track sent again while its slider stays in the
+ * same step. It keeps the state that the robot is assumed to have after the commands already
+ * sent, with the same fields as {@link ControlState}, and a command is redundant when its field
+ * already has its value.
+ *
+ * Some commands change other fields as a side effect in the firmwares, as the movements of the
+ * Crab that set the amplitudes, period and phase of its oscillators, or the Rhino charge that
+ * moves the tracks, so they make those fields unknown again.
+ *
+ * {@link RobotCommand#STOP} is never dropped: it is the safety command and the legacy sketches
+ * can lose it when it arrives in the same read of the buffer as the previous command.
+ *
+ * It is only used from the UI thread.
+ */
+
+public class CommandSuppressor {
+
+    private static final int ALL_FIELDS = (1 << ControlState.FIELD_COUNT) - 1;
+
+    private static final int TRACK_FIELDS = (1 << ControlState.FIELD_LEFT_TRACK)
+            | (1 << ControlState.FIELD_RIGHT_TRACK);
+
+    private static final int OSCILLATOR_FIELDS = (1 << ControlState.FIELD_LEFT_AMPLITUDE)
+            | (1 << ControlState.FIELD_RIGHT_AMPLITUDE)
+            | (1 << ControlState.FIELD_PERIOD)
+            | (1 << ControlState.FIELD_PHASE);
+
+    private static final int MOTION_FIELD = 1 << ControlState.FIELD_MOTION;
+
+    private final int[] mValues = new int[ControlState.FIELD_COUNT];
+
+    // Bit i set when the value of the field i in the robot is known
+    private int mKnownFields;
+
+    private volatile long mSuppressedCommands;
+
+
+    /**
+     * Update the assumed state of the robot with a command that is going to be sent
+     *
+     * @param command the {@link RobotCommand}
+     * @return true if the command can't change the state of the robot and must not be sent
+     */
+    public boolean suppress(long command) {
+        int opcode = RobotCommand.opcode(command);
+        int field = ControlState.fieldOf(command);
+
+        if (opcode == RobotCommand.GAIT) {
+            if (isKnownGait(command)) {
+                mSuppressedCommands++;
+                return true;
+            }
+
+            for (int i = 0; i < RobotCommand.GAIT_PART_COUNT; i++) {
+                long part = RobotCommand.gaitPart(command, i);
+                field = ControlState.fieldOf(part);
+                mValues[field] = RobotCommand.arg(part);
+                mKnownFields |= 1 << field;
+            }
+
+        } else if (field != ControlState.NO_FIELD) {
+            int value = field == ControlState.FIELD_MOTION
+                    ? ControlState.motionValueOf(command) : RobotCommand.arg(command);
+
+            if (opcode != RobotCommand.STOP && (mKnownFields & (1 << field)) != 0
+                    && mValues[field] == value) {
+                mSuppressedCommands++;
+                return true;
+            }
+
+            mValues[field] = value;
+            mKnownFields |= 1 << field;
+        }
+
+        mKnownFields &= ~sideEffectsOf(opcode);
+
+        return false;
+    }
+
+
+    /**
+     * The command was not sent after all, i.e. because the queue was full, so the robot doesn't
+     * have the value of its field
+     *
+     * @param command the {@link RobotCommand}
+     */
+    public void forget(long command) {
+        if (RobotCommand.opcode(command) == RobotCommand.GAIT) {
+            mKnownFields &= ~OSCILLATOR_FIELDS;
+            return;
+        }
+
+        int field = ControlState.fieldOf(command);
+
+        if (field != ControlState.NO_FIELD) {
+            mKnownFields &= ~(1 << field);
+        }
+    }
+
+
+    /**
+     * Forget the whole state of the robot, i.e. when connecting to it
+     */
+    public void forgetAll() {
+        mKnownFields = 0;
+    }
+
+
+    /**
+     * @return number of redundant commands not sent
+     */
+    public long getSuppressedCommands() {
+        return mSuppressedCommands;
+    }
+
+
+    /**
+     * @return true if the robot already has every parameter of the {@link RobotCommand#GAIT}
+     */
+    private boolean isKnownGait(long gait) {
+        for (int i = 0; i < RobotCommand.GAIT_PART_COUNT; i++) {
+            long part = RobotCommand.gaitPart(gait, i);
+            int field = ControlState.fieldOf(part);
+
+            if ((mKnownFields & (1 << field)) == 0 || mValues[field] != RobotCommand.arg(part)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * @param opcode an opcode of {@link RobotCommand}
+     * @return mask of the fields that the firmwares may change when they apply the command, besides
+     * the one of the command
+     */
+    private static int sideEffectsOf(int opcode) {
+        switch (opcode) {
+            case RobotCommand.STOP:
+            case RobotCommand.FORWARD:
+            case RobotCommand.BACKWARD:
+            case RobotCommand.LEFT:
+            case RobotCommand.RIGHT:
+            case RobotCommand.DRIVE:
+                return OSCILLATOR_FIELDS | TRACK_FIELDS;
+
+            case RobotCommand.MODE:
+                // In the autonomous modes the robot moves by itself
+                return MOTION_FIELD | TRACK_FIELDS;
+
+            case RobotCommand.LEFT_TRACK:
+            case RobotCommand.RIGHT_TRACK:
+            case RobotCommand.LEFT_AMPLITUDE:
+            case RobotCommand.RIGHT_AMPLITUDE:
+            case RobotCommand.PERIOD:
+            case RobotCommand.PHASE:
+            case RobotCommand.GAIT:
+                return MOTION_FIELD;
+
+            case RobotCommand.RESET:
+                return OSCILLATOR_FIELDS | MOTION_FIELD;
+
+            case RobotCommand.CHARGE:
+                return TRACK_FIELDS | MOTION_FIELD;
+
+            case RobotCommand.CLAW:
+                return 0;
+
+            default:
+                // The user commands of the generic robot can do anything
+                return ALL_FIELDS;
+        }
+    }
+
+}
@@ -0,0 +1,974 @@
+package com.bq.robotic.robopad.connection;
+
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Single long-lived thread that writes the commands to the robot. All the robot fragments feed
+ * it through {@link #send(long)} from the UI thread, so the commands reach the robot in the
+ * same order they were sent and no thread is created each time the user presses a button.
+ * The commands are encoded in the writer thread with the current {@link CommandEncoder}, and if
+ * its protocol needs it the writer waits between commands so the firmware reads each one on its
+ * own. So a command sent after another one, as the movement after the change to the manual
+ * control mode, always reaches the robot after it without the fragments having to wait.
+ *
+ * The commands that can't change the state of the robot are dropped by a
+ * {@link CommandSuppressor} before being queued. The values of the continuous controls go
+ * through a {@link CommandCoalescer} instead of the queue, so only the newest value of each
+ * parameter is written once the link is free.
+ *
+ * Optionally it works as a fixed-rate control loop: the commands that are part of the
+ * {@link ControlState} only update it and the writer thread sends the whole state in a single
+ * frame on each tick, so the use of the link is bounded and the latency constant. The other
+ * commands are still written between the ticks.
+ *
+ * While the user holds a movement in the manual control mode it also writes a
+ * {@link RobotCommand#HEARTBEAT} when the link has been silent for the heartbeat interval, and
+ * one as soon as the movement starts. The firmware stops the robot when no frame arrives in
+ * {@link #HEARTBEAT_TIMEOUT_INTERVALS} intervals, so if the stop of the user never arrives, the
+ * robot stops anyway.
+ *
+ * The stops and the changes of mode go through a second queue, the priority lane, that the
+ * writer thread empties before the normal queue and the pending values of the continuous
+ * controls. The movements still queued before them are dropped, they would undo them, and so
+ * are the pending values that a stop resets. So the time to stop doesn't depend on the traffic
+ * waiting: it is at most the minimum interval of the encoder after the command being written,
+ * or a period of the control loop. It is measured from the input of each stop to its write.
+ *
+ * A {@link SendRateLimiter} measures the throughput of the link with the time of the writes and
+ * the acks, and while the link is behind the writer holds the queued commands and the values of
+ * the continuous controls, that keep being replaced by the newest ones, instead of piling them
+ * up in the buffers of the link. The priority commands, the state frames of the control loop and
+ * the heartbeats are never held, but their bytes are taken from the budget too.
+ *
+ * The steps of the macros have a lane of their own, fed by the thread of the
+ * {@link ChoreographyPlayer} through {@link #sendChoreography(long, long)}, so they go from the
+ * player to the writer thread at their time without waiting for the UI thread. They are written
+ * after the priority commands and before the rest, as they are, without the suppressor, the
+ * coalescer or the state of the user. While a macro plays the ticks of the control loop are
+ * paused, so the state of the user doesn't undo its steps, and the heartbeats follow its
+ * movements. When the user takes the control again the steps still in the lane are dropped.
+ */
+
+public class CommandWriter {
+
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final int PRIORITY_CAPACITY = 16;
+
+    public static final int MIN_CONTROL_LOOP_RATE = 20;
+    public static final int MAX_CONTROL_LOOP_RATE = 100;
+
+    public static final int MIN_HEARTBEAT_INTERVAL = 50;
+    public static final int MAX_HEARTBEAT_INTERVAL = 1000;
+
+    /**
+     * The timeout sent in the heartbeats, in intervals, so a single heartbeat lost or late
+     * doesn't stop the robot
+     */
+    public static final int HEARTBEAT_TIMEOUT_INTERVALS = 3;
+
+    private final CommandQueue mQueue;
+    private final CommandQueue mPriorityQueue = new CommandQueue(PRIORITY_CAPACITY);
+    private final CommandQueue mChoreographyQueue = new CommandQueue(PRIORITY_CAPACITY);
+    // The steps due up to this time were cancelled. Only written by the UI thread
+    private volatile long mChoreographyCancelTime = System.nanoTime();
+    // Between the first step of a macro and its end or cancel
+    private volatile boolean mChoreographyPlaying;
+    // Number of steps sent. Only written by the player thread
+    private volatile long mChoreographyCommands;
+    // Value of mChoreographyCommands when the suppressor forgot the state. Only used by the UI
+    // thread
+    private long mForgottenChoreographyCommands;
+    private volatile boolean mPriorityLanes = true;
+    // Position in mQueue of the first command sent after the last priority command
+    private volatile long mFlushBefore;
+    private volatile long mFlushedCommands;
+    private final CommandCoalescer mCoalescer = new CommandCoalescer();
+    private final CommandSuppressor mSuppressor = new CommandSuppressor();
+    private final ControlState mState = new ControlState();
+    // Copy of the state sent on each tick. Only used by the writer thread
+    private final ControlState mSentState = new ControlState();
+    private final RobotTransport mTransport;
+    private volatile CommandEncoder mEncoder;
+
+    // Only used by the writer thread
+    private final byte[] mFrameBuffer = new byte[CommandEncoder.MAX_FRAME_LENGTH];
+    private int mNextChannel;
+    private long mTakenInputTime;
+    private boolean mChoreographyMoving;
+    private final long[] mStateInputTimes = new long[ControlState.FIELD_COUNT];
+
+    private volatile LatencyRecorder mLatencyRecorder;
+    private long mNextTick;
+
+    // Period of the control loop, 0 when it is disabled
+    private volatile long mTickPeriodNanos;
+
+    // Interval of the heartbeats, 0 when they are disabled
+    private volatile long mHeartbeatIntervalNanos;
+
+    // Only used by the writer thread
+    private long mNextHeartbeat;
+    private boolean mWasMoving;
+    private volatile long mHeartbeats;
+
+    // Statistics of the control loop. Only written by the writer thread
+    private volatile long mTicks;
+    private volatile long mSkippedTicks;
+    private volatile long mTotalJitterNanos;
+    private volatile long mMaxJitterNanos;
+
+    private volatile Thread mThread;
+    private volatile boolean mRunning;
+    private volatile boolean mWaiting;
+
+    private volatile long mDroppedCommands;
+
+    private final SendRateLimiter mRateLimiter =
+            new SendRateLimiter(SendRateLimiter.MODULE_BYTES_PER_SECOND);
+    private volatile boolean mRateLimiting = true;
+
+    // Time to stop, from the input of each stop to its write. Only written by the writer thread
+    private volatile long mStops;
+    private volatile long mTotalTimeToStopNanos;
+    private volatile long mMaxTimeToStopNanos;
+
+
+    /**
+     * @param transport where the encoded commands are written, i.e. the Bluetooth connection
+     * @param encoder the encoder of the protocol
+     */
+    public CommandWriter(RobotTransport transport, CommandEncoder encoder) {
+        this(transport, encoder, DEFAULT_CAPACITY);
+    }
+
+
+    public CommandWriter(RobotTransport transport, CommandEncoder encoder, int capacity) {
+        mTransport = transport;
+        mEncoder = encoder;
+        mQueue = new CommandQueue(capacity);
+    }
+
+
+    /**
+     * Start the writer thread. Does nothing if it was already started.
+     */
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+
+        mRunning = true;
+        mThread = new Thread(mWriterLoop, "RoboPadCommandWriter");
+        mThread.start();
+    }
+
+
+    /**
+     * Stop the writer thread. The commands that were not written yet are discarded.
+     */
+    public synchronized void stop() {
+        Thread thread = mThread;
+        if (thread == null) {
+            return;
+        }
+
+        mRunning = false;
+        LockSupport.unpark(thread);
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        mThread = null;
+
+        while (mQueue.poll() != CommandQueue.EMPTY || mPriorityQueue.poll() != CommandQueue.EMPTY
+                || mChoreographyQueue.poll() != CommandQueue.EMPTY) {
+            // Discard the pending commands
+        }
+        mChoreographyPlaying = false;
+        mCoalescer.clear();
+        mSuppressor.forgetAll();
+    }
+
+
+    /**
+     * Forget the state that the robot is assumed to have, so the next commands are sent even if
+     * they repeat the previous ones, i.e. when connecting to a robot. Must be called from the UI
+     * thread.
+     */
+    public void forgetRobotState() {
+        mSuppressor.forgetAll();
+    }
+
+
+    /**
+     * Change the protocol used for the next commands, i.e. when the user selects another one
+     * in the settings
+     *
+     * @param encoder the encoder of the protocol
+     */
+    public void setEncoder(CommandEncoder encoder) {
+        mEncoder = encoder;
+    }
+
+
+    /**
+     * Enable or disable the control loop mode. It needs a protocol with a state frame, with the
+     * legacy protocol the commands are always sent one by one.
+     *
+     * @param rate ticks per second, from {@link #MIN_CONTROL_LOOP_RATE} to
+     *             {@link #MAX_CONTROL_LOOP_RATE}, or 0 to send the commands as they come
+     */
+    public void setControlLoopRate(int rate) {
+        if (rate != 0 && (rate < MIN_CONTROL_LOOP_RATE || rate > MAX_CONTROL_LOOP_RATE)) {
+            throw new IllegalArgumentException("control loop rate out of range: " + rate);
+        }
+
+        mTickPeriodNanos = rate == 0 ? 0 : 1000000000L / rate;
+
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+
+    /**
+     * Enable or disable the heartbeats while the user holds a movement. They need a protocol
+     * whose firmware stops the robot by itself, the legacy protocol has no heartbeat.
+     *
+     * @param millis milliseconds from {@link #MIN_HEARTBEAT_INTERVAL} to
+     *               {@link #MAX_HEARTBEAT_INTERVAL}, or 0 to not send heartbeats
+     */
+    public void setHeartbeatInterval(int millis) {
+        if (millis != 0 && (millis < MIN_HEARTBEAT_INTERVAL || millis > MAX_HEARTBEAT_INTERVAL)) {
+            throw new IllegalArgumentException("heartbeat interval out of range: " + millis);
+        }
+
+        mHeartbeatIntervalNanos = millis * 1000000L;
+
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+
+    /**
+     * Enable or disable the priority lane of the stops and the changes of mode. Without it they
+     * are written in order with the rest of commands, as the other commands
+     */
+    public void setPriorityLanes(boolean enabled) {
+        mPriorityLanes = enabled;
+    }
+
+
+    /**
+     * @param command a {@link RobotCommand}
+     * @return true if the command goes through the priority lane: the stops and the changes of
+     * mode
+     */
+    public static boolean isPriority(long command) {
+        int opcode = RobotCommand.opcode(command);
+        return opcode == RobotCommand.STOP || opcode == RobotCommand.MODE;
+    }
+
+
+    /**
+     * @param command a {@link RobotCommand} of the normal queue
+     * @return true if a priority command sent after it makes it useless, so it is not written:
+     * the movements of the robot
+     */
+    private static boolean isSupersededByPriority(long command) {
+        switch (RobotCommand.opcode(command)) {
+            case RobotCommand.FORWARD:
+            case RobotCommand.BACKWARD:
+            case RobotCommand.LEFT:
+            case RobotCommand.RIGHT:
+            case RobotCommand.DRIVE:
+            case RobotCommand.GAIT:
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * Enable or disable the limit of the rate of the commands that can wait. Without it they are
+     * written as soon as the link accepts them, though the throughput is still estimated
+     */
+    public void setRateLimiting(boolean enabled) {
+        mRateLimiting = enabled;
+    }
+
+
+    /**
+     * @return the estimate of the throughput of the link and the budget of the writer
+     */
+    public SendRateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+
+    public boolean isControlLoopEnabled() {
+        return mTickPeriodNanos != 0;
+    }
+
+
+    /**
+     * @param recorder where the latency of each command written is recorded, or null to not
+     *                 measure them
+     */
+    public void setLatencyRecorder(LatencyRecorder recorder) {
+        mLatencyRecorder = recorder;
+    }
+
+
+    /**
+     * Queue the command to be written by the writer thread, caused by an input of the user now.
+     * It never blocks. Must be called always from the same thread, the UI thread.
+     *
+     * @param command the {@link RobotCommand} to send to the robot
+     * @return true if queued or redundant, false if the queue was full and the command was dropped
+     */
+    public boolean send(long command) {
+        return send(command, System.nanoTime());
+    }
+
+
+    /**
+     * Queue the command to be written by the writer thread. It never blocks. Must be called
+     * always from the same thread, the UI thread.
+     *
+     * @param command the {@link RobotCommand} to send to the robot
+     * @param inputTime when the user did the input that caused the command, in the clock of
+     *                  {@link System#nanoTime()}, for the latency histograms
+     * @return true if queued or redundant, false if the queue was full and the command was dropped
+     */
+    public boolean send(long command, long inputTime) {
+        // The robot got the steps of a macro since the last command, its state is unknown
+        long choreographyCommands = mChoreographyCommands;
+        if (choreographyCommands != mForgottenChoreographyCommands) {
+            mForgottenChoreographyCommands = choreographyCommands;
+            mSuppressor.forgetAll();
+        }
+
+        if (mSuppressor.suppress(command)) {
+            return true;
+        }
+
+        // The control loop sends the state on the next tick
+        if (mState.apply(command, inputTime) != ControlState.NO_FIELD && mTickPeriodNanos != 0) {
+            return true;
+        }
+
+        boolean queued = true;
+        int channel = CommandCoalescer.channelOf(command);
+
+        if (mPriorityLanes && isPriority(command)) {
+            // A full lane drops the command and keeps what it would have replaced. Checked
+            // before, the writer must not see it before the movements it replaces are dropped
+            if (!mPriorityQueue.hasRoom()) {
+                mSuppressor.forget(command);
+                mDroppedCommands++;
+                queued = false;
+
+            } else {
+                // It jumps ahead of the pending values, unless they must not be written after it
+                for (channel = 0; channel < CommandCoalescer.CHANNEL_COUNT; channel++) {
+                    if (CommandCoalescer.isReplacedBy(channel, command)) {
+                        mCoalescer.discard(channel);
+                    }
+                }
+
+                // The movements queued until now are not written
+                mFlushBefore = mQueue.getOffered();
+
+                mPriorityQueue.offer(command, inputTime);
+            }
+
+        } else if (channel != CommandCoalescer.NO_CHANNEL) {
+            mCoalescer.offer(channel, command, inputTime);
+
+        } else {
+            // The pending values of the continuous controls were sent before this command, so
+            // they must reach the robot before it, unless the command replaces them
+            for (channel = 0; channel < CommandCoalescer.CHANNEL_COUNT; channel++) {
+                if (CommandCoalescer.isReplacedBy(channel, command)) {
+                    mCoalescer.discard(channel);
+                    continue;
+                }
+
+                long pendingInputTime = mCoalescer.getInputTime(channel);
+                long pending = mCoalescer.take(channel);
+                if (pending != CommandQueue.EMPTY && !mQueue.offer(pending, pendingInputTime)) {
+                    mSuppressor.forget(pending);
+                    mDroppedCommands++;
+                }
+            }
+
+            if (!mQueue.offer(command, inputTime)) {
+                mSuppressor.forget(command);
+                mDroppedCommands++;
+                queued = false;
+            }
+        }
+
+        if (mWaiting) {
+            LockSupport.unpark(mThread);
+        }
+
+        return queued;
+    }
+
+
+    /**
+     * Queue a step of a macro in its own lane, to be written as soon as the writer thread is
+     * free. It never blocks. Must be called always from the same thread, the player thread.
+     *
+     * @param command  the {@link RobotCommand} of the step
+     * @param deadline when the step was due, in the clock of {@link System#nanoTime()}, for the
+     *                 latency histograms
+     * @return false if the lane was full and the command was dropped
+     */
+    public boolean sendChoreography(long command, long deadline) {
+        mChoreographyPlaying = true;
+        mChoreographyCommands++;
+
+        boolean queued = mChoreographyQueue.offer(command, deadline);
+        if (!queued) {
+            mDroppedCommands++;
+        }
+
+        if (mWaiting) {
+            LockSupport.unpark(mThread);
+        }
+
+        return queued;
+    }
+
+
+    /**
+     * The macro ended, the control loop sends the state of the user again. From the player
+     * thread.
+     */
+    public void endChoreography() {
+        mChoreographyPlaying = false;
+    }
+
+
+    /**
+     * The macro was cancelled, i.e. because the user took the control again: its steps still in
+     * the lane are not written. From the UI thread.
+     */
+    public void cancelChoreography() {
+        mChoreographyCancelTime = System.nanoTime();
+        mChoreographyPlaying = false;
+    }
+
+
+    /**
+     * @return number of commands dropped because the queue was full
+     */
+    public long getDroppedCommands() {
+        return mDroppedCommands;
+    }
+
+
+    /**
+     * @return number of movements not written because a priority command sent after them
+     * jumped ahead
+     */
+    public long getFlushedCommands() {
+        return mFlushedCommands;
+    }
+
+
+    /**
+     * @return number of stops written, alone or in a state frame
+     */
+    public long getStops() {
+        return mStops;
+    }
+
+
+    /**
+     * @return mean time from the input of a stop to its write, in nanoseconds
+     */
+    public long getMeanTimeToStopNanos() {
+        long stops = mStops;
+        return stops == 0 ? 0 : mTotalTimeToStopNanos / stops;
+    }
+
+
+    /**
+     * @return max time from the input of a stop to its write, in nanoseconds
+     */
+    public long getMaxTimeToStopNanos() {
+        return mMaxTimeToStopNanos;
+    }
+
+
+    /**
+     * @return number of commands not sent because they couldn't change the state of the robot
+     */
+    public long getSuppressedCommands() {
+        return mSuppressor.getSuppressedCommands();
+    }
+
+
+    /**
+     * @param channel one of the CHANNEL_* values of {@link CommandCoalescer}
+     * @return number of values of the channel replaced by a newer one before being written
+     */
+    public long getSupersededCommands(int channel) {
+        return mCoalescer.getSupersededCount(channel);
+    }
+
+
+    /**
+     * @return number of values of the continuous controls replaced by a newer one before being
+     * written
+     */
+    public long getSupersededCommands() {
+        return mCoalescer.getSupersededCount();
+    }
+
+
+    /**
+     * @return whether heartbeats are sent while the user holds a movement
+     */
+    public boolean isSendingHeartbeats() {
+        return mHeartbeatIntervalNanos > 0;
+    }
+
+
+    /**
+     * @return number of heartbeats written
+     */
+    public long getHeartbeats() {
+        return mHeartbeats;
+    }
+
+
+    /**
+     * @return number of state frames sent by the control loop
+     */
+    public long getControlLoopTicks() {
+        return mTicks;
+    }
+
+
+    /**
+     * @return number of ticks of the control loop not sent because the writer thread was late
+     * more than a whole period
+     */
+    public long getControlLoopSkippedTicks() {
+        return mSkippedTicks;
+    }
+
+
+    /**
+     * @return mean delay of the ticks of the control loop from their scheduled time, in
+     * nanoseconds
+     */
+    public long getControlLoopMeanJitterNanos() {
+        long ticks = mTicks;
+        return ticks == 0 ? 0 : mTotalJitterNanos / ticks;
+    }
+
+
+    /**
+     * @return max delay of a tick of the control loop from its scheduled time, in nanoseconds
+     */
+    public long getControlLoopMaxJitterNanos() {
+        return mMaxJitterNanos;
+    }
+
+
+    public RobotTransport getTransport() {
+        return mTransport;
+    }
+
+
+    public boolean isRunning() {
+        return mRunning;
+    }
+
+
+    private void write(long command, long inputTime) {
+        CommandEncoder encoder = mEncoder;
+        int length = encoder.encode(command, mFrameBuffer, 0);
+
+        // The legacy protocol has no command for the whole gait, so its parameters are written
+        // one by one
+        if (length == 0 && RobotCommand.opcode(command) == RobotCommand.GAIT) {
+            for (int i = 0; i < RobotCommand.GAIT_PART_COUNT; i++) {
+                write(RobotCommand.gaitPart(command, i), inputTime);
+            }
+            return;
+        }
+
+        if (length > 0) {
+            long writeTime = writeFrame(length);
+            mNextHeartbeat = writeTime + mHeartbeatIntervalNanos;
+
+            LatencyRecorder recorder = mLatencyRecorder;
+            if (recorder != null) {
+                recorder.record(RobotCommand.opcode(command), inputTime, System.nanoTime());
+            }
+
+            if (RobotCommand.opcode(command) == RobotCommand.STOP) {
+                recordTimeToStop(inputTime);
+            }
+
+            waitUntil(writeTime + encoder.getMinIntervalNanos());
+        }
+    }
+
+
+    /**
+     * Write the frame of mFrameBuffer and give its time to the rate limiter
+     *
+     * @return when the write started
+     */
+    private long writeFrame(int length) {
+        long start = System.nanoTime();
+        mTransport.write(mFrameBuffer, 0, length);
+
+        CommandEncoder encoder = mEncoder;
+        mRateLimiter.onWrite(length, start, System.nanoTime(), encoder instanceof FrameCommandEncoder
+                ? ((FrameCommandEncoder) encoder).getAckTracker() : null);
+
+        return start;
+    }
+
+
+    /**
+     * Hold the commands that can wait until the rate limiter has budget for them, or until a
+     * priority command, a tick of the control loop or the stop of the writer
+     *
+     * @return true if the writer waited
+     */
+    private boolean throttle(long period) {
+        if (!mRateLimiting || (mQueue.isEmpty() && !mCoalescer.hasPending())) {
+            return false;
+        }
+
+        long now = System.nanoTime();
+        long delay = mRateLimiter.getDelayNanos(now);
+        if (delay == 0) {
+            return false;
+        }
+
+        if (period != 0 && mNextTick - now < delay) {
+            delay = Math.max(0, mNextTick - now);
+        }
+        mRateLimiter.onThrottled(delay);
+
+        mWaiting = true;
+        if (mPriorityQueue.isEmpty() && mChoreographyQueue.isEmpty() && mRunning) {
+            LockSupport.parkNanos(this, delay);
+        }
+        mWaiting = false;
+
+        return true;
+    }
+
+
+    private void recordTimeToStop(long inputTime) {
+        long timeToStop = System.nanoTime() - inputTime;
+
+        mStops++;
+        mTotalTimeToStopNanos += timeToStop;
+        if (timeToStop > mMaxTimeToStopNanos) {
+            mMaxTimeToStopNanos = timeToStop;
+        }
+    }
+
+
+    /**
+     * Take the next command of the normal queue, dropping the movements queued before the last
+     * priority command. Its input time is left in mTakenInputTime.
+     */
+    private long pollQueue() {
+        long command;
+
+        while ((command = mQueue.poll()) != CommandQueue.EMPTY) {
+            if (mQueue.getPolledPosition() < mFlushBefore && isSupersededByPriority(command)) {
+                mFlushedCommands++;
+                continue;
+            }
+
+            mTakenInputTime = mQueue.getPolledInputTime();
+            return command;
+        }
+
+        return CommandQueue.EMPTY;
+    }
+
+
+    /**
+     * Block the writer thread until the time, or until it is stopped
+     */
+    private void waitUntil(long time) {
+        long remaining;
+        while (mRunning && (remaining = time - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+
+    /**
+     * Send the state if the tick is due. The ticks are scheduled from the previous scheduled time,
+     * not from the time they were sent, so the rate doesn't drift.
+     */
+    private void tick(long period) {
+        long now = System.nanoTime();
+
+        // The state of the user would undo the steps of the macro
+        if (mChoreographyPlaying) {
+            mNextTick = 0;
+            return;
+        }
+
+        if (mNextTick == 0) {
+            mNextTick = now;
+        }
+
+        long jitter = now - mNextTick;
+        if (jitter < 0) {
+            return;
+        }
+
+        // Taken before encoding, so a change made meanwhile is counted in the next tick
+        for (int field = 0; field < ControlState.FIELD_COUNT; field++) {
+            mStateInputTimes[field] = mState.takePendingInputTime(field);
+        }
+
+        mState.copyTo(mSentState);
+        int length = mEncoder.encodeState(mSentState, mFrameBuffer, 0);
+        if (length > 0) {
+            writeFrame(length);
+            mNextHeartbeat = now + mHeartbeatIntervalNanos;
+            recordStateLatencies();
+
+            if (mStateInputTimes[ControlState.FIELD_MOTION] != 0
+                    && mSentState.get(ControlState.FIELD_MOTION) == RobotCommand.STOP) {
+                recordTimeToStop(mStateInputTimes[ControlState.FIELD_MOTION]);
+            }
+        }
+
+        mTicks++;
+        mTotalJitterNanos += jitter;
+        if (jitter > mMaxJitterNanos) {
+            mMaxJitterNanos = jitter;
+        }
+
+        mNextTick += period;
+
+        // Too late, skip the missed ticks instead of sending them in a burst
+        if (mNextTick <= now) {
+            long missed = (now - mNextTick) / period + 1;
+            mSkippedTicks += missed;
+            mNextTick += missed * period;
+        }
+    }
+
+
+    /**
+     * @return true if the user holds a movement in the manual control mode
+     */
+    private boolean isMoving() {
+        if (mChoreographyPlaying) {
+            return mChoreographyMoving;
+        }
+        mChoreographyMoving = false;
+
+        if (!mState.isKnown(ControlState.FIELD_MOTION)
+                || mState.get(ControlState.FIELD_MOTION) == RobotCommand.STOP) {
+            return false;
+        }
+
+        return !mState.isKnown(ControlState.FIELD_MODE)
+                || mState.get(ControlState.FIELD_MODE) == RobotCommand.MODE_MANUAL_CONTROL;
+    }
+
+
+    /**
+     * Write a heartbeat if the user holds a movement and it is due: when the movement starts
+     * and then when nothing was written for a whole interval
+     *
+     * @return when the next heartbeat is due, or 0 if none is needed
+     */
+    private long heartbeat(long interval) {
+        if (interval == 0 || !isMoving()) {
+            mWasMoving = false;
+            return 0;
+        }
+
+        long now = System.nanoTime();
+
+        if (mWasMoving && now - mNextHeartbeat < 0) {
+            return mNextHeartbeat;
+        }
+
+        int timeout = (int) (interval * HEARTBEAT_TIMEOUT_INTERVALS / 1000000L);
+        int length = mEncoder.encode(RobotCommand.of(RobotCommand.HEARTBEAT, timeout), mFrameBuffer, 0);
+        if (length > 0) {
+            writeFrame(length);
+            mHeartbeats++;
+        }
+
+        mWasMoving = true;
+        mNextHeartbeat = now + interval;
+
+        return mNextHeartbeat;
+    }
+
+
+    /**
+     * Record the latency of each field of the state that changed since the previous tick, as if
+     * it was a single command
+     */
+    private void recordStateLatencies() {
+        LatencyRecorder recorder = mLatencyRecorder;
+        if (recorder == null) {
+            return;
+        }
+
+        long now = System.nanoTime();
+
+        for (int field = 0; field < ControlState.FIELD_COUNT; field++) {
+            if (mStateInputTimes[field] != 0) {
+                int opcode = ControlState.opcodeOf(field, mSentState.get(field));
+                recorder.record(opcode, mStateInputTimes[field], now);
+            }
+        }
+    }
+
+
+    /**
+     * Take the next step of the macros, dropping the ones cancelled. Its input time, the
+     * deadline of the step, is left in mTakenInputTime.
+     */
+    private long pollChoreography() {
+        long command;
+
+        while ((command = mChoreographyQueue.poll()) != CommandQueue.EMPTY) {
+            long deadline = mChoreographyQueue.getPolledInputTime();
+            if (deadline - mChoreographyCancelTime <= 0) {
+                continue;
+            }
+
+            // For the heartbeats, the steps are not in the state of the user
+            int field = ControlState.fieldOf(command);
+            if (field == ControlState.FIELD_MOTION) {
+                mChoreographyMoving = RobotCommand.opcode(command) != RobotCommand.STOP;
+            } else if (field == ControlState.FIELD_MODE) {
+                mChoreographyMoving &= RobotCommand.arg(command) == RobotCommand.MODE_MANUAL_CONTROL;
+            }
+
+            mTakenInputTime = deadline;
+            return command;
+        }
+
+        return CommandQueue.EMPTY;
+    }
+
+
+    /**
+     * Take the pending value of the next channel with one, in turns so no channel is starved
+     * while the user moves another control. Its input time is left in mTakenInputTime.
+     */
+    private long takeCoalesced() {
+        for (int i = 0; i < CommandCoalescer.CHANNEL_COUNT; i++) {
+            int channel = mNextChannel;
+            mNextChannel = (channel + 1) % CommandCoalescer.CHANNEL_COUNT;
+
+            long inputTime = mCoalescer.getInputTime(channel);
+            long command = mCoalescer.take(channel);
+            if (command != CommandQueue.EMPTY) {
+                mTakenInputTime = inputTime;
+                return command;
+            }
+        }
+
+        return CommandQueue.EMPTY;
+    }
+
+
+    private final Runnable mWriterLoop = new Runnable() {
+
+        @Override
+        public void run() {
+
+            while (mRunning) {
+
+                long period = mTickPeriodNanos;
+
+                if (period != 0) {
+                    tick(period);
+                } else {
+                    mNextTick = 0;
+                }
+
+                // The priority commands go first, then the steps of the macros, that are due
+                // now. The queued commands are older than the pending values of the continuous
+                // controls, so they go next
+                long command = mPriorityQueue.poll();
+                long inputTime = mPriorityQueue.getPolledInputTime();
+                if (command == CommandQueue.EMPTY) {
+                    command = pollChoreography();
+                    inputTime = mTakenInputTime;
+                }
+                if (command == CommandQueue.EMPTY && throttle(period)) {
+                    continue;
+                }
+                if (command == CommandQueue.EMPTY) {
+                    command = pollQueue();
+                    inputTime = mTakenInputTime;
+                }
+                if (command == CommandQueue.EMPTY) {
+                    command = takeCoalesced();
+                    inputTime = mTakenInputTime;
+                }
+
+                if (command != CommandQueue.EMPTY) {
+                    write(command, inputTime);
+                    continue;
+                }
+
+                // After the commands, so the heartbeat is not written before the change to the
+                // manual control mode, that makes the firmware forget it
+                long nextHeartbeat = heartbeat(mHeartbeatIntervalNanos);
+
+                // Announce that we are going to wait and check again the queue in order to not
+                // miss a command queued in the meanwhile
+                mWaiting = true;
+                if (mPriorityQueue.isEmpty() && mChoreographyQueue.isEmpty() && mQueue.isEmpty()
+                        && !mCoalescer.hasPending() && mRunning) {
+                    long wakeUp = period != 0 ? mNextTick : nextHeartbeat;
+                    if (period != 0 && nextHeartbeat != 0 && nextHeartbeat - wakeUp < 0) {
+                        wakeUp = nextHeartbeat;
+                    }
+
+                    if (wakeUp != 0) {
+                        LockSupport.parkNanos(this, wakeUp - System.nanoTime());
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+                mWaiting = false;
+            }
+        }
+
+    };
+
+}
@@ -0,0 +1,241 @@
+package com.bq.robotic.robopad.connection;
+
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Current intent of the user in the robot controller: the direction, the mode and the value of
+ * each continuous control. It is updated from the UI thread with every command sent, and in
+ * the control loop mode the {@link CommandWriter} thread samples it on each tick and sends it
+ * as a single {@link RobotCommand#STATE} frame.
+ *
+ * A field is only known once the user has sent a command for it, so the robot doesn't apply
+ * values that the user never chose, as a claw position of 0.
+ */
+
+public class ControlState {
+
+    public static final int NO_FIELD = -1;
+
+    /**
+     * Fields of the state, in the same order that they are sent in the state frame and that the
+     * firmware applies them. The value of the motion field is the opcode of the movement, with
+     * the argument of a {@link RobotCommand#DRIVE} above its low byte, see
+     * {@link #motionValueOf(long)}
+     */
+    public static final int FIELD_MODE = 0;
+    public static final int FIELD_MOTION = 1;
+    public static final int FIELD_CLAW = 2;
+    public static final int FIELD_LEFT_TRACK = 3;
+    public static final int FIELD_RIGHT_TRACK = 4;
+    public static final int FIELD_LEFT_AMPLITUDE = 5;
+    public static final int FIELD_RIGHT_AMPLITUDE = 6;
+    public static final int FIELD_PERIOD = 7;
+    public static final int FIELD_PHASE = 8;
+
+    public static final int FIELD_COUNT = 9;
+
+    private final AtomicIntegerArray mValues = new AtomicIntegerArray(FIELD_COUNT);
+
+    // Bit i set when the value of the field i is known. Only written by the UI thread
+    private volatile int mKnownFields;
+
+    // Input time of the oldest change of each field not sent yet, 0 if none
+    private final AtomicLongArray mPendingInputTimes = new AtomicLongArray(FIELD_COUNT);
+
+    // Incremented before and after a command that changes several fields. Only written by the
+    // UI thread
+    private volatile int mVersion;
+
+
+    /**
+     * @param command a {@link RobotCommand}
+     * @return the field updated by the command or {@link #NO_FIELD} if it is an action that is
+     * not part of the state, as the Rhino charge or the buttons of the generic robot
+     */
+    public static int fieldOf(long command) {
+        switch (RobotCommand.opcode(command)) {
+            case RobotCommand.MODE:
+                return FIELD_MODE;
+            case RobotCommand.STOP:
+            case RobotCommand.FORWARD:
+            case RobotCommand.BACKWARD:
+            case RobotCommand.LEFT:
+            case RobotCommand.RIGHT:
+            case RobotCommand.DRIVE:
+                return FIELD_MOTION;
+            case RobotCommand.CLAW:
+                return FIELD_CLAW;
+            case RobotCommand.LEFT_TRACK:
+                return FIELD_LEFT_TRACK;
+            case RobotCommand.RIGHT_TRACK:
+                return FIELD_RIGHT_TRACK;
+            case RobotCommand.LEFT_AMPLITUDE:
+                return FIELD_LEFT_AMPLITUDE;
+            case RobotCommand.RIGHT_AMPLITUDE:
+                return FIELD_RIGHT_AMPLITUDE;
+            case RobotCommand.PERIOD:
+                return FIELD_PERIOD;
+            case RobotCommand.PHASE:
+                return FIELD_PHASE;
+            default:
+                return NO_FIELD;
+        }
+    }
+
+
+    /**
+     * Update the state with the command. Must be called only from the UI thread.
+     *
+     * @param command the {@link RobotCommand} sent by the user
+     * @param inputTime when the user did the input that caused the command, in nanoseconds
+     * @return the field updated or {@link #NO_FIELD} if the command is not part of the state. A
+     * {@link RobotCommand#GAIT} updates the four fields of the oscillators and returns the first
+     * one
+     */
+    public int apply(long command, long inputTime) {
+        if (RobotCommand.opcode(command) == RobotCommand.GAIT) {
+            // Odd while the fields change, so copyTo() never takes only a part of the gait
+            mVersion++;
+            for (int i = 0; i < RobotCommand.GAIT_PART_COUNT; i++) {
+                apply(RobotCommand.gaitPart(command, i), inputTime);
+            }
+            mVersion++;
+
+            return FIELD_LEFT_AMPLITUDE;
+        }
+
+        int field = fieldOf(command);
+
+        if (field == NO_FIELD) {
+            return NO_FIELD;
+        }
+
+        int value = field == FIELD_MOTION ? motionValueOf(command) : RobotCommand.arg(command);
+
+        mValues.set(field, value);
+        mKnownFields |= 1 << field;
+        mPendingInputTimes.compareAndSet(field, 0, inputTime);
+
+        return field;
+    }
+
+
+    /**
+     * @param command a command of the motion field
+     * @return the value of the field: the opcode, and the speeds of the wheels of a
+     * {@link RobotCommand#DRIVE} in the upper bytes, so the firmware gets the same argument from
+     * the state frame as from the single command
+     */
+    public static int motionValueOf(long command) {
+        int opcode = RobotCommand.opcode(command);
+
+        if (opcode == RobotCommand.DRIVE) {
+            return (RobotCommand.arg(command) << 8) | opcode;
+        }
+
+        // The other movements have no argument
+        return opcode;
+    }
+
+
+    /**
+     * Copy the known fields and their values to another state, never in the middle of a command
+     * that changes several fields, as a {@link RobotCommand#GAIT}. Called from the writer
+     * thread before encoding the state, so the robot gets all the fields of such a command in
+     * the same frame.
+     *
+     * @param target the state where the fields are copied, only used by the calling thread
+     */
+    public void copyTo(ControlState target) {
+        while (true) {
+            int version = mVersion;
+
+            if ((version & 1) == 0) {
+                for (int field = 0; field < FIELD_COUNT; field++) {
+                    target.mValues.set(field, mValues.get(field));
+                }
+                target.mKnownFields = mKnownFields;
+
+                if (mVersion == version) {
+                    return;
+                }
+            }
+
+            // The UI thread is applying the command, it only takes a few instructions
+            Thread.yield();
+        }
+    }
+
+
+    /**
+     * @return bit mask with the bit i set when the value of the field i is known
+     */
+    public int getKnownFields() {
+        return mKnownFields;
+    }
+
+
+    public boolean isKnown(int field) {
+        return (mKnownFields & (1 << field)) != 0;
+    }
+
+
+    /**
+     * @param field one of the FIELD_* values
+     * @return the last value of the field, 0 if it is not known
+     */
+    public int get(int field) {
+        return mValues.get(field);
+    }
+
+
+    /**
+     * Take the input time of the oldest change of the field since the last call, when the state
+     * is sent
+     *
+     * @param field one of the FIELD_* values
+     * @return the input time in nanoseconds or 0 if the field didn't change
+     */
+    public long takePendingInputTime(int field) {
+        if (mPendingInputTimes.get(field) == 0) {
+            return 0;
+        }
+
+        return mPendingInputTimes.getAndSet(field, 0);
+    }
+
+
+    /**
+     * @param field one of the FIELD_* values
+     * @param value the value of the field
+     * @return the opcode of the single command with that value
+     */
+    public static int opcodeOf(int field, int value) {
+        switch (field) {
+            case FIELD_MODE:
+                return RobotCommand.MODE;
+            case FIELD_MOTION:
+                return value & 0xFF;
+            case FIELD_CLAW:
+                return RobotCommand.CLAW;
+            case FIELD_LEFT_TRACK:
+                return RobotCommand.LEFT_TRACK;
+            case FIELD_RIGHT_TRACK:
+                return RobotCommand.RIGHT_TRACK;
+            case FIELD_LEFT_AMPLITUDE:
+                return RobotCommand.LEFT_AMPLITUDE;
+            case FIELD_RIGHT_AMPLITUDE:
+                return RobotCommand.RIGHT_AMPLITUDE;
+            case FIELD_PERIOD:
+                return RobotCommand.PERIOD;
+            case FIELD_PHASE:
+                return RobotCommand.PHASE;
+            default:
+                return 0;
+        }
+    }
+
+}
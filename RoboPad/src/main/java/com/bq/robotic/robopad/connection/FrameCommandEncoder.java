@@ -0,0 +1,172 @@
+package com.bq.robotic.robopad.connection;
+
+
+/**
+ * Encoder of the binary frames of the RoboPad protocol, understood by the sketches that use the
+ * RoboPadProtocol library. Each command is a frame with this format:
+ *
+ * <pre>
+ *  header    1 byte    0x80 | 0x40 if acknowledged | number of bytes of the arguments
+ *  opcode    1 byte    {@link RobotCommand} opcode
+ *  sequence  1 byte    only in the acknowledged mode
+ *  args      n bytes   zigzag varints, as many as {@link RobotCommand#argCount(int)}
+ *  checksum  1 byte    CRC-8 (polynomial 0x07) of all the previous bytes
+ * </pre>
+ *
+ * The {@link RobotCommand#STATE} frame has as arguments the mask of the known fields of the
+ * {@link ControlState} followed by the value of every field, 0 for the unknown ones.
+ *
+ * The header is the only byte of the frame with the high bit always set and the ASCII commands
+ * never have it, so the firmware can still understand the legacy commands and the length lets
+ * it skip the opcodes it doesn't know.
+ *
+ * In the acknowledged mode the header also has the {@link #SEQUENCE_FLAG} bit and a sequence
+ * number byte follows the opcode. The firmware answers each of these frames with an ack, that
+ * the {@link AckTracker} matches with the frame.
+ */
+
+public class FrameCommandEncoder implements CommandEncoder {
+
+    public static final int HEADER_FLAG = 0x80;
+    public static final int SEQUENCE_FLAG = 0x40;
+    public static final int MAX_ARGS_LENGTH = 0x3F;
+
+    private final AckTracker mAckTracker;
+
+
+    /**
+     * Encoder of frames without sequence numbers, the firmware doesn't answer them
+     */
+    public FrameCommandEncoder() {
+        this(null);
+    }
+
+
+    /**
+     * @param ackTracker gives the sequence numbers of the frames and receives their acks, or null
+     *                   to not ask the firmware for acks
+     */
+    public FrameCommandEncoder(AckTracker ackTracker) {
+        mAckTracker = ackTracker;
+    }
+
+
+    public AckTracker getAckTracker() {
+        return mAckTracker;
+    }
+
+
+    /**
+     * The firmware decodes the frames byte by byte as they arrive, so they can be written back to
+     * back
+     */
+    @Override
+    public long getMinIntervalNanos() {
+        return 0;
+    }
+
+
+    @Override
+    public int encode(long command, byte[] buffer, int offset) {
+
+        int opcode = RobotCommand.opcode(command);
+        int argsOffset = offset + getArgsOffset();
+        int argsLength = 0;
+
+        for (int i = 0; i < RobotCommand.argCount(opcode); i++) {
+            argsLength += putVarint(RobotCommand.arg(command, i), buffer, argsOffset + argsLength);
+        }
+
+        return putHeaderAndChecksum(opcode, argsLength, buffer, offset);
+    }
+
+
+    @Override
+    public int encodeState(ControlState state, byte[] buffer, int offset) {
+
+        int argsOffset = offset + getArgsOffset();
+        int knownFields = state.getKnownFields();
+        int argsLength = putVarint(knownFields, buffer, argsOffset);
+
+        for (int field = 0; field < ControlState.FIELD_COUNT; field++) {
+            int value = (knownFields & (1 << field)) != 0 ? state.get(field) : 0;
+            argsLength += putVarint(value, buffer, argsOffset + argsLength);
+        }
+
+        return putHeaderAndChecksum(RobotCommand.STATE, argsLength, buffer, offset);
+    }
+
+
+    private int getArgsOffset() {
+        return mAckTracker != null ? 3 : 2;
+    }
+
+
+    private int putHeaderAndChecksum(int opcode, int argsLength, byte[] buffer, int offset) {
+        int length = 2 + argsLength;
+
+        if (mAckTracker != null) {
+            buffer[offset] = (byte) (HEADER_FLAG | SEQUENCE_FLAG | argsLength);
+            buffer[offset + 2] = (byte) mAckTracker.nextSequence();
+            length++;
+        } else {
+            buffer[offset] = (byte) (HEADER_FLAG | argsLength);
+        }
+
+        buffer[offset + 1] = (byte) opcode;
+        buffer[offset + length] = crc8(buffer, offset, length);
+
+        return length + 1;
+    }
+
+
+    /**
+     * Write the value as a zigzag varint: small values, positive or negative, need a single byte
+     *
+     * @return number of bytes written
+     */
+    static int putVarint(int value, byte[] buffer, int offset) {
+        int zigzag = (value << 1) ^ (value >> 31);
+        int length = 0;
+
+        while ((zigzag & ~0x7F) != 0) {
+            buffer[offset + length++] = (byte) ((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+
+        buffer[offset + length++] = (byte) zigzag;
+
+        return length;
+    }
+
+
+    /**
+     * CRC-8 with polynomial 0x07, the same one computed by the firmware
+     */
+    public static byte crc8(byte[] buffer, int offset, int length) {
+        int crc = 0;
+
+        for (int i = offset; i < offset + length; i++) {
+            crc = crc8(crc, buffer[i] & 0xFF);
+        }
+
+        return (byte) crc;
+    }
+
+
+    /**
+     * @param crc the CRC-8 of the previous bytes, 0 for the first one
+     * @param data the next byte, from 0 to 255
+     * @return the CRC-8 of the previous bytes and this one
+     */
+    public static int crc8(int crc, int data) {
+        crc ^= data;
+
+        for (int bit = 0; bit < 8; bit++) {
+            crc = ((crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1) & 0xFF;
+        }
+
+        return crc;
+    }
+
+}
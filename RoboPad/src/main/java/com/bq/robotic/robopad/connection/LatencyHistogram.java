@@ -0,0 +1,123 @@
+package com.bq.robotic.robopad.connection;
+
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * Histogram of latencies with fixed buckets, so recording a value is a few shifts and a store
+ * without allocating anything. Values are in microseconds: below 16 us each value has its own
+ * bucket, and above that each power of two is split in 8 buckets, so the percentiles have an
+ * error below 12.5%. Values over 16 s go to the last bucket, the max is kept exact.
+ *
+ * It is recorded by a single thread, the {@link CommandWriter} one, and can be read from any
+ * other thread.
+ */
+
+public class LatencyHistogram {
+
+    private static final int LINEAR_BUCKETS = 16;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 23;
+
+    private static final int BUCKET_COUNT = LINEAR_BUCKETS + (MAX_EXPONENT - 3) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private volatile long mCount;
+    private volatile long mMaxMicros;
+
+
+    /**
+     * Record a latency. Must be called only from the recording thread.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = nanos < 0 ? 0 : nanos / 1000;
+        int bucket = bucketOf(micros);
+
+        // Single writer, so no atomic increment needed
+        mCounts.lazySet(bucket, mCounts.get(bucket) + 1);
+        if (micros > mMaxMicros) {
+            mMaxMicros = micros;
+        }
+        mCount++;
+    }
+
+
+    public long getCount() {
+        return mCount;
+    }
+
+
+    public long getMaxMicros() {
+        return mMaxMicros;
+    }
+
+
+    /**
+     * @param percentile from 0 to 100
+     * @return the latency in microseconds under which are the given percentile of the recorded
+     * values, rounded up to the end of its bucket. 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long count = mCount;
+        if (count == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100);
+        if (rank < 1) {
+            rank = 1;
+        }
+
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += mCounts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(bucket), mMaxMicros);
+            }
+        }
+
+        return mMaxMicros;
+    }
+
+
+    public void reset() {
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            mCounts.set(bucket, 0);
+        }
+        mCount = 0;
+        mMaxMicros = 0;
+    }
+
+
+    static int bucketOf(long micros) {
+        if (micros < LINEAR_BUCKETS) {
+            return (int) micros;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+
+        return LINEAR_BUCKETS + (exponent - 4) * SUB_BUCKETS + subBucket;
+    }
+
+
+    static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 4;
+        int subBucket = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+
+        return ((long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+    }
+
+}
@@ -0,0 +1,151 @@
+package com.bq.robotic.robopad.connection;
+
+
+/**
+ * Latencies from the input of the user to the write of the command in the transport, per
+ * command type and per robot controller. The {@link CommandWriter} records them after each
+ * write, and the debug overlay of the app shows them or dumps them to a file.
+ *
+ * The input times are in the clock of {@link System#nanoTime()}. In Android it is the same
+ * monotonic clock as the times of the MotionEvents, in nanoseconds instead of milliseconds.
+ */
+
+public class LatencyRecorder {
+
+    private static final int OPCODE_COUNT = 256;
+
+    private static final double[] PERCENTILES = {50, 95, 99};
+
+    private final LatencyHistogram[] mByOpcode = new LatencyHistogram[OPCODE_COUNT];
+    private final LatencyHistogram[] mByRobot;
+    private final String[] mRobotNames;
+
+    private volatile int mRobot;
+
+
+    /**
+     * @param robotNames name of each robot controller, i.e. the values of the robotType enum
+     */
+    public LatencyRecorder(String[] robotNames) {
+        mRobotNames = robotNames;
+        mByRobot = new LatencyHistogram[robotNames.length];
+
+        for (int robot = 0; robot < robotNames.length; robot++) {
+            mByRobot[robot] = new LatencyHistogram();
+        }
+
+        for (int opcode = 0; opcode < OPCODE_COUNT; opcode++) {
+            if (RobotCommand.nameOf(opcode) != null) {
+                mByOpcode[opcode] = new LatencyHistogram();
+            }
+        }
+    }
+
+
+    /**
+     * @param robot index of the robot controller that sends the next commands
+     */
+    public void setRobot(int robot) {
+        mRobot = robot;
+    }
+
+
+    /**
+     * Record the latency of a command. Must be called only from the writer thread.
+     *
+     * @param opcode the opcode of the command written
+     * @param inputTimeNanos when the user did the input that caused the command
+     * @param writeTimeNanos when the command was written
+     */
+    public void record(int opcode, long inputTimeNanos, long writeTimeNanos) {
+        long latency = writeTimeNanos - inputTimeNanos;
+
+        LatencyHistogram histogram = mByOpcode[opcode & 0xFF];
+        if (histogram != null) {
+            histogram.record(latency);
+        }
+
+        mByRobot[mRobot].record(latency);
+    }
+
+
+    /**
+     * @return the histogram of the commands with the opcode, null if it is not a known opcode
+     */
+    public LatencyHistogram getByOpcode(int opcode) {
+        return mByOpcode[opcode & 0xFF];
+    }
+
+
+    public LatencyHistogram getByRobot(int robot) {
+        return mByRobot[robot];
+    }
+
+
+    public void reset() {
+        for (LatencyHistogram histogram : mByOpcode) {
+            if (histogram != null) {
+                histogram.reset();
+            }
+        }
+
+        for (LatencyHistogram histogram : mByRobot) {
+            histogram.reset();
+        }
+    }
+
+
+    /**
+     * Append a table with the count, p50, p95, p99 and max in milliseconds of each histogram
+     * with some value
+     *
+     * @param out where the table is written
+     */
+    public void appendTo(StringBuilder out) {
+        out.append("command            count    p50    p95    p99    max (ms)\n");
+
+        for (int opcode = 0; opcode < OPCODE_COUNT; opcode++) {
+            appendRow(out, RobotCommand.nameOf(opcode), mByOpcode[opcode]);
+        }
+
+        out.append("robot\n");
+
+        for (int robot = 0; robot < mByRobot.length; robot++) {
+            appendRow(out, mRobotNames[robot], mByRobot[robot]);
+        }
+    }
+
+
+    private static void appendRow(StringBuilder out, String name, LatencyHistogram histogram) {
+        if (histogram == null || histogram.getCount() == 0) {
+            return;
+        }
+
+        out.append(name);
+        for (int i = name.length(); i < 16; i++) {
+            out.append(' ');
+        }
+        appendPadded(out, String.valueOf(histogram.getCount()), 9);
+
+        for (double percentile : PERCENTILES) {
+            appendMillis(out, histogram.getPercentileMicros(percentile));
+        }
+        appendMillis(out, histogram.getMaxMicros());
+
+        out.append('\n');
+    }
+
+
+    private static void appendMillis(StringBuilder out, long micros) {
+        appendPadded(out, String.valueOf(micros / 1000) + '.' + (micros % 1000) / 100, 7);
+    }
+
+
+    private static void appendPadded(StringBuilder out, String value, int width) {
+        for (int i = value.length(); i < width; i++) {
+            out.append(' ');
+        }
+        out.append(value);
+    }
+
+}
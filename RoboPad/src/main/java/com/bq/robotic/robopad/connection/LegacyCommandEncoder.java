@@ -0,0 +1,209 @@
+package com.bq.robotic.robopad.connection;
+
+
+import com.bq.robotic.robopad.utils.RoboPadConstants;
+
+
+/**
+ * Encoder of the ASCII commands understood by the original sketches of the robots, as "U", "C30"
+ * or "T2000". The firmware of the robots that have not been updated only understand these ones.
+ */
+
+public class LegacyCommandEncoder implements CommandEncoder {
+
+    /**
+     * The original sketches wait for the buffer to fill up and then read it, with a delay for
+     * each character, and they only manage the first command of what they read. The longest read
+     * is the one of the Crab, 20 ms of wait plus 3 ms for each of the 5 characters of its longest
+     * commands, so the next command is written after it.
+     */
+    public static final long MIN_INTERVAL_NANOS = 40 * 1000000L;
+
+
+    /**
+     * The original sketches read a single command each time, so there is no state frame
+     */
+    @Override
+    public int encodeState(ControlState state, byte[] buffer, int offset) {
+        return 0;
+    }
+
+
+    @Override
+    public long getMinIntervalNanos() {
+        return MIN_INTERVAL_NANOS;
+    }
+
+
+    @Override
+    public int encode(long command, byte[] buffer, int offset) {
+
+        int arg = RobotCommand.arg(command);
+
+        switch (RobotCommand.opcode(command)) {
+
+            case RobotCommand.STOP:
+                return putString(RoboPadConstants.STOP_COMMAND, buffer, offset);
+
+            case RobotCommand.FORWARD:
+                return putString(RoboPadConstants.UP_COMMAND, buffer, offset);
+
+            case RobotCommand.BACKWARD:
+                return putString(RoboPadConstants.DOWN_COMMAND, buffer, offset);
+
+            case RobotCommand.LEFT:
+                return putString(RoboPadConstants.LEFT_COMMAND, buffer, offset);
+
+            case RobotCommand.RIGHT:
+                return putString(RoboPadConstants.RIGHT_COMMAND, buffer, offset);
+
+            // The original sketches only have the four movements at full speed
+            case RobotCommand.DRIVE:
+                return putString(getNearestMovement(command), buffer, offset);
+
+            case RobotCommand.MODE:
+                return putString(getModeCommand(arg), buffer, offset);
+
+            case RobotCommand.CLAW:
+                return putCommand(RoboPadConstants.CLAW_COMMAND, arg, buffer, offset);
+
+            case RobotCommand.CHARGE:
+                return putString(RoboPadConstants.CHARGE_COMMAND, buffer, offset);
+
+            case RobotCommand.LEFT_TRACK:
+                return putTrack(RoboPadConstants.LEFT_COMMAND, arg, buffer, offset);
+
+            case RobotCommand.RIGHT_TRACK:
+                return putTrack(RoboPadConstants.RIGHT_COMMAND, arg, buffer, offset);
+
+            case RobotCommand.LEFT_AMPLITUDE:
+                return putCommand(RoboPadConstants.LEFT_AMPLITUDE_COMMAND, arg, buffer, offset);
+
+            case RobotCommand.RIGHT_AMPLITUDE:
+                return putCommand(RoboPadConstants.RIGHT_AMPLITUDE_COMMAND, arg, buffer, offset);
+
+            case RobotCommand.PERIOD:
+                return putCommand(RoboPadConstants.PERIOD_COMMAND, arg, buffer, offset);
+
+            case RobotCommand.PHASE:
+                return putCommand(RoboPadConstants.PHASE_COMMAND, arg, buffer, offset);
+
+            case RobotCommand.RESET:
+                return putString(RoboPadConstants.RESET_COMMAND, buffer, offset);
+
+            case RobotCommand.USER_COMMAND:
+                return putInt(arg, buffer, offset);
+
+            // The original sketches have no dead-man stop
+            case RobotCommand.HEARTBEAT:
+                return 0;
+
+            // The original sketches have no command for the whole gait, the CommandWriter
+            // writes its parameters one by one
+            case RobotCommand.GAIT:
+                return 0;
+
+            default:
+                return 0;
+        }
+    }
+
+
+    private static String getModeCommand(int mode) {
+        switch (mode) {
+            case RobotCommand.MODE_LINE_FOLLOWER:
+                return RoboPadConstants.LINE_FOLLOWER_MODE_COMMAND;
+
+            case RobotCommand.MODE_LIGHT_AVOIDER:
+                return RoboPadConstants.LIGHT_AVOIDER_MODE_COMMAND;
+
+            case RobotCommand.MODE_OBSTACLES_AVOIDER:
+                return RoboPadConstants.OBSTACLES_FOLLOWER_MODE_COMMAND;
+
+            default:
+                return RoboPadConstants.MANUAL_CONTROL_MODE_COMMAND;
+        }
+    }
+
+
+    /**
+     * @param drive a {@link RobotCommand#DRIVE} command
+     * @return the legacy command of the movement closest to it: a turn when the wheels turn more
+     * than they advance, else forwards or backwards
+     */
+    private static String getNearestMovement(long drive) {
+        int left = RobotCommand.driveLeft(drive);
+        int right = RobotCommand.driveRight(drive);
+        int advance = left + right;
+        int turn = left - right;
+
+        if (Math.abs(turn) > Math.abs(advance)) {
+            return turn > 0 ? RoboPadConstants.RIGHT_COMMAND : RoboPadConstants.LEFT_COMMAND;
+        } else if (advance > 0) {
+            return RoboPadConstants.UP_COMMAND;
+        } else if (advance < 0) {
+            return RoboPadConstants.DOWN_COMMAND;
+        }
+
+        return RoboPadConstants.STOP_COMMAND;
+    }
+
+
+    private static int putTrack(String track, int direction, byte[] buffer, int offset) {
+        int length = putString(track, buffer, offset);
+
+        if (direction == RobotCommand.TRACK_UP) {
+            length += putString(RoboPadConstants.UP_COMMAND, buffer, offset + length);
+        } else if (direction == RobotCommand.TRACK_DOWN) {
+            length += putString(RoboPadConstants.DOWN_COMMAND, buffer, offset + length);
+        } else {
+            length += putString(RoboPadConstants.STOP_COMMAND, buffer, offset + length);
+        }
+
+        return length;
+    }
+
+
+    private static int putCommand(String prefix, int arg, byte[] buffer, int offset) {
+        int length = putString(prefix, buffer, offset);
+        return length + putInt(arg, buffer, offset + length);
+    }
+
+
+    private static int putString(String string, byte[] buffer, int offset) {
+        int length = string.length();
+
+        for (int i = 0; i < length; i++) {
+            buffer[offset + i] = (byte) string.charAt(i);
+        }
+
+        return length;
+    }
+
+
+    /**
+     * Write the decimal digits of the value without creating a String
+     */
+    static int putInt(int value, byte[] buffer, int offset) {
+        int length = 0;
+        long remaining = value;
+
+        if (remaining < 0) {
+            buffer[offset + length++] = '-';
+            remaining = -remaining;
+        }
+
+        int digits = 1;
+        for (long power = 10; power <= remaining; power *= 10) {
+            digits++;
+        }
+
+        for (int i = digits - 1; i >= 0; i--) {
+            buffer[offset + length + i] = (byte) ('0' + (remaining % 10));
+            remaining /= 10;
+        }
+
+        return length + digits;
+    }
+
+}
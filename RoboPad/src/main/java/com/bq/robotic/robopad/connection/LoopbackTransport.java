@@ -0,0 +1,106 @@
+package com.bq.robotic.robopad.connection;
+
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * In-memory transport that gives the frames to a {@link Receiver} playing the robot, so the
+ * command path can be run and measured on a plain JVM without Bluetooth. Optionally it takes
+ * as long to write each frame as a serial link of the given speed. It can also have a send
+ * buffer, as the Bluetooth socket: the writes only block while the bytes waiting in the link
+ * don't fit in it, and the receiver gets each frame when written, before its bytes arrive.
+ */
+
+public class LoopbackTransport extends AbstractRobotTransport {
+
+    /**
+     * The simulated robot
+     */
+    public interface Receiver {
+        /**
+         * Called from the writer thread with each frame. The buffer is reused after returning.
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    /**
+     * Bytes per second of the Bluetooth modules of the robots, at 38400 bauds
+     */
+    public static final int BLUETOOTH_MODULE_BYTES_PER_SECOND = 3840;
+
+    private final Receiver mReceiver;
+    private final long mNanosPerByte;
+    private final long mBufferNanos;
+
+    // When the last byte written leaves the link. Only used by the writer thread
+    private long mDrainedTime;
+
+
+    /**
+     * Transport without delays
+     *
+     * @param receiver the simulated robot, or null to only count the frames
+     */
+    public LoopbackTransport(Receiver receiver) {
+        this(receiver, 0);
+    }
+
+
+    /**
+     * @param receiver the simulated robot, or null to only count the frames
+     * @param bytesPerSecond speed of the simulated link, or 0 to write without delays
+     */
+    public LoopbackTransport(Receiver receiver, int bytesPerSecond) {
+        this(receiver, bytesPerSecond, 0);
+    }
+
+
+    /**
+     * @param receiver the simulated robot, or null to only count the frames
+     * @param bytesPerSecond speed of the simulated link, or 0 to write without delays
+     * @param bufferBytes size of the send buffer of the link
+     */
+    public LoopbackTransport(Receiver receiver, int bytesPerSecond, int bufferBytes) {
+        mReceiver = receiver;
+        mNanosPerByte = bytesPerSecond == 0 ? 0 : 1000000000L / bytesPerSecond;
+        mBufferNanos = bufferBytes * mNanosPerByte;
+        mDrainedTime = System.nanoTime();
+    }
+
+
+    @Override
+    public void open() {
+        setState(STATE_CONNECTED);
+    }
+
+
+    @Override
+    public void close() {
+        setState(STATE_DISCONNECTED);
+    }
+
+
+    @Override
+    protected void writeFrame(byte[] buffer, int offset, int length) {
+        if (mNanosPerByte != 0) {
+            // Busy the writer thread as a blocking write in a slow link would do, until the
+            // bytes that don't fit in the buffer have left
+            long now = System.nanoTime();
+            if (mDrainedTime - now < 0) {
+                mDrainedTime = now;
+            }
+            mDrainedTime += length * mNanosPerByte;
+            long end = mDrainedTime - mBufferNanos;
+            long remaining;
+            while ((remaining = end - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+
+        if (mReceiver != null) {
+            mReceiver.onFrame(buffer, offset, length);
+        }
+    }
+
+}
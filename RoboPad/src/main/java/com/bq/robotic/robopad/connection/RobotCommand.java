@@ -0,0 +1,318 @@
+package com.bq.robotic.robopad.connection;
+
+
+/**
+ * Commands sent to the robots. In order to not allocate any object in the path from the touch of
+ * the user to the Bluetooth connection, a command is a primitive long with this layout:
+ *
+ * <pre>
+ *  bits 63..56  opcode
+ *  bits 55..48  flags
+ *  bits 47..0   payload, usually a signed int argument in the low 32 bits
+ * </pre>
+ *
+ * The commands are translated into bytes by a {@link CommandEncoder}, either the legacy ASCII
+ * strings understood by the old sketches or the binary frames of the new ones.
+ */
+
+public final class RobotCommand {
+
+    /**
+     * Common commands of the robots with wheels
+     */
+    public static final int STOP = 0x01;
+    public static final int FORWARD = 0x02;
+    public static final int BACKWARD = 0x03;
+    public static final int LEFT = 0x04;
+    public static final int RIGHT = 0x05;
+
+    /**
+     * Proportional movement of the robots with two wheels, as the analog joystick sends it. The
+     * argument has the speed of each wheel, built with {@link #drive(int, int)}:
+     *
+     * <pre>
+     *  bits 31..8  left speed, signed
+     *  bits 7..0   right speed, signed
+     * </pre>
+     *
+     * The speeds are percents of the full speed, from -{@link #DRIVE_MAX_SPEED} backwards to
+     * {@link #DRIVE_MAX_SPEED} forwards, so DRIVE with both at the max moves the wheels as
+     * FORWARD. The legacy protocol has no equivalent command, so its encoder writes the nearest
+     * movement.
+     */
+    public static final int DRIVE = 0x07;
+    public static final int DRIVE_MAX_SPEED = 100;
+
+    /**
+     * Keepalive written by the {@link CommandWriter} while the user holds a movement. The
+     * argument is the time in milliseconds that the robot keeps moving without receiving another
+     * frame, after that the firmware stops it, so a lost link can't leave it moving
+     */
+    public static final int HEARTBEAT = 0x06;
+
+    /**
+     * Change the state mode of the robot. The argument is one of the MODE_* values, the same
+     * values that the sketches use for their current state
+     */
+    public static final int MODE = 0x10;
+    public static final int MODE_MANUAL_CONTROL = 0;
+    public static final int MODE_LINE_FOLLOWER = 1;
+    public static final int MODE_LIGHT_AVOIDER = 2;
+    public static final int MODE_OBSTACLES_AVOIDER = 3;
+
+    /**
+     * Beetle robot. The argument is the position of the claw
+     */
+    public static final int CLAW = 0x20;
+
+    /**
+     * Rhino robot. The argument of the tracks is one of the TRACK_* values
+     */
+    public static final int CHARGE = 0x21;
+    public static final int LEFT_TRACK = 0x22;
+    public static final int RIGHT_TRACK = 0x23;
+    public static final int TRACK_DOWN = -1;
+    public static final int TRACK_STOP = 0;
+    public static final int TRACK_UP = 1;
+
+    /**
+     * Crab robot. The argument is the new value of the oscillator parameter
+     */
+    public static final int LEFT_AMPLITUDE = 0x30;
+    public static final int RIGHT_AMPLITUDE = 0x31;
+    public static final int PERIOD = 0x32;
+    public static final int PHASE = 0x33;
+    public static final int RESET = 0x34;
+
+    /**
+     * Crab robot. The four parameters of the oscillators at once, applied together by the
+     * firmware before it moves the servos again, so the robot changes its gait in a single step.
+     * Its payload is built with {@link #gait(int, int, int, int)}:
+     *
+     * <pre>
+     *  bits 47..40  left amplitude, from 0 to 255
+     *  bits 39..32  right amplitude, from 0 to 255
+     *  bits 31..16  period, from 0 to 65535
+     *  bits 15..0   phase, signed
+     * </pre>
+     *
+     * The frame has the four values as arguments, in that order. The legacy protocol has no
+     * equivalent command, so the {@link CommandWriter} writes its parts one by one.
+     */
+    public static final int GAIT = 0x35;
+    public static final int GAIT_PART_COUNT = 4;
+
+    /**
+     * Generic robot. The argument is the number of the command button, from 1 to 6
+     */
+    public static final int USER_COMMAND = 0x40;
+
+    /**
+     * Composite frame with the whole {@link ControlState}, sent on each tick of the control loop.
+     * It is never queued as a command, the encoders write it from the state
+     */
+    public static final int STATE = 0x50;
+
+    private static final int OPCODE_SHIFT = 56;
+    private static final int FLAGS_SHIFT = 48;
+    private static final long PAYLOAD_MASK = (1L << FLAGS_SHIFT) - 1;
+
+
+    private RobotCommand() {
+        // Only static methods
+    }
+
+
+    /**
+     * @param opcode the opcode of a command without arguments
+     * @return the command
+     */
+    public static long of(int opcode) {
+        return ((long) (opcode & 0xFF)) << OPCODE_SHIFT;
+    }
+
+
+    /**
+     * @param opcode the opcode of the command
+     * @param arg the argument of the command
+     * @return the command
+     */
+    public static long of(int opcode, int arg) {
+        return of(opcode) | (arg & 0xFFFFFFFFL);
+    }
+
+
+    public static int opcode(long command) {
+        return (int) (command >>> OPCODE_SHIFT);
+    }
+
+
+    public static int flags(long command) {
+        return (int) (command >>> FLAGS_SHIFT) & 0xFF;
+    }
+
+
+    public static int arg(long command) {
+        return (int) command;
+    }
+
+
+    public static long payload(long command) {
+        return command & PAYLOAD_MASK;
+    }
+
+
+    /**
+     * @param index position of the argument, from 0 to {@link #argCount(int)} - 1
+     * @return the argument of the command in that position, as written in its frame
+     */
+    public static int arg(long command, int index) {
+        if (opcode(command) != GAIT) {
+            return index == 0 ? arg(command) : 0;
+        }
+
+        switch (index) {
+            case 0: return (int) (command >>> 40) & 0xFF;
+            case 1: return (int) (command >>> 32) & 0xFF;
+            case 2: return (int) (command >>> 16) & 0xFFFF;
+            case 3: return (short) command;
+            default: return 0;
+        }
+    }
+
+
+    /**
+     * @param leftAmplitude amplitude of the left legs, in degrees
+     * @param rightAmplitude amplitude of the right legs, in degrees
+     * @param period period of the oscillators, in milliseconds
+     * @param phase phase difference of the central legs, in degrees
+     * @return the {@link #GAIT} command
+     */
+    public static long gait(int leftAmplitude, int rightAmplitude, int period, int phase) {
+        return of(GAIT)
+                | ((long) (leftAmplitude & 0xFF)) << 40
+                | ((long) (rightAmplitude & 0xFF)) << 32
+                | (period & 0xFFFFL) << 16
+                | (phase & 0xFFFFL);
+    }
+
+
+    /**
+     * @param leftSpeed speed of the left wheel, from -{@link #DRIVE_MAX_SPEED} to
+     *                  {@link #DRIVE_MAX_SPEED}
+     * @param rightSpeed speed of the right wheel
+     * @return the {@link #DRIVE} command
+     */
+    public static long drive(int leftSpeed, int rightSpeed) {
+        return of(DRIVE, (leftSpeed << 8) | (rightSpeed & 0xFF));
+    }
+
+
+    /**
+     * @param drive a {@link #DRIVE} command
+     * @return the speed of its left wheel
+     */
+    public static int driveLeft(long drive) {
+        return arg(drive) >> 8;
+    }
+
+
+    /**
+     * @param drive a {@link #DRIVE} command
+     * @return the speed of its right wheel
+     */
+    public static int driveRight(long drive) {
+        return (byte) arg(drive);
+    }
+
+
+    /**
+     * @param gait a {@link #GAIT} command
+     * @param index the part, from 0 to {@link #GAIT_PART_COUNT} - 1
+     * @return the single command that sets the parameter of that part: the left amplitude, the
+     * right amplitude, the period or the phase
+     */
+    public static long gaitPart(long gait, int index) {
+        switch (index) {
+            case 0: return of(LEFT_AMPLITUDE, arg(gait, 0));
+            case 1: return of(RIGHT_AMPLITUDE, arg(gait, 1));
+            case 2: return of(PERIOD, arg(gait, 2));
+            default: return of(PHASE, arg(gait, 3));
+        }
+    }
+
+
+    /**
+     * @param opcode the opcode of the command
+     * @return the name of the opcode, for the logs and the debug overlay, or null if unknown
+     */
+    public static String nameOf(int opcode) {
+        switch (opcode) {
+            case STOP: return "STOP";
+            case FORWARD: return "FORWARD";
+            case BACKWARD: return "BACKWARD";
+            case LEFT: return "LEFT";
+            case RIGHT: return "RIGHT";
+            case HEARTBEAT: return "HEARTBEAT";
+            case DRIVE: return "DRIVE";
+            case MODE: return "MODE";
+            case CLAW: return "CLAW";
+            case CHARGE: return "CHARGE";
+            case LEFT_TRACK: return "LEFT_TRACK";
+            case RIGHT_TRACK: return "RIGHT_TRACK";
+            case LEFT_AMPLITUDE: return "LEFT_AMPLITUDE";
+            case RIGHT_AMPLITUDE: return "RIGHT_AMPLITUDE";
+            case PERIOD: return "PERIOD";
+            case PHASE: return "PHASE";
+            case RESET: return "RESET";
+            case GAIT: return "GAIT";
+            case USER_COMMAND: return "USER_COMMAND";
+            case STATE: return "STATE";
+            default: return null;
+        }
+    }
+
+
+    /**
+     * @param name the name of an opcode, as returned by {@link #nameOf(int)}
+     * @return the opcode, or -1 if unknown
+     */
+    public static int opcodeOf(String name) {
+        for (int opcode = 0; opcode <= 0xFF; opcode++) {
+            if (name.equals(nameOf(opcode))) {
+                return opcode;
+            }
+        }
+
+        return -1;
+    }
+
+
+    /**
+     * @param opcode the opcode of the command
+     * @return the number of arguments of the commands with that opcode
+     */
+    public static int argCount(int opcode) {
+        switch (opcode) {
+            case HEARTBEAT:
+            case DRIVE:
+            case MODE:
+            case CLAW:
+            case LEFT_TRACK:
+            case RIGHT_TRACK:
+            case LEFT_AMPLITUDE:
+            case RIGHT_AMPLITUDE:
+            case PERIOD:
+            case PHASE:
+            case USER_COMMAND:
+                return 1;
+
+            case GAIT:
+                return GAIT_PART_COUNT;
+
+            default:
+                return 0;
+        }
+    }
+
+}
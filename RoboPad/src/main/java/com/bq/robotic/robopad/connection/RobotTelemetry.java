@@ -0,0 +1,320 @@
+package com.bq.robotic.robopad.connection;
+
+
+/**
+ * Values of the sensors of the robot, sent by the firmwares of the binary frames while they read
+ * them in the autonomous modes, so the user can see what the line follower or the light avoider
+ * sees. A telemetry message is the droid2ino message "&&T" followed by the mask of the sensors
+ * that it has, the value of each of them in the order of their bits and a checksum, all
+ * separated by commas, and "%%", as "&&T3,1,0,205%%" for the two infrared sensors. The values
+ * are the ints of the boards, of 16 bits, and the checksum is the CRC-8 of the
+ * {@link FrameCommandEncoder} of the mask and of the two bytes of each value, high byte first.
+ *
+ * The robot sends up to ten messages per second, so they are decoded in place into arrays
+ * allocated once, without substrings, boxed numbers or any other object. The values of a
+ * message are only applied when the whole message is valid, so a message broken by the link,
+ * even if it only lost the last digits of a value, never changes them.
+ *
+ * The messages are received in the UI thread and the values are read there by the views, at
+ * their own rate: {@link #getSamples()} tells them if there is anything new to show.
+ */
+
+public class RobotTelemetry {
+
+    /**
+     * The telemetry messages start with this character after the droid2ino start
+     */
+    public static final char TELEMETRY_PREFIX = 'T';
+
+    /**
+     * The sensors, the bits of the mask of the messages. The same values of the RP_SENSOR_*
+     * constants of the RoboPadProtocol library of the sketches
+     */
+    public static final int SENSOR_IR_LEFT = 0;
+    public static final int SENSOR_IR_RIGHT = 1;
+    public static final int SENSOR_LDR_LEFT = 2;
+    public static final int SENSOR_LDR_RIGHT = 3;
+    public static final int SENSOR_DISTANCE = 4;
+    public static final int SENSOR_COUNT = 5;
+
+    /**
+     * Values of the infrared sensors
+     */
+    public static final int IR_BLACK = 0;
+    public static final int IR_WHITE = 1;
+
+    /**
+     * A value not received in this time is old: the robot stopped reading its sensor, i.e.
+     * because it left the autonomous mode
+     */
+    public static final long FRESH_NANOS = 1000000000L;
+
+    private static final String MESSAGE_START = "&&";
+    private static final String MESSAGE_END = "%%";
+
+    private static final int ALL_SENSORS = (1 << SENSOR_COUNT) - 1;
+
+    private static final String[] SENSOR_NAMES = {"IR left", "IR right", "LDR left", "LDR right",
+            "distance"};
+
+    // Values of the last message of each sensor
+    private final int[] mValues = new int[SENSOR_COUNT];
+    private final long[] mReceiveTimes = new long[SENSOR_COUNT];
+    private int mKnownSensors;
+    private int mLastSensors;
+
+    // Values of the message being decoded, copied to mValues when it is valid
+    private final int[] mDecoded = new int[SENSOR_COUNT];
+
+    private long mSamples;
+    private long mMalformed;
+
+
+    /**
+     * Handle a message received from the robot
+     *
+     * @param message the droid2ino message, with or without its start and end characters
+     * @return true if it was a telemetry message, even if it was malformed, false if it is
+     * another message of the robot
+     */
+    public boolean onMessage(String message) {
+        return onMessage(message, System.nanoTime());
+    }
+
+
+    /**
+     * @param message the droid2ino message, with or without its start and end characters
+     * @param receiveTime when it was received, in the clock of {@link System#nanoTime()}
+     * @return true if it was a telemetry message, even if it was malformed, false if it is
+     * another message of the robot
+     */
+    public boolean onMessage(CharSequence message, long receiveTime) {
+        int start = startsWith(message, MESSAGE_START, 0) ? MESSAGE_START.length() : 0;
+        int end = message.length() > start + MESSAGE_END.length()
+                && startsWith(message, MESSAGE_END, message.length() - MESSAGE_END.length())
+                ? message.length() - MESSAGE_END.length() : message.length();
+
+        if (end - start < 2 || message.charAt(start) != TELEMETRY_PREFIX) {
+            return false;
+        }
+
+        int sensors = decode(message, start + 1, end);
+        if (sensors <= 0) {
+            mMalformed++;
+            return true;
+        }
+
+        for (int sensor = 0; sensor < SENSOR_COUNT; sensor++) {
+            if ((sensors & (1 << sensor)) != 0) {
+                mValues[sensor] = mDecoded[sensor];
+                mReceiveTimes[sensor] = receiveTime;
+            }
+        }
+
+        mKnownSensors |= sensors;
+        mLastSensors = sensors;
+        mSamples++;
+
+        return true;
+    }
+
+
+    /**
+     * Decode the mask and the values of a message into {@link #mDecoded} and check its checksum
+     *
+     * @param position the first character after the prefix
+     * @param end the position after the last character
+     * @return the mask of the message, or -1 if it is malformed
+     */
+    private int decode(CharSequence message, int position, int end) {
+        long sensors = 0;
+        int digits = 0;
+
+        while (position < end && isDigit(message.charAt(position))) {
+            sensors = sensors * 10 + message.charAt(position) - '0';
+            position++;
+
+            if (++digits > 2) {
+                return -1;
+            }
+        }
+
+        if (digits == 0 || sensors == 0 || (sensors & ~ALL_SENSORS) != 0) {
+            return -1;
+        }
+
+        int crc = FrameCommandEncoder.crc8(0, (int) sensors);
+
+        // The values and then the checksum
+        for (int sensor = 0; sensor <= SENSOR_COUNT; sensor++) {
+            if (sensor < SENSOR_COUNT && (sensors & (1 << sensor)) == 0) {
+                continue;
+            }
+
+            if (position == end || message.charAt(position) != ',') {
+                return -1;
+            }
+            position++;
+
+            boolean negative = position < end && message.charAt(position) == '-';
+            if (negative) {
+                position++;
+            }
+
+            int value = 0;
+            digits = 0;
+            while (position < end && isDigit(message.charAt(position))) {
+                value = value * 10 + message.charAt(position) - '0';
+                position++;
+
+                // Beyond the range of an int of the boards
+                if (++digits > 5) {
+                    return -1;
+                }
+            }
+
+            value = negative ? -value : value;
+            if (digits == 0 || value < Short.MIN_VALUE || value > Short.MAX_VALUE) {
+                return -1;
+            }
+
+            if (sensor == SENSOR_COUNT) {
+                return position == end && value == crc ? (int) sensors : -1;
+            }
+
+            mDecoded[sensor] = value;
+            crc = FrameCommandEncoder.crc8(crc, (value >> 8) & 0xFF);
+            crc = FrameCommandEncoder.crc8(crc, value & 0xFF);
+        }
+
+        return -1;
+    }
+
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+
+    private static boolean startsWith(CharSequence text, String prefix, int offset) {
+        if (offset < 0 || offset + prefix.length() > text.length()) {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length(); i++) {
+            if (text.charAt(offset + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Forget the values and the counts, i.e. for a new connection
+     */
+    public void reset() {
+        mKnownSensors = 0;
+        mLastSensors = 0;
+        mSamples = 0;
+        mMalformed = 0;
+    }
+
+
+    /**
+     * @return true if the robot has sent the value of the sensor
+     */
+    public boolean isKnown(int sensor) {
+        return (mKnownSensors & (1 << sensor)) != 0;
+    }
+
+
+    /**
+     * @return the last value of the sensor sent by the robot, 0 if it is not known
+     */
+    public int get(int sensor) {
+        return isKnown(sensor) ? mValues[sensor] : 0;
+    }
+
+
+    /**
+     * @return the mask of the sensors of the last valid message
+     */
+    public int getLastSensors() {
+        return mLastSensors;
+    }
+
+
+    /**
+     * @return when the last value of the sensor was received, in the clock of
+     * {@link System#nanoTime()}
+     */
+    public long getReceiveTime(int sensor) {
+        return mReceiveTimes[sensor];
+    }
+
+
+    /**
+     * @param now the current time, in the clock of {@link System#nanoTime()}
+     * @return the mask of the sensors received in the last {@link #FRESH_NANOS}
+     */
+    public int getFreshSensors(long now) {
+        int fresh = 0;
+
+        for (int sensor = 0; sensor < SENSOR_COUNT; sensor++) {
+            if (isKnown(sensor) && now - mReceiveTimes[sensor] < FRESH_NANOS) {
+                fresh |= 1 << sensor;
+            }
+        }
+
+        return fresh;
+    }
+
+
+    /**
+     * @return number of valid telemetry messages received. The views compare it with the one
+     * of their last refresh to know if they must show the values again
+     */
+    public long getSamples() {
+        return mSamples;
+    }
+
+
+    /**
+     * @return number of telemetry messages discarded because they were malformed
+     */
+    public long getMalformed() {
+        return mMalformed;
+    }
+
+
+    /**
+     * Append the name and the value of the fresh sensors, one per line
+     *
+     * @param out where the text is written
+     * @param now the current time, in the clock of {@link System#nanoTime()}
+     */
+    public void appendTo(StringBuilder out, long now) {
+        int fresh = getFreshSensors(now);
+
+        for (int sensor = 0; sensor < SENSOR_COUNT; sensor++) {
+            if ((fresh & (1 << sensor)) == 0) {
+                continue;
+            }
+
+            out.append(SENSOR_NAMES[sensor]).append(' ');
+
+            if (sensor == SENSOR_IR_LEFT || sensor == SENSOR_IR_RIGHT) {
+                out.append(mValues[sensor] == IR_BLACK ? "black" : "white");
+            } else if (sensor == SENSOR_DISTANCE) {
+                out.append(mValues[sensor]).append(" cm");
+            } else {
+                out.append(mValues[sensor]);
+            }
+
+            out.append('\n');
+        }
+    }
+
+}
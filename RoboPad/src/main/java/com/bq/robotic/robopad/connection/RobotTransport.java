@@ -0,0 +1,62 @@
+package com.bq.robotic.robopad.connection;
+
+
+/**
+ * Link with the robot where the {@link CommandWriter} writes the encoded commands. The app uses
+ * the Bluetooth connection of droid2ino, and the {@link LoopbackTransport} lets the whole
+ * command path run and be measured without a robot.
+ */
+
+public interface RobotTransport {
+
+    int STATE_DISCONNECTED = 0;
+    int STATE_CONNECTING = 1;
+    int STATE_CONNECTED = 2;
+
+    /**
+     * Notified when the state of the transport changes
+     */
+    interface StateListener {
+        void onTransportStateChanged(RobotTransport transport, int state);
+    }
+
+
+    /**
+     * Start connecting with the robot. The listener is notified when connected.
+     */
+    void open();
+
+    /**
+     * Close the connection with the robot
+     */
+    void close();
+
+    /**
+     * @return one of the STATE_* values
+     */
+    int getState();
+
+    boolean isConnected();
+
+    /**
+     * Write a frame. It is called only from the writer thread and can block until the frame is
+     * written. The frames written while not connected are dropped.
+     *
+     * @param buffer the buffer with the bytes of the frame
+     * @param offset position of the buffer of the first byte
+     * @param length number of bytes of the frame
+     */
+    void write(byte[] buffer, int offset, int length);
+
+    void setStateListener(StateListener listener);
+
+    long getFramesWritten();
+
+    long getBytesWritten();
+
+    /**
+     * @return number of frames dropped because the transport was not connected
+     */
+    long getFramesDropped();
+
+}
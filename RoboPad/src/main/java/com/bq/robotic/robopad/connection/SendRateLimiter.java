@@ -0,0 +1,312 @@
+package com.bq.robotic.robopad.connection;
+
+
+/**
+ * Token bucket that keeps the {@link CommandWriter} below the throughput that the link with the
+ * robot really sustains, so the commands wait in the writer, where the newest values of the
+ * continuous controls replace the old ones and the stops jump ahead, instead of in the buffers
+ * of the Bluetooth socket and of the module, where they only add latency.
+ *
+ * The throughput is estimated from the writes: a write of the socket blocks while its buffer is
+ * full, so when the writes were blocked most of a window of {@link #WINDOW_NANOS}, the bytes
+ * written divided by the time blocked is the speed of the link. In the acknowledged mode the
+ * acks of the firmware are used as well: when more than {@link #MAX_IN_FLIGHT_BYTES} wait for
+ * their ack the robot reads less than it is sent, and the speed is the bytes acknowledged in
+ * the window. The estimate follows those windows and, while the writes are mostly free, it goes
+ * back slowly to the speed of the module, the highest it can be.
+ *
+ * The bucket is filled at {@link #HEADROOM_PERCENT} of the estimate, or at
+ * {@link #DRAIN_PERCENT} after a window where the link was behind, so the bytes already waiting
+ * in the link are written before more are added. Every write takes its bytes from the bucket,
+ * and the writer holds the commands that can wait while it is empty.
+ *
+ * All the methods except {@link #reset()} and the getters must be called from the writer thread.
+ */
+
+public class SendRateLimiter {
+
+    /**
+     * Bytes per second of the Bluetooth modules of the robots, at 38400 bauds
+     */
+    public static final int MODULE_BYTES_PER_SECOND = 3840;
+
+    /**
+     * The estimate is never lower, so the commands that wait for the bucket are never stuck
+     */
+    public static final int MIN_BYTES_PER_SECOND = 100;
+
+    public static final long WINDOW_NANOS = 250000000L;
+
+    /**
+     * A window where the writes were blocked at least this part of the time is limited by the link
+     */
+    public static final int BLOCKED_PERCENT = 95;
+
+    /**
+     * The estimate only goes back to the speed of the module after a window where the writes
+     * were blocked less than this part of the time
+     */
+    public static final int IDLE_PERCENT = 50;
+
+    /**
+     * The receive buffer of the boards. More bytes waiting for their ack mean that the robot
+     * doesn't read them as fast as they are written
+     */
+    public static final int MAX_IN_FLIGHT_BYTES = 64;
+
+    public static final int HEADROOM_PERCENT = 90;
+    public static final int DRAIN_PERCENT = 50;
+
+    /**
+     * Size of the bucket, in time of the rate
+     */
+    public static final long BURST_NANOS = 50000000L;
+
+    private static final long SECOND = 1000000000L;
+
+    // The estimate moves this fraction of the distance to each new sample
+    private static final int SMOOTHING = 2;
+
+    // The estimate goes back to the speed of the module this fraction of itself per window
+    private static final int RECOVERY = 32;
+
+    private final int mMaxBytesPerSecond;
+
+    // Tokens in bytes multiplied by SECOND, so the refill of each nanosecond is exact. Only
+    // written by the writer thread
+    private volatile long mTokens;
+    private long mRefillTime;
+    private boolean mBehind;
+
+    // Window being measured
+    private long mWindowStart;
+    private long mWindowEnd;
+    private long mWindowBytes;
+    private long mWindowFrames;
+    private long mWindowBlockedNanos;
+    private long mWindowAcked = -1;
+
+    private volatile boolean mResetRequested;
+
+    // Only written by the writer thread
+    private volatile int mEstimate;
+    private volatile int mRate;
+    private volatile long mThrottles;
+    private volatile long mThrottledNanos;
+    private volatile long mLimitedWindows;
+
+
+    /**
+     * @param maxBytesPerSecond the speed of the link when nothing else limits it, the first
+     *                          estimate
+     */
+    public SendRateLimiter(int maxBytesPerSecond) {
+        mMaxBytesPerSecond = maxBytesPerSecond;
+        restart();
+    }
+
+
+    /**
+     * Forget the estimate, i.e. for a new connection. It is applied by the writer thread on its
+     * next write. Can be called from any thread.
+     */
+    public void reset() {
+        mResetRequested = true;
+    }
+
+
+    private void restart() {
+        mEstimate = mMaxBytesPerSecond;
+        mRate = mMaxBytesPerSecond * HEADROOM_PERCENT / 100;
+        mTokens = getBurstTokens();
+        mRefillTime = 0;
+        mBehind = false;
+        mWindowStart = 0;
+        mWindowAcked = -1;
+        mThrottles = 0;
+        mThrottledNanos = 0;
+        mLimitedWindows = 0;
+    }
+
+
+    private long getBurstTokens() {
+        long burst = Math.max((long) mRate * BURST_NANOS / SECOND, CommandEncoder.MAX_FRAME_LENGTH);
+        return burst * SECOND;
+    }
+
+
+    private void refill(long now) {
+        if (mResetRequested) {
+            mResetRequested = false;
+            restart();
+        }
+
+        if (mRefillTime != 0) {
+            mTokens = Math.min(getBurstTokens(), mTokens + (now - mRefillTime) * mRate);
+        }
+        mRefillTime = now;
+    }
+
+
+    /**
+     * @param now the current time, in the clock of {@link System#nanoTime()}
+     * @return nanoseconds until the bucket has tokens again, 0 if it has them now
+     */
+    public long getDelayNanos(long now) {
+        refill(now);
+
+        if (mTokens >= 0) {
+            return 0;
+        }
+
+        return (-mTokens + mRate - 1) / mRate;
+    }
+
+
+    /**
+     * A command held because the bucket was empty
+     *
+     * @param nanos time that it is going to wait
+     */
+    public void onThrottled(long nanos) {
+        mThrottles++;
+        mThrottledNanos += nanos;
+    }
+
+
+    /**
+     * Take the bytes written from the bucket and measure the link with the time of the write
+     *
+     * @param bytes length of the frame
+     * @param start when the write started, in the clock of {@link System#nanoTime()}
+     * @param end when the write returned
+     * @param ackTracker the acks of the frames, or null if the firmware doesn't answer them
+     */
+    public void onWrite(int bytes, long start, long end, AckTracker ackTracker) {
+        refill(start);
+        mTokens -= bytes * SECOND;
+
+        // A silent link tells nothing about its speed
+        if (mWindowStart == 0 || start - mWindowEnd > WINDOW_NANOS) {
+            startWindow(start, ackTracker);
+        }
+
+        mWindowBytes += bytes;
+        mWindowFrames++;
+        mWindowBlockedNanos += end - start;
+        mWindowEnd = end;
+
+        if (end - mWindowStart >= WINDOW_NANOS) {
+            endWindow(end, ackTracker);
+            startWindow(end, ackTracker);
+        }
+    }
+
+
+    private void startWindow(long now, AckTracker ackTracker) {
+        mWindowStart = now;
+        mWindowEnd = now;
+        mWindowBytes = 0;
+        mWindowFrames = 0;
+        mWindowBlockedNanos = 0;
+        mWindowAcked = ackTracker != null ? ackTracker.getAcked() : -1;
+    }
+
+
+    private void endWindow(long now, AckTracker ackTracker) {
+        long elapsed = now - mWindowStart;
+        long sample = Long.MAX_VALUE;
+        boolean behind = false;
+
+        if (mWindowBlockedNanos * 100 >= elapsed * BLOCKED_PERCENT) {
+            sample = mWindowBytes * SECOND / Math.max(1, mWindowBlockedNanos);
+            behind = true;
+        }
+
+        if (ackTracker != null && mWindowAcked >= 0) {
+            long bytesPerFrame = mWindowBytes / mWindowFrames;
+
+            if (ackTracker.getInFlight() * bytesPerFrame > MAX_IN_FLIGHT_BYTES) {
+                long acked = (ackTracker.getAcked() - mWindowAcked) * bytesPerFrame;
+                sample = Math.min(sample, acked * SECOND / elapsed);
+                behind = true;
+            }
+        }
+
+        int estimate = mEstimate;
+        if (behind) {
+            estimate += (int) ((Math.min(sample, mMaxBytesPerSecond) - estimate) / SMOOTHING);
+            mLimitedWindows++;
+        } else if (mWindowBlockedNanos * 100 < elapsed * IDLE_PERCENT) {
+            estimate += estimate / RECOVERY + 1;
+        }
+
+        mEstimate = Math.max(MIN_BYTES_PER_SECOND, Math.min(mMaxBytesPerSecond, estimate));
+        mBehind = behind;
+        mRate = mEstimate * (mBehind ? DRAIN_PERCENT : HEADROOM_PERCENT) / 100;
+        mTokens = Math.min(mTokens, getBurstTokens());
+    }
+
+
+    /**
+     * @return estimated bytes per second that the link sustains
+     */
+    public int getEstimatedBytesPerSecond() {
+        return mEstimate;
+    }
+
+
+    /**
+     * @return bytes per second that fill the bucket now
+     */
+    public int getRateBytesPerSecond() {
+        return mRate;
+    }
+
+
+    /**
+     * @return bytes that can be written now without waiting, negative while the bucket is in debt
+     */
+    public long getBudgetBytes() {
+        return mTokens / SECOND;
+    }
+
+
+    /**
+     * @return number of times that a command was held because the bucket was empty
+     */
+    public long getThrottles() {
+        return mThrottles;
+    }
+
+
+    /**
+     * @return total time that commands were held because the bucket was empty, in nanoseconds
+     */
+    public long getThrottledNanos() {
+        return mThrottledNanos;
+    }
+
+
+    /**
+     * @return number of windows where the link or the robot were behind
+     */
+    public long getLimitedWindows() {
+        return mLimitedWindows;
+    }
+
+
+    /**
+     * Append the estimate, the rate and the budget of the link
+     *
+     * @param out where the text is written
+     */
+    public void appendTo(StringBuilder out) {
+        out.append("link  estimate ").append(mEstimate)
+                .append(" B/s  rate ").append(mRate)
+                .append(" B/s  budget ").append(getBudgetBytes())
+                .append(" B  throttled ").append(mThrottles)
+                .append('\n');
+    }
+
+}
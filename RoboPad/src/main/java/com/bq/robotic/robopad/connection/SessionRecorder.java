@@ -0,0 +1,224 @@
+package com.bq.robotic.robopad.connection;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Binary log of a session with the robot: every command sent by the fragments and every value
+ * of the sensors received, with the time when it happened, so the session can be replayed to
+ * the robot with {@link SessionReplayer} or studied later.
+ *
+ * The log is written through a memory mapped file: recording a command only stores two longs
+ * in the mapped buffer, without system calls nor allocations, so it can be done in the UI
+ * thread on the send path. The file grows in regions of {@link #REGION_RECORDS} records, each
+ * one mapped once, and it is cut to the records written when the session ends.
+ *
+ * The file starts with a header of {@link #HEADER_SIZE} bytes: {@link #MAGIC}, the
+ * {@link #VERSION} of the format and the robot as shorts, and the wall clock time of the start
+ * in milliseconds. Then each record has {@link #RECORD_SIZE} bytes, two longs in big endian:
+ * the type of the record in the high byte and the nanoseconds since the start of the session
+ * in the rest, and the value, a {@link RobotCommand} or the sensor of the {@link RobotTelemetry}
+ * in the high int and its value in the low one. A record of zeros ends the log, as in the
+ * files of the sessions that didn't end because the app was killed.
+ *
+ * All the methods must be called from the same thread, the UI thread.
+ */
+
+public class SessionRecorder {
+
+    /**
+     * "RPSL", RoboPad session log
+     */
+    public static final int MAGIC = 0x5250534C;
+    public static final int VERSION = 1;
+
+    public static final int HEADER_SIZE = 16;
+    public static final int RECORD_SIZE = 16;
+
+    /**
+     * Records of each mapped region of the file, 1 MB
+     */
+    public static final int REGION_RECORDS = 65536;
+
+    /**
+     * Types of the records
+     */
+    public static final int TYPE_COMMAND = 1;
+    public static final int TYPE_TELEMETRY = 2;
+
+    static final int TYPE_SHIFT = 56;
+    static final long TIME_MASK = (1L << TYPE_SHIFT) - 1;
+
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mRegion;
+    private long mRegionStart;
+
+    private File mPath;
+    private long mStartTime;
+    private long mRecords;
+    private long mDroppedRecords;
+
+
+    /**
+     * Start recording a new session in the file, that is overwritten
+     *
+     * @param path the file of the session
+     * @param robot the robot of the session, the ordinal of its RoboPadConstants.robotType
+     * @param startTime when the session starts, in the clock of {@link System#nanoTime()}
+     * @throws IOException if the file can't be created or mapped
+     */
+    public void start(File path, int robot, long startTime) throws IOException {
+        stop();
+
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        mFile = file;
+        try {
+            file.setLength(0);
+            mChannel = file.getChannel();
+            mPath = path;
+            mStartTime = startTime;
+            mRecords = 0;
+            mDroppedRecords = 0;
+
+            mapRegion(0);
+            mRegion.putInt(0, MAGIC);
+            mRegion.putShort(4, (short) VERSION);
+            mRegion.putShort(6, (short) robot);
+            mRegion.putLong(8, System.currentTimeMillis());
+
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+
+    /**
+     * Map the region of the file that starts in the given position
+     */
+    private void mapRegion(long start) throws IOException {
+        int size = (start == 0 ? HEADER_SIZE : 0) + REGION_RECORDS * RECORD_SIZE;
+
+        mRegion = mChannel.map(FileChannel.MapMode.READ_WRITE, start, size);
+        mRegion.order(ByteOrder.BIG_ENDIAN);
+        mRegionStart = start;
+    }
+
+
+    /**
+     * Record a command sent to the robot. It does nothing if not recording.
+     *
+     * @param command the {@link RobotCommand}
+     * @param time when it was sent, in the clock of {@link System#nanoTime()}
+     */
+    public void recordCommand(long command, long time) {
+        record(TYPE_COMMAND, command, time);
+    }
+
+
+    /**
+     * Record a value of a sensor received from the robot. It does nothing if not recording.
+     *
+     * @param sensor one of the RobotTelemetry.SENSOR_* values
+     * @param value the value of the sensor
+     * @param time when it was received, in the clock of {@link System#nanoTime()}
+     */
+    public void recordTelemetry(int sensor, int value, long time) {
+        record(TYPE_TELEMETRY, ((long) sensor << 32) | (value & 0xFFFFFFFFL), time);
+    }
+
+
+    private void record(int type, long value, long time) {
+        if (mRegion == null) {
+            return;
+        }
+
+        long position = HEADER_SIZE + mRecords * RECORD_SIZE;
+
+        if (position + RECORD_SIZE > mRegionStart + mRegion.capacity()) {
+            try {
+                // The last region is kept until the new one is mapped, so the file is never
+                // left without its records
+                mapRegion(position);
+            } catch (IOException e) {
+                mDroppedRecords++;
+                return;
+            }
+        }
+
+        int offset = (int) (position - mRegionStart);
+        mRegion.putLong(offset, ((long) type << TYPE_SHIFT) | (Math.max(0, time - mStartTime) & TIME_MASK));
+        mRegion.putLong(offset + 8, value);
+        mRecords++;
+    }
+
+
+    /**
+     * End the session, cutting the file after the last record. It does nothing if not recording.
+     *
+     * @return the file of the session, or null if not recording
+     */
+    public File stop() {
+        if (mFile == null) {
+            return null;
+        }
+
+        File path = mPath;
+
+        try {
+            mRegion.force();
+            mChannel.truncate(HEADER_SIZE + mRecords * RECORD_SIZE);
+        } catch (IOException e) {
+            // The rest of the file has zeros, which also end the log
+        }
+
+        close();
+
+        return path;
+    }
+
+
+    private void close() {
+        mRegion = null;
+        mChannel = null;
+        mPath = null;
+
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // Nothing else to do, the records are in the file
+            }
+            mFile = null;
+        }
+    }
+
+
+    public boolean isRecording() {
+        return mRegion != null;
+    }
+
+
+    /**
+     * @return number of records of the current session, or of the last one
+     */
+    public long getRecords() {
+        return mRecords;
+    }
+
+
+    /**
+     * @return number of records lost because the file couldn't grow
+     */
+    public long getDroppedRecords() {
+        return mDroppedRecords;
+    }
+
+}
@@ -0,0 +1,224 @@
+package com.bq.robotic.robopad.connection;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+/**
+ * Reader of the sessions written by the {@link SessionRecorder}, that sends their commands
+ * again with the same time between them, so the robot repeats what the user taught it. The
+ * time of the replay starts at the first command, so the wait before it is not repeated.
+ *
+ * The file is mapped, so the records are read in place without copying them. The telemetry
+ * records are not replayed but can be read with {@link #getType(int)}, {@link #getTime(int)}
+ * and {@link #getValue(int)}.
+ *
+ * The replay has no thread of its own: the owner calls {@link #replayDue(long, Target)} when
+ * the time returned by the previous call arrives, from the thread where the commands must be
+ * sent.
+ */
+
+public class SessionReplayer {
+
+    /**
+     * Receives the commands of the replay
+     */
+    public interface Target {
+        /**
+         * @param command the {@link RobotCommand} to send now
+         */
+        void onReplayCommand(long command);
+    }
+
+    private final MappedByteBuffer mBuffer;
+    private final int mRobot;
+    private final long mStartTimeMillis;
+    private final int mRecords;
+
+    // Replay
+    private int mNextRecord;
+    private long mReplayStart;
+    private long mFirstCommandTime;
+    private long mReplayedCommands;
+
+
+    /**
+     * @param path a file written by the {@link SessionRecorder}
+     * @throws IOException if the file can't be read or it is not a session
+     */
+    public SessionReplayer(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < SessionRecorder.HEADER_SIZE
+                    || channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("not a session: " + path);
+            }
+
+            // The mapping stays valid once the file is closed
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mBuffer.order(ByteOrder.BIG_ENDIAN);
+
+        } finally {
+            file.close();
+        }
+
+        if (mBuffer.getInt(0) != SessionRecorder.MAGIC
+                || mBuffer.getShort(4) != SessionRecorder.VERSION) {
+            throw new IOException("not a session of this version: " + path);
+        }
+
+        mRobot = mBuffer.getShort(6);
+        mStartTimeMillis = mBuffer.getLong(8);
+
+        // Until the end of the file or the first record of zeros
+        int records = (mBuffer.capacity() - SessionRecorder.HEADER_SIZE) / SessionRecorder.RECORD_SIZE;
+        for (int i = 0; i < records; i++) {
+            if (getType(i) == 0) {
+                records = i;
+                break;
+            }
+        }
+        mRecords = records;
+
+        rewind();
+    }
+
+
+    /**
+     * @return the robot of the session, the ordinal of its RoboPadConstants.robotType
+     */
+    public int getRobot() {
+        return mRobot;
+    }
+
+
+    /**
+     * @return the wall clock time when the session started, in milliseconds
+     */
+    public long getStartTimeMillis() {
+        return mStartTimeMillis;
+    }
+
+
+    public int getRecordCount() {
+        return mRecords;
+    }
+
+
+    /**
+     * @return the SessionRecorder.TYPE_* of the record of the given position
+     */
+    public int getType(int record) {
+        return (int) (mBuffer.getLong(offsetOf(record)) >>> SessionRecorder.TYPE_SHIFT);
+    }
+
+
+    /**
+     * @return nanoseconds from the start of the session to the record of the given position
+     */
+    public long getTime(int record) {
+        return mBuffer.getLong(offsetOf(record)) & SessionRecorder.TIME_MASK;
+    }
+
+
+    /**
+     * @return the {@link RobotCommand} of a command record, or the sensor in the high int and
+     * its value in the low one of a telemetry record
+     */
+    public long getValue(int record) {
+        return mBuffer.getLong(offsetOf(record) + 8);
+    }
+
+
+    private static int offsetOf(int record) {
+        return SessionRecorder.HEADER_SIZE + record * SessionRecorder.RECORD_SIZE;
+    }
+
+
+    /**
+     * Go back to the first command
+     */
+    public void rewind() {
+        mNextRecord = nextCommand(0);
+        mFirstCommandTime = mNextRecord < mRecords ? getTime(mNextRecord) : 0;
+        mReplayStart = 0;
+        mReplayedCommands = 0;
+    }
+
+
+    private int nextCommand(int record) {
+        while (record < mRecords && getType(record) != SessionRecorder.TYPE_COMMAND) {
+            record++;
+        }
+        return record;
+    }
+
+
+    /**
+     * Start the replay now, from the first command
+     *
+     * @param now the current time, in the clock of {@link System#nanoTime()}
+     */
+    public void start(long now) {
+        rewind();
+        mReplayStart = now;
+    }
+
+
+    /**
+     * Send to the target the commands whose time has arrived
+     *
+     * @param now the current time, in the clock of {@link System#nanoTime()}
+     * @param target where the commands are sent
+     * @return when the next command is due, in the clock of {@link System#nanoTime()}, or
+     * {@link Long#MAX_VALUE} if the replay has ended
+     */
+    public long replayDue(long now, Target target) {
+        while (mNextRecord < mRecords) {
+            long due = mReplayStart + getTime(mNextRecord) - mFirstCommandTime;
+            if (due > now) {
+                return due;
+            }
+
+            target.onReplayCommand(getValue(mNextRecord));
+            mReplayedCommands++;
+            mNextRecord = nextCommand(mNextRecord + 1);
+        }
+
+        return Long.MAX_VALUE;
+    }
+
+
+    public boolean isFinished() {
+        return mNextRecord >= mRecords;
+    }
+
+
+    public long getReplayedCommands() {
+        return mReplayedCommands;
+    }
+
+
+    /**
+     * @return nanoseconds from the first command to the last one
+     */
+    public long getDuration() {
+        long last = 0;
+        for (int i = mRecords - 1; i >= 0; i--) {
+            if (getType(i) == SessionRecorder.TYPE_COMMAND) {
+                last = getTime(i);
+                break;
+            }
+        }
+
+        return Math.max(0, last - mFirstCommandTime);
+    }
+
+}
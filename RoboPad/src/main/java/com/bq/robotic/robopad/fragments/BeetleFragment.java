@@ -23,8 +23,8 @@
 
 package com.bq.robotic.robopad.fragments;
 
+import android.app.Activity;
 import android.os.Bundle;
-import android.os.Handler;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.Gravity;
@@ -38,6 +38,9 @@ import android.widget.ImageView;
 import android.widget.PopupWindow;
 
 import com.bq.robotic.robopad.R;
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.listeners.RobotListener;
+import com.bq.robotic.robopad.utils.ClawControl;
 import com.bq.robotic.robopad.utils.RoboPadConstants;
 import com.bq.robotic.robopad.utils.RoboPadConstants.Claw_next_state;
 import com.bq.robotic.robopad.utils.RoboPadConstants.robotState;
@@ -57,13 +60,24 @@ public class BeetleFragment extends RobotFragment {
 	// Debugging
 	private static final String LOG_TAG = "BeetleFragment";
 
-	private int mClawPosition; // Current position of the claw 
-
 	private ImageButton mFullOpenClawButton;
 	private ImageButton mOpenStepClawButton;
 	private ImageButton mCloseStepClawButton;
-    private Handler sendClawValuesHandler;
-    private boolean clawButtonUp = false;
+
+    // Position of the claw and its steps while a claw button is held
+    private final ClawControl clawControl = new ClawControl(new ClawControl.Buttons() {
+
+        @Override
+        public void setOpenEnabled(boolean enabled) {
+            mOpenStepClawButton.setEnabled(enabled);
+            mFullOpenClawButton.setEnabled(enabled);
+        }
+
+        @Override
+        public void setCloseEnabled(boolean enabled) {
+            mCloseStepClawButton.setEnabled(enabled);
+        }
+    }, uiScheduler);
 
     private ImageButton pinExplanationButton;
     private ImageButton lineFollowerButton;
@@ -83,17 +97,40 @@ public class BeetleFragment extends RobotFragment {
 
         ((ImageView) layout.findViewById(R.id.robot_bg)).setImageResource(R.drawable.ic_beetle_bg_off);
 
-		// Put the servo of the claws in a initial position
-		mClawPosition = RoboPadConstants.INIT_CLAW_POS; // default open 30 (values from 5 to 50) 
-
 		setUiListeners(layout);
 
-        sendClawValuesHandler = new Handler();
+		// Put the servo of the claws in a initial position
+		clawControl.reset(); // default open 30 (values from 5 to 50)
 
 		return layout;
 
 	}
 
+
+    @Override
+    public void onAttach(Activity activity) {
+        super.onAttach(activity);
+        clawControl.setRobotListener(listener);
+    }
+
+
+    @Override
+    public void setRobotListener(RobotListener listener) {
+        super.setRobotListener(listener);
+        clawControl.setRobotListener(listener);
+    }
+
+
+    /**
+     * Stop moving the claw when the app is paused, the shared handler outlives the fragment
+     */
+    @Override
+    public void onPause() {
+        clawControl.cancel();
+
+        super.onPause();
+    }
+
 	
 	/**
 	 * Set the listeners to the views that need them. It must be done here in the fragment in order
@@ -129,6 +166,8 @@ public class BeetleFragment extends RobotFragment {
 		ImageButton rightButton = (ImageButton) containerLayout.findViewById(R.id.right_button);
 		rightButton.setOnTouchListener(buttonOnTouchListener);
 
+		setUpJoystick(containerLayout);
+
         pinExplanationButton = (ImageButton) containerLayout.findViewById(R.id.bot_icon);
         pinExplanationButton.setOnClickListener(onButtonClick);
 
@@ -143,21 +182,18 @@ public class BeetleFragment extends RobotFragment {
     // FIXME: change the background image for the beetle
     @Override
     public void onBluetoothConnected() {
-        ((ImageView) getActivity().findViewById(R.id.bot_icon)).setImageResource(R.drawable.bot_beetle_connected);
-        ((ImageView) getActivity().findViewById(R.id.robot_bg)).setImageResource(R.drawable.ic_beetle_bg_on);
+        botIcon.setImageResource(R.drawable.bot_beetle_connected);
+        robotBg.setImageResource(R.drawable.ic_beetle_bg_on);
 
         stateChanged(robotState.MANUAL_CONTROL);
 
-        mClawPosition = RoboPadConstants.INIT_CLAW_POS; // default open 30 (values from 5 to 50)
-        mOpenStepClawButton.setEnabled(true);
-        mFullOpenClawButton.setEnabled(true);
-        mCloseStepClawButton.setEnabled(true);
+        clawControl.reset(); // default open 30 (values from 5 to 50)
     }
 
     @Override
     public void onBluetoothDisconnected() {
-        ((ImageView) getActivity().findViewById(R.id.bot_icon)).setImageResource(R.drawable.bot_beetle_disconnected);
-        ((ImageView) getActivity().findViewById(R.id.robot_bg)).setImageResource(R.drawable.ic_beetle_bg_off);
+        botIcon.setImageResource(R.drawable.bot_beetle_disconnected);
+        robotBg.setImageResource(R.drawable.ic_beetle_bg_off);
     }
 
 
@@ -177,19 +213,19 @@ public class BeetleFragment extends RobotFragment {
 		switch(viewId) { 	
 
 			case R.id.up_button:
-				listener.onSendMessage(RoboPadConstants.UP_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.FORWARD));
 				break;
 	
 			case R.id.down_button:
-				listener.onSendMessage(RoboPadConstants.DOWN_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.BACKWARD));
 				break;
 	
 			case R.id.left_button:
-				listener.onSendMessage(RoboPadConstants.LEFT_COMMAND);	
+				listener.onSendCommand(RobotCommand.of(RobotCommand.LEFT));	
 				break;
 	
 			case R.id.right_button:
-				listener.onSendMessage(RoboPadConstants.RIGHT_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.RIGHT));
 				break;
 
 		}
@@ -217,7 +253,7 @@ public class BeetleFragment extends RobotFragment {
                         stateChanged(RoboPadConstants.robotState.MANUAL_CONTROL);
                     }
 
-					listener.onSendMessage(RoboPadConstants.STOP_COMMAND);    				
+					listener.onSendCommand(RobotCommand.of(RobotCommand.STOP));    				
 					break;
 	
 				case R.id.full_open_claw_button:
@@ -227,8 +263,8 @@ public class BeetleFragment extends RobotFragment {
                             stateChanged(RoboPadConstants.robotState.MANUAL_CONTROL);
                         }
 
-						listener.onSendMessage(RoboPadConstants.CLAW_COMMAND
-								+ getNextClawPosition(Claw_next_state.FULL_OPEN));
+						listener.onSendCommand(RobotCommand.of(RobotCommand.CLAW,
+								clawControl.next(Claw_next_state.FULL_OPEN)));
 					}
 					break;
 
@@ -294,21 +330,21 @@ public class BeetleFragment extends RobotFragment {
                 lineFollowerButton.setSelected(false);
                 lightFollowerButton.setSelected(false);
                 state = robotState.MANUAL_CONTROL;
-                listener.onSendMessage(RoboPadConstants.MANUAL_CONTROL_MODE_COMMAND);
+                listener.onSendCommand(RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_MANUAL_CONTROL));
                 break;
 
             case LINE_FOLLOWER:
                 lineFollowerButton.setSelected(true);
                 lightFollowerButton.setSelected(false);
                 state = robotState.LINE_FOLLOWER;
-                listener.onSendMessage(RoboPadConstants.LINE_FOLLOWER_MODE_COMMAND);
+                listener.onSendCommand(RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_LINE_FOLLOWER));
                 break;
 
             case LIGHT_AVOIDER:
                 lightFollowerButton.setSelected(true);
                 lineFollowerButton.setSelected(false);
                 state = robotState.LIGHT_AVOIDER;
-                listener.onSendMessage(RoboPadConstants.LIGHT_AVOIDER_MODE_COMMAND);
+                listener.onSendCommand(RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_LIGHT_AVOIDER));
                 break;
 
         }
@@ -339,14 +375,17 @@ public class BeetleFragment extends RobotFragment {
                     }
 
                     if(listener.onCheckIsConnected()) {
-                        clawButtonUp = false;
-                        (new MySendClawValueToArduinoTask(v.getId())).run();
+                        if (v.getId() == R.id.open_claw_button) {
+                            clawControl.press(Claw_next_state.OPEN_STEP);
+                        } else if (v.getId() == R.id.close_claw_button) {
+                            clawControl.press(Claw_next_state.CLOSE_STEP);
+                        }
                     }
                     break;
 
                 case MotionEvent.ACTION_UP:
                 case MotionEvent.ACTION_CANCEL:
-                    clawButtonUp = true;
+                    clawControl.release();
                     break;
 
             }
@@ -357,60 +396,6 @@ public class BeetleFragment extends RobotFragment {
     };
 
 
-	/**
-	 * Get the next position for the claw of the beetle robot
-	 * 
-	 * @param nextState The next state depending on the button that was pressed
-	 * @return The message for controlling the position of the servo of the claws
-	 */
-	private String getNextClawPosition(Claw_next_state nextState) {
-
-		// Show buttons enabled or disabled if the claw gets to max or min position
-		if(mClawPosition == RoboPadConstants.MAX_OPEN_CLAW_POS 
-				&& nextState == Claw_next_state.CLOSE_STEP) {
-			
-			mOpenStepClawButton.setEnabled(true);
-			mFullOpenClawButton.setEnabled(true);
-
-		} else if(mClawPosition == RoboPadConstants.MIN_CLOSE_CLAW_POS 
-				&& (nextState == Claw_next_state.OPEN_STEP 
-				|| nextState == Claw_next_state.FULL_OPEN) ) {
-			
-			mCloseStepClawButton.setEnabled(true);
-		}
-
-		if (nextState == Claw_next_state.OPEN_STEP) {
-			mClawPosition -= RoboPadConstants.CLAW_STEP;
-
-		} else if (nextState == Claw_next_state.CLOSE_STEP) {
-			mClawPosition += RoboPadConstants.CLAW_STEP;
-
-		} else if (nextState == Claw_next_state.FULL_OPEN) {
-			mClawPosition = RoboPadConstants.MAX_OPEN_CLAW_POS;
-
-		}
-
-		// Don't exceed the limits of the claw
-		if (mClawPosition <= RoboPadConstants.MAX_OPEN_CLAW_POS) {
-
-			mClawPosition = RoboPadConstants.MAX_OPEN_CLAW_POS;	
-			mOpenStepClawButton.setEnabled(false);
-			mFullOpenClawButton.setEnabled(false);
-            clawButtonUp = true;
-
-		} else if (mClawPosition >= RoboPadConstants.MIN_CLOSE_CLAW_POS) {
-
-			mClawPosition = RoboPadConstants.MIN_CLOSE_CLAW_POS; 
-			mCloseStepClawButton.setEnabled(false);
-            clawButtonUp = true;
-			
-		}
-
-		return String.valueOf(mClawPosition);
-
-	}
-
-
     private ToolTipView.OnToolTipViewClickedListener onToolTipClicked = new ToolTipView.OnToolTipViewClickedListener() {
 
         @Override
@@ -432,7 +417,7 @@ public class BeetleFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.pin_explanation_tip_text),
-                    getActivity().findViewById(R.id.bot_icon)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    botIcon).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.PIN;
 
@@ -440,7 +425,7 @@ public class BeetleFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.bluetooth_tip_text),
-                    getActivity().findViewById(R.id.connect_button)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    connectButton).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.BLUETOOTH;
 
@@ -448,7 +433,7 @@ public class BeetleFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.pad_tip_text),
-                    getActivity().findViewById(R.id.right_button)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    rightButton).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.PAD;
 
@@ -456,7 +441,7 @@ public class BeetleFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             ToolTipView clawsTip = mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.claws_tip_text),
-                    getActivity().findViewById(R.id.full_open_claw_button));
+                    mFullOpenClawButton);
 
             int margin = getResources().getDimensionPixelSize(R.dimen.claw_buttons_margin);
             clawsTip.setPadding(0,0, margin, 0);
@@ -470,7 +455,7 @@ public class BeetleFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.line_follower_text),
-                    getActivity().findViewById(R.id.line_follower)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    lineFollowerButton).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.LINE_FOLLOWER;
 
@@ -478,7 +463,7 @@ public class BeetleFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.light_avoider_text),
-                    getActivity().findViewById(R.id.light_avoider)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    lightFollowerButton).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.LIGHT_AVOIDER;
 
@@ -497,48 +482,4 @@ public class BeetleFragment extends RobotFragment {
         tipsManager.setLastTipToShow(isLastTipToShow);
     }
 
-
-    /**************************************************************************************
-     *************************   MySendClawValueToArduinoTask   ***************************
-     **************************************************************************************/
-
-    class MySendClawValueToArduinoTask implements Runnable {
-
-        private int viewId;
-
-        public MySendClawValueToArduinoTask(int viewId) {
-            this.viewId = viewId;
-        }
-
-        @Override
-        public void run() {
-
-            if(clawButtonUp) {
-                sendClawValuesHandler.removeCallbacks(this);
-
-            } else {
-
-                String message = null;
-
-                switch (viewId) {
-
-                    case R.id.open_claw_button:
-                        message = RoboPadConstants.CLAW_COMMAND
-                                + getNextClawPosition(Claw_next_state.OPEN_STEP);
-                        break;
-
-                    case R.id.close_claw_button:
-                        message = RoboPadConstants.CLAW_COMMAND
-                                + getNextClawPosition(Claw_next_state.CLOSE_STEP);
-                        break;
-                }
-
-                if (message != null) {
-                    listener.onSendMessage(message);
-                    sendClawValuesHandler.postDelayed(this, RoboPadConstants.CLICK_SLEEP_TIME);
-                }
-            }
-        }
-    }
-
 }
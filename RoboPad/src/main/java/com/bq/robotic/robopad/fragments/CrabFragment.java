@@ -31,11 +31,13 @@ import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ImageButton;
-import android.widget.RelativeLayout;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
 import com.bq.robotic.robopad.R;
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.utils.CrabGaitPresets;
+import com.bq.robotic.robopad.utils.IntChars;
 import com.bq.robotic.robopad.utils.RoboPadConstants;
 import com.bq.robotic.robopad.utils.TipsFactory;
 import com.nhaarman.supertooltips.ToolTipView;
@@ -58,6 +60,22 @@ public class CrabFragment extends RobotFragment {
 	// Debugging
 	private static final String LOG_TAG = "CrabFragment";
 
+    // The seek bars, moved by the gait presets without looking them up
+    private SeekBar leftAmplitudeView;
+    private SeekBar rightAmplitudeView;
+    private SeekBar periodView;
+    private SeekBar phaseView;
+
+    // Values of the seek bars, refreshed on every move without creating strings
+    private TextView leftAmplitudeValue;
+    private TextView rightAmplitudeValue;
+    private TextView periodValue;
+    private TextView phaseValue;
+    private final char[] leftAmplitudeChars = new char[IntChars.MAX_LENGTH];
+    private final char[] rightAmplitudeChars = new char[IntChars.MAX_LENGTH];
+    private final char[] periodChars = new char[IntChars.MAX_LENGTH];
+    private final char[] phaseChars = new char[IntChars.MAX_LENGTH];
+
 
 	@Override
 	public View onCreateView(LayoutInflater inflater,
@@ -89,18 +107,23 @@ public class CrabFragment extends RobotFragment {
         Button resetButton = (Button) containerLayout.findViewById(R.id.reset_button);
         resetButton.setOnClickListener(onButtonClick);
 
-        SeekBar leftAmplitudeView = (SeekBar) containerLayout.findViewById(R.id.left_amplitude);
+        leftAmplitudeView = (SeekBar) containerLayout.findViewById(R.id.left_amplitude);
         leftAmplitudeView.setOnSeekBarChangeListener(onSeekBarChangedListener);
 
-        SeekBar rightAmplitudeView = (SeekBar) containerLayout.findViewById(R.id.right_amplitude);
+        rightAmplitudeView = (SeekBar) containerLayout.findViewById(R.id.right_amplitude);
         rightAmplitudeView.setOnSeekBarChangeListener(onSeekBarChangedListener);
 
-        SeekBar periodView = (SeekBar) containerLayout.findViewById(R.id.period_bar);
+        periodView = (SeekBar) containerLayout.findViewById(R.id.period_bar);
         periodView.setOnSeekBarChangeListener(onSeekBarChangedListener);
 
-        SeekBar phaseView = (SeekBar) containerLayout.findViewById(R.id.phase);
+        phaseView = (SeekBar) containerLayout.findViewById(R.id.phase);
         phaseView.setOnSeekBarChangeListener(onSeekBarChangedListener);
 
+        leftAmplitudeValue = (TextView) containerLayout.findViewById(R.id.left_amplitude_value);
+        rightAmplitudeValue = (TextView) containerLayout.findViewById(R.id.right_amplitude_value);
+        periodValue = (TextView) containerLayout.findViewById(R.id.period_value);
+        phaseValue = (TextView) containerLayout.findViewById(R.id.phase_value);
+
 	}
 
 
@@ -136,30 +159,15 @@ public class CrabFragment extends RobotFragment {
 			switch(v.getId()) { 
 
 				case R.id.stop_button:
-					listener.onSendMessage(RoboPadConstants.STOP_COMMAND);
+					listener.onSendCommand(RobotCommand.of(RobotCommand.STOP));
 					break;
 
                 case R.id.reset_button:
-                    listener.onSendMessage(RoboPadConstants.RESET_COMMAND);
-
-                    ((TextView) getActivity().findViewById(R.id.left_amplitude_value)).setText
-                            (String.valueOf(RoboPadConstants.DEFAULT_AMPLITUDE));
-                    ((TextView) getActivity().findViewById(R.id.right_amplitude_value)).setText
-                            (String.valueOf(RoboPadConstants.DEFAULT_AMPLITUDE));
-                    ((TextView) getActivity().findViewById(R.id.period_value)).setText
-                            (String.valueOf(RoboPadConstants.DEFAULT_PERIOD));
-                    ((TextView) getActivity().findViewById(R.id.phase_value)).setText
-                            (String.valueOf(RoboPadConstants.DEFAULT_PHASE));
-
-                    ((SeekBar) getActivity().findViewById(R.id.left_amplitude)).setProgress
-                            (RoboPadConstants.DEFAULT_AMPLITUDE);
-                    ((SeekBar) getActivity().findViewById(R.id.right_amplitude)).setProgress
-                            (RoboPadConstants.DEFAULT_AMPLITUDE);
-                    ((SeekBar) getActivity().findViewById(R.id.period_bar)).setProgress
-                            (RoboPadConstants.DEFAULT_PERIOD);
-                    ((SeekBar) getActivity().findViewById(R.id.phase)).setProgress
-                            (RoboPadConstants.DEFAULT_PHASE);
-
+                    // The gait frame doesn't make RESET obsolete: the sketches still reset
+                    // their own state with it, the "I" of the legacy protocol. The default gait
+                    // after it shows the same values in the seek bars
+                    listener.onSendCommand(RobotCommand.of(RobotCommand.RESET));
+                    applyGait(CrabGaitPresets.DEFAULT);
                     break;
 			}
 
@@ -167,9 +175,33 @@ public class CrabFragment extends RobotFragment {
 	};
 
 
+    /**
+     * Send the gait to the robot in a single command, so its oscillators change the four
+     * parameters at once, and show it in the seek bars
+     *
+     * @param gait a {@link RobotCommand#GAIT} command, as one of the {@link CrabGaitPresets}
+     */
+    public void applyGait(long gait) {
+
+        if (listener == null) {
+            Log.e(LOG_TAG, "RobotListener is null");
+            return;
+        }
+
+        listener.onSendCommand(gait);
+
+        // The text views are updated by onProgressChanged, with the same offsets of each seek bar
+        leftAmplitudeView.setProgress(CrabGaitPresets.getLeftAmplitude(gait));
+        rightAmplitudeView.setProgress(CrabGaitPresets.getRightAmplitude(gait));
+        periodView.setProgress(CrabGaitPresets.getPeriod(gait) - 1000);
+        phaseView.setProgress(CrabGaitPresets.getPhase(gait) + 90);
+    }
+
+
     /**
      * Listener for the seek bar that updates the TextView values and send the message to the arduino
-     * with the progress value when the user stops moving the slider
+     * with the progress value while the user moves the slider. Only the newest value of each seek
+     * bar is written when the link is free, so the robot does not lag behind the slider
      */
     protected SeekBar.OnSeekBarChangeListener onSeekBarChangedListener = new SeekBar.OnSeekBarChangeListener() {
 
@@ -180,30 +212,30 @@ public class CrabFragment extends RobotFragment {
                 switch (seekBar.getId()) {
 
                     case R.id.left_amplitude:
-                        ((TextView) getActivity().findViewById(R.id.left_amplitude_value)).setText
-                                (String.valueOf(progress));
+                        showValue(leftAmplitudeValue, leftAmplitudeChars, progress);
                         break;
 
                     case R.id.right_amplitude:
-                        ((TextView) getActivity().findViewById(R.id.right_amplitude_value)).setText
-                                (String.valueOf(progress));
+                        showValue(rightAmplitudeValue, rightAmplitudeChars, progress);
                         break;
 
                     // Plus 1000 because the range of the period is from 0 to 8000 and the seek bar
                     // goes from 0 to 7000
                     case R.id.period_bar:
-                        ((TextView) getActivity().findViewById(R.id.period_value)).setText
-                                (String.valueOf(progress + 1000));
+                        showValue(periodValue, periodChars, progress + 1000);
                         break;
 
                     // Minus 90 because the range of the period is from -90 to 90 and the seek bar
                     // goes from 0 to 180
                     case R.id.phase:
-                        ((TextView) getActivity().findViewById(R.id.phase_value)).setText
-                                (String.valueOf(progress - 90));
+                        showValue(phaseValue, phaseChars, progress - 90);
                         break;
                 }
 
+                if (fromUser) {
+                    sendSeekBarValue(seekBar.getId(), progress);
+                }
+
         }
 
         @Override
@@ -213,32 +245,47 @@ public class CrabFragment extends RobotFragment {
 
         @Override
         public void onStopTrackingTouch(SeekBar seekBar) {
+            // nothing to be done, the last value was already sent
+        }
 
-            switch (seekBar.getId()) {
+    };
 
-                case R.id.left_amplitude:
-                    listener.onSendMessage(RoboPadConstants.LEFT_AMPLITUDE_COMMAND
-                            + seekBar.getProgress());
-                    break;
 
-                case R.id.right_amplitude:
-                    listener.onSendMessage(RoboPadConstants.RIGHT_AMPLITUDE_COMMAND
-                            + seekBar.getProgress());
-                    break;
+    /**
+     * Show the value in the text view. The text view keeps the chars instead of copying them, so
+     * each one has its own buffer, only changed right before its next setText()
+     */
+    private void showValue(TextView valueView, char[] chars, int value) {
+        int start = IntChars.format(value, chars);
+        valueView.setText(chars, start, chars.length - start);
+    }
 
-                case R.id.period_bar:
-                    listener.onSendMessage(RoboPadConstants.PERIOD_COMMAND
-                            + (seekBar.getProgress() + 1000));
-                    break;
 
-                case R.id.phase:
-                    listener.onSendMessage(RoboPadConstants.PHASE_COMMAND
-                            + (seekBar.getProgress() - 90));
-                    break;
-            }
+    private void sendSeekBarValue(int seekBarId, int progress) {
+
+        if (listener == null) {
+            return;
         }
 
-    };
+        switch (seekBarId) {
+
+            case R.id.left_amplitude:
+                listener.onSendCommand(RobotCommand.of(RobotCommand.LEFT_AMPLITUDE, progress));
+                break;
+
+            case R.id.right_amplitude:
+                listener.onSendCommand(RobotCommand.of(RobotCommand.RIGHT_AMPLITUDE, progress));
+                break;
+
+            case R.id.period_bar:
+                listener.onSendCommand(RobotCommand.of(RobotCommand.PERIOD, progress + 1000));
+                break;
+
+            case R.id.phase:
+                listener.onSendCommand(RobotCommand.of(RobotCommand.PHASE, progress - 90));
+                break;
+        }
+    }
 
 
     private ToolTipView.OnToolTipViewClickedListener onToolTipClicked = new ToolTipView.OnToolTipViewClickedListener() {
@@ -259,7 +306,7 @@ public class CrabFragment extends RobotFragment {
             setIsLastTipToShow(false);
             // Pin explanation tip
             pin_explanation_tip = mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.pin_explanation_tip_text),
-                    getActivity().findViewById(R.id.bot_icon));
+                    botIcon);
 
             currentTipView = pin_explanation_tip;
             currentTipView.setOnToolTipViewClickedListener(onToolTipClicked);
@@ -269,7 +316,7 @@ public class CrabFragment extends RobotFragment {
             pin_explanation_tip = null;
 
             bluetooth_tip = mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.bluetooth_tip_text),
-                    getActivity().findViewById(R.id.connect_button));
+                    connectButton);
 
             currentTipView = bluetooth_tip;
             currentTipView.setOnToolTipViewClickedListener(onToolTipClicked);
@@ -281,7 +328,7 @@ public class CrabFragment extends RobotFragment {
             currentTipView = null;
             setIsLastTipToShow(true);
             mToolTipFrameLayout.setOnClickListener(null);
-            ((RelativeLayout) getActivity().findViewById(R.id.entire_pollywog_layout)).removeView(mToolTipFrameLayout);
+            entireLayout.removeView(mToolTipFrameLayout);
         }
 
     }
@@ -36,6 +36,7 @@ import android.widget.ImageView;
 import android.widget.PopupWindow;
 
 import com.bq.robotic.robopad.R;
+import com.bq.robotic.robopad.connection.RobotCommand;
 import com.bq.robotic.robopad.utils.RoboPadConstants;
 import com.bq.robotic.robopad.utils.RoboPadConstants.robotState;
 import com.bq.robotic.robopad.utils.RobotConnectionsPopupWindow;
@@ -106,6 +107,8 @@ public class EvolutionFragment extends RobotFragment {
 		ImageButton rightButton = (ImageButton) containerLayout.findViewById(R.id.right_button);
 		rightButton.setOnTouchListener(buttonOnTouchListener);
 
+		setUpJoystick(containerLayout);
+
         pinExplanationButton = (ImageButton) containerLayout.findViewById(R.id.bot_icon);
         pinExplanationButton.setOnClickListener(onButtonClick);
 
@@ -137,22 +140,22 @@ public class EvolutionFragment extends RobotFragment {
 		switch(viewId) {
 
 			case R.id.up_button:
-				listener.onSendMessage(RoboPadConstants.UP_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.FORWARD));
 				//	    			Log.e(LOG_TAG, "up command send");
 				break;
 
 			case R.id.down_button:
-				listener.onSendMessage(RoboPadConstants.DOWN_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.BACKWARD));
 				//	    			Log.e(LOG_TAG, "down command send");
 				break;
 
 			case R.id.left_button:
-				listener.onSendMessage(RoboPadConstants.LEFT_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.LEFT));
 				//	    			Log.e(LOG_TAG, "left command send");
 				break;
 
 			case R.id.right_button:
-				listener.onSendMessage(RoboPadConstants.RIGHT_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.RIGHT));
 				//	    			Log.e(LOG_TAG, "right command send");
 				break;
 
@@ -181,7 +184,7 @@ public class EvolutionFragment extends RobotFragment {
                         stateChanged(robotState.MANUAL_CONTROL);
                     }
 
-                    listener.onSendMessage(RoboPadConstants.STOP_COMMAND);
+                    listener.onSendCommand(RobotCommand.of(RobotCommand.STOP));
                     break;
 
                 case R.id.bot_icon:
@@ -263,7 +266,7 @@ public class EvolutionFragment extends RobotFragment {
                 lightAvoiderButton.setSelected(false);
                 obstaclesAvoiderButton.setSelected(false);
                 state = robotState.MANUAL_CONTROL;
-                listener.onSendMessage(RoboPadConstants.MANUAL_CONTROL_MODE_COMMAND);
+                listener.onSendCommand(RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_MANUAL_CONTROL));
                 break;
 
             case LINE_FOLLOWER:
@@ -271,7 +274,7 @@ public class EvolutionFragment extends RobotFragment {
                 lightAvoiderButton.setSelected(false);
                 obstaclesAvoiderButton.setSelected(false);
                 state = robotState.LINE_FOLLOWER;
-                listener.onSendMessage(RoboPadConstants.LINE_FOLLOWER_MODE_COMMAND);
+                listener.onSendCommand(RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_LINE_FOLLOWER));
                 break;
 
             case LIGHT_AVOIDER:
@@ -279,7 +282,7 @@ public class EvolutionFragment extends RobotFragment {
                 lightAvoiderButton.setSelected(true);
                 obstaclesAvoiderButton.setSelected(false);
                 state = robotState.LIGHT_AVOIDER;
-                listener.onSendMessage(RoboPadConstants.LIGHT_AVOIDER_MODE_COMMAND);
+                listener.onSendCommand(RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_LIGHT_AVOIDER));
                 break;
 
             case OBSTACLES_AVOIDER:
@@ -287,7 +290,7 @@ public class EvolutionFragment extends RobotFragment {
                 lightAvoiderButton.setSelected(false);
                 obstaclesAvoiderButton.setSelected(true);
                 state = robotState.OBSTACLES_AVOIDER;
-                listener.onSendMessage(RoboPadConstants.OBSTACLES_FOLLOWER_MODE_COMMAND);
+                listener.onSendCommand(RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_OBSTACLES_AVOIDER));
                 break;
 
         }
@@ -316,7 +319,7 @@ public class EvolutionFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.pin_explanation_tip_text),
-                    getActivity().findViewById(R.id.bot_icon)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    botIcon).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.PIN;
 
@@ -324,7 +327,7 @@ public class EvolutionFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.bluetooth_tip_text),
-                    getActivity().findViewById(R.id.connect_button)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    connectButton).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.BLUETOOTH;
 
@@ -332,7 +335,7 @@ public class EvolutionFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.pad_tip_text),
-                    getActivity().findViewById(R.id.right_button)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    rightButton).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.PAD;
 
@@ -340,7 +343,7 @@ public class EvolutionFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.line_follower_text),
-                    getActivity().findViewById(R.id.line_follower)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    lineFollowerButton).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.LINE_FOLLOWER;
 
@@ -348,7 +351,7 @@ public class EvolutionFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.light_avoider_text),
-                    getActivity().findViewById(R.id.light_avoider)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    lightAvoiderButton).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.LIGHT_AVOIDER;
 
@@ -356,7 +359,7 @@ public class EvolutionFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.obstacles_avoider_text),
-                    getActivity().findViewById(R.id.obstacles_avoider)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    obstaclesAvoiderButton).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.OBSTACLES_AVOIDER;
 
@@ -379,15 +382,15 @@ public class EvolutionFragment extends RobotFragment {
 
     @Override
     public void onBluetoothConnected() {
-        ((ImageView) getActivity().findViewById(R.id.bot_icon)).setImageResource(R.drawable.bot_evolution_connected);
-        ((ImageView) getActivity().findViewById(R.id.robot_bg)).setImageResource(R.drawable.ic_evolution_bg_on);
+        botIcon.setImageResource(R.drawable.bot_evolution_connected);
+        robotBg.setImageResource(R.drawable.ic_evolution_bg_on);
 
         stateChanged(robotState.MANUAL_CONTROL);
     }
 
     @Override
     public void onBluetoothDisconnected() {
-        ((ImageView) getActivity().findViewById(R.id.bot_icon)).setImageResource(R.drawable.bot_evolution_disconnected);
-        ((ImageView) getActivity().findViewById(R.id.robot_bg)).setImageResource(R.drawable.ic_evolution_bg_off);
+        botIcon.setImageResource(R.drawable.bot_evolution_disconnected);
+        robotBg.setImageResource(R.drawable.ic_evolution_bg_off);
     }
 }
@@ -23,7 +23,9 @@
 
 package com.bq.robotic.robopad.fragments;
 
+import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -31,9 +33,11 @@ import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ImageButton;
-import android.widget.RelativeLayout;
+import android.widget.Toast;
 
 import com.bq.robotic.robopad.R;
+import com.bq.robotic.robopad.connection.Choreography;
+import com.bq.robotic.robopad.connection.RobotCommand;
 import com.bq.robotic.robopad.utils.RoboPadConstants;
 import com.bq.robotic.robopad.utils.TipsFactory;
 import com.nhaarman.supertooltips.ToolTipView;
@@ -57,6 +61,11 @@ public class GenericRobotFragment extends RobotFragment {
 	// Debugging
 	private static final String LOG_TAG = "GenericRobotFragment";
 
+    // Macros of the command buttons, null for the buttons without macro, and the error of the
+    // invalid ones
+    private final Choreography[] macros = new Choreography[RoboPadConstants.MACRO_COUNT];
+    private final String[] macroErrors = new String[RoboPadConstants.MACRO_COUNT];
+
 
 	@Override
 	public View onCreateView(LayoutInflater inflater,
@@ -72,6 +81,58 @@ public class GenericRobotFragment extends RobotFragment {
 	}
 
 
+	@Override
+	public void onResume() {
+		super.onResume();
+		loadMacros();
+	}
+
+
+	/**
+	 * Compile the macros of the command buttons stored in the settings, once each time the
+	 * fragment is shown, so the buttons play them without parsing them again
+	 */
+	private void loadMacros() {
+		SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(getActivity());
+
+		for (int i = 0; i < RoboPadConstants.MACRO_COUNT; i++) {
+			String text = preferences.getString(RoboPadConstants.MACRO_KEY_PREFIX + (i + 1), "");
+			macros[i] = null;
+			macroErrors[i] = null;
+
+			if (text.trim().length() == 0) {
+				continue;
+			}
+
+			try {
+				macros[i] = Choreography.compile(text);
+			} catch (IllegalArgumentException e) {
+				Log.e(LOG_TAG, "Invalid macro of the button " + (i + 1) + ": " + e.getMessage());
+				macroErrors[i] = e.getMessage();
+			}
+		}
+	}
+
+
+	/**
+	 * Play the macro of the command button, or send its user command to the robot if it has none
+	 *
+	 * @param button the number of the button, from 1 to 6
+	 */
+	private void onCommandButton(int button) {
+		if (macroErrors[button - 1] != null) {
+			Toast.makeText(getActivity(), getString(R.string.invalid_macro, button,
+					macroErrors[button - 1]), Toast.LENGTH_LONG).show();
+
+		} else if (macros[button - 1] != null) {
+			listener.onPlayChoreography(macros[button - 1]);
+
+		} else {
+			listener.onSendCommand(RobotCommand.of(RobotCommand.USER_COMMAND, button));
+		}
+	}
+
+
 	/**
 	 * Set the listeners to the views that need them. It must be done here in the fragment in order
 	 * to get the callback here and not in the FragmentActivity, that would be a mess with all the 
@@ -97,6 +158,8 @@ public class GenericRobotFragment extends RobotFragment {
 		ImageButton rightButton = (ImageButton) containerLayout.findViewById(R.id.right_button);
 		rightButton.setOnTouchListener(buttonOnTouchListener);
 
+		setUpJoystick(containerLayout);
+
 		Button commandButton1 = (Button) containerLayout.findViewById(R.id.command_button_1);
 		commandButton1.setOnClickListener(onButtonClick);
 
@@ -133,22 +196,22 @@ public class GenericRobotFragment extends RobotFragment {
 		switch(viewId) { 	
 
 			case R.id.up_button:
-				listener.onSendMessage(RoboPadConstants.UP_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.FORWARD));
 				//	    			Log.e(LOG_TAG, "up command send");
 				break;
 	
 			case R.id.down_button:
-				listener.onSendMessage(RoboPadConstants.DOWN_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.BACKWARD));
 				//	    			Log.e(LOG_TAG, "down command send");
 				break;
 	
 			case R.id.left_button:
-				listener.onSendMessage(RoboPadConstants.LEFT_COMMAND);	
+				listener.onSendCommand(RobotCommand.of(RobotCommand.LEFT));	
 				//	    			Log.e(LOG_TAG, "left command send");
 				break;
 	
 			case R.id.right_button:
-				listener.onSendMessage(RoboPadConstants.RIGHT_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.RIGHT));
 				//	    			Log.e(LOG_TAG, "right command send");
 				break;
 
@@ -177,31 +240,31 @@ public class GenericRobotFragment extends RobotFragment {
 			switch(v.getId()) { 
 
 				case R.id.stop_button:
-					listener.onSendMessage(RoboPadConstants.STOP_COMMAND);    				
+					listener.onSendCommand(RobotCommand.of(RobotCommand.STOP));    				
 					break;
 	
 				case R.id.command_button_1: 
-					listener.onSendMessage(RoboPadConstants.COMMAND_1); 
+					onCommandButton(1);
 					break;
 	
 				case R.id.command_button_2: 
-					listener.onSendMessage(RoboPadConstants.COMMAND_2); 
+					onCommandButton(2);
 					break;
 	
 				case R.id.command_button_3: 
-					listener.onSendMessage(RoboPadConstants.COMMAND_3); 
+					onCommandButton(3);
 					break;
 	
 				case R.id.command_button_4: 
-					listener.onSendMessage(RoboPadConstants.COMMAND_4); 
+					onCommandButton(4);
 					break;
 	
 				case R.id.command_button_5: 
-					listener.onSendMessage(RoboPadConstants.COMMAND_5); 
+					onCommandButton(5);
 					break;
 	
 				case R.id.command_button_6: 
-					listener.onSendMessage(RoboPadConstants.COMMAND_6); 
+					onCommandButton(6);
 					break;
 
 			}
@@ -228,7 +291,7 @@ public class GenericRobotFragment extends RobotFragment {
             setIsLastTipToShow(false);
             // Pin explanation tip
             pin_explanation_tip = mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.pin_explanation_tip_text),
-                    getActivity().findViewById(R.id.bot_icon));
+                    botIcon);
 
             currentTipView = pin_explanation_tip;
             currentTipView.setOnToolTipViewClickedListener(onToolTipClicked);
@@ -238,7 +301,7 @@ public class GenericRobotFragment extends RobotFragment {
             pin_explanation_tip = null;
 
             bluetooth_tip = mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.bluetooth_tip_text),
-                    getActivity().findViewById(R.id.connect_button));
+                    connectButton);
 
             currentTipView = bluetooth_tip;
             currentTipView.setOnToolTipViewClickedListener(onToolTipClicked);
@@ -248,7 +311,7 @@ public class GenericRobotFragment extends RobotFragment {
             bluetooth_tip = null;
 
             pad_tip = mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.pad_tip_text),
-                    getActivity().findViewById(R.id.right_button));
+                    rightButton);
 
             currentTipView = pad_tip;
             currentTipView.setOnToolTipViewClickedListener(onToolTipClicked);
@@ -260,7 +323,7 @@ public class GenericRobotFragment extends RobotFragment {
             currentTipView = null;
             setIsLastTipToShow(true);
             mToolTipFrameLayout.setOnClickListener(null);
-            ((RelativeLayout) getActivity().findViewById(R.id.entire_pollywog_layout)).removeView(mToolTipFrameLayout);
+            entireLayout.removeView(mToolTipFrameLayout);
         }
 
     }
@@ -32,10 +32,10 @@ import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.ImageButton;
-import android.widget.ImageView;
 import android.widget.PopupWindow;
 
 import com.bq.robotic.robopad.R;
+import com.bq.robotic.robopad.connection.RobotCommand;
 import com.bq.robotic.robopad.utils.RoboPadConstants;
 import com.bq.robotic.robopad.utils.RoboPadConstants.robotState;
 import com.bq.robotic.robopad.utils.RobotConnectionsPopupWindow;
@@ -102,6 +102,8 @@ public class PollywogFragment extends RobotFragment {
 		ImageButton rightButton = (ImageButton) containerLayout.findViewById(R.id.right_button);
 		rightButton.setOnTouchListener(buttonOnTouchListener);
 
+		setUpJoystick(containerLayout);
+
         pinExplanationButton = (ImageButton) containerLayout.findViewById(R.id.bot_icon);
         pinExplanationButton.setOnClickListener(onButtonClick);
 
@@ -127,22 +129,22 @@ public class PollywogFragment extends RobotFragment {
 		switch(viewId) { 	
 
 			case R.id.up_button:
-				listener.onSendMessage(RoboPadConstants.UP_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.FORWARD));
 				//	    			Log.e(LOG_TAG, "up command send");
 				break;
 	
 			case R.id.down_button:
-				listener.onSendMessage(RoboPadConstants.DOWN_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.BACKWARD));
 				//	    			Log.e(LOG_TAG, "down command send");
 				break;
 	
 			case R.id.left_button:
-				listener.onSendMessage(RoboPadConstants.LEFT_COMMAND);	
+				listener.onSendCommand(RobotCommand.of(RobotCommand.LEFT));	
 				//	    			Log.e(LOG_TAG, "left command send");
 				break;
 	
 			case R.id.right_button:
-				listener.onSendMessage(RoboPadConstants.RIGHT_COMMAND);
+				listener.onSendCommand(RobotCommand.of(RobotCommand.RIGHT));
 				//	    			Log.e(LOG_TAG, "right command send");
 				break;
 
@@ -171,7 +173,7 @@ public class PollywogFragment extends RobotFragment {
                         stateChanged(RoboPadConstants.robotState.MANUAL_CONTROL);
                     }
 
-                    listener.onSendMessage(RoboPadConstants.STOP_COMMAND);
+                    listener.onSendCommand(RobotCommand.of(RobotCommand.STOP));
                     break;
 
                 case R.id.bot_icon:
@@ -220,13 +222,13 @@ public class PollywogFragment extends RobotFragment {
             case MANUAL_CONTROL:
                 lineFollowerButton.setSelected(false);
                 state = robotState.MANUAL_CONTROL;
-                listener.onSendMessage(RoboPadConstants.MANUAL_CONTROL_MODE_COMMAND);
+                listener.onSendCommand(RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_MANUAL_CONTROL));
                 break;
 
             case LINE_FOLLOWER:
                 lineFollowerButton.setSelected(true);
                 state = robotState.LINE_FOLLOWER;
-                listener.onSendMessage(RoboPadConstants.LINE_FOLLOWER_MODE_COMMAND);
+                listener.onSendCommand(RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_LINE_FOLLOWER));
                 break;
 
         }
@@ -255,7 +257,7 @@ public class PollywogFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.pin_explanation_tip_text),
-                    getActivity().findViewById(R.id.bot_icon)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    botIcon).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.PIN;
 
@@ -263,7 +265,7 @@ public class PollywogFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.bluetooth_tip_text),
-                    getActivity().findViewById(R.id.connect_button)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    connectButton).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.BLUETOOTH;
 
@@ -271,7 +273,7 @@ public class PollywogFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.pad_tip_text),
-                    getActivity().findViewById(R.id.right_button)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    rightButton).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.PAD;
 
@@ -279,7 +281,7 @@ public class PollywogFragment extends RobotFragment {
             mToolTipFrameLayout.removeAllViews();
 
             mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.line_follower_text),
-                    getActivity().findViewById(R.id.line_follower)).setOnToolTipViewClickedListener(onToolTipClicked);
+                    lineFollowerButton).setOnToolTipViewClickedListener(onToolTipClicked);
 
             currentTip = tips.LINE_FOLLOWER;
 
@@ -302,15 +304,15 @@ public class PollywogFragment extends RobotFragment {
 
     @Override
     public void onBluetoothConnected() {
-        ((ImageView) getActivity().findViewById(R.id.bot_icon)).setImageResource(R.drawable.ic_bot_pollywog_connected);
-        ((ImageView) getActivity().findViewById(R.id.robot_bg)).setImageResource(R.drawable.pollywog_bg_on);
+        botIcon.setImageResource(R.drawable.ic_bot_pollywog_connected);
+        robotBg.setImageResource(R.drawable.pollywog_bg_on);
 
         stateChanged(robotState.MANUAL_CONTROL);
     }
 
     @Override
     public void onBluetoothDisconnected() {
-        ((ImageView) getActivity().findViewById(R.id.bot_icon)).setImageResource(R.drawable.ic_bot_pollywog_disconnected);
-        ((ImageView) getActivity().findViewById(R.id.robot_bg)).setImageResource(R.drawable.pollywog_bg_off);
+        botIcon.setImageResource(R.drawable.ic_bot_pollywog_disconnected);
+        robotBg.setImageResource(R.drawable.pollywog_bg_off);
     }
 }
@@ -31,11 +31,9 @@ import android.view.View.OnClickListener;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.ImageButton;
-import android.widget.RelativeLayout;
-import android.widget.SeekBar;
-import android.widget.SeekBar.OnSeekBarChangeListener;
 
 import com.bq.robotic.robopad.R;
+import com.bq.robotic.robopad.connection.RobotCommand;
 import com.bq.robotic.robopad.utils.RoboPadConstants;
 import com.bq.robotic.robopad.utils.SliderView;
 import com.bq.robotic.robopad.utils.TipsFactory;
@@ -119,11 +117,11 @@ public class RhinoFragment extends RobotFragment {
 		chargeButton.setOnClickListener(onButtonClick);
 
 		mLeftSlider = (SliderView) containerLayout.findViewById(R.id.left_slider);
-		mLeftSlider.setOnSeekBarChangeListener(sliderListener);
+		mLeftSlider.setOnSliderChangeListener(sliderListener);
 		mLeftSlider.setEnabled(false);
 
 		mRightSlider = (SliderView) containerLayout.findViewById(R.id.right_slider);
-		mRightSlider.setOnSeekBarChangeListener(sliderListener);
+		mRightSlider.setOnSliderChangeListener(sliderListener);
 		mRightSlider.setEnabled(false);
 
 	}
@@ -163,13 +161,13 @@ public class RhinoFragment extends RobotFragment {
 			switch(v.getId()) { 
 
 				case R.id.stop_button:
-					listener.onSendMessage(RoboPadConstants.STOP_COMMAND);
+					listener.onSendCommand(RobotCommand.of(RobotCommand.STOP));
 					mLeftSlider.setProgress(1);
 					mRightSlider.setProgress(1);
 					break;
 				
 				case R.id.charge_button:
-					listener.onSendMessage(RoboPadConstants.CHARGE_COMMAND);
+					listener.onSendCommand(RobotCommand.of(RobotCommand.CHARGE));
 					mLeftSlider.setProgress(1);
 					mRightSlider.setProgress(1);
 					break;
@@ -181,52 +179,40 @@ public class RhinoFragment extends RobotFragment {
 	/**
 	 * Listener for the sliders
 	 */
-	protected OnSeekBarChangeListener sliderListener = new OnSeekBarChangeListener() {
+	protected SliderView.OnSliderChangeListener sliderListener = new SliderView.OnSliderChangeListener() {
 
 		@Override
-		public void onProgressChanged(SeekBar seekBar, int progress,
+		public void onProgressChanged(SliderView slider, int progress,
 				boolean fromUser) {
 
 			if(listener != null && listener.onCheckIsConnectedWithoutToast()) {
 				
-				String valueToSend = null;
+				int valueToSend;
 				if(progress == 1) {
-					valueToSend = "S";
+					valueToSend = RobotCommand.TRACK_STOP;
 				} else if (progress == 2) {
-					valueToSend = "U";
+					valueToSend = RobotCommand.TRACK_UP;
 				} else if (progress == 0) {
-					valueToSend = "D";
-				}
-				
-				if(valueToSend == null) {
+					valueToSend = RobotCommand.TRACK_DOWN;
+				} else {
 					Log.e(LOG_TAG, "progress was not a valid number: " + progress);
 					return;
 				}
-				
-				switch (seekBar.getId()) {
+
+				switch (slider.getId()) {
 				
 					case R.id.left_slider:					
-						listener.onSendMessage(RoboPadConstants.LEFT_COMMAND + valueToSend);
+						listener.onSendCommand(RobotCommand.of(RobotCommand.LEFT_TRACK, valueToSend));
 						break;
 	
 					case R.id.right_slider:
-						listener.onSendMessage(RoboPadConstants.RIGHT_COMMAND + valueToSend);
+						listener.onSendCommand(RobotCommand.of(RobotCommand.RIGHT_TRACK, valueToSend));
 						break;
 				}
 			}
 				
 		}
 
-		@Override
-		public void onStartTrackingTouch(SeekBar seekBar) {
-			// nothing to be done
-		}
-
-		@Override
-		public void onStopTrackingTouch(SeekBar seekBar) {
-			// nothing to be done
-		}
-
 	};
 
 
@@ -259,7 +245,7 @@ public class RhinoFragment extends RobotFragment {
             setIsLastTipToShow(false);
             // Pin explanation tip
             pin_explanation_tip = mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.pin_explanation_tip_text),
-                    getActivity().findViewById(R.id.bot_icon));
+                    botIcon);
 
             currentTipView = pin_explanation_tip;
             currentTipView.setOnToolTipViewClickedListener(onToolTipClicked);
@@ -269,7 +255,7 @@ public class RhinoFragment extends RobotFragment {
             pin_explanation_tip = null;
 
             bluetooth_tip = mToolTipFrameLayout.showToolTipForView(TipsFactory.getTip(getActivity(), R.string.bluetooth_tip_text),
-                    getActivity().findViewById(R.id.connect_button));
+                    connectButton);
 
             currentTipView = bluetooth_tip;
             currentTipView.setOnToolTipViewClickedListener(onToolTipClicked);
@@ -281,7 +267,7 @@ public class RhinoFragment extends RobotFragment {
             currentTipView = null;
             setIsLastTipToShow(true);
             mToolTipFrameLayout.setOnClickListener(null);
-            ((RelativeLayout) getActivity().findViewById(R.id.entire_pollywog_layout)).removeView(mToolTipFrameLayout);
+            entireLayout.removeView(mToolTipFrameLayout);
         }
 
     }
@@ -26,17 +26,23 @@ package com.bq.robotic.robopad.fragments;
 import android.app.Activity;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
 import android.support.v4.app.Fragment;
-import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.view.View.OnTouchListener;
+import android.widget.ImageView;
+import android.widget.RelativeLayout;
 
 import com.bq.robotic.robopad.R;
 import com.bq.robotic.robopad.listeners.RobotListener;
 import com.bq.robotic.robopad.listeners.TipsManagerListener;
+import com.bq.robotic.robopad.utils.JoystickView;
+import com.bq.robotic.robopad.utils.MovementControl;
 import com.bq.robotic.robopad.utils.RoboPadConstants;
 import com.bq.robotic.robopad.utils.RoboPadConstants.robotState;
+import com.bq.robotic.robopad.utils.TaskScheduler;
 import com.bq.robotic.robopad.utils.TipsManager;
 import com.nhaarman.supertooltips.ToolTipRelativeLayout;
 
@@ -53,10 +59,6 @@ public abstract class RobotFragment extends Fragment implements TipsManagerListe
 	// Debugging
 	private static final String LOG_TAG = "RobotFragment";
 
-	protected boolean mIsClick;
-	protected boolean mIsConnected = false;
-    private boolean lastStateWasManualMode = true;
-
 	protected RobotListener listener;
 
     // Tips
@@ -65,6 +67,48 @@ public abstract class RobotFragment extends Fragment implements TipsManagerListe
 
     protected robotState state = RoboPadConstants.robotState.MANUAL_CONTROL;
 
+    // Views used by the callbacks of the connection and of the tips, resolved once for each
+    // inflation of the layout, so those callbacks never walk the view tree. Null when the layout
+    // of the robot doesn't have them
+    protected ImageView botIcon;
+    protected ImageView robotBg;
+    protected View rightButton;
+    protected View connectButton;
+    protected RelativeLayout entireLayout;
+
+    // Shared by all the robot fragments for the actions repeated while a button is held, so
+    // they post their preallocated runnables instead of creating a handler each
+    protected static final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    protected static final TaskScheduler uiScheduler = new TaskScheduler() {
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            uiHandler.postDelayed(task, delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            uiHandler.removeCallbacks(task);
+        }
+    };
+
+    // The movement buttons of the pad and the joystick
+    protected final MovementControl movementControl = new MovementControl(new MovementControl.Robot() {
+
+        @Override
+        public void onManualControl() {
+            if(state != RoboPadConstants.robotState.MANUAL_CONTROL) {
+                stateChanged(RoboPadConstants.robotState.MANUAL_CONTROL);
+            }
+        }
+
+        @Override
+        public void onMovement(int buttonId) {
+            controlButtonActionDown(buttonId);
+        }
+    }, uiScheduler);
+
 	/**
 	 * Set the listeners to the UI views
 	 * @param containerLayout
@@ -97,8 +141,8 @@ public abstract class RobotFragment extends Fragment implements TipsManagerListe
 	 * Callback method called from the activity when the Bluetooth change its status to disconnected
 	 */
 	public void onBluetoothDisconnected() {}
-	
-	
+
+
 	/**
 	 * Set the fragmentActivity listener. Right now it is not necessary because the 
 	 * fragment activity that contains the fragments is the one that implements the listener
@@ -109,6 +153,7 @@ public abstract class RobotFragment extends Fragment implements TipsManagerListe
 	 */
 	public void setRobotListener(RobotListener listener) {
 		this.listener = listener;
+		movementControl.setRobotListener(listener);
 	}
 
 
@@ -120,6 +165,7 @@ public abstract class RobotFragment extends Fragment implements TipsManagerListe
 		// implements that listener
 		if (activity instanceof RobotListener) {
 			this.listener = (RobotListener) activity;
+			movementControl.setRobotListener(this.listener);
 		} else {
 			throw new ClassCastException(activity.toString()
 					+ " must implement robotListener");
@@ -127,6 +173,32 @@ public abstract class RobotFragment extends Fragment implements TipsManagerListe
 	}
 
 
+    /**
+     * The shared handler outlives the fragment, so the stop sent again must not run after it
+     */
+    @Override
+    public void onDestroy() {
+        movementControl.cancel();
+        super.onDestroy();
+    }
+
+
+    /**
+     * Resolve the views shared by the layouts of the robots, once for each inflation
+     * @param view the layout returned by onCreateView()
+     * @param savedInstanceState
+     */
+    @Override
+    public void onViewCreated(View view, Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+
+        botIcon = (ImageView) view.findViewById(R.id.bot_icon);
+        robotBg = (ImageView) view.findViewById(R.id.robot_bg);
+        rightButton = view.findViewById(R.id.right_button);
+        entireLayout = (RelativeLayout) view.findViewById(R.id.entire_pollywog_layout);
+    }
+
+
     /**
      * By default checks the preferences for the show tips. The onClickListener on mToolTipFrameLayout
      * is for show the tips until isLastTipToShow is set to true.
@@ -140,6 +212,7 @@ public abstract class RobotFragment extends Fragment implements TipsManagerListe
         setRetainInstance(true);
 
         mToolTipFrameLayout = (ToolTipRelativeLayout) getActivity().findViewById(R.id.activity_main_tooltipframelayout);
+        connectButton = getActivity().findViewById(R.id.connect_button);
 
         tipsManager = new TipsManager(getActivity(), mToolTipFrameLayout, this);
         tipsManager.initTips();
@@ -148,128 +221,84 @@ public abstract class RobotFragment extends Fragment implements TipsManagerListe
 
 
 	/**
-	 * Listener for the touch events. When action_down, the user is pressing the button
-	 * so we send the message to the arduino, and when action_up it is send a message to the arduino
-	 * in order to stop it.
+	 * Show the analog joystick instead of the buttons of the pad if it is chosen in the settings.
+	 * Only for the robots that include the pad layout and move with two wheels.
+	 * @param containerLayout The view used as the main container for the fragment
 	 */
-	protected OnTouchListener buttonOnTouchListener = new OnTouchListener() {
+	protected void setUpJoystick(View containerLayout) {
 
-		@Override
-		public boolean onTouch(View v, MotionEvent event) {
+		if (!PreferenceManager.getDefaultSharedPreferences(getActivity())
+				.getBoolean(RoboPadConstants.ANALOG_JOYSTICK_KEY, false)) {
+			return;
+		}
 
-			final View view = v;
+		// Invisible instead of gone, so the pad keeps its size and the joystick covers it
+		containerLayout.findViewById(R.id.up_button).setVisibility(View.INVISIBLE);
+		containerLayout.findViewById(R.id.down_button).setVisibility(View.INVISIBLE);
+		containerLayout.findViewById(R.id.left_button).setVisibility(View.INVISIBLE);
+		containerLayout.findViewById(R.id.right_button).setVisibility(View.INVISIBLE);
 
-			switch (event.getAction()) {
+		JoystickView joystick = (JoystickView) containerLayout.findViewById(R.id.joystick);
+		joystick.setVisibility(View.VISIBLE);
+		joystick.setOnDriveListener(joystickListener);
+	}
 
-				case MotionEvent.ACTION_DOWN:
 
-                    if(state != RoboPadConstants.robotState.MANUAL_CONTROL) {
-                        stateChanged(RoboPadConstants.robotState.MANUAL_CONTROL);
-                        lastStateWasManualMode = false;
+	/**
+	 * The same than the buttons of the pad: the manual control mode and the check of the
+	 * connection when the finger touches the joystick, and a command each time the speeds of the
+	 * wheels change, ending with a stop when it is lifted, sent again without heartbeats as for
+	 * the buttons of the pad. The stop of the centre while it is held is only a drive change.
+	 * Done by the {@link MovementControl}.
+	 */
+	protected JoystickView.OnDriveListener joystickListener = new JoystickView.OnDriveListener() {
 
-                    } else {
-                        lastStateWasManualMode = true;
-                    }
-	
-					if(listener != null && !listener.onCheckIsConnected()) {
-						mIsConnected = false;
-						break;
-					} else {
-						mIsConnected = true;
-					}
-
-                    if(!lastStateWasManualMode) {
-                        new Handler().postDelayed(new Runnable() {
-                            @Override
-                            public void run() {
-                                initSendActionThread(view.getId());
-                            }
-                        }, 100);
-
-                    } else {
-                        initSendActionThread(view.getId());
-                    }
-	
-					break;
-	
-				case MotionEvent.ACTION_UP:
-				case MotionEvent.ACTION_CANCEL:
-	
-					if(!mIsConnected) {
-						break;
-					}
-
-                    if(!lastStateWasManualMode) {
-                        new Handler().postDelayed(new Runnable() {
-                            @Override
-                            public void run() {
-                                mIsClick = true;
-                                if (listener != null) {
-                                    listener.onSendMessage(RoboPadConstants.STOP_COMMAND);
-                                }
-                            }
-                        }, 100);
-
-                    } else {
-                        mIsClick = true;
-                        if (listener != null) {
-                            listener.onSendMessage(RoboPadConstants.STOP_COMMAND);
-                        }
-                    }
-	
-					break;
+		@Override
+		public void onJoystickPressed() {
+			movementControl.onJoystickPressed();
+		}
 
-			}		
+		@Override
+		public void onDriveChanged(long command) {
+			movementControl.onDriveChanged(command);
+		}
 
-			return false;
+		@Override
+		public void onJoystickReleased() {
+			movementControl.onJoystickReleased();
 		}
 
 	};
 
 
-    private void initSendActionThread(final int actionId) {
-        mIsClick = false;
-        Thread sendActionThread = createSendActionThread(actionId);
-        sendActionThread.start();
-    }
-
-
 	/**
-	 * Thread to send the command but waits and send the stop command with a 130 delay
-	 * in case it was only a click and the arduino app didn't process the stop command 
-	 * because of itself delays
-	 * 
-	 * @param actionId the id of the view touched
-	 * @return Thread The thread that send the commands when pressed the corresponding buttons
+	 * Listener for the touch events. When action_down, the user is pressing the button
+	 * so we send the message to the arduino, and when action_up it is send a message to the arduino
+	 * in order to stop it. It runs on every touch, so it must not create any object: the
+	 * {@link MovementControl} sends the commands as longs and the command writer queues them
+	 * without allocating.
 	 */
-	private Thread createSendActionThread(final int actionId) {
-
-		Thread sendActionThread = new Thread() {
-
-			@Override
-			public void run() {
-				try {
+	protected OnTouchListener buttonOnTouchListener = new OnTouchListener() {
 
-					if(!mIsClick) {
-						controlButtonActionDown(actionId);
-					}
+		@Override
+		public boolean onTouch(View v, MotionEvent event) {
 
-					sleep(RoboPadConstants.CLICK_SLEEP_TIME);
+			switch (event.getAction()) {
 
-					if(mIsClick && listener != null) {
-						Log.d(LOG_TAG, "stop command in thread send");
-						listener.onSendMessage(RoboPadConstants.STOP_COMMAND);
-					}
+				case MotionEvent.ACTION_DOWN:
+					movementControl.onButtonDown(v.getId());
+					break;
 
-				} catch (InterruptedException e) {
-					Log.e(LOG_TAG, "error in sendActionThread: )" + e);
-				}
+				case MotionEvent.ACTION_UP:
+				case MotionEvent.ACTION_CANCEL:
+					movementControl.onButtonUp();
+					break;
 
 			}
 
-		};
+			return false;
+		}
 
-		return sendActionThread;
-	}
+	};
 
 }
@@ -23,6 +23,8 @@
 
 package com.bq.robotic.robopad.listeners;
 
+import com.bq.robotic.robopad.connection.Choreography;
+
 /**
  * Listener for robot fragments to communicate with the fragment activity that manage the bluetooth 
  * connection.
@@ -48,14 +50,46 @@ public interface RobotListener {
 	 * @return true if is connected or false if not
 	 */
 	boolean onCheckIsConnectedWithoutToast();
+
+
+	/**
+	 * Callback from the RobotFragment for checking if the robot gets heartbeats while a movement
+	 * is held, so it stops by itself if the stop of the movement is lost. Only the binary frames
+	 * have them, and only if they are enabled in the settings.
+	 *
+	 * @return true if the command writer sends heartbeats or false if not
+	 */
+	boolean onCheckHasHeartbeats();
 	
 	
 	/**
-	 * Callback from the RobotFragment for sending a message to the Arduino through the bluetooth 
+	 * Callback from the RobotFragment for sending a command to the Arduino through the bluetooth 
 	 * connection. 
 	 * 
-	 * @param message to be send to the Arduino
+	 * @param command the {@link com.bq.robotic.robopad.connection.RobotCommand} to be send to 
+	 *                the Arduino
+	 */
+	void onSendCommand(long command);
+
+
+	/**
+	 * Callback from the RobotFragment for sending again a command that the user already sent,
+	 * as the stop of a click without heartbeats. The user didn't touch anything, so it doesn't
+	 * cancel the macro being played, and it isn't sent while one plays: the macro drives the
+	 * robot since.
+	 *
+	 * @param command the {@link com.bq.robotic.robopad.connection.RobotCommand} to be sent again
+	 */
+	void onResendCommand(long command);
+
+
+	/**
+	 * Callback from the RobotFragment for playing a macro of the user, whose commands are sent at
+	 * their times by the choreography player. It replaces the macro being played, and a command
+	 * sent with {@link #onSendCommand(long)} cancels it.
+	 *
+	 * @param choreography the {@link com.bq.robotic.robopad.connection.Choreography} to play
 	 */
-	void onSendMessage(String message);
+	void onPlayChoreography(Choreography choreography);
 	
 }
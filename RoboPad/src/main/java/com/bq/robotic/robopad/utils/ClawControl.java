@@ -0,0 +1,182 @@
+package com.bq.robotic.robopad.utils;
+
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.listeners.RobotListener;
+import com.bq.robotic.robopad.utils.RoboPadConstants.Claw_next_state;
+
+
+/**
+ * The claw of the Beetle, without the Android views so the benchmarks run the same code: the
+ * position of its servo, and the steps sent every {@link RoboPadConstants#CLICK_SLEEP_TIME}
+ * while a claw button is held, until it is released or the claw gets to its limit. The buttons
+ * that would move it past its limits are disabled.
+ *
+ * It runs on every step, so it doesn't create any object: the tasks of the two buttons are
+ * created once and posted again.
+ */
+
+public class ClawControl {
+
+    /**
+     * The claw buttons of the Beetle fragment, in the UI thread
+     */
+    public interface Buttons {
+
+        /**
+         * @param enabled whether the buttons that open the claw, by a step or fully, can be pressed
+         */
+        void setOpenEnabled(boolean enabled);
+
+        /**
+         * @param enabled whether the button that closes the claw by a step can be pressed
+         */
+        void setCloseEnabled(boolean enabled);
+    }
+
+    private final Buttons mButtons;
+    private final TaskScheduler mScheduler;
+    private RobotListener mListener;
+
+    private int mPosition = RoboPadConstants.INIT_CLAW_POS;
+    private boolean mButtonUp = true;
+
+    private final StepTask mOpenTask = new StepTask(Claw_next_state.OPEN_STEP);
+    private final StepTask mCloseTask = new StepTask(Claw_next_state.CLOSE_STEP);
+
+
+    public ClawControl(Buttons buttons, TaskScheduler scheduler) {
+        mButtons = buttons;
+        mScheduler = scheduler;
+    }
+
+
+    public void setRobotListener(RobotListener listener) {
+        mListener = listener;
+    }
+
+
+    /**
+     * @return current position of the servo of the claw
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+
+    /**
+     * The claw of a newly connected robot is at its initial position
+     */
+    public void reset() {
+        mPosition = RoboPadConstants.INIT_CLAW_POS;
+        mButtons.setOpenEnabled(true);
+        mButtons.setCloseEnabled(true);
+    }
+
+
+    /**
+     * Starts sending the steps of a claw button, the first one now
+     *
+     * @param step {@link Claw_next_state#OPEN_STEP} or {@link Claw_next_state#CLOSE_STEP}
+     */
+    public void press(Claw_next_state step) {
+        // A task still posted by a previous press would repeat the steps twice
+        mScheduler.removeCallbacks(mOpenTask);
+        mScheduler.removeCallbacks(mCloseTask);
+
+        mButtonUp = false;
+        if (step == Claw_next_state.OPEN_STEP) {
+            mOpenTask.run();
+        } else if (step == Claw_next_state.CLOSE_STEP) {
+            mCloseTask.run();
+        }
+    }
+
+
+    /**
+     * The claw button was released, the next step is not sent
+     */
+    public void release() {
+        mButtonUp = true;
+    }
+
+
+    /**
+     * Stops the steps now, the scheduler outlives the fragment
+     */
+    public void cancel() {
+        mButtonUp = true;
+        mScheduler.removeCallbacks(mOpenTask);
+        mScheduler.removeCallbacks(mCloseTask);
+    }
+
+
+    /**
+     * Get the next position for the claw of the beetle robot
+     *
+     * @param nextState The next state depending on the button that was pressed
+     * @return The position of the servo of the claws
+     */
+    public int next(Claw_next_state nextState) {
+
+        // Show buttons enabled or disabled if the claw gets to max or min position
+        if (mPosition == RoboPadConstants.MAX_OPEN_CLAW_POS && nextState == Claw_next_state.CLOSE_STEP) {
+            mButtons.setOpenEnabled(true);
+
+        } else if (mPosition == RoboPadConstants.MIN_CLOSE_CLAW_POS
+                && (nextState == Claw_next_state.OPEN_STEP || nextState == Claw_next_state.FULL_OPEN)) {
+            mButtons.setCloseEnabled(true);
+        }
+
+        if (nextState == Claw_next_state.OPEN_STEP) {
+            mPosition -= RoboPadConstants.CLAW_STEP;
+
+        } else if (nextState == Claw_next_state.CLOSE_STEP) {
+            mPosition += RoboPadConstants.CLAW_STEP;
+
+        } else if (nextState == Claw_next_state.FULL_OPEN) {
+            mPosition = RoboPadConstants.MAX_OPEN_CLAW_POS;
+        }
+
+        // Don't exceed the limits of the claw
+        if (mPosition <= RoboPadConstants.MAX_OPEN_CLAW_POS) {
+            mPosition = RoboPadConstants.MAX_OPEN_CLAW_POS;
+            mButtons.setOpenEnabled(false);
+            mButtonUp = true;
+
+        } else if (mPosition >= RoboPadConstants.MIN_CLOSE_CLAW_POS) {
+            mPosition = RoboPadConstants.MIN_CLOSE_CLAW_POS;
+            mButtons.setCloseEnabled(false);
+            mButtonUp = true;
+        }
+
+        return mPosition;
+    }
+
+
+    /**
+     * Sends a step of a claw button and posts itself again while the button is held
+     */
+    private class StepTask implements Runnable {
+
+        private final Claw_next_state mStep;
+
+        StepTask(Claw_next_state step) {
+            mStep = step;
+        }
+
+        @Override
+        public void run() {
+            if (mButtonUp) {
+                mScheduler.removeCallbacks(this);
+                return;
+            }
+
+            int position = next(mStep);
+            if (mListener != null) {
+                mListener.onSendCommand(RobotCommand.of(RobotCommand.CLAW, position));
+            }
+            mScheduler.postDelayed(this, RoboPadConstants.CLICK_SLEEP_TIME);
+        }
+    }
+
+}
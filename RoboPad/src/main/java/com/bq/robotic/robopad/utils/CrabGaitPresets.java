@@ -0,0 +1,96 @@
+package com.bq.robotic.robopad.utils;
+
+
+import com.bq.robotic.robopad.connection.RobotCommand;
+
+
+/**
+ * Gaits of the Crab robot, as {@link RobotCommand#GAIT} commands with the amplitudes, the period
+ * and the phase together. A preset reaches the robot in a single frame that its oscillators
+ * apply at once, and the fragment shows it in its controls from the same command, so the robot
+ * and the screen never disagree.
+ */
+
+public final class CrabGaitPresets {
+
+    /**
+     * Period of the oscillators in the movements of the firmware
+     */
+    public static final int NORMAL_PERIOD = 1500;
+
+    /**
+     * The values of the controls when the fragment is created, also sent by the reset button
+     */
+    public static final long DEFAULT = of(RoboPadConstants.DEFAULT_AMPLITUDE,
+            RoboPadConstants.DEFAULT_AMPLITUDE, RoboPadConstants.DEFAULT_PERIOD,
+            RoboPadConstants.DEFAULT_PHASE);
+
+    /**
+     * The gaits that the firmware applies for the movement commands
+     */
+    public static final long FORWARD = of(RoboPadConstants.MAX_AMPLITUDE,
+            RoboPadConstants.MAX_AMPLITUDE, NORMAL_PERIOD, RoboPadConstants.MIN_PHASE);
+    public static final long BACKWARD = of(RoboPadConstants.MAX_AMPLITUDE,
+            RoboPadConstants.MAX_AMPLITUDE, NORMAL_PERIOD, RoboPadConstants.MAX_PHASE);
+    public static final long LEFT = of(RoboPadConstants.MIN_AMPLITUDE,
+            RoboPadConstants.MAX_AMPLITUDE, NORMAL_PERIOD, RoboPadConstants.MIN_PHASE);
+    public static final long RIGHT = of(RoboPadConstants.MAX_AMPLITUDE,
+            RoboPadConstants.MIN_AMPLITUDE, NORMAL_PERIOD, RoboPadConstants.MIN_PHASE);
+
+    /**
+     * Forward with the longest and the shortest period of the controls
+     */
+    public static final long SLOW = of(RoboPadConstants.MAX_AMPLITUDE,
+            RoboPadConstants.MAX_AMPLITUDE, RoboPadConstants.MAX_PERIOD, RoboPadConstants.MIN_PHASE);
+    public static final long FAST = of(RoboPadConstants.MAX_AMPLITUDE,
+            RoboPadConstants.MAX_AMPLITUDE, RoboPadConstants.MIN_PERIOD, RoboPadConstants.MIN_PHASE);
+
+
+    private CrabGaitPresets() {
+        // Only static methods
+    }
+
+
+    /**
+     * A gait with the values limited to the ranges of the controls of the fragment
+     *
+     * @param leftAmplitude amplitude of the left legs, in degrees
+     * @param rightAmplitude amplitude of the right legs, in degrees
+     * @param period period of the oscillators, in milliseconds
+     * @param phase phase difference of the central legs, in degrees
+     * @return the {@link RobotCommand#GAIT} command
+     */
+    public static long of(int leftAmplitude, int rightAmplitude, int period, int phase) {
+        return RobotCommand.gait(
+                clamp(leftAmplitude, RoboPadConstants.MIN_AMPLITUDE, RoboPadConstants.MAX_AMPLITUDE),
+                clamp(rightAmplitude, RoboPadConstants.MIN_AMPLITUDE, RoboPadConstants.MAX_AMPLITUDE),
+                clamp(period, RoboPadConstants.MIN_PERIOD, RoboPadConstants.MAX_PERIOD),
+                clamp(phase, RoboPadConstants.MIN_PHASE, RoboPadConstants.MAX_PHASE));
+    }
+
+
+    public static int getLeftAmplitude(long gait) {
+        return RobotCommand.arg(gait, 0);
+    }
+
+
+    public static int getRightAmplitude(long gait) {
+        return RobotCommand.arg(gait, 1);
+    }
+
+
+    public static int getPeriod(long gait) {
+        return RobotCommand.arg(gait, 2);
+    }
+
+
+    public static int getPhase(long gait) {
+        return RobotCommand.arg(gait, 3);
+    }
+
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+}
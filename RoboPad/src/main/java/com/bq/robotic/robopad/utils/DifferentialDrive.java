@@ -0,0 +1,74 @@
+package com.bq.robotic.robopad.utils;
+
+import com.bq.robotic.robopad.connection.RobotCommand;
+
+
+/**
+ * Turns the position of the analog joystick into the speeds of the two wheels of the Pollywog,
+ * the Beetle, the Evolution and the generic robot. Up drives both wheels forwards, and the
+ * sides take speed from one wheel and give it to the other, so the robot curves, or spins on
+ * itself at the left and right ends.
+ *
+ * The speeds are rounded to steps of {@link #SPEED_STEP} percent, so the joystick only sends a
+ * command when the robot would really move in another way, instead of one for every pixel that
+ * the finger moves.
+ */
+
+public final class DifferentialDrive {
+
+    /**
+     * The commands of the joystick, in percent of the full speed
+     */
+    public static final int SPEED_STEP = 10;
+
+    /**
+     * Distance from the centre where the robot is still stopped, in fraction of the radius, so a
+     * finger resting on the knob doesn't move it
+     */
+    public static final float DEAD_ZONE = 0.15f;
+
+
+    private DifferentialDrive() {
+    }
+
+
+    /**
+     * @param x horizontal position of the knob, from -1 at the left to 1 at the right
+     * @param y vertical position of the knob, from -1 at the bottom to 1 at the top
+     * @return {@link RobotCommand#STOP} in the dead zone or when both speeds round to zero, or
+     * else {@link RobotCommand#DRIVE} with the rounded speeds
+     */
+    public static long commandOf(float x, float y) {
+        float distance = (float) Math.sqrt(x * x + y * y);
+
+        if (distance < DEAD_ZONE) {
+            return RobotCommand.of(RobotCommand.STOP);
+        }
+
+        // Outside of the circle, the knob is at its edge
+        if (distance > 1) {
+            x /= distance;
+            y /= distance;
+        }
+
+        float left = y + x;
+        float right = y - x;
+
+        // Neither wheel above its full speed, keeping the ratio between them
+        float scale = Math.max(1, Math.max(Math.abs(left), Math.abs(right)));
+        int leftSpeed = quantize(left / scale);
+        int rightSpeed = quantize(right / scale);
+
+        if (leftSpeed == 0 && rightSpeed == 0) {
+            return RobotCommand.of(RobotCommand.STOP);
+        }
+
+        return RobotCommand.drive(leftSpeed, rightSpeed);
+    }
+
+
+    private static int quantize(float speed) {
+        return Math.round(speed * RobotCommand.DRIVE_MAX_SPEED / SPEED_STEP) * SPEED_STEP;
+    }
+
+}
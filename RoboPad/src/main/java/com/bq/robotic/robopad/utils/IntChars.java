@@ -0,0 +1,46 @@
+package com.bq.robotic.robopad.utils;
+
+
+/**
+ * Writes ints in decimal into a char array of the caller, so the text views that show the values
+ * of the sliders are refreshed with TextView.setText(char[], int, int) without creating a String
+ * on every move.
+ */
+
+public final class IntChars {
+
+    /**
+     * Length of the longest int, Integer.MIN_VALUE with its sign
+     */
+    public static final int MAX_LENGTH = 11;
+
+
+    private IntChars() {
+    }
+
+
+    /**
+     * Write the value at the end of the buffer
+     *
+     * @param value the number to write
+     * @param buffer where it is written, of {@link #MAX_LENGTH} chars or more
+     * @return the position of the first char of the value, it ends at the end of the buffer
+     */
+    public static int format(int value, char[] buffer) {
+        int position = buffer.length;
+
+        // Negative, so Integer.MIN_VALUE doesn't overflow
+        int remaining = value < 0 ? value : -value;
+        do {
+            buffer[--position] = (char) ('0' - remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+
+        if (value < 0) {
+            buffer[--position] = '-';
+        }
+
+        return position;
+    }
+
+}
@@ -0,0 +1,179 @@
+package com.bq.robotic.robopad.utils;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.View;
+
+import com.bq.robotic.robopad.R;
+import com.bq.robotic.robopad.connection.RobotCommand;
+
+
+/**
+ * Analog joystick for the robots with two wheels, shown instead of the buttons of the pad when
+ * it is chosen in the settings. The position of the knob is turned into the speeds of the
+ * wheels by {@link DifferentialDrive}, and the listener only gets a command when the rounded
+ * speeds change. It runs on every move of the finger, so it must not create any object.
+ */
+
+public class JoystickView extends View {
+
+    /**
+     * Receives the commands of the joystick, in the UI thread
+     */
+    public interface OnDriveListener {
+
+        /**
+         * The finger touched the joystick, before any command
+         */
+        void onJoystickPressed();
+
+        /**
+         * @param command the new {@link RobotCommand#DRIVE}, or {@link RobotCommand#STOP} when the
+         *                knob passes through the centre while the finger is still on it
+         */
+        void onDriveChanged(long command);
+
+        /**
+         * The finger was lifted and the knob is back in the centre, the robot must stop
+         */
+        void onJoystickReleased();
+    }
+
+    private static final long STOP = RobotCommand.of(RobotCommand.STOP);
+
+    private final Paint mBasePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mKnobPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+    private OnDriveListener mListener;
+
+    private float mCenterX;
+    private float mCenterY;
+    private float mRadius;
+    private float mKnobRadius;
+
+    // Offset of the knob from the centre, in pixels
+    private float mKnobX;
+    private float mKnobY;
+
+    private long mCommand = STOP;
+
+
+    public JoystickView(Context context) {
+        super(context);
+        init();
+    }
+
+
+    public JoystickView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+
+    public JoystickView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        init();
+    }
+
+
+    private void init() {
+        mBasePaint.setColor(getResources().getColor(R.color.holo_green_light_transparent_2));
+        mKnobPaint.setColor(getResources().getColor(R.color.holo_green_light_transparent_1));
+    }
+
+
+    public void setOnDriveListener(OnDriveListener listener) {
+        mListener = listener;
+    }
+
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+
+        float size = Math.min(w - getPaddingLeft() - getPaddingRight(), h - getPaddingTop() - getPaddingBottom());
+        mCenterX = getPaddingLeft() + (w - getPaddingLeft() - getPaddingRight()) / 2f;
+        mCenterY = getPaddingTop() + (h - getPaddingTop() - getPaddingBottom()) / 2f;
+        mKnobRadius = size / 6;
+        mRadius = size / 2 - mKnobRadius;
+    }
+
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        canvas.drawCircle(mCenterX, mCenterY, mRadius + mKnobRadius, mBasePaint);
+        canvas.drawCircle(mCenterX + mKnobX, mCenterY + mKnobY, mKnobRadius, mKnobPaint);
+    }
+
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+
+        if (!isEnabled() || mRadius <= 0) {
+            return false;
+        }
+
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                if (mListener != null) {
+                    mListener.onJoystickPressed();
+                }
+                moveKnob(event.getX() - mCenterX, event.getY() - mCenterY);
+                break;
+
+            case MotionEvent.ACTION_MOVE:
+                moveKnob(event.getX() - mCenterX, event.getY() - mCenterY);
+                break;
+
+            case MotionEvent.ACTION_UP:
+            case MotionEvent.ACTION_CANCEL:
+                mKnobX = 0;
+                mKnobY = 0;
+                invalidate();
+
+                // The release is the stop, not a drive change
+                mCommand = STOP;
+                if (mListener != null) {
+                    mListener.onJoystickReleased();
+                }
+                break;
+        }
+
+        return true;
+    }
+
+
+    /**
+     * @param x offset of the finger from the centre, in pixels
+     * @param y offset of the finger from the centre, in pixels, positive downwards
+     */
+    private void moveKnob(float x, float y) {
+        float distance = (float) Math.sqrt(x * x + y * y);
+        if (distance > mRadius) {
+            x = x * mRadius / distance;
+            y = y * mRadius / distance;
+        }
+
+        mKnobX = x;
+        mKnobY = y;
+        invalidate();
+
+        setCommand(DifferentialDrive.commandOf(x / mRadius, -y / mRadius));
+    }
+
+
+    private void setCommand(long command) {
+        if (command == mCommand) {
+            return;
+        }
+
+        mCommand = command;
+        if (mListener != null) {
+            mListener.onDriveChanged(command);
+        }
+    }
+
+}
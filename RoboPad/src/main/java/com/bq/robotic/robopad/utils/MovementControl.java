@@ -0,0 +1,162 @@
+package com.bq.robotic.robopad.utils;
+
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.listeners.RobotListener;
+
+
+/**
+ * What the movement buttons of the pad and the analog joystick of the robot fragments do with
+ * their touches, without the Android views so the benchmarks run the same code: the change to
+ * the manual control mode and the check of the connection when they are pressed, their
+ * movements, and the stop when they are released.
+ *
+ * With the heartbeats of the binary frames, if the stop is lost the robot stops by itself when
+ * they end. Without them, i.e. with the legacy protocol, a sketch can miss a stop that arrives in
+ * the same read as the movement of a short click and nothing else would stop the robot, so it is
+ * sent again {@link RoboPadConstants#CLICK_SLEEP_TIME} later if nothing was pressed since.
+ *
+ * It runs on every touch, so it doesn't create any object: the commands are longs and the task
+ * that sends the stop again is created once.
+ */
+
+public class MovementControl {
+
+    /**
+     * The robot fragment, in the UI thread
+     */
+    public interface Robot {
+
+        /**
+         * A button or the joystick was pressed: change to the manual control mode if the robot
+         * is in another one
+         */
+        void onManualControl();
+
+        /**
+         * Send the movement of the button
+         *
+         * @param buttonId the id of the view pressed
+         */
+        void onMovement(int buttonId);
+    }
+
+    private final Robot mRobot;
+    private final TaskScheduler mScheduler;
+    private RobotListener mListener;
+
+    private boolean mIsConnected;
+
+    // A movement button or the joystick is held
+    private boolean mIsPressed;
+
+
+    public MovementControl(Robot robot, TaskScheduler scheduler) {
+        mRobot = robot;
+        mScheduler = scheduler;
+    }
+
+
+    public void setRobotListener(RobotListener listener) {
+        mListener = listener;
+    }
+
+
+    public void onButtonDown(int buttonId) {
+        // The change to the manual control mode is queued before the movement and the command
+        // writer writes them in that order, so no need to wait for it
+        mRobot.onManualControl();
+
+        mIsConnected = mListener == null || mListener.onCheckIsConnected();
+        if (!mIsConnected) {
+            return;
+        }
+
+        mIsPressed = true;
+        mRobot.onMovement(buttonId);
+    }
+
+
+    public void onButtonUp() {
+        if (!mIsConnected) {
+            return;
+        }
+
+        mIsPressed = false;
+        sendStop();
+    }
+
+
+    public void onJoystickPressed() {
+        mRobot.onManualControl();
+
+        mIsConnected = mListener == null || mListener.onCheckIsConnected();
+        mIsPressed = true;
+        mScheduler.removeCallbacks(mStopAgainTask);
+    }
+
+
+    /**
+     * A change of the joystick while it is held. Its {@link RobotCommand#STOP} in the dead zone
+     * of the centre is sent once: the finger is still on it, so it isn't a release and it must
+     * not be sent again later, when the user may be steering again.
+     *
+     * @param command the {@link RobotCommand#DRIVE} of the joystick, or the stop of its centre
+     */
+    public void onDriveChanged(long command) {
+        if (!mIsConnected || mListener == null) {
+            return;
+        }
+
+        mIsPressed = true;
+        mScheduler.removeCallbacks(mStopAgainTask);
+        mListener.onSendCommand(command);
+    }
+
+
+    /**
+     * The finger was lifted from the joystick
+     */
+    public void onJoystickReleased() {
+        if (!mIsConnected) {
+            return;
+        }
+
+        mIsPressed = false;
+        sendStop();
+    }
+
+
+    /**
+     * Don't send the stop again, the scheduler outlives the fragment
+     */
+    public void cancel() {
+        mScheduler.removeCallbacks(mStopAgainTask);
+    }
+
+
+    private void sendStop() {
+        if (mListener == null) {
+            return;
+        }
+
+        mListener.onSendCommand(RobotCommand.of(RobotCommand.STOP));
+
+        mScheduler.removeCallbacks(mStopAgainTask);
+        if (!mListener.onCheckHasHeartbeats()) {
+            mScheduler.postDelayed(mStopAgainTask, RoboPadConstants.CLICK_SLEEP_TIME);
+        }
+    }
+
+
+    private final Runnable mStopAgainTask = new Runnable() {
+
+        @Override
+        public void run() {
+            if (!mIsPressed && mIsConnected && mListener != null) {
+                mListener.onResendCommand(RobotCommand.of(RobotCommand.STOP));
+            }
+        }
+
+    };
+
+}
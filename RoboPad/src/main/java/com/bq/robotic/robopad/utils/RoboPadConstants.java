@@ -55,6 +55,21 @@ public class RoboPadConstants {
     public static final String GENERIC_ROBOT_FIRST_TIME_TIPS_KEY = "generic_robot_first_time_tips_key";
     public static final String CURRENT_TIP_KEY = "current_tip_key";
     public static enum showTipsValues {NEVER, FIRST_TIME, ALWAYS}
+    public static final String COMMAND_PROTOCOL_KEY = "pref_command_protocol";
+    public static enum commandProtocolValues {LEGACY, BINARY_FRAMES}
+    public static final String CONTROL_LOOP_RATE_KEY = "pref_control_loop_rate";
+    public static final String HEARTBEAT_INTERVAL_KEY = "pref_heartbeat_interval";
+    public static final int DEFAULT_HEARTBEAT_INTERVAL = 200;
+    public static final String COMMAND_ACKS_KEY = "pref_command_acks";
+    public static final String LATENCY_OVERLAY_KEY = "pref_latency_overlay";
+    public static final String TELEMETRY_OVERLAY_KEY = "pref_telemetry_overlay";
+    public static final String SESSION_RECORDING_KEY = "pref_record_sessions";
+    public static final String ANALOG_JOYSTICK_KEY = "pref_analog_joystick";
+
+    // Macros of the command buttons of the generic robot, the keys are the prefix and the number
+    // of the button
+    public static final String MACRO_KEY_PREFIX = "pref_macro_";
+    public static final int MACRO_COUNT = 6;
 
 
     /**
@@ -27,15 +27,15 @@ public class RobotConnectionsPopupWindow {
         switch (botType) {
 
             case POLLYWOG:
-                popupView.setImageResource(R.drawable.pollywog_pins);
+                popupView.setTiledImageResource(R.drawable.pollywog_pins);
                 break;
 
             case BEETLE:
-                popupView.setImageResource(R.drawable.beetle_pins);
+                popupView.setTiledImageResource(R.drawable.beetle_pins);
                 break;
 
             case EVOLUTION:
-                popupView.setImageResource(R.drawable.evolution_pins);
+                popupView.setTiledImageResource(R.drawable.evolution_pins);
                 break;
 
         }
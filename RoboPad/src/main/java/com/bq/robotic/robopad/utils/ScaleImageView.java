@@ -7,247 +7,195 @@ import android.graphics.drawable.Drawable;
 import android.util.AttributeSet;
 import android.view.GestureDetector;
 import android.view.MotionEvent;
-import android.view.View;
-import android.view.View.OnTouchListener;
+import android.view.ScaleGestureDetector;
+import android.view.animation.AnimationUtils;
 import android.widget.ImageView;
 
 
 /**
- * Library for scaling the image with gestures.
- * This class is the library from appfellas: https://bitbucket.org/appfellas/scale-imageview-android/src/782edc818bb0?at=master
+ * Image view that zooms with pinches and double taps, pans with drags and flings, and springs
+ * back when it is pulled past its edges.
+ * It started as the library from appfellas: https://bitbucket.org/appfellas/scale-imageview-android/src/782edc818bb0?at=master
+ * The zoom and the pan are now done by the {@link ZoomPanEngine}, fed by the gesture detectors
+ * of Android, and its fling and animations advance in {@link #computeScroll()} once per frame.
+ * Neither the touches nor the frames create any object.
  */
 
-public class ScaleImageView extends ImageView implements OnTouchListener {
-    private Context mContext;
-    private float MAX_SCALE = 2f;
+public class ScaleImageView extends ImageView {
 
-    private Matrix mMatrix;
-    private final float[] mMatrixValues = new float[9];
+    private final ZoomPanEngine mEngine = new ZoomPanEngine();
+    private final Matrix mMatrix = new Matrix();
 
-    // display width height.
-    private int mWidth;
-    private int mHeight;
-
-    private int mIntrinsicWidth;
-    private int mIntrinsicHeight;
-
-    private float mScale;
-    private float mMinScale;
-
-    private float mPrevDistance;
-    private boolean isScaling;
-
-    private int mPrevMoveX;
-    private int mPrevMoveY;
+    private ScaleGestureDetector mScaleDetector;
     private GestureDetector mDetector;
 
-    String TAG = "ScaleImageView";
-
     public ScaleImageView(Context context, AttributeSet attr) {
         super(context, attr);
-        this.mContext = context;
-        initialize();
+        initialize(context);
     }
 
     public ScaleImageView(Context context) {
         super(context);
-        this.mContext = context;
-        initialize();
+        initialize(context);
+    }
+
+    private void initialize(Context context) {
+        setScaleType(ScaleType.MATRIX);
+
+        mScaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                mEngine.scaleBy(detector.getScaleFactor(), detector.getFocusX(), detector.getFocusY());
+                applyMatrix();
+                return true;
+            }
+        });
+
+        mDetector = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                mEngine.stop();
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                if (!mScaleDetector.isInProgress()) {
+                    mEngine.panBy(-distanceX, -distanceY);
+                    applyMatrix();
+                }
+                return true;
+            }
+
+            @Override
+            public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+                if (!mScaleDetector.isInProgress()) {
+                    mEngine.fling(velocityX, velocityY, AnimationUtils.currentAnimationTimeMillis());
+                    invalidate();
+                }
+                return true;
+            }
+
+            @Override
+            public boolean onDoubleTap(MotionEvent e) {
+                mEngine.doubleTap(e.getX(), e.getY(), AnimationUtils.currentAnimationTimeMillis());
+                invalidate();
+                return true;
+            }
+        });
+
+        // So a fast second finger isn't taken as a double tap
+        mDetector.setIsLongpressEnabled(false);
     }
 
     @Override
     public void setImageBitmap(Bitmap bm) {
+        releaseTiles();
         super.setImageBitmap(bm);
-        this.initialize();
+        updateImageSize();
     }
 
     @Override
     public void setImageResource(int resId) {
+        releaseTiles();
         super.setImageResource(resId);
-        this.initialize();
+        updateImageSize();
+    }
+
+    /**
+     * Shows a big image of the resources without decoding it whole: only the tiles on the
+     * screen are decoded, at the zoom of the view, by a {@link TiledDrawable}
+     */
+    public void setTiledImageResource(int resId) {
+        releaseTiles();
+        setImageDrawable(new TiledDrawable(getResources(), resId));
+        updateImageSize();
     }
 
-    private void initialize() {
-        this.setScaleType(ScaleType.MATRIX);
-        this.mMatrix = new Matrix();
+    private void updateImageSize() {
         Drawable d = getDrawable();
         if (d != null) {
-            mIntrinsicWidth = d.getIntrinsicWidth();
-            mIntrinsicHeight = d.getIntrinsicHeight();
-            setOnTouchListener(this);
+            mEngine.setImageSize(d.getIntrinsicWidth(), d.getIntrinsicHeight());
+            applyMatrix();
         }
-        mDetector = new GestureDetector(mContext, new GestureDetector.SimpleOnGestureListener() {
-            @Override
-            public boolean onDoubleTap(MotionEvent e) {
-                maxZoomTo((int) e.getX(), (int) e.getY());
-                cutting();
-                return super.onDoubleTap(e);
-            }
-        });
-
     }
 
     @Override
     protected boolean setFrame(int l, int t, int r, int b) {
-        mWidth = r - l;
-        mHeight = b - t;
-
-        mMatrix.reset();
-        int r_norm = r - l;
-        mScale = (float) r_norm / (float) mIntrinsicWidth;
-
-        int paddingHeight = 0;
-        int paddingWidth = 0;
-        // scaling vertical
-        if (mScale * mIntrinsicHeight > mHeight) {
-            mScale = (float) mHeight / (float) mIntrinsicHeight;
-            mMatrix.postScale(mScale, mScale);
-            paddingWidth = (r - mWidth) / 2;
-            paddingHeight = 0;
-            // scaling horizontal
-        } else {
-            mMatrix.postScale(mScale, mScale);
-            paddingHeight = (b - mHeight) / 2;
-            paddingWidth = 0;
+        boolean changed = super.setFrame(l, t, r, b);
+
+        // Only a new size fits the image again, a layout pass keeps the zoom
+        if (mEngine.setViewSize(r - l, b - t)) {
+            applyMatrix();
         }
-        mMatrix.postTranslate(paddingWidth, paddingHeight);
+        return changed;
+    }
 
+    /**
+     * Gives the scale and translation of the engine to the image, reusing the same matrix
+     */
+    private void applyMatrix() {
+        float scale = mEngine.getScale();
+        mMatrix.setScale(scale, scale);
+        mMatrix.postTranslate(mEngine.getTranslateX(), mEngine.getTranslateY());
         setImageMatrix(mMatrix);
-        mMinScale = mScale;
-        zoomTo(mScale, mWidth / 2, mHeight / 2);
-        cutting();
-        return super.setFrame(l, t, r, b);
-    }
 
-    protected float getValue(Matrix matrix, int whichValue) {
-        matrix.getValues(mMatrixValues);
-        return mMatrixValues[whichValue];
+        if (getDrawable() instanceof TiledDrawable) {
+            ((TiledDrawable) getDrawable()).setScale(scale);
+        }
     }
 
     protected float getScale() {
-        return getValue(mMatrix, Matrix.MSCALE_X);
+        return mEngine.getScale();
     }
 
     public float getTranslateX() {
-        return getValue(mMatrix, Matrix.MTRANS_X);
+        return mEngine.getTranslateX();
     }
 
     protected float getTranslateY() {
-        return getValue(mMatrix, Matrix.MTRANS_Y);
+        return mEngine.getTranslateY();
     }
 
-    protected void maxZoomTo(int x, int y) {
-        if (mMinScale != getScale() && (getScale() - mMinScale) > 0.1f) {
-            // threshold 0.1f
-            float scale = mMinScale / getScale();
-            zoomTo(scale, x, y);
-        } else {
-            float scale = MAX_SCALE / getScale();
-            zoomTo(scale, x, y);
-        }
-    }
+    @Override
+    public void computeScroll() {
+        if (mEngine.isMoving()) {
+            mEngine.step(AnimationUtils.currentAnimationTimeMillis());
+            applyMatrix();
 
-    public void zoomTo(float scale, int x, int y) {
-        if (getScale() * scale < mMinScale) {
-            return;
+            // The next frame, even if the matrix didn't change in this one
+            invalidate();
         }
-        if (scale >= 1 && getScale() * scale > MAX_SCALE) {
-            return;
-        }
-        mMatrix.postScale(scale, scale);
-        // move to center
-        mMatrix.postTranslate(-(mWidth * scale - mWidth) / 2, -(mHeight * scale - mHeight) / 2);
-
-        // move x and y distance
-        mMatrix.postTranslate(-(x - (mWidth / 2)) * scale, 0);
-        mMatrix.postTranslate(0, -(y - (mHeight / 2)) * scale);
-        setImageMatrix(mMatrix);
-    }
-
-    public void cutting() {
-        int width = (int) (mIntrinsicWidth * getScale());
-        int height = (int) (mIntrinsicHeight * getScale());
-        if (getTranslateX() < -(width - mWidth)) {
-            mMatrix.postTranslate(-(getTranslateX() + width - mWidth), 0);
-        }
-        if (getTranslateX() > 0) {
-            mMatrix.postTranslate(-getTranslateX(), 0);
-        }
-        if (getTranslateY() < -(height - mHeight)) {
-            mMatrix.postTranslate(0, -(getTranslateY() + height - mHeight));
-        }
-        if (getTranslateY() > 0) {
-            mMatrix.postTranslate(0, -getTranslateY());
-        }
-        if (width < mWidth) {
-            mMatrix.postTranslate((mWidth - width) / 2, 0);
-        }
-        if (height < mHeight) {
-            mMatrix.postTranslate(0, (mHeight - height) / 2);
-        }
-        setImageMatrix(mMatrix);
-    }
-
-    private float distance(float x0, float x1, float y0, float y1) {
-        float x = x0 - x1;
-        float y = y0 - y1;
-        return (float) Math.sqrt(x * x + y * y);
-    }
-
-    private float dispDistance() {
-        return (float) Math.sqrt(mWidth * mWidth + mHeight * mHeight);
     }
 
     @Override
     public boolean onTouchEvent(MotionEvent event) {
-        if (mDetector.onTouchEvent(event)) {
-            return true;
+        if (getDrawable() == null) {
+            return false;
         }
-        int touchCount = event.getPointerCount();
-        switch (event.getAction()) {
-            case MotionEvent.ACTION_DOWN:
-            case MotionEvent.ACTION_POINTER_1_DOWN:
-            case MotionEvent.ACTION_POINTER_2_DOWN:
-                if (touchCount >= 2) {
-                    float distance = distance(event.getX(0), event.getX(1), event.getY(0), event.getY(1));
-                    mPrevDistance = distance;
-                    isScaling = true;
-                } else {
-                    mPrevMoveX = (int) event.getX();
-                    mPrevMoveY = (int) event.getY();
-                }
-            case MotionEvent.ACTION_MOVE:
-                if (touchCount >= 2 && isScaling) {
-                    float dist = distance(event.getX(0), event.getX(1), event.getY(0), event.getY(1));
-                    float scale = (dist - mPrevDistance) / dispDistance();
-                    mPrevDistance = dist;
-                    scale += 1;
-                    scale = scale * scale;
-                    zoomTo(scale, mWidth / 2, mHeight / 2);
-                    cutting();
-                } else if (!isScaling) {
-                    int distanceX = mPrevMoveX - (int) event.getX();
-                    int distanceY = mPrevMoveY - (int) event.getY();
-                    mPrevMoveX = (int) event.getX();
-                    mPrevMoveY = (int) event.getY();
-                    mMatrix.postTranslate(-distanceX, -distanceY);
-                    cutting();
-                }
-                break;
-            case MotionEvent.ACTION_UP:
-            case MotionEvent.ACTION_POINTER_UP:
-            case MotionEvent.ACTION_POINTER_2_UP:
-                if (event.getPointerCount() <= 1) {
-                    isScaling = false;
-                }
-                break;
+
+        mScaleDetector.onTouchEvent(event);
+        mDetector.onTouchEvent(event);
+
+        int action = event.getActionMasked();
+        if (action == MotionEvent.ACTION_UP || action == MotionEvent.ACTION_CANCEL) {
+            mEngine.release(AnimationUtils.currentAnimationTimeMillis());
+            invalidate();
         }
         return true;
     }
 
     @Override
-    public boolean onTouch(View v, MotionEvent event) {
-        return super.onTouchEvent(event);
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mEngine.stop();
+        releaseTiles();
+    }
+
+    private void releaseTiles() {
+        if (getDrawable() instanceof TiledDrawable) {
+            ((TiledDrawable) getDrawable()).release();
+        }
     }
 
 }
@@ -24,67 +24,216 @@
 package com.bq.robotic.robopad.utils;
 
 import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
 import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.RadialGradient;
+import android.graphics.RectF;
+import android.graphics.Shader;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
-import android.widget.SeekBar;
+import android.view.View;
+
+import com.bq.robotic.robopad.R;
 
 /**
- * Class for the vertical sliders, used the SeekBar as the base class
+ * Vertical slider, with the minimum at the bottom and android:max at the top. It draws its
+ * track and its thumb with paths built when its size changes, and a new value only redraws the
+ * strip where the thumb was and where it is now, without measuring anything again.
+ *
+ * Each slider follows the finger that touched it and ignores the others, so two sliders of the
+ * same layout can be dragged at the same time when their parent splits the touches between its
+ * children, as the layouts do by default since Android 3.0.
  */
 
-public class SliderView extends SeekBar {
+public class SliderView extends View {
+
+	/**
+	 * Receives the changes of the value, in the UI thread
+	 */
+	public interface OnSliderChangeListener {
+
+		/**
+		 * @param slider the slider that changed
+		 * @param progress its new value, from 0 to its max
+		 * @param fromUser true if the user dragged it, false if it was set by the code
+		 */
+		void onProgressChanged(SliderView slider, int progress, boolean fromUser);
+	}
+
+	// Sorted as obtainStyledAttributes() needs them
+	private static final int[] ATTRS = {android.R.attr.max, android.R.attr.progress};
+
+	private static final int INVALID_POINTER = -1;
+
+	private final Paint mTrackPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint mThumbPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint mDisabledThumbPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private final Paint mRimPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+	private final Path mTrackPath = new Path();
+	private final Path mThumbPath = new Path();
+	private final RectF mTrackRect = new RectF();
+
+	private final float mThumbRadius;
+	private final float mTrackWidth;
+
+	private OnSliderChangeListener mListener;
+
+	private int mMax = 100;
+	private int mProgress;
+
+	// Centre of the thumb at 0 and at max
+	private float mCenterX;
+	private float mBottom;
+	private float mTop;
+
+	private int mPointerId = INVALID_POINTER;
+
 
 	public SliderView(Context context) {
-		super(context);
+		this(context, null);
+	}
+
+
+	public SliderView(Context context, AttributeSet attrs) {
+		this(context, attrs, 0);
 	}
 
 
 	public SliderView(Context context, AttributeSet attrs, int defStyle) {
 		super(context, attrs, defStyle);
+
+		Resources resources = getResources();
+		mThumbRadius = resources.getDimension(R.dimen.slider_thumb_radius);
+		mTrackWidth = resources.getDimension(R.dimen.slider_track_width);
+
+		TypedArray a = context.obtainStyledAttributes(attrs, ATTRS, defStyle, 0);
+		mMax = Math.max(1, a.getInt(0, mMax));
+		mProgress = Math.max(0, Math.min(mMax, a.getInt(1, 0)));
+		a.recycle();
+
+		mTrackPaint.setColor(resources.getColor(R.color.holo_green_light));
+
+		mThumbPaint.setShader(new RadialGradient(0, 0, mThumbRadius,
+				resources.getColor(R.color.holo_green_light), resources.getColor(R.color.slider_thumb_dark),
+				Shader.TileMode.CLAMP));
+		mDisabledThumbPaint.setShader(new RadialGradient(0, 0, mThumbRadius,
+				resources.getColor(R.color.slider_disabled), resources.getColor(R.color.slider_disabled_dark),
+				Shader.TileMode.CLAMP));
+
+		mRimPaint.setStyle(Paint.Style.STROKE);
+		mRimPaint.setStrokeWidth(mTrackWidth / 2);
+		mRimPaint.setColor(resources.getColor(R.color.holo_green_light));
+
+		// Around the origin, the canvas is moved to the thumb when it is drawn
+		mThumbPath.addCircle(0, 0, mThumbRadius - mTrackWidth / 4, Path.Direction.CW);
 	}
 
 
-	public SliderView(Context context, AttributeSet attrs) {
-		super(context, attrs);
+	public void setOnSliderChangeListener(OnSliderChangeListener listener) {
+		mListener = listener;
 	}
 
 
-	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
-		super.onSizeChanged(h, w, oldh, oldw);
+	public int getMax() {
+		return mMax;
 	}
 
-	@Override 
-	public synchronized void setProgress(int progress) { 
-		super.setProgress(progress); 
-		
-		// this line is needed in order to update the thumb position too
-		onSizeChanged(getWidth(), getHeight(), 0, 0); 
+
+	public void setMax(int max) {
+		mMax = Math.max(1, max);
+		if (mProgress > mMax) {
+			setProgress(mMax, false);
+		}
+		invalidate();
 	}
 
 
-	@Override
-	public void setThumbOffset(int thumbOffset) {
-		super.setThumbOffset(thumbOffset);
+	public int getProgress() {
+		return mProgress;
 	}
 
 
-	@Override
-	protected synchronized void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
-		super.onMeasure(heightMeasureSpec, widthMeasureSpec);
+	/**
+	 * Move the thumb. The listener is only called if the value changes.
+	 * @param progress the new value, clamped between 0 and the max
+	 */
+	public void setProgress(int progress) {
+		setProgress(progress, false);
+	}
+
 
-		setMeasuredDimension(getMeasuredHeight(), getMeasuredWidth());
+	private void setProgress(int progress, boolean fromUser) {
+		progress = Math.max(0, Math.min(mMax, progress));
+		if (progress == mProgress) {
+			return;
+		}
+
+		invalidateThumb(mProgress, progress);
+		mProgress = progress;
+
+		if (mListener != null) {
+			mListener.onProgressChanged(this, progress, fromUser);
+		}
 	}
 
-	
+
+	private float thumbY(int progress) {
+		return mBottom - (mBottom - mTop) * progress / mMax;
+	}
+
+
 	/**
-	 * Rotate the base seekbar -90 degrees to put it in vertical
+	 * Only the strip between the old thumb and the new one is drawn again
 	 */
-	protected void onDraw(Canvas c) {
-		c.rotate(-90);
-		c.translate(-getHeight(), 0);
+	private void invalidateThumb(int oldProgress, int newProgress) {
+		float oldY = thumbY(oldProgress);
+		float newY = thumbY(newProgress);
+		float margin = mThumbRadius + 1;
+
+		invalidate((int) (mCenterX - margin), (int) (Math.min(oldY, newY) - margin),
+				(int) Math.ceil(mCenterX + margin), (int) Math.ceil(Math.max(oldY, newY) + margin));
+	}
+
+
+	@Override
+	protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+		int diameter = (int) Math.ceil(2 * mThumbRadius);
+
+		setMeasuredDimension(
+				resolveSize(diameter + getPaddingLeft() + getPaddingRight(), widthMeasureSpec),
+				resolveSize(2 * diameter + getPaddingTop() + getPaddingBottom(), heightMeasureSpec));
+	}
+
+
+	@Override
+	protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+		super.onSizeChanged(w, h, oldw, oldh);
+
+		mCenterX = getPaddingLeft() + (w - getPaddingLeft() - getPaddingRight()) / 2f;
+		mTop = getPaddingTop() + mThumbRadius;
+		mBottom = Math.max(mTop, h - getPaddingBottom() - mThumbRadius);
 
-		super.onDraw(c);
+		mTrackRect.set(mCenterX - mTrackWidth / 2, mTop, mCenterX + mTrackWidth / 2, mBottom);
+		mTrackPath.reset();
+		mTrackPath.addRoundRect(mTrackRect, mTrackWidth / 2, mTrackWidth / 2, Path.Direction.CW);
+	}
+
+
+	@Override
+	protected void onDraw(Canvas canvas) {
+		canvas.drawPath(mTrackPath, mTrackPaint);
+
+		canvas.save();
+		canvas.translate(mCenterX, thumbY(mProgress));
+		canvas.drawPath(mThumbPath, isEnabled() ? mThumbPaint : mDisabledThumbPaint);
+		if (isEnabled()) {
+			canvas.drawPath(mThumbPath, mRimPaint);
+		}
+		canvas.restore();
 	}
 
 
@@ -95,19 +244,49 @@ public class SliderView extends SeekBar {
 			return false;
 		}
 
-		switch (event.getAction()) {
-		case MotionEvent.ACTION_DOWN:
-		case MotionEvent.ACTION_MOVE:
-		case MotionEvent.ACTION_UP:
-			setProgress(getMax() - (int) (getMax() * event.getY() / getHeight()));
-			onSizeChanged(getWidth(), getHeight(), 0, 0);
-			break;
+		switch (event.getActionMasked()) {
+			case MotionEvent.ACTION_DOWN:
+				mPointerId = event.getPointerId(0);
+				setPressed(true);
+				trackTouch(event.getY());
+				break;
+
+			case MotionEvent.ACTION_MOVE:
+				int index = event.findPointerIndex(mPointerId);
+				if (index >= 0) {
+					trackTouch(event.getY(index));
+				}
+				break;
 
-		case MotionEvent.ACTION_CANCEL:
-			break;
+			case MotionEvent.ACTION_POINTER_UP:
+				// Another finger on the same slider doesn't end the drag
+				if (event.getPointerId(event.getActionIndex()) == mPointerId) {
+					endTouch();
+				}
+				break;
+
+			case MotionEvent.ACTION_UP:
+			case MotionEvent.ACTION_CANCEL:
+				endTouch();
+				break;
 		}
 
 		return true;
 	}
 
+
+	private void trackTouch(float y) {
+		if (mBottom <= mTop) {
+			return;
+		}
+
+		setProgress(Math.round((mBottom - y) * mMax / (mBottom - mTop)), true);
+	}
+
+
+	private void endTouch() {
+		mPointerId = INVALID_POINTER;
+		setPressed(false);
+	}
+
 }
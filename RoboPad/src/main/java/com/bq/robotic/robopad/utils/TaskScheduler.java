@@ -0,0 +1,23 @@
+package com.bq.robotic.robopad.utils;
+
+
+/**
+ * Runs tasks later in the UI thread: the handler shared by the robot fragments in the app, and a
+ * simulated clock in the benchmarks. The tasks are created once and posted again, so the touches
+ * don't create objects.
+ */
+
+public interface TaskScheduler {
+
+    /**
+     * @param task        run once after the delay, in the UI thread
+     * @param delayMillis milliseconds from now
+     */
+    void postDelayed(Runnable task, long delayMillis);
+
+    /**
+     * Removes the posts of the task that didn't run yet
+     */
+    void removeCallbacks(Runnable task);
+
+}
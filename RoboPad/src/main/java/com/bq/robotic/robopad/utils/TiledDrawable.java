@@ -0,0 +1,550 @@
+package com.bq.robotic.robopad.utils;
+
+import android.annotation.TargetApi;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.TypedValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+
+/**
+ * Image of the resources that is never decoded whole at its full size. The part of the image
+ * that is on the screen is decoded in tiles of {@link #TILE_SIZE} pixels, with the sample size
+ * that matches the zoom of the view, in a thread of its own, and only {@link #CACHED_TILES}
+ * tiles out of the screen are kept, so the memory doesn't grow with the zoom or with each time
+ * the image is shown. A small preview of the whole image is drawn under the tiles until they
+ * are decoded.
+ *
+ * The view must give it its zoom with {@link #setScale(float)} and free its bitmaps with
+ * {@link #release()} when it is detached, as the {@link ScaleImageView} does.
+ *
+ * Neither the frames nor the decoding of the tiles create objects once the tiles on the screen
+ * have been decoded: the tiles dropped are kept in a pool with their tasks and used again, and
+ * the decoder thread decodes all of them with the same options and region.
+ *
+ * Decoding regions needs Android 2.3.3. Before it, the image can only be decoded whole, so it is
+ * decoded once, with the sample size that fits it in the screen, on top of the preview. Zooming
+ * in past the resolution of the screen shows it blurred, as a whole decode at full resolution
+ * would run out of memory.
+ */
+
+public class TiledDrawable extends Drawable {
+
+    // Debugging
+    private static final String LOG_TAG = "TiledDrawable";
+
+    /**
+     * Side of the tiles, in pixels of their bitmaps
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * Tiles kept when they leave the screen, so panning back doesn't decode them again
+     */
+    public static final int CACHED_TILES = 8;
+
+    /**
+     * Longest side of the preview, in pixels
+     */
+    private static final int PREVIEW_SIZE = 256;
+
+    private static final boolean REGION_DECODING =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD_MR1;
+
+    /**
+     * A tile of the image, at a sample size. It is owned by the decoder thread from its request
+     * until its bitmap is given back to the UI thread, and only then can it go back to the pool.
+     */
+    private class Tile {
+
+        int mSample;
+        int mColumn;
+        int mRow;
+
+        // Set in the UI thread when the tile is dropped, read by the decoder thread
+        volatile boolean mCancelled;
+
+        // Between the request and the delivery of the bitmap
+        boolean mDecoding;
+
+        Bitmap mBitmap;
+        long mLastFrame;
+
+        // The thread it was requested to, and the bitmap it decoded for mDeliverTask
+        private DecoderThread mDecoder;
+        private Bitmap mDecoded;
+
+        /**
+         * In the decoder thread
+         */
+        final Runnable mDecodeTask = new Runnable() {
+            @Override
+            public void run() {
+                if (!mCancelled) {
+                    mDecoded = mDecoder.decode(Tile.this);
+                }
+                mUiHandler.post(mDeliverTask);
+            }
+        };
+
+        /**
+         * In the UI thread
+         */
+        final Runnable mDeliverTask = new Runnable() {
+            @Override
+            public void run() {
+                mDecoding = false;
+                Bitmap bitmap = mDecoded;
+                mDecoded = null;
+
+                if (mCancelled) {
+                    if (bitmap != null) {
+                        bitmap.recycle();
+                    }
+                    mFreeTiles.add(Tile.this);
+                    return;
+                }
+
+                if (bitmap != null) {
+                    mBitmap = bitmap;
+                    invalidateSelf();
+                }
+            }
+        };
+    }
+
+    private final Resources mResources;
+    private final int mResId;
+
+    // Size of the image in the file, in pixels
+    private final int mImageWidth;
+    private final int mImageHeight;
+
+    // Size after scaling it to the density of the screen, as a BitmapDrawable would
+    private final int mIntrinsicWidth;
+    private final int mIntrinsicHeight;
+
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
+    private Bitmap mPreview;
+    private final ArrayList<Tile> mTiles = new ArrayList<Tile>();
+    private final ArrayList<Tile> mFreeTiles = new ArrayList<Tile>();
+    private DecoderThread mDecoderThread;
+
+    // Sample size of the whole image without region decoding, the one that fits it in the screen
+    private final int mScreenSample;
+
+    // Pixels of the screen for each pixel of the bounds
+    private float mScale = 1;
+    private long mFrame;
+
+    private final Rect mClip = new Rect();
+    private final Rect mTileBounds = new Rect();
+
+
+    /**
+     * Reads the size of the image and decodes its preview, but none of its tiles
+     */
+    public TiledDrawable(Resources resources, int resId) {
+        mResources = resources;
+        mResId = resId;
+
+        TypedValue value = new TypedValue();
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decodeStream(options, value);
+        mImageWidth = Math.max(1, options.outWidth);
+        mImageHeight = Math.max(1, options.outHeight);
+
+        float densityScale = 1;
+        if (value.density != TypedValue.DENSITY_NONE) {
+            int density = value.density == TypedValue.DENSITY_DEFAULT ? DisplayMetrics.DENSITY_DEFAULT : value.density;
+            densityScale = (float) resources.getDisplayMetrics().densityDpi / density;
+        }
+        mIntrinsicWidth = Math.round(mImageWidth * densityScale);
+        mIntrinsicHeight = Math.round(mImageHeight * densityScale);
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = 1;
+        while (Math.max(mImageWidth, mImageHeight) / options.inSampleSize > PREVIEW_SIZE) {
+            options.inSampleSize *= 2;
+        }
+        mPreview = decodeStream(options, value);
+
+        DisplayMetrics metrics = resources.getDisplayMetrics();
+        int screen = Math.max(1, Math.max(metrics.widthPixels, metrics.heightPixels));
+        int screenSample = 1;
+        while (Math.max(mImageWidth, mImageHeight) / screenSample > screen) {
+            screenSample *= 2;
+        }
+        mScreenSample = screenSample;
+    }
+
+
+    /**
+     * @param scale pixels of the screen for each pixel of the bounds, i.e. the scale of the
+     *              matrix of the image view
+     */
+    public void setScale(float scale) {
+        if (scale > 0 && scale != mScale) {
+            mScale = scale;
+            invalidateSelf();
+        }
+    }
+
+
+    /**
+     * Frees the tiles and stops the decoder thread. The preview is kept, and the tiles are
+     * decoded again if the drawable is drawn after it.
+     */
+    public void release() {
+        for (int i = 0; i < mTiles.size(); i++) {
+            dropTile(mTiles.get(i));
+        }
+        mTiles.clear();
+
+        if (mDecoderThread != null) {
+            mDecoderThread.release();
+            mDecoderThread = null;
+        }
+    }
+
+
+    @Override
+    public void draw(Canvas canvas) {
+        Rect bounds = getBounds();
+        if (bounds.isEmpty()) {
+            return;
+        }
+
+        if (mPreview != null) {
+            canvas.drawBitmap(mPreview, null, bounds, mPaint);
+        }
+
+        if (!canvas.getClipBounds(mClip) || !mClip.intersect(bounds)) {
+            return;
+        }
+
+        mFrame++;
+
+        // Pixels of the file for each pixel of the bounds
+        float toImage = (float) mImageWidth / bounds.width();
+        int sample = REGION_DECODING ? sampleSize(mScale / toImage) : mScreenSample;
+        int side = tileSide(sample);
+
+        int firstColumn = (int) ((mClip.left - bounds.left) * toImage) / side;
+        int lastColumn = Math.min((int) ((mClip.right - bounds.left) * toImage - 1) / side, (mImageWidth - 1) / side);
+        int firstRow = (int) ((mClip.top - bounds.top) * toImage) / side;
+        int lastRow = Math.min((int) ((mClip.bottom - bounds.top) * toImage - 1) / side, (mImageHeight - 1) / side);
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                Tile tile = tile(sample, column, row);
+                tile.mLastFrame = mFrame;
+
+                if (tile.mBitmap != null) {
+                    mTileBounds.set(
+                            bounds.left + Math.round(column * side / toImage),
+                            bounds.top + Math.round(row * side / toImage),
+                            bounds.left + Math.round(Math.min((column + 1) * side, mImageWidth) / toImage),
+                            bounds.top + Math.round(Math.min((row + 1) * side, mImageHeight) / toImage));
+                    canvas.drawBitmap(tile.mBitmap, null, mTileBounds, mPaint);
+                }
+            }
+        }
+
+        trim();
+    }
+
+
+    /**
+     * @param pixelsPerImagePixel pixels of the screen for each pixel of the file
+     * @return the biggest power of two that still has at least a pixel of the tile for each pixel
+     * of the screen
+     */
+    static int sampleSize(float pixelsPerImagePixel) {
+        int sample = 1;
+        while (sample * 2 * pixelsPerImagePixel <= 1) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+
+    /**
+     * @return side of the tiles of a sample size, in pixels of the file
+     */
+    private int tileSide(int sample) {
+        return REGION_DECODING ? TILE_SIZE * sample : Math.max(mImageWidth, mImageHeight);
+    }
+
+
+    /**
+     * @return the tile, asking the decoder thread for it if it isn't cached
+     */
+    private Tile tile(int sample, int column, int row) {
+        for (int i = 0; i < mTiles.size(); i++) {
+            Tile tile = mTiles.get(i);
+            if (tile.mSample == sample && tile.mColumn == column && tile.mRow == row) {
+                return tile;
+            }
+        }
+
+        if (mDecoderThread == null) {
+            mDecoderThread = new DecoderThread();
+        }
+
+        Tile tile = mFreeTiles.isEmpty() ? new Tile() : mFreeTiles.remove(mFreeTiles.size() - 1);
+        tile.mSample = sample;
+        tile.mColumn = column;
+        tile.mRow = row;
+        tile.mCancelled = false;
+        tile.mDecoding = true;
+        tile.mLastFrame = 0;
+
+        mTiles.add(tile);
+        mDecoderThread.request(tile);
+        return tile;
+    }
+
+
+    /**
+     * Drops the tiles out of the screen still waiting to be decoded, and the oldest decoded ones
+     * over {@link #CACHED_TILES}
+     */
+    private void trim() {
+        int hidden = 0;
+
+        for (int i = mTiles.size() - 1; i >= 0; i--) {
+            Tile tile = mTiles.get(i);
+            if (tile.mLastFrame == mFrame) {
+                continue;
+            }
+
+            if (tile.mBitmap == null) {
+                dropTile(tile);
+                mTiles.remove(i);
+            } else {
+                hidden++;
+            }
+        }
+
+        while (hidden > CACHED_TILES) {
+            int oldest = -1;
+            for (int i = 0; i < mTiles.size(); i++) {
+                if (mTiles.get(i).mLastFrame != mFrame
+                        && (oldest < 0 || mTiles.get(i).mLastFrame < mTiles.get(oldest).mLastFrame)) {
+                    oldest = i;
+                }
+            }
+
+            dropTile(mTiles.remove(oldest));
+            hidden--;
+        }
+    }
+
+
+    /**
+     * Frees the bitmap of the tile and puts it back in the pool, or after its delivery if the
+     * decoder thread still has it
+     */
+    private void dropTile(Tile tile) {
+        tile.mCancelled = true;
+        if (tile.mBitmap != null) {
+            tile.mBitmap.recycle();
+            tile.mBitmap = null;
+        }
+
+        if (!tile.mDecoding) {
+            mFreeTiles.add(tile);
+        }
+    }
+
+
+    /**
+     * @return the decoded image, or null if it fails or with inJustDecodeBounds
+     */
+    private Bitmap decodeStream(BitmapFactory.Options options, TypedValue value) {
+        InputStream in = mResources.openRawResource(mResId, value);
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } catch (OutOfMemoryError e) {
+            Log.e(LOG_TAG, "Out of memory decoding the image with sample size " + options.inSampleSize, e);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error closing the image", e);
+        }
+    }
+
+
+    @Override
+    public int getIntrinsicWidth() {
+        return mIntrinsicWidth;
+    }
+
+
+    @Override
+    public int getIntrinsicHeight() {
+        return mIntrinsicHeight;
+    }
+
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        mPaint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+
+    @Override
+    public int getOpacity() {
+        return PixelFormat.TRANSLUCENT;
+    }
+
+
+    /**
+     * Decodes the tiles one after another and gives them to the UI thread, skipping the ones
+     * dropped while they waited
+     */
+    private class DecoderThread extends HandlerThread {
+
+        private final Handler mHandler;
+
+        // Only used in this thread
+        private RegionDecoder mRegionDecoder;
+        private final TypedValue mValue = new TypedValue();
+        private final BitmapFactory.Options mOptions = new BitmapFactory.Options();
+        private final Rect mRegion = new Rect();
+
+
+        DecoderThread() {
+            super("RoboPadTileDecoder", Process.THREAD_PRIORITY_BACKGROUND);
+            start();
+            mHandler = new Handler(getLooper());
+        }
+
+
+        /**
+         * Decodes the tile with its own task, that gives it back to the UI thread even if it
+         * was cancelled
+         */
+        void request(Tile tile) {
+            tile.mDecoder = this;
+            mHandler.post(tile.mDecodeTask);
+        }
+
+
+        /**
+         * Frees the decoder and ends the thread. The tiles still waiting were cancelled, so they
+         * are only given back to the UI thread, to go back to the pool.
+         */
+        void release() {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mRegionDecoder != null) {
+                        mRegionDecoder.recycle();
+                        mRegionDecoder = null;
+                    }
+                    quit();
+                }
+            });
+        }
+
+
+        /**
+         * Only in this thread, it reuses the same options and region for all the tiles
+         */
+        Bitmap decode(Tile tile) {
+            mOptions.inSampleSize = tile.mSample;
+
+            if (!REGION_DECODING) {
+                return decodeStream(mOptions, mValue);
+            }
+
+            int side = tileSide(tile.mSample);
+            mRegion.set(tile.mColumn * side, tile.mRow * side,
+                    Math.min((tile.mColumn + 1) * side, mImageWidth),
+                    Math.min((tile.mRow + 1) * side, mImageHeight));
+
+            try {
+                if (mRegionDecoder == null) {
+                    mRegionDecoder = new RegionDecoder(mResources.openRawResource(mResId, mValue));
+                }
+                return mRegionDecoder.decode(mRegion, mOptions);
+
+            } catch (IOException e) {
+                Log.e(LOG_TAG, "Error opening the image to decode its tiles", e);
+            } catch (OutOfMemoryError e) {
+                Log.e(LOG_TAG, "Out of memory decoding the tile " + mRegion, e);
+            }
+
+            return null;
+        }
+    }
+
+
+    /**
+     * The BitmapRegionDecoder, in a class of its own so the older versions never load it
+     */
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    private static class RegionDecoder {
+
+        private final BitmapRegionDecoder mDecoder;
+
+
+        RegionDecoder(InputStream in) throws IOException {
+            try {
+                mDecoder = BitmapRegionDecoder.newInstance(in, false);
+            } finally {
+                closeQuietly(in);
+            }
+        }
+
+
+        Bitmap decode(Rect region, BitmapFactory.Options options) {
+            return mDecoder.decodeRegion(region, options);
+        }
+
+
+        void recycle() {
+            mDecoder.recycle();
+        }
+    }
+
+}
@@ -0,0 +1,419 @@
+package com.bq.robotic.robopad.utils;
+
+
+/**
+ * Zoom and pan of an image inside a view, as the {@link ScaleImageView} shows it: the pinches
+ * scale it around their focus, the drags move it and can pull it a little past its edges, the
+ * flings keep it moving while they slow down, and the double taps zoom in or out in an
+ * animation. When the finger is lifted out of the edges it springs back.
+ *
+ * It has no Android classes, so the benchmarks can run it, and its state is kept in primitive
+ * fields, so neither the events nor the frames create any object. The animations advance in
+ * {@link #step(long)}, which the view calls once per frame.
+ */
+
+public final class ZoomPanEngine {
+
+    /**
+     * Biggest zoom, in pixels of the screen for each pixel of the image
+     */
+    public static final float MAX_SCALE = 2f;
+
+    /**
+     * How far the image can be dragged past its edges, in fraction of the size of the view
+     */
+    public static final float MAX_OVERSCROLL = 0.1f;
+
+    /**
+     * Time constant of the slowing down of the flings, in milliseconds
+     */
+    public static final float FLING_TIME_CONSTANT = 325;
+
+    /**
+     * Flings end below this speed, in pixels per millisecond
+     */
+    public static final float MIN_FLING_VELOCITY = 0.02f;
+
+    /**
+     * Duration of the zoom of the double taps and of the spring back, in milliseconds
+     */
+    public static final int ANIMATION_DURATION = 250;
+
+    /**
+     * A double tap zooms out when the image is zoomed more than this over the fitted scale
+     */
+    private static final float ZOOMED_IN_THRESHOLD = 0.1f;
+
+    private int mViewWidth;
+    private int mViewHeight;
+    private int mImageWidth;
+    private int mImageHeight;
+
+    // Scale of the image when it fits in the view
+    private float mMinScale = 1;
+
+    private float mScale = 1;
+    private float mTranslateX;
+    private float mTranslateY;
+
+    private boolean mFlinging;
+    private long mFlingStart;
+    private float mFlingStartX;
+    private float mFlingStartY;
+    private float mFlingVelocityX;
+    private float mFlingVelocityY;
+
+    // The animation scales the image from mFromScale to mToScale while the point of the image
+    // that was at mFocusX, mFocusY moves to mToFocusX, mToFocusY
+    private boolean mAnimating;
+    private long mAnimationStart;
+    private float mFromScale;
+    private float mToScale;
+    private float mFocusX;
+    private float mFocusY;
+    private float mImageFocusX;
+    private float mImageFocusY;
+    private float mToFocusX;
+    private float mToFocusY;
+
+
+    /**
+     * @return whether the size changed, and so the image was fitted again in the view
+     */
+    public boolean setViewSize(int width, int height) {
+        if (width == mViewWidth && height == mViewHeight) {
+            return false;
+        }
+
+        mViewWidth = width;
+        mViewHeight = height;
+        fit();
+        return true;
+    }
+
+
+    public void setImageSize(int width, int height) {
+        mImageWidth = width;
+        mImageHeight = height;
+        fit();
+    }
+
+
+    /**
+     * Stops any movement and shows the whole image, centred
+     */
+    public void fit() {
+        stop();
+
+        if (mViewWidth > 0 && mViewHeight > 0 && mImageWidth > 0 && mImageHeight > 0) {
+            mMinScale = Math.min((float) mViewWidth / mImageWidth, (float) mViewHeight / mImageHeight);
+        } else {
+            mMinScale = 1;
+        }
+
+        mScale = mMinScale;
+        mTranslateX = (mViewWidth - mImageWidth * mScale) / 2;
+        mTranslateY = (mViewHeight - mImageHeight * mScale) / 2;
+    }
+
+
+    public float getScale() {
+        return mScale;
+    }
+
+
+    public float getTranslateX() {
+        return mTranslateX;
+    }
+
+
+    public float getTranslateY() {
+        return mTranslateY;
+    }
+
+
+    public float getMinScale() {
+        return mMinScale;
+    }
+
+
+    /**
+     * @return {@link #MAX_SCALE}, or the fitted scale if the image is smaller than the view
+     */
+    public float getMaxScale() {
+        return Math.max(MAX_SCALE, mMinScale);
+    }
+
+
+    /**
+     * @return smallest translation of the image inside its edges, at the current scale
+     */
+    public float getMinTranslateX() {
+        return minTranslate(mViewWidth, mImageWidth, mScale);
+    }
+
+
+    public float getMaxTranslateX() {
+        return maxTranslate(mViewWidth, mImageWidth, mScale);
+    }
+
+
+    public float getMinTranslateY() {
+        return minTranslate(mViewHeight, mImageHeight, mScale);
+    }
+
+
+    public float getMaxTranslateY() {
+        return maxTranslate(mViewHeight, mImageHeight, mScale);
+    }
+
+
+    /**
+     * @return how far past its edges the image can be dragged, in pixels
+     */
+    public float getMaxOverscrollX() {
+        return mViewWidth * MAX_OVERSCROLL;
+    }
+
+
+    public float getMaxOverscrollY() {
+        return mViewHeight * MAX_OVERSCROLL;
+    }
+
+
+    /**
+     * @return whether a fling or an animation is running, so the view must draw another frame
+     */
+    public boolean isMoving() {
+        return mFlinging || mAnimating;
+    }
+
+
+    /**
+     * Stops the fling and the animation where they are
+     */
+    public void stop() {
+        mFlinging = false;
+        mAnimating = false;
+    }
+
+
+    /**
+     * A step of a pinch
+     *
+     * @param factor change of the scale since the last step
+     * @param focusX point between the fingers, in pixels of the view
+     * @param focusY point between the fingers, in pixels of the view
+     */
+    public void scaleBy(float factor, float focusX, float focusY) {
+        stop();
+
+        float scale = clamp(mScale * factor, mMinScale, getMaxScale());
+        float change = scale / mScale;
+        mScale = scale;
+
+        mTranslateX = clamp(focusX - (focusX - mTranslateX) * change,
+                getMinTranslateX() - getMaxOverscrollX(), getMaxTranslateX() + getMaxOverscrollX());
+        mTranslateY = clamp(focusY - (focusY - mTranslateY) * change,
+                getMinTranslateY() - getMaxOverscrollY(), getMaxTranslateY() + getMaxOverscrollY());
+    }
+
+
+    /**
+     * A step of a drag. Past the edges the image follows the finger slower and slower, up to
+     * {@link #MAX_OVERSCROLL}.
+     *
+     * @param dx movement of the finger, in pixels
+     * @param dy movement of the finger, in pixels
+     */
+    public void panBy(float dx, float dy) {
+        stop();
+
+        mTranslateX = drag(mTranslateX, dx, getMinTranslateX(), getMaxTranslateX(), getMaxOverscrollX());
+        mTranslateY = drag(mTranslateY, dy, getMinTranslateY(), getMaxTranslateY(), getMaxOverscrollY());
+    }
+
+
+    /**
+     * The finger was lifted fast
+     *
+     * @param velocityX in pixels per second
+     * @param velocityY in pixels per second
+     * @param now       time of the frames, in milliseconds
+     */
+    public void fling(float velocityX, float velocityY, long now) {
+        stop();
+
+        mFlinging = true;
+        mFlingStart = now;
+        mFlingStartX = mTranslateX;
+        mFlingStartY = mTranslateY;
+        mFlingVelocityX = velocityX / 1000;
+        mFlingVelocityY = velocityY / 1000;
+    }
+
+
+    /**
+     * The fingers were lifted: if there is no fling, the image springs back inside its edges
+     */
+    public void release(long now) {
+        if (!isMoving()) {
+            springBack(now);
+        }
+    }
+
+
+    /**
+     * Zooms in to {@link #MAX_SCALE} around the point, or out to the fitted scale if it is
+     * already zoomed in
+     *
+     * @param x point of the tap, in pixels of the view
+     * @param y point of the tap, in pixels of the view
+     */
+    public void doubleTap(float x, float y, long now) {
+        stop();
+
+        float scale = mScale - mMinScale > ZOOMED_IN_THRESHOLD ? mMinScale : getMaxScale();
+        float change = scale / mScale;
+
+        animateTo(scale,
+                clamp(x - (x - mTranslateX) * change, minTranslate(mViewWidth, mImageWidth, scale),
+                        maxTranslate(mViewWidth, mImageWidth, scale)),
+                clamp(y - (y - mTranslateY) * change, minTranslate(mViewHeight, mImageHeight, scale),
+                        maxTranslate(mViewHeight, mImageHeight, scale)),
+                x, y, now);
+    }
+
+
+    /**
+     * Moves the fling or the animation to the time of the frame
+     *
+     * @param now time of the frame, in milliseconds
+     * @return whether they still run, so another frame is needed
+     */
+    public boolean step(long now) {
+        if (mFlinging) {
+            stepFling(now);
+        }
+
+        if (mAnimating) {
+            float progress = Math.min(1, (float) (now - mAnimationStart) / ANIMATION_DURATION);
+            // Decelerating
+            float eased = 1 - (1 - progress) * (1 - progress);
+
+            mScale = mFromScale + (mToScale - mFromScale) * eased;
+            mTranslateX = mFocusX + (mToFocusX - mFocusX) * eased - mImageFocusX * mScale;
+            mTranslateY = mFocusY + (mToFocusY - mFocusY) * eased - mImageFocusY * mScale;
+
+            if (progress >= 1) {
+                mAnimating = false;
+            }
+        }
+
+        return isMoving();
+    }
+
+
+    /**
+     * The fling slows down exponentially. An axis stops where it crosses an edge, up to the
+     * overscroll, and the image springs back when both have stopped.
+     */
+    private void stepFling(long now) {
+        float elapsed = Math.max(0, now - mFlingStart);
+        float decay = (float) Math.exp(-elapsed / FLING_TIME_CONSTANT);
+        float travelled = FLING_TIME_CONSTANT * (1 - decay);
+
+        float minX = getMinTranslateX();
+        float maxX = getMaxTranslateX();
+        mTranslateX = mFlingStartX + mFlingVelocityX * travelled;
+        if (mTranslateX < minX || mTranslateX > maxX) {
+            mTranslateX = clamp(mTranslateX, minX - getMaxOverscrollX(), maxX + getMaxOverscrollX());
+            mFlingStartX = mTranslateX;
+            mFlingVelocityX = 0;
+        }
+
+        float minY = getMinTranslateY();
+        float maxY = getMaxTranslateY();
+        mTranslateY = mFlingStartY + mFlingVelocityY * travelled;
+        if (mTranslateY < minY || mTranslateY > maxY) {
+            mTranslateY = clamp(mTranslateY, minY - getMaxOverscrollY(), maxY + getMaxOverscrollY());
+            mFlingStartY = mTranslateY;
+            mFlingVelocityY = 0;
+        }
+
+        if (Math.abs(mFlingVelocityX * decay) < MIN_FLING_VELOCITY
+                && Math.abs(mFlingVelocityY * decay) < MIN_FLING_VELOCITY) {
+            mFlinging = false;
+            springBack(now);
+        }
+    }
+
+
+    private void springBack(long now) {
+        float x = clamp(mTranslateX, getMinTranslateX(), getMaxTranslateX());
+        float y = clamp(mTranslateY, getMinTranslateY(), getMaxTranslateY());
+
+        if (x != mTranslateX || y != mTranslateY) {
+            animateTo(mScale, x, y, mViewWidth / 2f, mViewHeight / 2f, now);
+        }
+    }
+
+
+    /**
+     * Starts the animation to a scale and a translation, keeping the point of the image under
+     * the focus on the straight line to where it ends
+     */
+    private void animateTo(float scale, float translateX, float translateY, float focusX, float focusY, long now) {
+        mAnimating = true;
+        mAnimationStart = now;
+        mFromScale = mScale;
+        mToScale = scale;
+        mFocusX = focusX;
+        mFocusY = focusY;
+        mImageFocusX = (focusX - mTranslateX) / mScale;
+        mImageFocusY = (focusY - mTranslateY) / mScale;
+        mToFocusX = translateX + mImageFocusX * scale;
+        mToFocusY = translateY + mImageFocusY * scale;
+    }
+
+
+    /**
+     * @return the translation of the image after a drag, slower past the edges
+     */
+    private static float drag(float translate, float delta, float min, float max, float overscroll) {
+        float over = translate > max ? translate - max : translate < min ? min - translate : 0;
+        boolean outwards = delta > 0 ? translate + delta > max : translate + delta < min;
+
+        if (outwards && overscroll > 0) {
+            delta *= Math.max(0, 1 - over / overscroll);
+        }
+
+        return clamp(translate + delta, min - overscroll, max + overscroll);
+    }
+
+
+    /**
+     * @return the translation with the image against the right or bottom edge, or centred if it
+     * is smaller than the view
+     */
+    private static float minTranslate(int viewSize, int imageSize, float scale) {
+        float free = viewSize - imageSize * scale;
+        return free > 0 ? free / 2 : free;
+    }
+
+
+    /**
+     * @return the translation with the image against the left or top edge, or centred if it is
+     * smaller than the view
+     */
+    private static float maxTranslate(int viewSize, int imageSize, float scale) {
+        float free = viewSize - imageSize * scale;
+        return free > 0 ? free / 2 : 0;
+    }
+
+
+    private static float clamp(float value, float min, float max) {
+        return value < min ? min : value > max ? max : value;
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.bq.robotic.robopad.benchmarks;
+
+
+import com.bq.robotic.robopad.connection.Choreography;
+import com.bq.robotic.robopad.connection.CommandWriter;
+import com.bq.robotic.robopad.listeners.RobotListener;
+
+
+/**
+ * The RobotListener of the RoboPad activity without the Android parts: the fragments call it
+ * and it gives the commands to the {@link CommandWriter}, as the activity does.
+ */
+
+public class BenchmarkRobotListener implements RobotListener {
+
+    private final CommandWriter mCommandWriter;
+
+    private long mDroppedCommands;
+
+
+    public BenchmarkRobotListener(CommandWriter commandWriter) {
+        mCommandWriter = commandWriter;
+    }
+
+
+    @Override
+    public boolean onCheckIsConnected() {
+        return mCommandWriter.getTransport().isConnected();
+    }
+
+
+    @Override
+    public boolean onCheckIsConnectedWithoutToast() {
+        return mCommandWriter.getTransport().isConnected();
+    }
+
+
+    @Override
+    public boolean onCheckHasHeartbeats() {
+        return mCommandWriter.isSendingHeartbeats();
+    }
+
+
+    @Override
+    public void onSendCommand(long command) {
+        if (!mCommandWriter.send(command, System.nanoTime())) {
+            mDroppedCommands++;
+        }
+    }
+
+
+    @Override
+    public void onResendCommand(long command) {
+        onSendCommand(command);
+    }
+
+
+    /**
+     * The benchmarks only measure the commands sent by the fragments
+     */
+    @Override
+    public void onPlayChoreography(Choreography choreography) {
+        throw new UnsupportedOperationException("choreographies are not benchmarked");
+    }
+
+
+    /**
+     * @return number of commands that the writer didn't accept because its queue was full
+     */
+    public long getDroppedCommands() {
+        return mDroppedCommands;
+    }
+
+}
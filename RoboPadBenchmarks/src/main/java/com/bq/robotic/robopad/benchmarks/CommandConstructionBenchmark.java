@@ -0,0 +1,178 @@
+package com.bq.robotic.robopad.benchmarks;
+
+
+import com.bq.robotic.robopad.connection.CommandEncoder;
+import com.bq.robotic.robopad.connection.FrameCommandEncoder;
+import com.bq.robotic.robopad.connection.LegacyCommandEncoder;
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.utils.RoboPadConstants;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Cost of building the bytes of a command in the UI thread. The string* benchmarks are the
+ * concatenation that the fragments did before the commands were longs (the claw position of
+ * BeetleFragment.getNextClawPosition, the seekbars of CrabFragment and the tracks of
+ * RhinoFragment) plus the getBytes() of the Bluetooth connection. The other ones build the
+ * same command with {@link RobotCommand} and encode it with each protocol.
+ *
+ * The values change on every call as when the user moves a control, so the strings can't be
+ * folded into constants.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m", "-XX:+UseSerialGC"})
+@State(Scope.Thread)
+public class CommandConstructionBenchmark {
+
+    // Power of two, so the index wraps with a mask
+    private static final int VALUE_COUNT = 64;
+
+    private static final String[] TRACK_VALUES = {"D", "S", "U"};
+
+    private final int[] mClawPositions = new int[VALUE_COUNT];
+    private final int[] mPeriods = new int[VALUE_COUNT];
+    private final int[] mTracks = new int[VALUE_COUNT];
+    private int mIndex;
+
+    private final CommandEncoder mLegacyEncoder = new LegacyCommandEncoder();
+    private final CommandEncoder mFrameEncoder = new FrameCommandEncoder();
+    private final byte[] mBuffer = new byte[CommandEncoder.MAX_FRAME_LENGTH];
+
+
+    @Setup
+    public void setUp() {
+        int clawPosition = RoboPadConstants.INIT_CLAW_POS;
+        int clawStep = RoboPadConstants.CLAW_STEP;
+
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            // The claw goes from closed to open and back in steps, as with the Beetle buttons
+            clawPosition -= clawStep;
+            if (clawPosition < RoboPadConstants.MAX_OPEN_CLAW_POS
+                    || clawPosition > RoboPadConstants.MIN_CLOSE_CLAW_POS) {
+                clawStep = -clawStep;
+                clawPosition -= 2 * clawStep;
+            }
+            mClawPositions[i] = clawPosition;
+
+            mPeriods[i] = RoboPadConstants.MIN_PERIOD
+                    + (i * 97) % (RoboPadConstants.MAX_PERIOD - RoboPadConstants.MIN_PERIOD);
+            mTracks[i] = i % 3 - 1;
+        }
+
+        checkLegacyBytes();
+    }
+
+
+    /**
+     * The legacy encoder must write the same bytes as the old strings, otherwise the benchmarks
+     * don't compare the same work
+     */
+    private void checkLegacyBytes() {
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            mIndex = i;
+            checkSameBytes(stringClaw(), RobotCommand.of(RobotCommand.CLAW, mClawPositions[i]));
+            mIndex = i;
+            checkSameBytes(stringCrabPeriod(), RobotCommand.of(RobotCommand.PERIOD, mPeriods[i]));
+            mIndex = i;
+            checkSameBytes(stringRhinoTrack(), RobotCommand.of(RobotCommand.LEFT_TRACK, mTracks[i]));
+        }
+
+        mIndex = 0;
+    }
+
+
+    private void checkSameBytes(byte[] expected, long command) {
+        int length = mLegacyEncoder.encode(command, mBuffer, 0);
+
+        if (!Arrays.equals(expected, Arrays.copyOf(mBuffer, length))) {
+            throw new IllegalStateException("legacy encoder differs from the old string for "
+                    + RobotCommand.nameOf(RobotCommand.opcode(command)) + " "
+                    + RobotCommand.arg(command) + ": " + new String(expected));
+        }
+    }
+
+
+    private int nextIndex() {
+        int index = mIndex;
+        mIndex = (index + 1) & (VALUE_COUNT - 1);
+        return index;
+    }
+
+
+    @Benchmark
+    public byte[] stringClaw() {
+        return (RoboPadConstants.CLAW_COMMAND + mClawPositions[nextIndex()]).getBytes();
+    }
+
+
+    @Benchmark
+    public byte[] stringCrabPeriod() {
+        return (RoboPadConstants.PERIOD_COMMAND + mPeriods[nextIndex()]).getBytes();
+    }
+
+
+    @Benchmark
+    public byte[] stringRhinoTrack() {
+        return (RoboPadConstants.LEFT_COMMAND + TRACK_VALUES[mTracks[nextIndex()] + 1]).getBytes();
+    }
+
+
+    @Benchmark
+    public int legacyEncoderClaw() {
+        long command = RobotCommand.of(RobotCommand.CLAW, mClawPositions[nextIndex()]);
+        return mLegacyEncoder.encode(command, mBuffer, 0);
+    }
+
+
+    @Benchmark
+    public int legacyEncoderCrabPeriod() {
+        long command = RobotCommand.of(RobotCommand.PERIOD, mPeriods[nextIndex()]);
+        return mLegacyEncoder.encode(command, mBuffer, 0);
+    }
+
+
+    @Benchmark
+    public int legacyEncoderRhinoTrack() {
+        long command = RobotCommand.of(RobotCommand.LEFT_TRACK, mTracks[nextIndex()]);
+        return mLegacyEncoder.encode(command, mBuffer, 0);
+    }
+
+
+    @Benchmark
+    public int frameEncoderClaw() {
+        long command = RobotCommand.of(RobotCommand.CLAW, mClawPositions[nextIndex()]);
+        return mFrameEncoder.encode(command, mBuffer, 0);
+    }
+
+
+    @Benchmark
+    public int frameEncoderCrabPeriod() {
+        long command = RobotCommand.of(RobotCommand.PERIOD, mPeriods[nextIndex()]);
+        return mFrameEncoder.encode(command, mBuffer, 0);
+    }
+
+
+    @Benchmark
+    public int frameEncoderRhinoTrack() {
+        long command = RobotCommand.of(RobotCommand.LEFT_TRACK, mTracks[nextIndex()]);
+        return mFrameEncoder.encode(command, mBuffer, 0);
+    }
+
+}
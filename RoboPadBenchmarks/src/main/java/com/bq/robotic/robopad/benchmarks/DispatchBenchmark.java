@@ -0,0 +1,185 @@
+package com.bq.robotic.robopad.benchmarks;
+
+
+import com.bq.robotic.robopad.connection.CommandEncoder;
+import com.bq.robotic.robopad.connection.CommandWriter;
+import com.bq.robotic.robopad.connection.FrameCommandEncoder;
+import com.bq.robotic.robopad.connection.LegacyCommandEncoder;
+import com.bq.robotic.robopad.connection.LoopbackTransport;
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.utils.RoboPadConstants;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Dispatch of the commands from the fragments to the transport: the RobotListener of the
+ * activity, the {@link CommandWriter} with its queue and coalescer, the writer thread and the
+ * encoder, ending in a {@link LoopbackTransport} without delays.
+ *
+ * The send* benchmarks measure the cost for the UI thread, which doesn't wait for the write.
+ * The roundTrip ones measure from the call of the fragment until the frame is in the transport,
+ * so they include the wake up of the writer thread.
+ *
+ * The queue has a single producer, the UI thread, so the benchmarks must run in one thread.
+ */
+
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m", "-XX:+UseSerialGC"})
+@Threads(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+
+    // Power of two, so the index wraps with a mask
+    private static final int VALUE_COUNT = 64;
+
+    @Param({"LEGACY", "BINARY_FRAMES"})
+    public RoboPadConstants.commandProtocolValues protocol;
+
+    private LoopbackTransport mTransport;
+    private CommandWriter mCommandWriter;
+    private BenchmarkRobotListener mListener;
+
+    private final long[] mPeriodCommands = new long[VALUE_COUNT];
+    private int mIndex;
+    private boolean mForward;
+
+
+    @Setup
+    public void setUp() {
+        CommandEncoder encoder;
+        if (protocol == RoboPadConstants.commandProtocolValues.BINARY_FRAMES) {
+            encoder = new FrameCommandEncoder();
+        } else {
+            // The wait between commands for the legacy sketches is not a cost of the dispatch
+            encoder = new LegacyCommandEncoder() {
+                @Override
+                public long getMinIntervalNanos() {
+                    return 0;
+                }
+            };
+        }
+
+        mTransport = new LoopbackTransport(null);
+        mTransport.open();
+
+        mCommandWriter = new CommandWriter(mTransport, encoder);
+        mCommandWriter.start();
+
+        mListener = new BenchmarkRobotListener(mCommandWriter);
+
+        for (int i = 0; i < VALUE_COUNT; i++) {
+            mPeriodCommands[i] = RobotCommand.of(RobotCommand.PERIOD, RoboPadConstants.MIN_PERIOD
+                    + (i * 97) % (RoboPadConstants.MAX_PERIOD - RoboPadConstants.MIN_PERIOD));
+        }
+
+        checkDispatch();
+    }
+
+
+    /**
+     * Every command sent must end in the transport, otherwise the round trips would never end
+     */
+    private void checkDispatch() {
+        if (!mListener.onCheckIsConnected()) {
+            throw new IllegalStateException("loopback transport not connected");
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            roundTripDiscrete();
+            roundTripCoalesced();
+        }
+
+        if (mTransport.getFramesWritten() != 2000 || mListener.getDroppedCommands() != 0) {
+            throw new IllegalStateException("frames written " + mTransport.getFramesWritten()
+                    + ", dropped " + mListener.getDroppedCommands());
+        }
+    }
+
+
+    @TearDown
+    public void tearDown() {
+        mCommandWriter.stop();
+        mTransport.close();
+
+        System.out.println();
+        System.out.println("frames written " + mTransport.getFramesWritten()
+                + ", dropped by the queue " + mListener.getDroppedCommands()
+                + ", superseded " + mCommandWriter.getSupersededCommands());
+    }
+
+
+    private long nextDiscreteCommand() {
+        mForward = !mForward;
+        return RobotCommand.of(mForward ? RobotCommand.FORWARD : RobotCommand.STOP);
+    }
+
+
+    private long nextCoalescedCommand() {
+        long command = mPeriodCommands[mIndex];
+        mIndex = (mIndex + 1) & (VALUE_COUNT - 1);
+        return command;
+    }
+
+
+    private void waitFramesWritten(long frames) {
+        while (mTransport.getFramesWritten() < frames) {
+            // Spin, parking would measure the scheduler of the OS instead of the writer
+        }
+    }
+
+
+    /**
+     * A button of the direction pad, queued in order
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public void sendDiscrete() {
+        mListener.onSendCommand(nextDiscreteCommand());
+    }
+
+
+    /**
+     * A seekbar of the Crab while dragging, only the newest value is written
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    public void sendCoalesced() {
+        mListener.onSendCommand(nextCoalescedCommand());
+    }
+
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public void roundTripDiscrete() {
+        long frames = mTransport.getFramesWritten() + 1;
+        mListener.onSendCommand(nextDiscreteCommand());
+        waitFramesWritten(frames);
+    }
+
+
+    @Benchmark
+    @BenchmarkMode(Mode.SampleTime)
+    public void roundTripCoalesced() {
+        long frames = mTransport.getFramesWritten() + 1;
+        mListener.onSendCommand(nextCoalescedCommand());
+        waitFramesWritten(frames);
+    }
+
+}
@@ -0,0 +1,143 @@
+package com.bq.robotic.robopad.benchmarks;
+
+
+import com.bq.robotic.robopad.connection.CommandCoalescer;
+import com.bq.robotic.robopad.connection.CommandEncoder;
+import com.bq.robotic.robopad.connection.CommandQueue;
+import com.bq.robotic.robopad.connection.CommandWriter;
+import com.bq.robotic.robopad.connection.ControlState;
+import com.bq.robotic.robopad.connection.FrameCommandEncoder;
+import com.bq.robotic.robopad.connection.RobotCommand;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Each stage between the fragments and the writer thread on its own, in a single thread so
+ * the cost measured is the one of the stage and not of the handoff: the queue of the discrete
+ * commands, the coalescer of the continuous controls and the state of the control loop.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m", "-XX:+UseSerialGC"})
+@State(Scope.Thread)
+public class QueueBenchmark {
+
+    private static final long FORWARD = RobotCommand.of(RobotCommand.FORWARD);
+    private static final long STOP = RobotCommand.of(RobotCommand.STOP);
+
+    private CommandQueue mQueue;
+    private CommandCoalescer mCoalescer;
+    private ControlState mState;
+
+    private final CommandEncoder mFrameEncoder = new FrameCommandEncoder();
+    private final byte[] mBuffer = new byte[CommandEncoder.MAX_FRAME_LENGTH];
+
+    private int mPeriod;
+
+
+    @Setup
+    public void setUp() {
+        mQueue = new CommandQueue(CommandWriter.DEFAULT_CAPACITY);
+        mCoalescer = new CommandCoalescer();
+        mState = new ControlState();
+
+        checkQueueOrder();
+        checkCoalescerNewestWins();
+    }
+
+
+    private void checkQueueOrder() {
+        for (int i = 0; i < mQueue.capacity(); i++) {
+            if (!mQueue.offer(RobotCommand.of(RobotCommand.CLAW, i), i + 1)) {
+                throw new IllegalStateException("queue full after " + i + " commands");
+            }
+        }
+
+        for (int i = 0; i < mQueue.capacity(); i++) {
+            long command = mQueue.poll();
+            if (RobotCommand.arg(command) != i || mQueue.getPolledInputTime() != i + 1) {
+                throw new IllegalStateException("queue out of order at " + i);
+            }
+        }
+
+        if (!mQueue.isEmpty()) {
+            throw new IllegalStateException("queue not empty");
+        }
+    }
+
+
+    private void checkCoalescerNewestWins() {
+        for (int period = 1000; period < 1010; period++) {
+            mCoalescer.offer(CommandCoalescer.CHANNEL_PERIOD,
+                    RobotCommand.of(RobotCommand.PERIOD, period), period);
+        }
+
+        long command = mCoalescer.take(CommandCoalescer.CHANNEL_PERIOD);
+        if (RobotCommand.arg(command) != 1009 || mCoalescer.hasPending()
+                || mCoalescer.getSupersededCount(CommandCoalescer.CHANNEL_PERIOD) != 9) {
+            throw new IllegalStateException("coalescer didn't keep only the newest value");
+        }
+    }
+
+
+    private long nextPeriodCommand() {
+        mPeriod = (mPeriod + 1) & 0x1FFF;
+        return RobotCommand.of(RobotCommand.PERIOD, mPeriod);
+    }
+
+
+    @Benchmark
+    public long queueOfferPoll() {
+        mQueue.offer(FORWARD, 1);
+        mQueue.offer(STOP, 2);
+        mQueue.poll();
+        return mQueue.poll();
+    }
+
+
+    @Benchmark
+    public long coalescerOfferTake() {
+        mCoalescer.offer(CommandCoalescer.CHANNEL_PERIOD, nextPeriodCommand(), 1);
+        mCoalescer.getInputTime(CommandCoalescer.CHANNEL_PERIOD);
+        return mCoalescer.take(CommandCoalescer.CHANNEL_PERIOD);
+    }
+
+
+    /**
+     * Two values of the seekbar before the writer takes one, the first one is superseded
+     */
+    @Benchmark
+    public long coalescerOfferSupersededTake() {
+        mCoalescer.offer(CommandCoalescer.CHANNEL_PERIOD, nextPeriodCommand(), 1);
+        mCoalescer.offer(CommandCoalescer.CHANNEL_PERIOD, nextPeriodCommand(), 2);
+        mCoalescer.getInputTime(CommandCoalescer.CHANNEL_PERIOD);
+        return mCoalescer.take(CommandCoalescer.CHANNEL_PERIOD);
+    }
+
+
+    /**
+     * The update of the state in the UI thread and one tick of the control loop
+     */
+    @Benchmark
+    public int stateApplyEncode() {
+        mState.apply(nextPeriodCommand(), 1);
+        mState.takePendingInputTime(ControlState.FIELD_PERIOD);
+        return mFrameEncoder.encodeState(mState, mBuffer, 0);
+    }
+
+}
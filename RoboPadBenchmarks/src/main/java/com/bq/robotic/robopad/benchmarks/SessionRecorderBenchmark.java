@@ -0,0 +1,101 @@
+package com.bq.robotic.robopad.benchmarks;
+
+
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.connection.SessionRecorder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Cost of recording a command of the session in the UI thread, on the send path.
+ * dataOutputStream is the usual way, a DataOutputStream over the file without a buffer, with
+ * a write system call per record, and mappedRecorder is the {@link SessionRecorder}. Run with
+ * -prof gc to see the bytes allocated by each one.
+ *
+ * The mapped file grows while the benchmark runs, in regions of 1 MB, so the cost of mapping
+ * them is included.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m", "-XX:+UseSerialGC"})
+@State(Scope.Thread)
+public class SessionRecorderBenchmark {
+
+    private static final long[] COMMANDS = {
+            RobotCommand.of(RobotCommand.FORWARD),
+            RobotCommand.of(RobotCommand.LEFT_TRACK, 120),
+            RobotCommand.of(RobotCommand.RIGHT_TRACK, -80),
+            RobotCommand.of(RobotCommand.STOP)
+    };
+
+    private final SessionRecorder mRecorder = new SessionRecorder();
+    private File mMappedFile;
+
+    private DataOutputStream mStream;
+    private File mStreamFile;
+
+    private int mIndex;
+
+
+    @Setup
+    public void setUp() throws IOException {
+        mMappedFile = File.createTempFile("session", ".rps");
+        mRecorder.start(mMappedFile, 0, System.nanoTime());
+
+        mStreamFile = File.createTempFile("session", ".bin");
+        mStream = new DataOutputStream(new FileOutputStream(mStreamFile));
+    }
+
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mRecorder.stop();
+        mMappedFile.delete();
+
+        mStream.close();
+        mStreamFile.delete();
+    }
+
+
+    private long nextCommand() {
+        long command = COMMANDS[mIndex];
+        mIndex = (mIndex + 1) & (COMMANDS.length - 1);
+        return command;
+    }
+
+
+    @Benchmark
+    public long dataOutputStream() throws IOException {
+        mStream.writeLong(((long) SessionRecorder.TYPE_COMMAND << 56) | System.nanoTime());
+        mStream.writeLong(nextCommand());
+        return mStream.size();
+    }
+
+
+    @Benchmark
+    public long mappedRecorder() {
+        mRecorder.recordCommand(nextCommand(), System.nanoTime());
+        return mRecorder.getRecords();
+    }
+
+}
@@ -0,0 +1,95 @@
+package com.bq.robotic.robopad.benchmarks;
+
+
+import com.bq.robotic.robopad.connection.RobotTelemetry;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Cost of decoding a telemetry message of the robot in the UI thread. splitAndParse is the
+ * usual way, with substring, split and Integer.parseInt, and telemetryDecoder is the in place
+ * decoding of {@link RobotTelemetry}. Run with -prof gc to see the bytes allocated by each one.
+ *
+ * The messages are the ones of the Evolution in its three autonomous modes.
+ */
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms256m", "-Xmx256m", "-XX:+UseSerialGC"})
+@State(Scope.Thread)
+public class TelemetryBenchmark {
+
+    private static final String[] MESSAGES = {
+            "&&T3,1,0,205%%",
+            "&&T12,512,498,127%%",
+            "&&T16,24,234%%",
+            "&&T31,1,0,1023,1023,17241,148%%"
+    };
+
+    private final RobotTelemetry mTelemetry = new RobotTelemetry();
+    private final int[] mValues = new int[RobotTelemetry.SENSOR_COUNT];
+    private int mIndex;
+
+
+    /**
+     * Every message must be valid, otherwise the decoder stops at the error and the benchmarks
+     * don't compare the same work
+     */
+    @Setup
+    public void setUp() {
+        for (String message : MESSAGES) {
+            mTelemetry.onMessage(message, 0);
+        }
+
+        if (mTelemetry.getMalformed() > 0) {
+            throw new IllegalStateException("malformed telemetry messages: "
+                    + mTelemetry.getMalformed());
+        }
+    }
+
+
+    private String nextMessage() {
+        String message = MESSAGES[mIndex];
+        mIndex = (mIndex + 1) & (MESSAGES.length - 1);
+        return message;
+    }
+
+
+    @Benchmark
+    public int splitAndParse() {
+        String message = nextMessage();
+        String[] fields = message.substring(3, message.length() - 2).split(",");
+
+        int sensors = Integer.parseInt(fields[0]);
+        int field = 1;
+        for (int sensor = 0; sensor < RobotTelemetry.SENSOR_COUNT; sensor++) {
+            if ((sensors & (1 << sensor)) != 0) {
+                mValues[sensor] = Integer.parseInt(fields[field++]);
+            }
+        }
+
+        return sensors;
+    }
+
+
+    @Benchmark
+    public long telemetryDecoder() {
+        mTelemetry.onMessage(nextMessage(), 0);
+        return mTelemetry.getSamples();
+    }
+
+}
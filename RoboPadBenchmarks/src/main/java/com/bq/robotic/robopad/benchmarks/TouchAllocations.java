@@ -0,0 +1,576 @@
+package com.bq.robotic.robopad.benchmarks;
+
+
+import com.bq.robotic.robopad.connection.Choreography;
+import com.bq.robotic.robopad.connection.ChoreographyPlayer;
+import com.bq.robotic.robopad.connection.CommandDispatcher;
+import com.bq.robotic.robopad.connection.CommandEncoder;
+import com.bq.robotic.robopad.connection.CommandWriter;
+import com.bq.robotic.robopad.connection.FrameCommandEncoder;
+import com.bq.robotic.robopad.connection.LegacyCommandEncoder;
+import com.bq.robotic.robopad.connection.LoopbackTransport;
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.connection.SessionRecorder;
+import com.bq.robotic.robopad.listeners.RobotListener;
+import com.bq.robotic.robopad.utils.ClawControl;
+import com.bq.robotic.robopad.utils.DifferentialDrive;
+import com.bq.robotic.robopad.utils.IntChars;
+import com.bq.robotic.robopad.utils.MovementControl;
+import com.bq.robotic.robopad.utils.RoboPadConstants;
+import com.bq.robotic.robopad.utils.RoboPadConstants.Claw_next_state;
+import com.bq.robotic.robopad.utils.TaskScheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+
+/**
+ * Bytes allocated by the touch handling of the robot fragments, that must be none: each event
+ * runs the same {@link MovementControl} and {@link ClawControl} as the fragments, with their
+ * tasks posted to a {@link TaskScheduler} of simulated time instead of the handler of the UI
+ * thread, and the same {@link CommandDispatcher} as the RoboPad activity. The bytes allocated
+ * by the thread of the events and by the writer thread are counted with the ThreadMXBean of
+ * HotSpot. It is run with the legacy encoder, that sends the stop of a click again, and with the
+ * binary frames and their heartbeats.
+ *
+ * Before counting, it checks that the joystick passing through its dead zone while it is held
+ * sends its stop only once, that only its release sends the stop again without heartbeats, and
+ * that a macro started before that stop is sent again is not cancelled by it.
+ *
+ * The session is recorded while the events run, as in the app, in a new file for each run that
+ * is never longer than the first region of the {@link SessionRecorder}: mapping the next one,
+ * once every {@link SessionRecorder#REGION_RECORDS} commands, is the only allocation of the path
+ * and it is not done by the touches.
+ *
+ * The events are run until compiled before they are counted, and the bytes that the thread of
+ * the events allocates counting an empty event are subtracted. Each event is counted in a run of
+ * N events and in one of 2N: the allocations of the events are in both, and twice as big in the
+ * second one, while the compiler of the JVM can allocate a few bytes once, i.e. when it
+ * deoptimizes a method. A run that allocates is repeated up to {@link #ATTEMPTS} times, and it
+ * exits with 1, so it can fail a build, unless both runs of every event allocate exactly 0 bytes
+ * and the stops of the joystick are right.
+ *
+ * Usage: TouchAllocations [N, events of each kind in the shorter run, 4096 by default]
+ */
+
+public class TouchAllocations {
+
+    /**
+     * Whole gestures of the joystick, so no movement is held when a run ends
+     */
+    private static final int WARMUP_EVENTS = 10240;
+
+    /**
+     * Times that a run is counted before its bytes are taken as allocations of the events
+     */
+    private static final int ATTEMPTS = 3;
+
+    /**
+     * The commands sent by each event, so the counted ones fit in a region of the recorder
+     */
+    private static final int MAX_COMMANDS_PER_EVENT = 4;
+
+    /**
+     * Interval of the heartbeats of the binary frames, as the default of the settings
+     */
+    private static final int HEARTBEAT_INTERVAL = 200;
+
+    private static final long STOP = RobotCommand.of(RobotCommand.STOP);
+
+    // Ids of the views of the movement buttons
+    private static final int FORWARD_BUTTON = 1;
+    private static final int LEFT_BUTTON = 2;
+
+    /**
+     * Moves of the joystick in each gesture, from the press to the release
+     */
+    private static final int JOYSTICK_GESTURE_EVENTS = 64;
+
+
+    /**
+     * The handler of the UI thread, with the time advanced by the events. Its tasks are kept in
+     * arrays, so posting them doesn't create objects.
+     */
+    private static class SimulatedScheduler implements TaskScheduler {
+
+        private static final int SLOTS = 8;
+
+        private final Runnable[] mTasks = new Runnable[SLOTS];
+        private final long[] mTimes = new long[SLOTS];
+        private long mNow;
+
+        @Override
+        public void postDelayed(Runnable task, long delayMillis) {
+            for (int i = 0; i < SLOTS; i++) {
+                if (mTasks[i] == null) {
+                    mTasks[i] = task;
+                    mTimes[i] = mNow + delayMillis;
+                    return;
+                }
+            }
+            throw new IllegalStateException("too many tasks posted");
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            for (int i = 0; i < SLOTS; i++) {
+                if (mTasks[i] == task) {
+                    mTasks[i] = null;
+                }
+            }
+        }
+
+        /**
+         * Moves the time forward and runs the tasks that were due
+         */
+        void advance(long millis) {
+            mNow += millis;
+            for (int i = 0; i < SLOTS; i++) {
+                Runnable task = mTasks[i];
+                if (task != null && mTimes[i] <= mNow) {
+                    mTasks[i] = null;
+                    task.run();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * The RobotListener of the RoboPad activity without the Android parts
+     */
+    private static class DispatchingListener extends BenchmarkRobotListener {
+
+        private final CommandDispatcher mDispatcher;
+
+        DispatchingListener(CommandWriter commandWriter, CommandDispatcher dispatcher) {
+            super(commandWriter);
+            mDispatcher = dispatcher;
+        }
+
+        /**
+         * A full queue of the writer drops the command, as in the activity, that only logs it
+         */
+        @Override
+        public void onSendCommand(long command) {
+            mDispatcher.send(command, System.nanoTime());
+        }
+
+        @Override
+        public void onResendCommand(long command) {
+            mDispatcher.resend(command, System.nanoTime());
+        }
+    }
+
+
+    /**
+     * The controls of a robot fragment, as its touch listeners call them
+     */
+    private static class Fragment {
+
+        final SimulatedScheduler mScheduler = new SimulatedScheduler();
+        final DispatchingListener mListener;
+        final MovementControl mMovementControl;
+        final ClawControl mClawControl;
+
+        Fragment(DispatchingListener listener) {
+            mListener = listener;
+
+            mMovementControl = new MovementControl(new MovementControl.Robot() {
+                // The fragment only sends the mode when the robot is in another one, every
+                // press sends it here
+                @Override
+                public void onManualControl() {
+                    mListener.onSendCommand(RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_MANUAL_CONTROL));
+                }
+
+                @Override
+                public void onMovement(int buttonId) {
+                    mListener.onSendCommand(RobotCommand.of(buttonId == FORWARD_BUTTON ?
+                            RobotCommand.FORWARD : RobotCommand.LEFT));
+                }
+            }, mScheduler);
+            mMovementControl.setRobotListener(listener);
+
+            mClawControl = new ClawControl(new ClawControl.Buttons() {
+                @Override
+                public void setOpenEnabled(boolean enabled) {
+                }
+
+                @Override
+                public void setCloseEnabled(boolean enabled) {
+                }
+            }, mScheduler);
+            mClawControl.setRobotListener(listener);
+            mClawControl.reset();
+        }
+    }
+
+
+    /**
+     * An event of the fragments
+     */
+    private abstract static class TouchEvent {
+
+        final String mName;
+
+        TouchEvent(String name) {
+            mName = name;
+        }
+
+        /**
+         * @param i position of the event in the run
+         */
+        abstract void run(Fragment fragment, int i);
+    }
+
+    private static final char[] sValueChars = new char[IntChars.MAX_LENGTH];
+
+    private static final TouchEvent[] EVENTS = {
+            new TouchEvent("nothing") {
+                @Override
+                void run(Fragment fragment, int i) {
+                }
+            },
+            // A click of a direction button, and the time until the stop would be sent again
+            new TouchEvent("movement click") {
+                @Override
+                void run(Fragment fragment, int i) {
+                    fragment.mMovementControl.onButtonDown(i % 2 == 0 ? FORWARD_BUTTON : LEFT_BUTTON);
+                    fragment.mMovementControl.onButtonUp();
+                    fragment.mScheduler.advance(RoboPadConstants.CLICK_SLEEP_TIME);
+                }
+            },
+            // A claw button of the Beetle held for three steps, opening and closing in turns
+            new TouchEvent("claw hold") {
+                @Override
+                void run(Fragment fragment, int i) {
+                    fragment.mClawControl.press(i % 2 == 0 ? Claw_next_state.OPEN_STEP : Claw_next_state.CLOSE_STEP);
+                    fragment.mScheduler.advance(RoboPadConstants.CLICK_SLEEP_TIME);
+                    fragment.mScheduler.advance(RoboPadConstants.CLICK_SLEEP_TIME);
+                    fragment.mClawControl.release();
+                    fragment.mScheduler.advance(RoboPadConstants.CLICK_SLEEP_TIME);
+                }
+            },
+            // A move of the period seek bar of the Crab, with the text of its value
+            new TouchEvent("slider move") {
+                @Override
+                void run(Fragment fragment, int i) {
+                    int period = RoboPadConstants.MIN_PERIOD
+                            + i % (RoboPadConstants.MAX_PERIOD - RoboPadConstants.MIN_PERIOD);
+                    if (IntChars.format(period, sValueChars) < 0) {
+                        throw new IllegalStateException();
+                    }
+                    fragment.mListener.onSendCommand(RobotCommand.of(RobotCommand.PERIOD, period));
+                }
+            },
+            // A move of the finger around the analog joystick, sent when the speeds change as
+            // the JoystickView does, through the dead zone of the centre in the middle of each
+            // gesture, and its release at the end
+            new TouchEvent("joystick move") {
+                long mCommand;
+
+                @Override
+                void run(Fragment fragment, int i) {
+                    int move = i % JOYSTICK_GESTURE_EVENTS;
+                    if (move == 0) {
+                        fragment.mMovementControl.onJoystickPressed();
+                    }
+
+                    if (move == JOYSTICK_GESTURE_EVENTS / 2) {
+                        mCommand = STOP;
+                        fragment.mMovementControl.onDriveChanged(mCommand);
+                        return;
+                    }
+
+                    if (move == JOYSTICK_GESTURE_EVENTS - 1) {
+                        mCommand = STOP;
+                        fragment.mMovementControl.onJoystickReleased();
+                        fragment.mScheduler.advance(RoboPadConstants.CLICK_SLEEP_TIME);
+                        return;
+                    }
+
+                    double angle = i * 0.01;
+                    long command = DifferentialDrive.commandOf((float) Math.cos(angle), (float) Math.sin(angle));
+                    if (command != mCommand) {
+                        mCommand = command;
+                        fragment.mMovementControl.onDriveChanged(command);
+                    }
+                }
+            }
+    };
+
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int events = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        if ((long) 2 * events * MAX_COMMANDS_PER_EVENT > SessionRecorder.REGION_RECORDS) {
+            events = SessionRecorder.REGION_RECORDS / MAX_COMMANDS_PER_EVENT / 2;
+        }
+        // Whole gestures of the joystick
+        events = Math.max(JOYSTICK_GESTURE_EVENTS, events - events % JOYSTICK_GESTURE_EVENTS);
+
+        boolean stopsWrong = !checkJoystickStops();
+        stopsWrong |= !checkStopAgainDuringMacro();
+
+        boolean allocated = run(new LegacyCommandEncoder(), 0, events);
+        allocated |= run(new FrameCommandEncoder(), HEARTBEAT_INTERVAL, events);
+
+        System.out.println(allocated ? "the touch handling allocates" : "the touch handling allocates nothing");
+        if (allocated || stopsWrong) {
+            System.exit(1);
+        }
+    }
+
+
+    /**
+     * Without heartbeats, a drag through the dead zone of the joystick sends a single stop and
+     * the drive after it is the last command while the joystick is held, however long, and the
+     * release sends the stop and then once again
+     *
+     * @return whether the stops were right
+     */
+    private static boolean checkJoystickStops() {
+        final long[] sent = new long[16];
+        final int[] count = new int[1];
+
+        RobotListener listener = new RobotListener() {
+            @Override
+            public boolean onCheckIsConnected() {
+                return true;
+            }
+
+            @Override
+            public boolean onCheckIsConnectedWithoutToast() {
+                return true;
+            }
+
+            @Override
+            public boolean onCheckHasHeartbeats() {
+                return false;
+            }
+
+            @Override
+            public void onSendCommand(long command) {
+                sent[count[0]++] = command;
+            }
+
+            @Override
+            public void onResendCommand(long command) {
+                sent[count[0]++] = command;
+            }
+
+            @Override
+            public void onPlayChoreography(Choreography choreography) {
+                throw new UnsupportedOperationException();
+            }
+        };
+
+        SimulatedScheduler scheduler = new SimulatedScheduler();
+        MovementControl control = new MovementControl(new MovementControl.Robot() {
+            @Override
+            public void onManualControl() {
+            }
+
+            @Override
+            public void onMovement(int buttonId) {
+            }
+        }, scheduler);
+        control.setRobotListener(listener);
+
+        long drive = DifferentialDrive.commandOf(0, 1);
+        control.onJoystickPressed();
+        control.onDriveChanged(drive);
+        control.onDriveChanged(STOP);
+        scheduler.advance(RoboPadConstants.CLICK_SLEEP_TIME / 2);
+        control.onDriveChanged(drive);
+        scheduler.advance(RoboPadConstants.CLICK_SLEEP_TIME * 4);
+        boolean held = count[0] == 3 && sent[2] == drive;
+
+        control.onJoystickReleased();
+        scheduler.advance(RoboPadConstants.CLICK_SLEEP_TIME);
+        boolean released = count[0] == 5 && sent[3] == STOP && sent[4] == STOP;
+
+        System.out.println("joystick through the dead zone while held: "
+                + (held ? "no stop sent again" : "FAILED, the stop was sent again"));
+        System.out.println("joystick released: "
+                + (released ? "stop sent again" : "FAILED, the stop wasn't sent again"));
+        return held && released;
+    }
+
+
+    /**
+     * A click of a button and a macro started before its stop is sent again: the macro keeps
+     * playing
+     *
+     * @return whether the macro wasn't cancelled
+     */
+    private static boolean checkStopAgainDuringMacro() throws InterruptedException {
+        LoopbackTransport transport = new LoopbackTransport(null);
+        transport.open();
+        final CommandWriter writer = new CommandWriter(transport, new LegacyCommandEncoder());
+        writer.setRateLimiting(false);
+        writer.start();
+
+        ChoreographyPlayer player = new ChoreographyPlayer(new ChoreographyPlayer.Target() {
+            @Override
+            public void onChoreographyCommand(long command, long deadline) {
+                writer.sendChoreography(command, deadline);
+            }
+
+            @Override
+            public void onChoreographyFinished(Choreography choreography, boolean completed) {
+                writer.endChoreography();
+            }
+        });
+        player.start();
+
+        Fragment fragment = new Fragment(
+                new DispatchingListener(writer, new CommandDispatcher(writer, player, new SessionRecorder())));
+        fragment.mMovementControl.onButtonDown(FORWARD_BUTTON);
+        fragment.mMovementControl.onButtonUp();
+        player.play(Choreography.compile("FORWARD; WAIT 1000; STOP"));
+        fragment.mScheduler.advance(RoboPadConstants.CLICK_SLEEP_TIME);
+        boolean playing = player.isPlaying();
+
+        player.stop();
+        writer.stop();
+        transport.close();
+
+        System.out.println("macro started before the stop is sent again: "
+                + (playing ? "still playing" : "FAILED, cancelled"));
+        return playing;
+    }
+
+
+    /**
+     * Counts the events with an encoder
+     *
+     * @param heartbeatInterval of the writer, in milliseconds, 0 without heartbeats
+     * @param events            of each kind in the shorter run
+     * @return whether an event allocated in both runs
+     */
+    private static boolean run(CommandEncoder encoder, int heartbeatInterval, int events)
+            throws IOException, InterruptedException {
+
+        LoopbackTransport transport = new LoopbackTransport(null);
+        transport.open();
+
+        // Without the rate limiter, so the writer writes every command instead of holding them
+        CommandWriter writer = new CommandWriter(transport, encoder);
+        writer.setRateLimiting(false);
+        writer.setHeartbeatInterval(heartbeatInterval);
+        writer.start();
+        long writerThread = findThread("RoboPadCommandWriter");
+
+        ChoreographyPlayer player = new ChoreographyPlayer(new ChoreographyPlayer.Target() {
+            @Override
+            public void onChoreographyCommand(long command, long deadline) {
+            }
+
+            @Override
+            public void onChoreographyFinished(Choreography choreography, boolean completed) {
+            }
+        });
+        player.start();
+
+        SessionRecorder recorder = new SessionRecorder();
+        File session = File.createTempFile("touch-allocations", ".rps");
+        session.deleteOnExit();
+
+        Fragment fragment = new Fragment(
+                new DispatchingListener(writer, new CommandDispatcher(writer, player, recorder)));
+
+        System.out.println(encoder.getClass().getSimpleName() + ", heartbeats every "
+                + heartbeatInterval + " ms");
+        System.out.println("           event  events  UI bytes  writer bytes  attempts");
+
+        boolean allocated = false;
+
+        for (TouchEvent event : EVENTS) {
+            recorder.start(session, 0, System.nanoTime());
+            for (int i = 0; i < WARMUP_EVENTS; i++) {
+                event.run(fragment, i);
+            }
+            recorder.stop();
+            drain(transport);
+
+            for (int length = events; length <= 2 * events; length += events) {
+                long[] bytes = new long[2];
+                int attempt = 0;
+                do {
+                    attempt++;
+                    count(event, fragment, length, recorder, session, transport, writerThread, bytes);
+                } while ((bytes[0] != 0 || bytes[1] != 0) && attempt < ATTEMPTS);
+
+                allocated |= bytes[0] != 0 || bytes[1] != 0;
+
+                System.out.println(String.format("%16s %7d %9d %13d %9d", event.mName, length,
+                        bytes[0], bytes[1], attempt));
+            }
+        }
+
+        player.stop();
+        writer.stop();
+        transport.close();
+
+        return allocated;
+    }
+
+
+    /**
+     * Runs the event and counts the bytes
+     *
+     * @param bytes set to the bytes of the thread of the events, without the cost of counting, and
+     *              to those of the writer thread
+     */
+    private static void count(TouchEvent event, Fragment fragment, int length, SessionRecorder recorder,
+                              File session, LoopbackTransport transport, long writerThread, long[] bytes)
+            throws IOException, InterruptedException {
+
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long eventThread = Thread.currentThread().getId();
+
+        recorder.start(session, 0, System.nanoTime());
+
+        // The cost of counting
+        long baselineStart = threads.getThreadAllocatedBytes(eventThread);
+        long baseline = threads.getThreadAllocatedBytes(eventThread) - baselineStart;
+
+        long writerStart = threads.getThreadAllocatedBytes(writerThread);
+        long start = threads.getThreadAllocatedBytes(eventThread);
+        for (int i = 0; i < length; i++) {
+            event.run(fragment, i);
+        }
+        bytes[0] = threads.getThreadAllocatedBytes(eventThread) - start - baseline;
+        drain(transport);
+        bytes[1] = threads.getThreadAllocatedBytes(writerThread) - writerStart;
+
+        recorder.stop();
+    }
+
+
+    /**
+     * Wait until the writer has written everything
+     */
+    private static void drain(LoopbackTransport transport) throws InterruptedException {
+        long lastFrames = -1;
+        while (transport.getFramesWritten() != lastFrames) {
+            lastFrames = transport.getFramesWritten();
+            Thread.sleep(50);
+        }
+    }
+
+
+    private static long findThread(String name) {
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            if (name.equals(entry.getKey().getName())) {
+                return entry.getKey().getId();
+            }
+        }
+        throw new IllegalStateException("no thread " + name);
+    }
+
+}
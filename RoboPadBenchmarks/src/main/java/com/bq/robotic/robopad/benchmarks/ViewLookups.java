@@ -0,0 +1,152 @@
+package com.bq.robotic.robopad.benchmarks;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+/**
+ * Checks that the callbacks of the RoboPad activity and of the robot fragments never look up
+ * their views: findViewById() walks the view tree, and these run on every touch, every move of
+ * a slider, every change of the connection or every step of the tips. The views are resolved
+ * once for each inflation of the layout, in onCreate(), onCreateView(), setUiListeners(),
+ * onViewCreated() or onActivityCreated(), and kept in fields.
+ *
+ * The sources are read as text: the body of every method with the name of a callback, in the
+ * classes or in their anonymous listeners, must not call findViewById().
+ *
+ * Usage: ViewLookups [directory of the sources of the app, RoboPad/src/main/java by default].
+ * It ends with exit status 1 if a callback looks up a view.
+ */
+
+public class ViewLookups {
+
+    private static final String PACKAGE = "com/bq/robotic/robopad";
+
+    private static final String[] SOURCES = {
+            "RoboPad.java",
+            "fragments/RobotFragment.java",
+            "fragments/PollywogFragment.java",
+            "fragments/BeetleFragment.java",
+            "fragments/RhinoFragment.java",
+            "fragments/CrabFragment.java",
+            "fragments/EvolutionFragment.java",
+            "fragments/GenericRobotFragment.java",
+            "utils/JoystickView.java",
+            "utils/SliderView.java"
+    };
+
+    /**
+     * The touches, the seek bars, the connection, the tips and what they call
+     */
+    private static final Pattern CALLBACK = Pattern.compile("\\b(onTouch|onTouchEvent|onClick|onLongClick"
+            + "|onProgressChanged|onStartTrackingTouch|onStopTrackingTouch|onJoystickPressed|onDriveChanged|onJoystickReleased"
+            + "|onBluetoothConnected|onBluetoothDisconnected|onSendCommand|onResendCommand|handleMessage|changeViewsVisibility"
+            + "|controlButtonActionDown|stateChanged|applyGait|onShowNextTip|onToolTipViewClicked|run)"
+            + "\\s*\\([^()]*\\)\\s*(throws\\s+[\\w.,\\s]+)?\\{");
+
+
+    public static void main(String[] args) throws IOException {
+        File root = new File(args.length > 0 ? args[0] : "RoboPad/src/main/java", PACKAGE);
+        int callbacks = 0;
+        int lookups = 0;
+
+        for (String name : SOURCES) {
+            String source = new String(Files.readAllBytes(new File(root, name).toPath()), Charset.forName("UTF-8"));
+            String code = withoutCommentsAndStrings(source);
+
+            Matcher matcher = CALLBACK.matcher(code);
+            while (matcher.find()) {
+                int start = matcher.end();
+                int end = endOfBlock(code, start);
+                callbacks++;
+
+                int lookup = code.indexOf("findViewById", start);
+                while (lookup >= 0 && lookup < end) {
+                    lookups++;
+                    System.out.println(name + ":" + lineOf(code, lookup) + ": findViewById() in "
+                            + matcher.group(1) + "()");
+                    lookup = code.indexOf("findViewById", lookup + 1);
+                }
+            }
+        }
+
+        System.out.println(callbacks + " callbacks, " + lookups + " view lookups in them");
+        if (lookups > 0) {
+            System.exit(1);
+        }
+    }
+
+
+    /**
+     * @return the same text with the comments and the literals blanked, keeping the new lines
+     */
+    private static String withoutCommentsAndStrings(String source) {
+        StringBuilder code = new StringBuilder(source);
+        int i = 0;
+
+        while (i < code.length()) {
+            char c = code.charAt(i);
+            int end;
+
+            if (c == '/' && i + 1 < code.length() && code.charAt(i + 1) == '/') {
+                end = code.indexOf("\n", i);
+                end = end < 0 ? code.length() : end;
+            } else if (c == '/' && i + 1 < code.length() && code.charAt(i + 1) == '*') {
+                end = code.indexOf("*/", i + 2);
+                end = end < 0 ? code.length() : end + 2;
+            } else if (c == '"' || c == '\'') {
+                end = i + 1;
+                while (end < code.length() && code.charAt(end) != c) {
+                    end += code.charAt(end) == '\\' ? 2 : 1;
+                }
+                end = Math.min(end + 1, code.length());
+            } else {
+                i++;
+                continue;
+            }
+
+            for (int j = i; j < end; j++) {
+                if (code.charAt(j) != '\n') {
+                    code.setCharAt(j, ' ');
+                }
+            }
+            i = end;
+        }
+
+        return code.toString();
+    }
+
+
+    /**
+     * @param start position after the opening brace
+     * @return position of the matching closing brace
+     */
+    private static int endOfBlock(String code, int start) {
+        int depth = 1;
+        for (int i = start; i < code.length(); i++) {
+            if (code.charAt(i) == '{') {
+                depth++;
+            } else if (code.charAt(i) == '}' && --depth == 0) {
+                return i;
+            }
+        }
+        return code.length();
+    }
+
+
+    private static int lineOf(String code, int position) {
+        int line = 1;
+        for (int i = 0; i < position; i++) {
+            if (code.charAt(i) == '\n') {
+                line++;
+            }
+        }
+        return line;
+    }
+
+}
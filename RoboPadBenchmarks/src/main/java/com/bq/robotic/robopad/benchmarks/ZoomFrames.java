@@ -0,0 +1,217 @@
+package com.bq.robotic.robopad.benchmarks;
+
+
+import com.bq.robotic.robopad.utils.ZoomPanEngine;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+
+/**
+ * Time and bytes of each frame of the zoom of the pin diagrams: a synthetic stream of gestures,
+ * as the {@link com.bq.robotic.robopad.utils.ScaleImageView} gives them to its
+ * {@link ZoomPanEngine}, is run at 60 frames per second of simulated time, with two touch
+ * events in each frame of a gesture as the touch screens send them. Each frame runs its events,
+ * the step of the fling or of the animation and the values of the matrix of the image.
+ *
+ * A cycle of the stream is a double tap zoom in, a drag, a fling, a pinch out and in, a drag
+ * past the left edge that springs back and a double tap zoom out. In every frame the scale must
+ * be between the fitted scale and {@link ZoomPanEngine#MAX_SCALE} and the image must not be
+ * further past its edges than {@link ZoomPanEngine#MAX_OVERSCROLL}, and at the end of each
+ * cycle it must be still, fitted and inside its edges.
+ *
+ * The frames are counted in a run of N frames and in one of 2N: the allocations of the frames
+ * are in both, and twice as big in the second one, while the compiler of the JVM can allocate a
+ * few bytes once. A run that allocates is repeated up to {@link #ATTEMPTS} times.
+ *
+ * It exits with 1 unless both runs allocate exactly 0 bytes, or when a frame breaks those
+ * bounds, or when the 99th percentile of the frame times of the longer run is over
+ * {@link #LOW_END_BUDGET_NANOS}: the budget of a frame at 60 Hz over {@link #LOW_END_SLOWDOWN},
+ * the times that a slow phone is slower than a desktop JVM.
+ *
+ * Usage: ZoomFrames [N, frames of the shorter run, 360000 by default]
+ */
+
+public class ZoomFrames {
+
+    private static final long FRAME_MILLIS = 16;
+    private static final long FRAME_BUDGET_NANOS = 16666667;
+    private static final int LOW_END_SLOWDOWN = 50;
+    private static final long LOW_END_BUDGET_NANOS = FRAME_BUDGET_NANOS / LOW_END_SLOWDOWN;
+
+    private static final int WARMUP_FRAMES = 100000;
+
+    /**
+     * Times that a run is counted before its bytes are taken as allocations of the frames
+     */
+    private static final int ATTEMPTS = 3;
+
+    // The pin diagram of xxhdpi in a popup of a phone
+    private static final int VIEW_WIDTH = 1280;
+    private static final int VIEW_HEIGHT = 720;
+    private static final int IMAGE_WIDTH = 1500;
+    private static final int IMAGE_HEIGHT = 933;
+
+    private static final int CYCLE_FRAMES = 360;
+
+    private static final float EPSILON = 0.01f;
+
+    private static final float[] sMatrix = new float[3];
+    private static int sOutOfBounds;
+    private static int sUnsettled;
+
+
+    public static void main(String[] args) {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : CYCLE_FRAMES * 1000;
+
+        ZoomPanEngine engine = new ZoomPanEngine();
+        engine.setViewSize(VIEW_WIDTH, VIEW_HEIGHT);
+        engine.setImageSize(IMAGE_WIDTH, IMAGE_HEIGHT);
+
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            frame(engine, i);
+        }
+        sOutOfBounds = 0;
+        sUnsettled = 0;
+
+        long[] times = new long[2 * frames];
+        long first = WARMUP_FRAMES;
+        boolean allocated = false;
+
+        System.out.println("  frames  attempts  bytes");
+
+        for (int length = frames; length <= 2 * frames; length += frames) {
+            long bytes;
+            int attempt = 0;
+            do {
+                attempt++;
+                bytes = count(engine, first, length, times);
+                first += length;
+            } while (bytes != 0 && attempt < ATTEMPTS);
+
+            allocated |= bytes != 0;
+            System.out.println(String.format("%8d %9d %6d", length, attempt, bytes));
+        }
+
+        // The times of the last run, of 2N frames
+        Arrays.sort(times);
+        long p50 = times[frames];
+        long p99 = times[(int) (2 * frames * 0.99)];
+        long max = times[2 * frames - 1];
+
+        System.out.println("  p50 us  p99 us  max us  out of bounds  unsettled");
+        System.out.println(String.format("%8.2f %7.2f %7.2f %14d %10d",
+                p50 / 1000.0, p99 / 1000.0, max / 1000.0, sOutOfBounds, sUnsettled));
+        System.out.println(String.format("the 99th percentile is %.3f %% of a frame at 60 Hz", 100.0 * p99 / FRAME_BUDGET_NANOS));
+
+        boolean failed = allocated || sOutOfBounds > 0 || sUnsettled > 0 || p99 > LOW_END_BUDGET_NANOS;
+        System.out.println(allocated ? "the zoom allocates" : failed ? "the zoom fails"
+                : "the zoom allocates nothing and stays in its bounds");
+        if (failed) {
+            System.exit(1);
+        }
+    }
+
+
+    /**
+     * Runs frames and counts the bytes they allocate, without the cost of counting
+     *
+     * @param first position of the first frame from the start of the stream
+     * @param times set to the time of each frame, in nanoseconds
+     */
+    private static long count(ZoomPanEngine engine, long first, int length, long[] times) {
+        com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        long baselineStart = threads.getThreadAllocatedBytes(thread);
+        long baseline = threads.getThreadAllocatedBytes(thread) - baselineStart;
+
+        long start = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < length; i++) {
+            long frameStart = System.nanoTime();
+            frame(engine, first + i);
+            times[i] = System.nanoTime() - frameStart;
+        }
+        return threads.getThreadAllocatedBytes(thread) - start - baseline;
+    }
+
+
+    /**
+     * Runs a frame of the gesture stream, as the touches and computeScroll() of the view
+     *
+     * @param i position of the frame from the start of the run
+     */
+    private static void frame(ZoomPanEngine engine, long i) {
+        int f = (int) (i % CYCLE_FRAMES);
+        long now = i * FRAME_MILLIS;
+
+        if (f == 0) {
+            engine.doubleTap(400, 300, now);
+        } else if (f >= 30 && f < 60) {
+            event(engine, f, 0);
+            event(engine, f, 1);
+        } else if (f == 60) {
+            engine.fling(-2500, -1200, now);
+        } else if (f >= 120 && f < 200) {
+            event(engine, f, 0);
+            event(engine, f, 1);
+        } else if (f == 200) {
+            engine.release(now);
+        } else if (f >= 240 && f < 280) {
+            event(engine, f, 0);
+            event(engine, f, 1);
+        } else if (f == 280) {
+            engine.release(now);
+        } else if (f == 320) {
+            engine.doubleTap(640, 360, now);
+        }
+
+        engine.step(now);
+
+        // The matrix of the image
+        sMatrix[0] = engine.getScale();
+        sMatrix[1] = engine.getTranslateX();
+        sMatrix[2] = engine.getTranslateY();
+
+        check(engine);
+
+        if (f == CYCLE_FRAMES - 1 && (engine.isMoving()
+                || Math.abs(engine.getScale() - engine.getMinScale()) > EPSILON
+                || engine.getTranslateX() < engine.getMinTranslateX() - EPSILON
+                || engine.getTranslateX() > engine.getMaxTranslateX() + EPSILON
+                || engine.getTranslateY() < engine.getMinTranslateY() - EPSILON
+                || engine.getTranslateY() > engine.getMaxTranslateY() + EPSILON)) {
+            sUnsettled++;
+        }
+    }
+
+
+    /**
+     * A touch event of the gesture of the frame
+     */
+    private static void event(ZoomPanEngine engine, int f, int n) {
+        if (f < 60) {
+            engine.panBy(-12, -6);
+        } else if (f < 160) {
+            engine.scaleBy(0.985f, 640, 360);
+        } else if (f < 200) {
+            engine.scaleBy(1.015f, 200 + n, 500);
+        } else {
+            engine.panBy(25, 0);
+        }
+    }
+
+
+    private static void check(ZoomPanEngine engine) {
+        if (engine.getScale() < engine.getMinScale() - EPSILON
+                || engine.getScale() > engine.getMaxScale() + EPSILON
+                || engine.getTranslateX() < engine.getMinTranslateX() - engine.getMaxOverscrollX() - EPSILON
+                || engine.getTranslateX() > engine.getMaxTranslateX() + engine.getMaxOverscrollX() + EPSILON
+                || engine.getTranslateY() < engine.getMinTranslateY() - engine.getMaxOverscrollY() - EPSILON
+                || engine.getTranslateY() > engine.getMaxTranslateY() + engine.getMaxOverscrollY() + EPSILON) {
+            sOutOfBounds++;
+        }
+    }
+
+}
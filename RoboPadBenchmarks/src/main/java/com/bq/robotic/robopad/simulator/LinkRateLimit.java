@@ -0,0 +1,222 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.benchmarks.BenchmarkRobotListener;
+import com.bq.robotic.robopad.connection.AckTracker;
+import com.bq.robotic.robopad.connection.CommandWriter;
+import com.bq.robotic.robopad.connection.FrameCommandEncoder;
+import com.bq.robotic.robopad.connection.LatencyHistogram;
+import com.bq.robotic.robopad.connection.LoopbackTransport;
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.connection.SendRateLimiter;
+import com.bq.robotic.robopad.utils.RoboPadConstants;
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * The {@link SendRateLimiter} of the {@link CommandWriter} with a link that has a send buffer,
+ * as the Bluetooth socket, flooded with more commands than it can write. The Crab gets the
+ * values of its sliders, at the speed of the module that the limiter starts with, and the
+ * Evolution gets movements, with its serial port at half that speed, so the limiter has to find
+ * it. Each robot runs without the limiter, with it, and with it and the acks of the firmware.
+ *
+ * The latency is the time from the send of each value of the period of the Crab to its
+ * application by the sketch, and the time to stop the one of a stop sent at the end of the
+ * flood, when the buffer of the link is as full as it gets.
+ *
+ * Usage: LinkRateLimit [seconds of each run, 3 by default]
+ */
+
+public class LinkRateLimit {
+
+    private static final long SECOND = 1000000000L;
+    private static final long MILLIS = 1000000L;
+
+    // Twice the serial port of the Crab, four times the one of the Evolution
+    private static final long TRAFFIC_INTERVAL_NANOS = MILLIS / 2;
+
+    /**
+     * Small for the buffer of a Bluetooth socket, but it already holds a quarter of second of the
+     * serial port of the robots
+     */
+    private static final int BUFFER_BYTES = 1024;
+
+    private static final long DRAIN_NANOS = 5 * SECOND;
+
+    private static final String[] LIMITER_MODES = {"off", "on", "on, acks"};
+
+    /**
+     * A robot and the traffic that its controller sends
+     */
+    private abstract static class Robot {
+
+        abstract SimulatedRobot create();
+
+        /**
+         * @param i position of the command in the traffic
+         * @return the command, never equal to the previous one of its field
+         */
+        abstract long traffic(int i);
+    }
+
+    private static final Robot[] ROBOTS = {
+            new Robot() {
+                @Override
+                SimulatedRobot create() {
+                    return new SimulatedCrab();
+                }
+
+                @Override
+                long traffic(int i) {
+                    int step = i / 4;
+                    switch (i % 4) {
+                        case 0:
+                            return RobotCommand.of(RobotCommand.PERIOD, periodOf(step));
+                        case 1:
+                            return RobotCommand.of(RobotCommand.LEFT_AMPLITUDE, step % (RoboPadConstants.MAX_AMPLITUDE + 1));
+                        case 2:
+                            return RobotCommand.of(RobotCommand.RIGHT_AMPLITUDE, (step + 20) % (RoboPadConstants.MAX_AMPLITUDE + 1));
+                        default:
+                            return RobotCommand.of(RobotCommand.PHASE, RoboPadConstants.MIN_PHASE
+                                    + (step * 7) % (RoboPadConstants.MAX_PHASE - RoboPadConstants.MIN_PHASE + 1));
+                    }
+                }
+            },
+            new Robot() {
+                @Override
+                SimulatedRobot create() {
+                    return new SimulatedEvolution();
+                }
+
+                @Override
+                long traffic(int i) {
+                    return RobotCommand.of(MOVEMENTS[i % MOVEMENTS.length]);
+                }
+            }
+    };
+
+    private static final int[] MOVEMENTS = {
+            RobotCommand.FORWARD, RobotCommand.LEFT, RobotCommand.BACKWARD, RobotCommand.RIGHT
+    };
+
+
+    /**
+     * @return a period that is not repeated in the run, so its send time is known
+     */
+    private static int periodOf(int step) {
+        return RoboPadConstants.MIN_PERIOD + step % (RoboPadConstants.MAX_PERIOD - RoboPadConstants.MIN_PERIOD);
+    }
+
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+
+        System.out.println("      robot, limiter   applied  p50 ms  max ms  stop ms  estimate B/s"
+                + "  throttled  superseded  dropped  overflow");
+
+        for (Robot robot : ROBOTS) {
+            for (int mode = 0; mode < LIMITER_MODES.length; mode++) {
+                run(robot, mode, seconds);
+            }
+        }
+    }
+
+
+    private static void run(Robot robot, int mode, int seconds) {
+        final AckTracker ackTracker = new AckTracker();
+        final SimulatedRobot simulated = robot.create();
+
+        // The acks are received in the writer thread, where the frames are given to the robot,
+        // with the virtual time of the robot. The telemetry of the autonomous modes is ignored
+        simulated.getSerial().setMessageListener(new SimulatedSerial.MessageListener() {
+            @Override
+            public void onMessage(String message, long time) {
+                if (message.charAt(2) == AckTracker.ACK_PREFIX) {
+                    ackTracker.onAck(Integer.parseInt(message.substring(3, message.length() - 2)), time);
+                }
+            }
+        });
+
+        // Turned on long ago, so it is ready
+        simulated.powerOn(System.nanoTime() - 10 * SECOND);
+
+        LoopbackTransport transport = new LoopbackTransport(simulated,
+                simulated.getSerial().getBytesPerSecond(), BUFFER_BYTES);
+        transport.open();
+
+        CommandWriter writer = new CommandWriter(transport,
+                new FrameCommandEncoder(mode == 2 ? ackTracker : null));
+        writer.setRateLimiting(mode != 0);
+        BenchmarkRobotListener listener = new BenchmarkRobotListener(writer);
+        writer.start();
+
+        long[] periodSendTimes = new long[RoboPadConstants.MAX_PERIOD];
+        long start = System.nanoTime();
+        long end = start + seconds * SECOND;
+        int i = 0;
+
+        for (long time = start; time < end; time += TRAFFIC_INTERVAL_NANOS) {
+            long remaining;
+            while ((remaining = time - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+
+            long command = robot.traffic(i++);
+            if (RobotCommand.opcode(command) == RobotCommand.PERIOD) {
+                periodSendTimes[RobotCommand.arg(command)] = System.nanoTime();
+            }
+            listener.onSendCommand(command);
+        }
+
+        long stopTime = System.nanoTime();
+        listener.onSendCommand(RobotCommand.of(RobotCommand.STOP));
+
+        // Run the sketch until it applies the stop
+        long timeToStop = -1;
+        long drainEnd = System.nanoTime() + DRAIN_NANOS;
+        int applied = 0;
+        while (timeToStop < 0 && System.nanoTime() < drainEnd) {
+            LockSupport.parkNanos(MILLIS);
+            simulated.runUntil(System.nanoTime());
+
+            for (; applied < simulated.getAppliedCount(); applied++) {
+                if (simulated.getAppliedTime(applied) >= stopTime
+                        && RobotCommand.opcode(simulated.getAppliedCommand(applied)) == RobotCommand.STOP) {
+                    timeToStop = simulated.getAppliedTime(applied) - stopTime;
+                    break;
+                }
+            }
+        }
+
+        writer.stop();
+        transport.close();
+
+        LatencyHistogram latencies = new LatencyHistogram();
+        for (applied = 0; applied < simulated.getAppliedCount(); applied++) {
+            long command = simulated.getAppliedCommand(applied);
+            if (RobotCommand.opcode(command) == RobotCommand.PERIOD) {
+                long sendTime = periodSendTimes[RobotCommand.arg(command)];
+                if (sendTime != 0) {
+                    latencies.record(simulated.getAppliedTime(applied) - sendTime);
+                }
+            }
+        }
+
+        SendRateLimiter limiter = writer.getRateLimiter();
+        System.out.println(String.format("%11s, %-8s %8d %7s %7s %8s %13d %10d %11d %8d %9d",
+                simulated.getName(), LIMITER_MODES[mode], simulated.getAppliedCount(),
+                latencies.getCount() == 0 ? "-" : millis(latencies.getPercentileMicros(50)),
+                latencies.getCount() == 0 ? "-" : millis(latencies.getMaxMicros()),
+                timeToStop < 0 ? "never" : millis(timeToStop / 1000),
+                limiter.getEstimatedBytesPerSecond(), limiter.getThrottles(),
+                writer.getSupersededCommands(), writer.getDroppedCommands(),
+                simulated.getSerial().getBytesOverflowed()));
+    }
+
+
+    private static String millis(long micros) {
+        return (micros / 1000) + "." + (micros % 1000) / 100;
+    }
+
+}
@@ -0,0 +1,707 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.connection.AckTracker;
+import com.bq.robotic.robopad.connection.CommandEncoder;
+import com.bq.robotic.robopad.connection.ControlState;
+import com.bq.robotic.robopad.connection.FrameCommandEncoder;
+import com.bq.robotic.robopad.connection.LegacyCommandEncoder;
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.connection.RobotTelemetry;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * Checks that the sketches read the commands of the app whatever the way their bytes arrive:
+ * frames alone, in bursts, split at any byte, with a byte lost or changed, legacy commands with
+ * and without new line, and both mixed. The bytes are given to the ports of the
+ * RoboPadFrameDecoder and the RoboPadCommandReader as the loop() of the sketches does, so the
+ * same checks hold for the library of the boards.
+ *
+ * A byte lost or changed must only lose the frame where it happens. The decoder can still take
+ * a wrong frame when the bytes around the error have a valid checksum by chance, about once
+ * every 256 headers tried, so these collisions are counted and only fail when they are more
+ * than {@link #MAX_COLLISION_RATE} of the cases.
+ *
+ * The other way, the telemetry messages written by the port of the RoboPadTelemetry class
+ * must give the app the same values, and a message broken by the link must change none.
+ *
+ * Usage: ProtocolConformance. It ends with exit status 1 if any check fails.
+ */
+
+public class ProtocolConformance {
+
+    /**
+     * Time of a byte at 38400 bauds
+     */
+    private static final long BYTE_MICROS = 260;
+
+    private static final double MAX_COLLISION_RATE = 0.01;
+
+    private static final int SPLIT_SEEDS = 100;
+
+    /**
+     * Commands with every opcode and the limits of the arguments
+     */
+    private static final long[] COMMANDS = {
+            RobotCommand.of(RobotCommand.STOP),
+            RobotCommand.of(RobotCommand.FORWARD),
+            RobotCommand.of(RobotCommand.BACKWARD),
+            RobotCommand.of(RobotCommand.LEFT),
+            RobotCommand.of(RobotCommand.RIGHT),
+            RobotCommand.of(RobotCommand.HEARTBEAT, 600),
+            RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_LINE_FOLLOWER),
+            RobotCommand.of(RobotCommand.CLAW, 55),
+            RobotCommand.of(RobotCommand.CHARGE),
+            RobotCommand.of(RobotCommand.LEFT_TRACK, RobotCommand.TRACK_DOWN),
+            RobotCommand.of(RobotCommand.RIGHT_TRACK, RobotCommand.TRACK_UP),
+            RobotCommand.of(RobotCommand.LEFT_AMPLITUDE, 0),
+            RobotCommand.of(RobotCommand.RIGHT_AMPLITUDE, 40),
+            RobotCommand.of(RobotCommand.PERIOD, 8000),
+            RobotCommand.of(RobotCommand.PHASE, -90),
+            RobotCommand.of(RobotCommand.RESET),
+            RobotCommand.gait(0, 40, 8000, -90),
+            RobotCommand.gait(255, 0, 65535, -32768),
+            RobotCommand.drive(RobotCommand.DRIVE_MAX_SPEED, -RobotCommand.DRIVE_MAX_SPEED),
+            RobotCommand.drive(-35, 60),
+            RobotCommand.of(RobotCommand.USER_COMMAND, Integer.MAX_VALUE),
+            RobotCommand.of(RobotCommand.USER_COMMAND, Integer.MIN_VALUE),
+            RobotCommand.of(RobotCommand.USER_COMMAND, -1)
+    };
+
+    /**
+     * Written around the frames of the corruption checks. The one before is the first frame, so
+     * the sketch reads the rest as frames, and the ones after avoid that a header found in the
+     * bytes of the error waits for bytes that never arrive
+     */
+    private static final long PADDING_COMMAND = RobotCommand.of(RobotCommand.USER_COMMAND, 0x7E7E);
+
+    private int mChecks;
+    private int mFailures;
+
+
+    /**
+     * The bytes of a test, with the time when each one arrives
+     */
+    private static class Stream {
+        byte[] mData = new byte[256];
+        long[] mTimes = new long[256];
+        int mLength;
+        long mTime;
+
+        /**
+         * @param gapMicros time without bytes before these ones
+         */
+        Stream append(byte[] data, int offset, int length, long gapMicros) {
+            if (mLength + length > mData.length) {
+                int capacity = Math.max(mData.length * 2, mLength + length);
+                mData = Arrays.copyOf(mData, capacity);
+                mTimes = Arrays.copyOf(mTimes, capacity);
+            }
+
+            mTime += gapMicros;
+            for (int i = 0; i < length; i++) {
+                mTime += BYTE_MICROS;
+                mData[mLength] = data[offset + i];
+                mTimes[mLength] = mTime;
+                mLength++;
+            }
+
+            return this;
+        }
+
+        Stream append(byte[] data, long gapMicros) {
+            return append(data, 0, data.length, gapMicros);
+        }
+
+        Stream append(String text, long gapMicros) {
+            return append(text.getBytes(), gapMicros);
+        }
+
+        /**
+         * The same bytes without the one in the given position
+         */
+        Stream without(int position) {
+            Stream stream = new Stream();
+            stream.append(mData, 0, position, 0);
+            stream.append(mData, position + 1, mLength - position - 1, 0);
+            return stream;
+        }
+
+        /**
+         * The same bytes with a bit changed in the given position
+         */
+        Stream flipped(int position, int bit) {
+            Stream stream = new Stream();
+            stream.append(mData, 0, mLength, 0);
+            stream.mData[position] ^= 1 << bit;
+            return stream;
+        }
+    }
+
+
+    /**
+     * Reads a stream as the loop() of the sketches, which checks the command reader while it
+     * waits for the next byte
+     *
+     * @return what the sketch received: "F" and the opcode, sequence and arguments of each frame,
+     * "C" and the text of each legacy command
+     */
+    private static List<String> read(Stream stream) {
+        RoboPadFrameDecoder decoder = new RoboPadFrameDecoder();
+        RoboPadCommandReader reader = new RoboPadCommandReader();
+        List<String> received = new ArrayList<String>();
+
+        for (int i = 0; i < stream.mLength; i++) {
+            int data = stream.mData[i] & 0xFF;
+            long now = stream.mTimes[i];
+
+            if (reader.poll(now - 1)) {
+                received.add(commandOf(reader));
+            }
+
+            if (decoder.isReceiving() || decoder.hasFrames() || RoboPadFrameDecoder.isFrameStart(data)) {
+                boolean complete = decoder.feed(data);
+                while (complete) {
+                    received.add(frameOf(decoder));
+                    complete = decoder.resume();
+                }
+
+            } else if (reader.feed(data, now)) {
+                received.add(commandOf(reader));
+            }
+        }
+
+        if (reader.poll(stream.mTime + RoboPadCommandReader.GAP_MICROS)) {
+            received.add(commandOf(reader));
+        }
+
+        return received;
+    }
+
+
+    private static String frameOf(RoboPadFrameDecoder decoder) {
+        StringBuilder frame = new StringBuilder("F ").append(RobotCommand.nameOf(decoder.opcode()));
+
+        if (decoder.hasSequence()) {
+            frame.append(" #").append(decoder.sequence());
+        }
+        for (int i = 0; i < decoder.argCount(); i++) {
+            frame.append(' ').append(decoder.arg(i));
+        }
+
+        return frame.toString();
+    }
+
+
+    private static String commandOf(RoboPadCommandReader reader) {
+        byte[] command = reader.command();
+        int length = 0;
+        while (command[length] != 0) {
+            length++;
+        }
+
+        return "C " + new String(command, 0, length);
+    }
+
+
+    private static byte[] encode(CommandEncoder encoder, long command) {
+        byte[] buffer = new byte[CommandEncoder.MAX_FRAME_LENGTH];
+        return Arrays.copyOf(buffer, encoder.encode(command, buffer, 0));
+    }
+
+
+    private static byte[] encodeState(FrameCommandEncoder encoder, ControlState state) {
+        byte[] buffer = new byte[CommandEncoder.MAX_FRAME_LENGTH];
+        return Arrays.copyOf(buffer, encoder.encodeState(state, buffer, 0));
+    }
+
+
+    /**
+     * @return the frames of every command and of two state frames, with sequence numbers if
+     * the encoder has an ack tracker
+     */
+    private static List<byte[]> allFrames(FrameCommandEncoder encoder) {
+        List<byte[]> frames = new ArrayList<byte[]>();
+
+        for (long command : COMMANDS) {
+            frames.add(encode(encoder, command));
+        }
+
+        ControlState state = new ControlState();
+        state.apply(RobotCommand.of(RobotCommand.FORWARD), 1);
+        frames.add(encodeState(encoder, state));
+
+        for (long command : COMMANDS) {
+            state.apply(command, 1);
+        }
+        frames.add(encodeState(encoder, state));
+
+        return frames;
+    }
+
+
+    private void check(boolean condition, String description) {
+        mChecks++;
+
+        if (!condition) {
+            mFailures++;
+            System.out.println("   FAILED: " + description);
+        }
+    }
+
+
+    private void checkReceived(List<String> expected, Stream stream, String description) {
+        List<String> received = read(stream);
+        check(received.equals(expected), description + ": expected " + expected + ", received "
+                + received);
+    }
+
+
+    /**
+     * Each frame alone is decoded with the opcode, sequence and arguments of its command
+     */
+    private void checkSingleFrames() {
+        System.out.println("Single frames");
+
+        for (int withSequence = 0; withSequence < 2; withSequence++) {
+            AckTracker ackTracker = withSequence == 1 ? new AckTracker() : null;
+            FrameCommandEncoder encoder = new FrameCommandEncoder(ackTracker);
+
+            for (int i = 0; i < COMMANDS.length; i++) {
+                long command = COMMANDS[i];
+                int opcode = RobotCommand.opcode(command);
+
+                StringBuilder expected = new StringBuilder("F ").append(RobotCommand.nameOf(opcode));
+                if (ackTracker != null) {
+                    expected.append(" #").append(i);
+                }
+                for (int arg = 0; arg < RobotCommand.argCount(opcode); arg++) {
+                    expected.append(' ').append(RobotCommand.arg(command, arg));
+                }
+
+                checkReceived(Arrays.asList(expected.toString()),
+                        new Stream().append(encode(encoder, command), 0),
+                        RobotCommand.nameOf(opcode));
+            }
+        }
+
+        ControlState state = new ControlState();
+        state.apply(RobotCommand.of(RobotCommand.PERIOD, 1500), 1);
+        state.apply(RobotCommand.of(RobotCommand.PHASE, -90), 1);
+
+        StringBuilder expected = new StringBuilder("F STATE ")
+                .append((1 << ControlState.FIELD_PERIOD) | (1 << ControlState.FIELD_PHASE));
+        for (int field = 0; field < ControlState.FIELD_COUNT; field++) {
+            expected.append(' ').append(state.isKnown(field) ? state.get(field) : 0);
+        }
+
+        checkReceived(Arrays.asList(expected.toString()),
+                new Stream().append(encodeState(new FrameCommandEncoder(), state), 0), "STATE");
+    }
+
+
+    /**
+     * Frames written back to back, or split at any byte with any time between the parts, give
+     * the same frames than each one alone
+     */
+    private void checkBurstsAndSplits() {
+        System.out.println("Bursts and splits");
+
+        FrameCommandEncoder encoder = new FrameCommandEncoder(new AckTracker());
+        List<byte[]> frames = allFrames(encoder);
+
+        List<String> expected = new ArrayList<String>();
+        Stream burst = new Stream();
+        for (byte[] frame : frames) {
+            expected.addAll(read(new Stream().append(frame, 0)));
+            burst.append(frame, 0);
+        }
+
+        checkReceived(expected, burst, "burst");
+
+        // The same bytes in parts of 1 to 8 bytes, until 50 ms apart
+        for (int seed = 0; seed < SPLIT_SEEDS; seed++) {
+            Random random = new Random(seed);
+            Stream split = new Stream();
+
+            for (int i = 0; i < burst.mLength; ) {
+                int length = Math.min(1 + random.nextInt(8), burst.mLength - i);
+                split.append(burst.mData, i, length, random.nextInt(50000));
+                i += length;
+            }
+
+            checkReceived(expected, split, "split with seed " + seed);
+        }
+    }
+
+
+    /**
+     * A byte lost or changed only loses its frame. Every byte of a burst is checked.
+     */
+    private void checkCorruption() {
+        System.out.println("Lost and changed bytes");
+
+        FrameCommandEncoder encoder = new FrameCommandEncoder(new AckTracker());
+        List<byte[]> frames = allFrames(encoder);
+
+        List<String> sent = new ArrayList<String>();
+        List<Integer> frameOfByte = new ArrayList<Integer>();
+
+        byte[] padding = encode(new FrameCommandEncoder(), PADDING_COMMAND);
+        String paddingFrame = read(new Stream().append(padding, 0)).get(0);
+
+        Stream burst = new Stream().append(padding, 0);
+        int checkedStart = burst.mLength;
+
+        for (int i = 0; i < frames.size(); i++) {
+            byte[] frame = frames.get(i);
+            sent.addAll(read(new Stream().append(frame, 0)));
+            burst.append(frame, 0);
+            for (int j = 0; j < frame.length; j++) {
+                frameOfByte.add(i);
+            }
+        }
+
+        int checkedEnd = burst.mLength;
+        while (burst.mLength - checkedEnd <= RoboPadFrameDecoder.MAX_FRAME_LENGTH) {
+            burst.append(padding, 0);
+        }
+
+        int cases = 0;
+        int collisions = 0;
+
+        for (int position = checkedStart; position < checkedEnd; position++) {
+            List<String> expected = new ArrayList<String>(sent);
+            expected.remove((int) frameOfByte.get(position - checkedStart));
+
+            List<Stream> corrupted = new ArrayList<Stream>();
+            corrupted.add(burst.without(position));
+            for (int bit = 0; bit < 8; bit++) {
+                corrupted.add(burst.flipped(position, bit));
+            }
+
+            for (int i = 0; i < corrupted.size(); i++) {
+                List<String> received = read(corrupted.get(i));
+                while (received.remove(paddingFrame)) {
+                    // Only the frames of the commands are checked
+                }
+
+                cases++;
+                if (received.equals(expected)) {
+                    continue;
+                }
+
+                // A frame that was not sent comes from a checksum valid by chance
+                boolean collision = false;
+                for (String frame : received) {
+                    collision |= !sent.contains(frame);
+                }
+
+                if (collision) {
+                    collisions++;
+                } else {
+                    check(false, (i == 0 ? "lost byte " : "changed bit " + (i - 1) + " of byte ")
+                            + position + ": expected " + expected + ", received " + received);
+                }
+            }
+        }
+
+        System.out.println("   " + cases + " cases, " + collisions + " collisions");
+        check(collisions <= cases * MAX_COLLISION_RATE, "too many collisions");
+    }
+
+
+    /**
+     * The legacy commands end with a new line, or when no more characters arrive
+     */
+    private void checkLegacyCommands() {
+        System.out.println("Legacy commands");
+
+        long gap = RoboPadCommandReader.GAP_MICROS;
+
+        checkReceived(Arrays.asList("C U", "C T1500", "C AR30", "C S"),
+                new Stream().append("U\nT1500\nAR30\nS\n", 0), "burst with new lines");
+
+        checkReceived(Arrays.asList("C U", "C T1500"),
+                new Stream().append("U\r\nT1500\r\n", 0), "burst with CR LF");
+
+        checkReceived(Arrays.asList("C U", "C T1500", "C L"),
+                new Stream().append("U", 0).append("T1500", gap).append("L", gap), "without new lines");
+
+        checkReceived(Arrays.asList("C T1500"),
+                new Stream().append("T15", 0).append("00", gap - 2 * BYTE_MICROS), "split before the gap");
+
+        checkReceived(Arrays.asList("C T15", "C 00"),
+                new Stream().append("T15", 0).append("00", gap), "split after the gap");
+
+        checkReceived(Arrays.asList("C U", "C D"),
+                new Stream().append("\n\nU\n\n\nD", 0), "empty lines");
+
+        StringBuilder longCommand = new StringBuilder();
+        for (int i = 0; i < RoboPadCommandReader.MAX_LENGTH * 2; i++) {
+            longCommand.append((char) ('a' + i % 26));
+        }
+        checkReceived(Arrays.asList("C " + longCommand.substring(0, RoboPadCommandReader.MAX_LENGTH), "C U"),
+                new Stream().append(longCommand + "\nU\n", 0), "too long");
+
+        // The commands written by the app, each one after the minimum interval of the encoder
+        LegacyCommandEncoder encoder = new LegacyCommandEncoder();
+        long interval = encoder.getMinIntervalNanos() / 1000;
+        List<String> expected = new ArrayList<String>();
+        Stream stream = new Stream();
+
+        for (long command : COMMANDS) {
+            byte[] text = encode(encoder, command);
+            if (text.length > 0) {
+                expected.add("C " + new String(text));
+                stream.append(text, interval);
+            }
+        }
+
+        checkReceived(expected, stream, "written by the app");
+    }
+
+
+    /**
+     * The legacy commands are read until the first frame. Then the app sends frames, so the
+     * other bytes are not read as legacy commands, which could be the rest of a bad frame.
+     */
+    private void checkMixed() {
+        System.out.println("Frames and legacy commands");
+
+        long gap = RoboPadCommandReader.GAP_MICROS;
+        FrameCommandEncoder encoder = new FrameCommandEncoder(new AckTracker());
+        byte[] first = encode(encoder, RobotCommand.of(RobotCommand.FORWARD));
+        byte[] second = encode(encoder, RobotCommand.of(RobotCommand.PERIOD, 1500));
+
+        List<String> expected = new ArrayList<String>();
+        expected.add("C U");
+        expected.add("C T1500");
+        expected.addAll(read(new Stream().append(first, 0)));
+        expected.addAll(read(new Stream().append(second, 0)));
+
+        checkReceived(expected, new Stream().append("U\n", 0).append("T1500", 0).append(first, gap)
+                .append("D\n", 0).append(second, 0).append("S", 0), "legacy commands before frames");
+    }
+
+
+    /**
+     * The app reads the values of every telemetry message of the sketches, and ignores the
+     * messages broken by the link and the ones that are not telemetry
+     */
+    private void checkTelemetry() {
+        System.out.println("Telemetry");
+
+        int[][] samples = {
+                {RobotTelemetry.IR_BLACK, RobotTelemetry.IR_WHITE, 0, 1023, 17241},
+                {RobotTelemetry.IR_WHITE, RobotTelemetry.IR_BLACK, 1023, 0, 0},
+                {-1, Short.MIN_VALUE, Short.MAX_VALUE, 512, 24}
+        };
+
+        RobotTelemetry telemetry = new RobotTelemetry();
+        long time = 0;
+
+        // Every combination of sensors, as the sketches send the ones read since the last message
+        for (int[] sample : samples) {
+            for (int sensors = 1; sensors < 1 << RobotTelemetry.SENSOR_COUNT; sensors++) {
+                RoboPadTelemetry sketch = new RoboPadTelemetry();
+                for (int sensor = 0; sensor < RobotTelemetry.SENSOR_COUNT; sensor++) {
+                    if ((sensors & (1 << sensor)) != 0) {
+                        sketch.set(sensor, sample[sensor]);
+                    }
+                }
+
+                String message = sketch.message(RoboPadTelemetry.INTERVAL_MILLIS);
+                long samplesBefore = telemetry.getSamples();
+                time += RoboPadTelemetry.INTERVAL_MILLIS * SimulatedRobot.MILLIS;
+
+                boolean same = telemetry.onMessage(message, time)
+                        && telemetry.getSamples() == samplesBefore + 1;
+                for (int sensor = 0; sensor < RobotTelemetry.SENSOR_COUNT; sensor++) {
+                    if ((sensors & (1 << sensor)) != 0) {
+                        same &= telemetry.get(sensor) == sample[sensor]
+                                && telemetry.getReceiveTime(sensor) == time;
+                    }
+                }
+                check(same, message);
+            }
+        }
+
+        // Each message cut at any character, or with a character changed by one that breaks its
+        // structure, must change nothing. A changed digit can't be told from another value
+        RoboPadTelemetry sketch = new RoboPadTelemetry();
+        for (int sensor = 0; sensor < RobotTelemetry.SENSOR_COUNT; sensor++) {
+            sketch.set(sensor, samples[0][sensor]);
+        }
+        String message = sketch.message(RoboPadTelemetry.INTERVAL_MILLIS);
+        String body = message.substring(0, message.length() - 2);
+
+        List<String> broken = new ArrayList<String>();
+        for (int length = 4; length < body.length(); length++) {
+            broken.add(body.substring(0, length) + "%%");
+        }
+        for (int position = 3; position < body.length(); position++) {
+            char original = body.charAt(position);
+            for (char c : new char[]{',', 'x', ' '}) {
+                if (c != original) {
+                    broken.add(body.substring(0, position) + c + body.substring(position + 1) + "%%");
+                }
+            }
+        }
+        broken.add("&&T32,1%%");
+        broken.add("&&T1,99999999999%%");
+        broken.add("&&T1,1,1%%");
+
+        for (String bad : broken) {
+            int[] before = new int[RobotTelemetry.SENSOR_COUNT];
+            for (int sensor = 0; sensor < RobotTelemetry.SENSOR_COUNT; sensor++) {
+                before[sensor] = telemetry.get(sensor);
+            }
+            long samplesBefore = telemetry.getSamples();
+            long malformedBefore = telemetry.getMalformed();
+
+            boolean unchanged = telemetry.onMessage(bad, ++time)
+                    && telemetry.getSamples() == samplesBefore
+                    && telemetry.getMalformed() == malformedBefore + 1;
+            for (int sensor = 0; sensor < RobotTelemetry.SENSOR_COUNT; sensor++) {
+                unchanged &= telemetry.get(sensor) == before[sensor];
+            }
+
+            check(unchanged, "broken message " + bad);
+        }
+
+        for (String other : new String[]{"&&A12%%", "A12", "&&%%", "&&T%%", ""}) {
+            check(!telemetry.onMessage(other, ++time), "not telemetry " + other);
+        }
+
+        checkSketchTelemetry();
+    }
+
+
+    /**
+     * The Beetle following a line sends the infrared sensors at most every
+     * RP_TELEMETRY_INTERVAL, once the app has sent a frame
+     */
+    private void checkSketchTelemetry() {
+        final RobotTelemetry telemetry = new RobotTelemetry();
+        final List<Long> times = new ArrayList<Long>();
+
+        SimulatedBeetle beetle = new SimulatedBeetle();
+        beetle.getSerial().setMessageListener(new SimulatedSerial.MessageListener() {
+            @Override
+            public void onMessage(String message, long time) {
+                if (telemetry.onMessage(message, time)) {
+                    times.add(time);
+                }
+            }
+        });
+        beetle.powerOn(0);
+        beetle.setLineSensors(SimulatedPrintbot.WHITE, SimulatedPrintbot.BLACK);
+
+        byte[] frame = encode(new FrameCommandEncoder(),
+                RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_LINE_FOLLOWER));
+        beetle.write(frame, 0, frame.length, 0);
+
+        long second = 1000 * SimulatedRobot.MILLIS;
+        beetle.runUntil(second);
+
+        check(times.size() >= 9 && times.size() <= 10, "telemetry messages in a second: "
+                + times.size());
+        for (int i = 1; i < times.size(); i++) {
+            check(times.get(i) - times.get(i - 1) >= RoboPadTelemetry.INTERVAL_MILLIS * SimulatedRobot.MILLIS,
+                    "telemetry interval " + (times.get(i) - times.get(i - 1)));
+        }
+        check(telemetry.get(RobotTelemetry.SENSOR_IR_LEFT) == SimulatedPrintbot.WHITE
+                && telemetry.get(RobotTelemetry.SENSOR_IR_RIGHT) == SimulatedPrintbot.BLACK
+                && !telemetry.isKnown(RobotTelemetry.SENSOR_LDR_LEFT), "infrared sensors of the Beetle");
+
+        // In the manual mode the sensors are not read, so nothing is sent
+        frame = encode(new FrameCommandEncoder(),
+                RobotCommand.of(RobotCommand.MODE, RobotCommand.MODE_MANUAL_CONTROL));
+        beetle.write(frame, 0, frame.length, second);
+        beetle.runUntil(second + 10 * SimulatedRobot.MILLIS);
+        int sent = times.size();
+        beetle.runUntil(2 * second);
+        check(times.size() == sent, "telemetry in the manual mode");
+    }
+
+
+    /**
+     * The drive of the joystick at full speed moves the wheels of the two-wheel sketches as the
+     * movement buttons, and a partial speed between the stop and the full speed, sent alone or
+     * in the motion field of a state frame
+     */
+    private void checkDrive() {
+        System.out.println("Drive");
+
+        int max = RobotCommand.DRIVE_MAX_SPEED;
+        long[][] equivalents = {
+                {RobotCommand.drive(max, max), RobotCommand.of(RobotCommand.FORWARD)},
+                {RobotCommand.drive(-max, -max), RobotCommand.of(RobotCommand.BACKWARD)},
+                {RobotCommand.drive(0, max), RobotCommand.of(RobotCommand.LEFT)},
+                {RobotCommand.drive(max, 0), RobotCommand.of(RobotCommand.RIGHT)},
+                {RobotCommand.drive(0, 0), RobotCommand.of(RobotCommand.STOP)}
+        };
+        SimulatedPrintbot[] robots = {new SimulatedPollywog(), new SimulatedBeetle(), new SimulatedEvolution()};
+
+        for (SimulatedPrintbot robot : robots) {
+            robot.powerOn(0);
+            long time = 0;
+
+            for (long[] equivalent : equivalents) {
+                time = send(robot, encode(new FrameCommandEncoder(), equivalent[1]), time);
+                int left = robot.getLeftWheel();
+                int right = robot.getRightWheel();
+
+                time = send(robot, encode(new FrameCommandEncoder(), RobotCommand.of(RobotCommand.STOP)), time);
+                time = send(robot, encode(new FrameCommandEncoder(), equivalent[0]), time);
+                check(robot.getLeftWheel() == left && robot.getRightWheel() == right, robot.getName()
+                        + " " + RobotCommand.driveLeft(equivalent[0]) + " " + RobotCommand.driveRight(equivalent[0])
+                        + " as " + RobotCommand.nameOf(RobotCommand.opcode(equivalent[1])));
+            }
+
+            ControlState state = new ControlState();
+            state.apply(RobotCommand.drive(50, -35), 1);
+            time = send(robot, encodeState(new FrameCommandEncoder(), state), time);
+            check(robot.getLeftWheel() == 45 && robot.getRightWheel() == 59,
+                    robot.getName() + " 50 -35 in a state frame: " + robot.getLeftWheel() + " " + robot.getRightWheel());
+        }
+    }
+
+
+    /**
+     * @return the time when the robot has applied the frame
+     */
+    private static long send(SimulatedRobot robot, byte[] frame, long time) {
+        robot.write(frame, 0, frame.length, time);
+        time += 500 * SimulatedRobot.MILLIS;
+        robot.runUntil(time);
+        return time;
+    }
+
+
+    public static void main(String[] args) {
+        ProtocolConformance conformance = new ProtocolConformance();
+
+        conformance.checkSingleFrames();
+        conformance.checkBurstsAndSplits();
+        conformance.checkCorruption();
+        conformance.checkLegacyCommands();
+        conformance.checkMixed();
+        conformance.checkTelemetry();
+        conformance.checkDrive();
+
+        System.out.println();
+        System.out.println(conformance.mChecks + " checks, " + conformance.mFailures + " failed");
+
+        if (conformance.mFailures > 0) {
+            System.exit(1);
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.bq.robotic.robopad.simulator;
+
+
+/**
+ * Port of the RoboPadCommandReader class of the RoboPadProtocol library of the sketches, the
+ * reader of the legacy ASCII commands. A command ends with a new line or when no more
+ * characters arrive for {@link #GAP_MICROS}, and it is kept until the next character is given.
+ */
+
+public class RoboPadCommandReader {
+
+    public static final int DELIMITER = '\n';
+
+    /**
+     * RP_MAX_COMMAND_LENGTH
+     */
+    public static final int MAX_LENGTH = 20;
+
+    /**
+     * RP_COMMAND_GAP_MICROS
+     */
+    public static final long GAP_MICROS = 2000;
+
+    // Ended with a 0, as the char array of the library
+    private final byte[] mCommand = new byte[MAX_LENGTH + 1];
+    private int mLength;
+    private boolean mComplete;
+    private long mLastTime;
+
+
+    public void reset() {
+        mLength = 0;
+        mComplete = false;
+        mLastTime = 0;
+        mCommand[0] = 0;
+    }
+
+
+    /**
+     * Give the next received character
+     *
+     * @param now micros() of the board
+     * @return true when it ends a command with {@link #DELIMITER}
+     */
+    public boolean feed(int data, long now) {
+        if (mComplete) {
+            mLength = 0;
+            mComplete = false;
+        }
+
+        if (data == DELIMITER || data == '\r') {
+            return mLength > 0 && finish();
+        }
+
+        mLastTime = now;
+
+        if (mLength < MAX_LENGTH) {
+            mCommand[mLength++] = (byte) data;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * @param now micros() of the board
+     * @return true when the command being read ends because no more characters arrived
+     */
+    public boolean poll(long now) {
+        if (mComplete || mLength == 0 || now - mLastTime < GAP_MICROS) {
+            return false;
+        }
+
+        return finish();
+    }
+
+
+    /**
+     * @return micros() of the board when {@link #poll(long)} ends the command being read, or
+     * {@link Long#MAX_VALUE} if there is none
+     */
+    public long getPollDeadline() {
+        return mComplete || mLength == 0 ? Long.MAX_VALUE : mLastTime + GAP_MICROS;
+    }
+
+
+    /**
+     * @return the last command read, ended with a 0
+     */
+    public byte[] command() {
+        return mCommand;
+    }
+
+
+    private boolean finish() {
+        mCommand[mLength] = 0;
+        mComplete = true;
+        return true;
+    }
+
+}
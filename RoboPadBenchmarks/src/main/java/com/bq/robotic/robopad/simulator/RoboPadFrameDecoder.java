@@ -0,0 +1,288 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.connection.FrameCommandEncoder;
+
+
+/**
+ * Port of the RoboPadFrameDecoder class of the RoboPadProtocol library of the sketches. It keeps
+ * its behaviour byte by byte, including the 32 bits arithmetic of the AVR longs, so the
+ * simulated robots understand the frames exactly as the boards.
+ *
+ * As the library, it keeps the bytes of the frame being decoded, and when the frame is bad it
+ * looks for the next header in those bytes, so an error only loses the frame where it happens.
+ * After a frame is completed {@link #resume()} must be called until it returns false.
+ */
+
+public class RoboPadFrameDecoder {
+
+    /**
+     * RP_MAX_ARGS, the mask and the value of every field of the state frame
+     */
+    public static final int MAX_ARGS = 10;
+
+    private static final int ARGS_LENGTH_MASK = FrameCommandEncoder.MAX_ARGS_LENGTH;
+
+    /**
+     * RP_MAX_FRAME_LENGTH: header, opcode, sequence, arguments and checksum
+     */
+    public static final int MAX_FRAME_LENGTH = 3 + ARGS_LENGTH_MASK + 1;
+
+    private static final int STATE_HEADER = 0;
+    private static final int STATE_OPCODE = 1;
+    private static final int STATE_SEQUENCE = 2;
+    private static final int STATE_ARGS = 3;
+    private static final int STATE_CHECKSUM = 4;
+
+    private static final int STEP_CONTINUE = 0;
+    private static final int STEP_FRAME = 1;
+    private static final int STEP_ERROR = 2;
+
+    // Bytes from the header of the frame being decoded
+    private final int[] mBuffer = new int[MAX_FRAME_LENGTH];
+    private int mCount;
+    private int mPosition;
+
+    private boolean mHasFrames;
+    private long mFramesDiscarded;
+
+    private int mState;
+    private int mArgsLength;
+    private int mReceived;
+    private int mCrc;
+
+    private int mOpcode;
+    private boolean mHasSequence;
+    private int mSequence;
+    private int mArgCount;
+    private final int[] mArgs = new int[MAX_ARGS];
+
+    // unsigned long of the AVR, only its 32 low bits are used
+    private long mVarint;
+    private int mShift;
+
+
+    public RoboPadFrameDecoder() {
+        reset();
+    }
+
+
+    public static boolean isFrameStart(int data) {
+        return (data & FrameCommandEncoder.HEADER_FLAG) != 0;
+    }
+
+
+    public boolean isReceiving() {
+        return mCount > 0;
+    }
+
+
+    /**
+     * @return true after the first good frame, then all the bytes are given to the decoder
+     */
+    public boolean hasFrames() {
+        return mHasFrames;
+    }
+
+
+    public int opcode() {
+        return mOpcode;
+    }
+
+
+    public int argCount() {
+        return mArgCount;
+    }
+
+
+    public int arg(int i) {
+        return i < mArgCount ? mArgs[i] : 0;
+    }
+
+
+    public boolean hasSequence() {
+        return mHasSequence;
+    }
+
+
+    public int sequence() {
+        return mSequence;
+    }
+
+
+    /**
+     * Forget the bytes received
+     */
+    public void reset() {
+        mCount = 0;
+        mPosition = 0;
+        mState = STATE_HEADER;
+        mOpcode = 0;
+        mHasSequence = false;
+        mSequence = 0;
+        mArgCount = 0;
+    }
+
+
+    /**
+     * @return number of headers that didn't start a good frame, not counted by the sketches
+     */
+    public long getFramesDiscarded() {
+        return mFramesDiscarded;
+    }
+
+
+    /**
+     * @return the ack of the last frame, "&&A<sequence>%%", or null if it has no sequence number
+     */
+    public String ackMessage() {
+        return mHasSequence ? "&&A" + mSequence + "%%" : null;
+    }
+
+
+    /**
+     * Give the next received byte to the decoder
+     *
+     * @param data the byte, from 0 to 255
+     * @return true when it completes a frame with a valid checksum
+     */
+    public boolean feed(int data) {
+        // Only if resume() was not called after a frame
+        if (mCount == MAX_FRAME_LENGTH) {
+            reset();
+        }
+
+        mBuffer[mCount++] = data;
+        return decode();
+    }
+
+
+    /**
+     * Continue decoding the bytes kept after the last frame
+     *
+     * @return true when it completes another frame
+     */
+    public boolean resume() {
+        return decode();
+    }
+
+
+    private boolean decode() {
+        while (mPosition < mCount) {
+            switch (step(mBuffer[mPosition++])) {
+
+                case STEP_FRAME:
+                    discard(mPosition);
+                    mHasFrames = true;
+                    return true;
+
+                case STEP_ERROR:
+                    if (mState != STATE_HEADER) {
+                        mFramesDiscarded++;
+                    }
+                    discard(1);
+                    break;
+            }
+        }
+
+        return false;
+    }
+
+
+    private int step(int data) {
+        switch (mState) {
+
+            case STATE_HEADER:
+                if (!isFrameStart(data)) {
+                    return STEP_ERROR;
+                }
+
+                startFrame(data);
+                mState = STATE_OPCODE;
+                return STEP_CONTINUE;
+
+            case STATE_OPCODE:
+                // The opcodes never have the high bit, so the header was inside another frame
+                if (isFrameStart(data)) {
+                    return STEP_ERROR;
+                }
+
+                mOpcode = data;
+                mCrc = crc8(mCrc, data);
+                if (mHasSequence) {
+                    mState = STATE_SEQUENCE;
+                } else {
+                    mState = mArgsLength > 0 ? STATE_ARGS : STATE_CHECKSUM;
+                }
+                return STEP_CONTINUE;
+
+            case STATE_SEQUENCE:
+                mSequence = data;
+                mCrc = crc8(mCrc, data);
+                mState = mArgsLength > 0 ? STATE_ARGS : STATE_CHECKSUM;
+                return STEP_CONTINUE;
+
+            case STATE_ARGS:
+                mCrc = crc8(mCrc, data);
+                // The AVR shifts by the count modulo 32 as well
+                mVarint = (mVarint | ((long) (data & 0x7F) << (mShift & 31))) & 0xFFFFFFFFL;
+
+                if ((data & 0x80) != 0) {
+                    mShift += 7;
+
+                } else {
+                    if (mArgCount < MAX_ARGS) {
+                        mArgs[mArgCount++] = (int) (mVarint >>> 1) ^ -(int) (mVarint & 1);
+                    }
+                    mVarint = 0;
+                    mShift = 0;
+                }
+
+                if (++mReceived == mArgsLength) {
+                    mState = STATE_CHECKSUM;
+                }
+                return STEP_CONTINUE;
+
+            case STATE_CHECKSUM:
+                return data == mCrc ? STEP_FRAME : STEP_ERROR;
+        }
+
+        return STEP_ERROR;
+    }
+
+
+    private void startFrame(int header) {
+        mArgsLength = header & ARGS_LENGTH_MASK;
+        mHasSequence = (header & FrameCommandEncoder.SEQUENCE_FLAG) != 0;
+        mReceived = 0;
+        mCrc = crc8(0, header);
+        mOpcode = 0;
+        mSequence = 0;
+        mArgCount = 0;
+        mVarint = 0;
+        mShift = 0;
+    }
+
+
+    /**
+     * Remove the first bytes of the buffer and start again with the next header
+     */
+    private void discard(int length) {
+        System.arraycopy(mBuffer, length, mBuffer, 0, mCount - length);
+        mCount -= length;
+        mPosition = 0;
+        mState = STATE_HEADER;
+    }
+
+
+    private static int crc8(int crc, int data) {
+        crc ^= data;
+
+        for (int bit = 0; bit < 8; bit++) {
+            crc = (crc & 0x80) != 0 ? ((crc << 1) ^ 0x07) & 0xFF : (crc << 1) & 0xFF;
+        }
+
+        return crc;
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.connection.ControlState;
+import com.bq.robotic.robopad.connection.RobotCommand;
+
+
+/**
+ * Port of the RoboPadHeartbeat class of the RoboPadProtocol library of the sketches, the
+ * dead-man stop: while the user holds a movement the app sends {@link RobotCommand#HEARTBEAT}
+ * frames, and when no frame arrives in the time that they give the robot stops by itself.
+ */
+
+public class RoboPadHeartbeat {
+
+    private long mTimeout;
+    private long mLastFrame;
+
+
+    /**
+     * @param decoder the decoder with the frame just applied
+     * @param now millis() of the board
+     */
+    public void update(RoboPadFrameDecoder decoder, long now) {
+        mLastFrame = now;
+
+        switch (decoder.opcode()) {
+            case RobotCommand.HEARTBEAT:
+                mTimeout = Math.max(decoder.arg(0), 0);
+                break;
+
+            case RobotCommand.STOP:
+            case RobotCommand.MODE:
+                mTimeout = 0;
+                break;
+
+            case RobotCommand.STATE:
+                if ((decoder.arg(0) & (1 << ControlState.FIELD_MOTION)) != 0
+                        && decoder.arg(ControlState.FIELD_MOTION + 1) == RobotCommand.STOP) {
+                    mTimeout = 0;
+                }
+                break;
+        }
+    }
+
+
+    /**
+     * @param now millis() of the board
+     * @return true once when no frame arrived in the time of the last heartbeat
+     */
+    public boolean expired(long now) {
+        if (mTimeout == 0 || now - mLastFrame < mTimeout) {
+            return false;
+        }
+
+        mTimeout = 0;
+        return true;
+    }
+
+
+    public boolean isArmed() {
+        return mTimeout > 0;
+    }
+
+
+    /**
+     * @return millis() of the board when {@link #expired(long)} returns true, or
+     * {@link Long#MAX_VALUE} if it is not armed
+     */
+    public long getDeadline() {
+        return mTimeout == 0 ? Long.MAX_VALUE : mLastFrame + mTimeout;
+    }
+
+}
@@ -0,0 +1,100 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.connection.ControlState;
+import com.bq.robotic.robopad.connection.RobotCommand;
+
+
+/**
+ * Port of the RoboPadStateTracker class of the RoboPadProtocol library of the sketches: it gives
+ * the fields of a {@link RobotCommand#STATE} frame that changed since the previous one as the
+ * single commands.
+ */
+
+public class RoboPadStateTracker {
+
+    private final int[] mApplied = new int[ControlState.FIELD_COUNT];
+    private int mAppliedFields;
+    private int mNextField;
+
+    // Result of the last nextChange()
+    private int mOpcode;
+    private int mArg;
+
+
+    public RoboPadStateTracker() {
+        reset();
+    }
+
+
+    public void reset() {
+        mAppliedFields = 0;
+        mNextField = 0;
+    }
+
+
+    /**
+     * @param decoder the decoder with a state frame
+     * @return true while there are changed fields in the frame, then {@link #opcode()} and
+     * {@link #arg()} are the command of the next one
+     */
+    public boolean nextChange(RoboPadFrameDecoder decoder) {
+        int knownFields = decoder.arg(0);
+
+        while (mNextField < ControlState.FIELD_COUNT) {
+            int field = mNextField++;
+            int bit = 1 << field;
+            int value = decoder.arg(field + 1);
+
+            if ((knownFields & bit) == 0) {
+                continue;
+            }
+
+            if ((mAppliedFields & bit) != 0 && mApplied[field] == value) {
+                continue;
+            }
+
+            mApplied[field] = value;
+            mAppliedFields |= bit;
+
+            if (field == ControlState.FIELD_MOTION) {
+                mOpcode = value & 0xFF;
+                mArg = value >> 8;
+            } else {
+                mOpcode = fieldOpcode(field);
+                mArg = value;
+            }
+            return true;
+        }
+
+        mNextField = 0;
+        return false;
+    }
+
+
+    public int opcode() {
+        return mOpcode;
+    }
+
+
+    public int arg() {
+        return mArg;
+    }
+
+
+    private static int fieldOpcode(int field) {
+        switch (field) {
+            case ControlState.FIELD_MODE:               return RobotCommand.MODE;
+            case ControlState.FIELD_CLAW:               return RobotCommand.CLAW;
+            case ControlState.FIELD_LEFT_TRACK:         return RobotCommand.LEFT_TRACK;
+            case ControlState.FIELD_RIGHT_TRACK:        return RobotCommand.RIGHT_TRACK;
+            case ControlState.FIELD_LEFT_AMPLITUDE:     return RobotCommand.LEFT_AMPLITUDE;
+            case ControlState.FIELD_RIGHT_AMPLITUDE:    return RobotCommand.RIGHT_AMPLITUDE;
+            case ControlState.FIELD_PERIOD:             return RobotCommand.PERIOD;
+            case ControlState.FIELD_PHASE:              return RobotCommand.PHASE;
+        }
+
+        return 0;
+    }
+
+}
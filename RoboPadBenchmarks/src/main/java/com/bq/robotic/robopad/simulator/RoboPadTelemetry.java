@@ -0,0 +1,76 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.connection.FrameCommandEncoder;
+import com.bq.robotic.robopad.connection.RobotTelemetry;
+
+
+/**
+ * Port of the RoboPadTelemetry class of the RoboPadProtocol library of the sketches, which
+ * sends to the app the values of the sensors read since its last message, at most every
+ * {@link #INTERVAL_MILLIS}, as the {@link RobotTelemetry} messages.
+ */
+
+public class RoboPadTelemetry {
+
+    /**
+     * RP_TELEMETRY_INTERVAL
+     */
+    public static final long INTERVAL_MILLIS = 100;
+
+    private final int[] mValues = new int[RobotTelemetry.SENSOR_COUNT];
+    private int mReadSensors;
+    private long mLastSend;
+
+
+    /**
+     * @param sensor one of the RobotTelemetry.SENSOR_* values
+     * @param value the value read, kept in the 16 bits of an int of the board
+     */
+    public void set(int sensor, int value) {
+        if (sensor < 0 || sensor >= RobotTelemetry.SENSOR_COUNT) {
+            return;
+        }
+
+        mValues[sensor] = (short) value;
+        mReadSensors |= 1 << sensor;
+    }
+
+
+    /**
+     * The send() of the library
+     *
+     * @param now millis() of the board
+     * @return the message that the library writes now, or null if it writes nothing
+     */
+    public String message(long now) {
+        if (mReadSensors == 0 || now - mLastSend < INTERVAL_MILLIS) {
+            return null;
+        }
+
+        int crc = FrameCommandEncoder.crc8(0, mReadSensors);
+
+        StringBuilder message = new StringBuilder("&&").append(RobotTelemetry.TELEMETRY_PREFIX)
+                .append(mReadSensors);
+        for (int sensor = 0; sensor < RobotTelemetry.SENSOR_COUNT; sensor++) {
+            if ((mReadSensors & (1 << sensor)) != 0) {
+                message.append(',').append(mValues[sensor]);
+
+                crc = FrameCommandEncoder.crc8(crc, (mValues[sensor] >> 8) & 0xFF);
+                crc = FrameCommandEncoder.crc8(crc, mValues[sensor] & 0xFF);
+            }
+        }
+        message.append(',').append(crc).append("%%");
+
+        mReadSensors = 0;
+        mLastSend = now;
+
+        return message.toString();
+    }
+
+
+    public void reset() {
+        mReadSensors = 0;
+    }
+
+}
@@ -0,0 +1,402 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.benchmarks.BenchmarkRobotListener;
+import com.bq.robotic.robopad.connection.AckTracker;
+import com.bq.robotic.robopad.connection.CommandEncoder;
+import com.bq.robotic.robopad.connection.CommandWriter;
+import com.bq.robotic.robopad.connection.FrameCommandEncoder;
+import com.bq.robotic.robopad.connection.LatencyHistogram;
+import com.bq.robotic.robopad.connection.LegacyCommandEncoder;
+import com.bq.robotic.robopad.connection.LoopbackTransport;
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.utils.RoboPadConstants;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * How many commands per second each robot can really apply, with the legacy ASCII commands and
+ * with the binary frames, measured with the {@link SimulatedRobot}s.
+ *
+ * First each robot gets a stream of commands at increasing rates, written straight to its serial
+ * port in virtual time, so it shows the limit of the sketch and the serial link without the
+ * app. Then the commands go through the command path of the app, the {@link CommandWriter}
+ * with its encoder and a {@link LoopbackTransport} as fast as the serial port of the robot,
+ * at the highest rate without losses of the first part, during the given number of seconds of
+ * wall clock time.
+ *
+ * A command is delivered when the sketch applies it with the same argument and in order. The
+ * legacy commands have no new line, so the sketches read as one command the ones that arrive
+ * without RoboPadCommandReader.GAP_MICROS between them, as "T1500U" for "T1500" and "U". Through
+ * the app the values of a slider superseded by a newer one in the writer are lost as well, and
+ * the coalesced ones can be written out of order.
+ *
+ * Usage: RobotThroughput [seconds of the run through the app, 0 to skip it, 2 by default]
+ */
+
+public class RobotThroughput {
+
+    private static final long SECOND = 1000000000L;
+    private static final long MILLIS = 1000000L;
+
+    private static final int[] OFFERED_RATES = {5, 10, 20, 50, 100, 200, 500};
+    private static final int OFFERED_SECONDS = 10;
+
+    // Time given to the sketch to apply the commands still in its serial port
+    private static final long DRAIN_NANOS = 5 * SECOND;
+
+    // How far a command applied is searched in the commands sent
+    private static final int MATCH_WINDOW = 64;
+
+    /**
+     * A robot and the commands that its controller sends
+     */
+    private abstract static class Robot {
+
+        abstract SimulatedRobot create();
+
+        /**
+         * @param i position of the command in the stream
+         * @return the command, never equal to the previous one of its field
+         */
+        abstract long command(int i);
+    }
+
+    private static final Robot[] ROBOTS = {
+            new Robot() {
+                @Override
+                SimulatedRobot create() {
+                    return new SimulatedBeetle();
+                }
+
+                @Override
+                long command(int i) {
+                    if (i % 2 == 1) {
+                        return RobotCommand.of(RobotCommand.CLAW, RoboPadConstants.MAX_OPEN_CLAW_POS
+                                + (i * 7) % (RoboPadConstants.MIN_CLOSE_CLAW_POS - RoboPadConstants.MAX_OPEN_CLAW_POS));
+                    }
+                    return movement(i / 2);
+                }
+            },
+            new Robot() {
+                @Override
+                SimulatedRobot create() {
+                    return new SimulatedEvolution();
+                }
+
+                @Override
+                long command(int i) {
+                    return movement(i);
+                }
+            },
+            new Robot() {
+                @Override
+                SimulatedRobot create() {
+                    return new SimulatedPollywog();
+                }
+
+                @Override
+                long command(int i) {
+                    return movement(i);
+                }
+            },
+            new Robot() {
+                @Override
+                SimulatedRobot create() {
+                    return new SimulatedRhino();
+                }
+
+                @Override
+                long command(int i) {
+                    int direction = (i / 2) % 3 - 1;
+                    return RobotCommand.of(i % 2 == 0 ? RobotCommand.LEFT_TRACK : RobotCommand.RIGHT_TRACK,
+                            direction);
+                }
+            },
+            new Robot() {
+                @Override
+                SimulatedRobot create() {
+                    return new SimulatedCrab();
+                }
+
+                @Override
+                long command(int i) {
+                    int step = i / 4;
+                    switch (i % 4) {
+                        case 0:
+                            return RobotCommand.of(RobotCommand.PERIOD, RoboPadConstants.MIN_PERIOD
+                                    + (step * 97) % (RoboPadConstants.MAX_PERIOD - RoboPadConstants.MIN_PERIOD));
+                        case 1:
+                            return RobotCommand.of(RobotCommand.LEFT_AMPLITUDE, step % (RoboPadConstants.MAX_AMPLITUDE + 1));
+                        case 2:
+                            return RobotCommand.of(RobotCommand.RIGHT_AMPLITUDE, (step + 20) % (RoboPadConstants.MAX_AMPLITUDE + 1));
+                        default:
+                            return RobotCommand.of(RobotCommand.PHASE, RoboPadConstants.MIN_PHASE
+                                    + (step * 7) % (RoboPadConstants.MAX_PHASE - RoboPadConstants.MIN_PHASE + 1));
+                    }
+                }
+            }
+    };
+
+    private static final int[] MOVEMENTS = {
+            RobotCommand.FORWARD, RobotCommand.LEFT, RobotCommand.BACKWARD, RobotCommand.RIGHT, RobotCommand.STOP
+    };
+
+
+    private static long movement(int i) {
+        return RobotCommand.of(MOVEMENTS[i % MOVEMENTS.length]);
+    }
+
+
+    /**
+     * Commands sent and applied in a run
+     */
+    private static class Result {
+        final long[] mSent;
+        final long[] mSendTimes;
+        int mSentCount;
+
+        long mDelivered;
+        long mWrong;
+        long mLastDeliveryTime;
+        final LatencyHistogram mLatencies = new LatencyHistogram();
+
+        Result(int capacity) {
+            mSent = new long[capacity];
+            mSendTimes = new long[capacity];
+        }
+
+        void sent(long command, long time) {
+            mSent[mSentCount] = command;
+            mSendTimes[mSentCount] = time;
+            mSentCount++;
+        }
+
+        /**
+         * Match the commands applied by the robot with the ones sent, in order
+         */
+        void match(SimulatedRobot robot) {
+            int next = 0;
+
+            for (int i = 0; i < robot.getAppliedCount(); i++) {
+                long applied = robot.getAppliedCommand(i);
+                int end = Math.min(mSentCount, next + MATCH_WINDOW);
+                int found = -1;
+
+                for (int j = next; j < end; j++) {
+                    if (mSent[j] == applied) {
+                        found = j;
+                        break;
+                    }
+                }
+
+                if (found == -1) {
+                    mWrong++;
+                    continue;
+                }
+
+                mDelivered++;
+                mLastDeliveryTime = robot.getAppliedTime(i);
+                mLatencies.record(mLastDeliveryTime - mSendTimes[found]);
+                next = found + 1;
+            }
+        }
+
+        long getLost() {
+            return mSentCount - mDelivered;
+        }
+
+        double getDeliveredPerSecond(long start, long duration) {
+            long elapsed = Math.max(duration, mLastDeliveryTime - start);
+            return mDelivered * (double) SECOND / elapsed;
+        }
+    }
+
+
+    public static void main(String[] args) {
+        int appSeconds = args.length > 0 ? Integer.parseInt(args[0]) : 2;
+
+        RoboPadConstants.commandProtocolValues[] protocols = RoboPadConstants.commandProtocolValues.values();
+        int[][] maxLosslessRates = new int[ROBOTS.length][protocols.length];
+
+        for (int i = 0; i < ROBOTS.length; i++) {
+            for (int j = 0; j < protocols.length; j++) {
+                maxLosslessRates[i][j] = runOffered(ROBOTS[i], protocols[j]);
+            }
+        }
+
+        if (appSeconds == 0) {
+            return;
+        }
+
+        for (int i = 0; i < ROBOTS.length; i++) {
+            for (int j = 0; j < protocols.length; j++) {
+                if (maxLosslessRates[i][j] > 0) {
+                    runThroughApp(ROBOTS[i], protocols[j], maxLosslessRates[i][j], appSeconds);
+                }
+            }
+        }
+    }
+
+
+    private static CommandEncoder createEncoder(RoboPadConstants.commandProtocolValues protocol,
+                                                AckTracker ackTracker) {
+        if (protocol == RoboPadConstants.commandProtocolValues.BINARY_FRAMES) {
+            return new FrameCommandEncoder(ackTracker);
+        }
+        return new LegacyCommandEncoder();
+    }
+
+
+    /**
+     * Commands written to the serial port of the robot at fixed rates, in virtual time
+     *
+     * @return the highest rate without losses
+     */
+    private static int runOffered(Robot robot, RoboPadConstants.commandProtocolValues protocol) {
+        CommandEncoder encoder = createEncoder(protocol, null);
+        byte[] buffer = new byte[CommandEncoder.MAX_FRAME_LENGTH];
+        int maxLosslessRate = 0;
+
+        System.out.println(robot.create().getName() + ", " + protocol + ", written to the serial port");
+        System.out.println("   offered/s  delivered/s   lost   wrong  overflow  p50 ms  max ms");
+
+        for (int rate : OFFERED_RATES) {
+            SimulatedRobot simulated = robot.create();
+            simulated.powerOn(0);
+
+            long start = simulated.getTime();
+            long interval = SECOND / rate;
+            int count = rate * OFFERED_SECONDS;
+            Result result = new Result(count);
+
+            for (int i = 0; i < count; i++) {
+                long command = robot.command(i);
+                long time = start + i * interval;
+
+                simulated.write(buffer, 0, encoder.encode(command, buffer, 0), time);
+                result.sent(command, time);
+            }
+
+            simulated.runUntil(start + count * interval + DRAIN_NANOS);
+            result.match(simulated);
+
+            if (result.getLost() == 0 && result.mWrong == 0) {
+                maxLosslessRate = rate;
+            }
+
+            printResult(rate, result, simulated, start, count * interval);
+        }
+
+        System.out.println("   max rate without losses: " + maxLosslessRate + " commands/s");
+        System.out.println();
+
+        return maxLosslessRate;
+    }
+
+
+    /**
+     * Commands sent through the command path of the app at a fixed rate, in wall clock time
+     */
+    private static void runThroughApp(Robot robot, RoboPadConstants.commandProtocolValues protocol,
+                                      int rate, int seconds) {
+        final AckTracker ackTracker = new AckTracker();
+        final SimulatedRobot simulated = robot.create();
+
+        // The acks are received in the writer thread, where the frames are given to the robot,
+        // with the virtual time of the robot. The telemetry of the autonomous modes is ignored
+        simulated.getSerial().setMessageListener(new SimulatedSerial.MessageListener() {
+            @Override
+            public void onMessage(String message, long time) {
+                if (message.charAt(2) == AckTracker.ACK_PREFIX) {
+                    ackTracker.onAck(Integer.parseInt(message.substring(3, message.length() - 2)), time);
+                }
+            }
+        });
+
+        // Turned on long ago, so it is ready
+        simulated.powerOn(System.nanoTime() - 10 * SECOND);
+
+        LoopbackTransport transport = new LoopbackTransport(simulated,
+                simulated.getSerial().getBytesPerSecond());
+        transport.open();
+
+        CommandWriter writer = new CommandWriter(transport, createEncoder(protocol, ackTracker));
+        BenchmarkRobotListener listener = new BenchmarkRobotListener(writer);
+        writer.start();
+
+        int count = rate * seconds;
+        long interval = SECOND / rate;
+        Result result = new Result(count);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < count; i++) {
+            long sendTime = start + i * interval;
+            long remaining;
+            while ((remaining = sendTime - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+
+            long command = robot.command(i);
+            result.sent(command, System.nanoTime());
+            listener.onSendCommand(command);
+        }
+
+        // Let the writer empty its queue
+        long end = System.nanoTime() + SECOND;
+        while (transport.getFramesWritten() < count - listener.getDroppedCommands()
+                && System.nanoTime() < end) {
+            LockSupport.parkNanos(MILLIS);
+        }
+
+        writer.stop();
+        transport.close();
+
+        simulated.runUntil(simulated.getTime() + DRAIN_NANOS);
+        result.match(simulated);
+
+        System.out.println(simulated.getName() + ", " + protocol + ", through the app for "
+                + seconds + " s, dropped by the writer " + listener.getDroppedCommands()
+                + ", superseded " + writer.getSupersededCommands());
+        System.out.println("   offered/s  delivered/s   lost   wrong  overflow  p50 ms  max ms");
+        printResult(rate, result, simulated, start, count * interval);
+
+        if (ackTracker.getSent() > 0) {
+            StringBuilder acks = new StringBuilder();
+            ackTracker.appendTo(acks);
+            System.out.print(acks);
+        }
+        System.out.println();
+    }
+
+
+    private static void printResult(int rate, Result result, SimulatedRobot robot, long start,
+                                    long duration) {
+        char[] padding = new char[12];
+        Arrays.fill(padding, ' ');
+
+        StringBuilder line = new StringBuilder();
+        appendColumn(line, padding, String.valueOf(rate), 12);
+        appendColumn(line, padding, String.valueOf(Math.round(result.getDeliveredPerSecond(start, duration))), 13);
+        appendColumn(line, padding, String.valueOf(result.getLost()), 7);
+        appendColumn(line, padding, String.valueOf(result.mWrong), 8);
+        appendColumn(line, padding, String.valueOf(robot.getSerial().getBytesOverflowed()), 10);
+        appendColumn(line, padding, millis(result.mLatencies.getPercentileMicros(50)), 8);
+        appendColumn(line, padding, millis(result.mLatencies.getMaxMicros()), 8);
+
+        System.out.println(line);
+    }
+
+
+    private static void appendColumn(StringBuilder line, char[] padding, String value, int width) {
+        line.append(padding, 0, Math.max(0, width - value.length())).append(value);
+    }
+
+
+    private static String millis(long micros) {
+        return (micros / 1000) + "." + (micros % 1000) / 100;
+    }
+
+}
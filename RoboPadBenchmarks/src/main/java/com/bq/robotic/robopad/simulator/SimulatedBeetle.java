@@ -0,0 +1,133 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.connection.RobotCommand;
+
+
+/**
+ * robopad_beetle_droid_arduino: two wheels and a claw, with the line follower and light avoider
+ * modes
+ */
+
+public class SimulatedBeetle extends SimulatedPrintbot {
+
+    public static final int BAUD_RATE = 38400;
+
+    public static final int MAX_CLAW_POSITION = 10;
+    public static final int MIN_CLAW_POSITION = 55;
+
+    private int mPosClaw;
+
+
+    public SimulatedBeetle() {
+        super(BAUD_RATE);
+    }
+
+
+    @Override
+    public String getName() {
+        return "Beetle";
+    }
+
+
+    @Override
+    protected void setup() {
+        stopWheels();
+        mPosClaw = 30;
+        moveClaw();
+        mCurrentState = RobotCommand.MODE_MANUAL_CONTROL;
+    }
+
+
+    private void moveClaw() {
+        if (mPosClaw < MAX_CLAW_POSITION) {
+            mPosClaw = MAX_CLAW_POSITION;
+        } else if (mPosClaw > MIN_CLAW_POSITION) {
+            mPosClaw = MIN_CLAW_POSITION;
+        }
+    }
+
+
+    @Override
+    protected void checkData(byte[] data) {
+        switch (data[0]) {
+            case 'I':
+                apply(RobotCommand.MODE, RobotCommand.MODE_LINE_FOLLOWER);
+                break;
+            case 'G':
+                apply(RobotCommand.MODE, RobotCommand.MODE_LIGHT_AVOIDER);
+                break;
+            case 'M':
+                apply(RobotCommand.MODE, RobotCommand.MODE_MANUAL_CONTROL);
+                break;
+            case 'S':
+                apply(RobotCommand.STOP, 0);
+                break;
+            case 'U':
+                apply(RobotCommand.FORWARD, 0);
+                break;
+            case 'D':
+                apply(RobotCommand.BACKWARD, 0);
+                break;
+            case 'L':
+                apply(RobotCommand.LEFT, 0);
+                break;
+            case 'R':
+                apply(RobotCommand.RIGHT, 0);
+                break;
+            case 'C':
+                apply(RobotCommand.CLAW, strtol(data, 1));
+                break;
+        }
+    }
+
+
+    @Override
+    protected boolean applyCommand(int opcode, int arg) {
+        switch (opcode) {
+            case RobotCommand.MODE:
+                switch (arg) {
+                    case RobotCommand.MODE_LINE_FOLLOWER:
+                        mCurrentState = RobotCommand.MODE_LINE_FOLLOWER;
+                        return true;
+                    case RobotCommand.MODE_LIGHT_AVOIDER:
+                        mCurrentState = RobotCommand.MODE_LIGHT_AVOIDER;
+                        return true;
+                    case RobotCommand.MODE_MANUAL_CONTROL:
+                        mCurrentState = RobotCommand.MODE_MANUAL_CONTROL;
+                        stopWheels();
+                        return true;
+                    default:
+                        return false;
+                }
+
+            case RobotCommand.CLAW:
+                mPosClaw = arg;
+                moveClaw();
+                return true;
+
+            default:
+                return applyMovement(opcode, arg);
+        }
+    }
+
+
+    @Override
+    protected void runMode() {
+        if (mCurrentState == RobotCommand.MODE_LINE_FOLLOWER) {
+            followTheLine();
+        } else if (mCurrentState == RobotCommand.MODE_LIGHT_AVOIDER) {
+            avoidTheLight();
+        }
+    }
+
+
+    /**
+     * @return position written to the servo of the claw, from {@link #MAX_CLAW_POSITION} to
+     * {@link #MIN_CLAW_POSITION}
+     */
+    public synchronized int getClawPosition() {
+        return mPosClaw;
+    }
+
+}
@@ -0,0 +1,212 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.connection.RobotCommand;
+
+
+/**
+ * robopad_plusplus_oscilators_crab_droid_arduino: three oscillators, the right legs, the left
+ * legs and the central servo, whose amplitudes, period and phase difference are controlled from
+ * the app. It has no delays while applying the commands, the oscillators only need to be
+ * refreshed every few milliseconds.
+ */
+
+public class SimulatedCrab extends SimulatedRobot {
+
+    public static final int BAUD_RATE = 38400;
+
+    public static final int RIGHT_LEGS = 0;
+    public static final int LEFT_LEGS = 1;
+    public static final int CENTRAL = 2;
+
+    public static final int MAX_AMPLITUDE = 40;
+    public static final int NORMAL_PERIOD = 1500;
+    public static final int FORWARD_PHASE = -90;
+    public static final int BACKWARD_PHASE = 90;
+
+    private static final int CENTRAL_AMPLITUDE = 15;
+    private static final int SETUP_DELAY = 3000;
+
+    private final SimulatedOscillator[] mOsc = {
+            new SimulatedOscillator(), new SimulatedOscillator(), new SimulatedOscillator()
+    };
+
+
+    public SimulatedCrab() {
+        super(BAUD_RATE);
+    }
+
+
+    @Override
+    public String getName() {
+        return "Crab";
+    }
+
+
+    @Override
+    protected void setup() {
+        for (int i = 0; i < mOsc.length; i++) {
+            mOsc[i].setO(0);
+            mOsc[i].setA(i == CENTRAL ? CENTRAL_AMPLITUDE : MAX_AMPLITUDE);
+            mOsc[i].setT(NORMAL_PERIOD);
+            mOsc[i].setPh(i == CENTRAL ? Math.toRadians(FORWARD_PHASE) : 0);
+        }
+
+        delay(SETUP_DELAY);
+    }
+
+
+    private void setPeriod(int period) {
+        for (SimulatedOscillator osc : mOsc) {
+            osc.setT(period);
+        }
+    }
+
+
+    private void setAmplitudes(int right, int left) {
+        mOsc[RIGHT_LEGS].setA(right);
+        mOsc[LEFT_LEGS].setA(left);
+    }
+
+
+    private void setPhase(int degrees) {
+        mOsc[CENTRAL].setPh(Math.toRadians(degrees));
+    }
+
+
+    @Override
+    protected void checkData(byte[] data) {
+        switch (data[0]) {
+            case 'A':
+                if (data[1] == 'R') {
+                    apply(RobotCommand.RIGHT_AMPLITUDE, strtol(data, 2));
+                } else if (data[1] == 'L') {
+                    apply(RobotCommand.LEFT_AMPLITUDE, strtol(data, 2));
+                }
+                break;
+            case 'T':
+                apply(RobotCommand.PERIOD, strtol(data, 1));
+                break;
+            case 'F':
+                apply(RobotCommand.PHASE, strtol(data, 1));
+                break;
+            case 'S':
+                apply(RobotCommand.STOP, 0);
+                break;
+            case 'I':
+                apply(RobotCommand.RESET, 0);
+                break;
+            case 'U':
+                apply(RobotCommand.FORWARD, 0);
+                break;
+            case 'D':
+                apply(RobotCommand.BACKWARD, 0);
+                break;
+            case 'R':
+                apply(RobotCommand.RIGHT, 0);
+                break;
+            case 'L':
+                apply(RobotCommand.LEFT, 0);
+                break;
+        }
+    }
+
+
+    @Override
+    protected boolean applyCommand(int opcode, int arg) {
+        switch (opcode) {
+            case RobotCommand.RIGHT_AMPLITUDE:
+                mOsc[RIGHT_LEGS].setA(arg);
+                return true;
+
+            case RobotCommand.LEFT_AMPLITUDE:
+                mOsc[LEFT_LEGS].setA(arg);
+                return true;
+
+            case RobotCommand.PERIOD:
+                setPeriod(arg);
+                return true;
+
+            case RobotCommand.PHASE:
+                setPhase(arg);
+                return true;
+
+            case RobotCommand.STOP:
+                setAmplitudes(0, 0);
+                setPeriod(NORMAL_PERIOD);
+                return true;
+
+            case RobotCommand.RESET:
+                setAmplitudes(MAX_AMPLITUDE, MAX_AMPLITUDE);
+                setPeriod(NORMAL_PERIOD);
+                setPhase(FORWARD_PHASE);
+                return true;
+
+            case RobotCommand.FORWARD:
+                setAmplitudes(MAX_AMPLITUDE, MAX_AMPLITUDE);
+                setPhase(FORWARD_PHASE);
+                return true;
+
+            case RobotCommand.BACKWARD:
+                setAmplitudes(MAX_AMPLITUDE, MAX_AMPLITUDE);
+                setPhase(BACKWARD_PHASE);
+                return true;
+
+            case RobotCommand.RIGHT:
+                setAmplitudes(0, MAX_AMPLITUDE);
+                setPhase(FORWARD_PHASE);
+                return true;
+
+            case RobotCommand.LEFT:
+                setAmplitudes(MAX_AMPLITUDE, 0);
+                setPhase(FORWARD_PHASE);
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+
+    @Override
+    protected boolean applyGait(int leftAmplitude, int rightAmplitude, int period, int phase) {
+        setAmplitudes(rightAmplitude, leftAmplitude);
+        setPeriod(period);
+        setPhase(phase);
+        return true;
+    }
+
+
+    @Override
+    protected void runMode() {
+        long millis = millis();
+
+        for (SimulatedOscillator osc : mOsc) {
+            osc.refresh(millis);
+        }
+    }
+
+
+    /**
+     * The sketch always refreshes the oscillators, so it is idle only until the next sample
+     */
+    @Override
+    protected long getIdleUntil() {
+        long next = Long.MAX_VALUE;
+
+        for (SimulatedOscillator osc : mOsc) {
+            next = Math.min(next, osc.getNextSampleMillis());
+        }
+
+        return timeOfMillis(next);
+    }
+
+
+    /**
+     * @param index {@link #RIGHT_LEGS}, {@link #LEFT_LEGS} or {@link #CENTRAL}
+     */
+    public synchronized SimulatedOscillator getOscillator(int index) {
+        return mOsc[index];
+    }
+
+}
@@ -0,0 +1,309 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.connection.RobotTelemetry;
+
+
+/**
+ * robopad_plusplus_evolution_droid_arduino: two wheels and a head with an ultrasound sensor,
+ * with the line follower, light follower and obstacles avoider modes. The obstacles avoider
+ * is split in steps so the sketch reads the serial port between them, but each step still
+ * takes hundreds of milliseconds.
+ */
+
+public class SimulatedEvolution extends SimulatedPrintbot {
+
+    /**
+     * The sketch uses the speed of the Bluetooth module of the ZUM board
+     */
+    public static final int BAUD_RATE = 19200;
+
+    public static final int US_CENTER_ANGLE = 80;
+    public static final int US_LEFT_ANGLE = 110;
+    public static final int US_RIGHT_ANGLE = 50;
+
+    private static final int US_WAITING_FOR_RESPONSE_DELAY = 500;
+    private static final int SEARCHING_OBSTACLES_HEAD_DELAY = 500;
+    private static final int OBSTACLE_DISTANCE = 25;
+
+    /**
+     * Default timeout of pulseIn(), when nothing answers the ultrasound
+     */
+    private static final long PULSE_IN_TIMEOUT_MICROS = 1000000;
+
+    private static final int US_STATE_CHECK_NOT_STARTED = 0;
+    private static final int US_STATE_CHECK_CENTER = 1;
+    private static final int US_STATE_CHECK_RIGHT = 2;
+    private static final int US_STATE_CHECK_LEFT = 3;
+
+    private int mLastUsState = US_STATE_CHECK_NOT_STARTED;
+    private boolean mWasGoingForward = true;
+    private int mLastHeadAngle;
+
+    // Distance to the obstacle in front of the ultrasound sensor, 0 if there is none
+    private int mObstacleDistance = 100;
+
+
+    public SimulatedEvolution() {
+        super(BAUD_RATE);
+    }
+
+
+    @Override
+    public String getName() {
+        return "Evolution";
+    }
+
+
+    /**
+     * @param centimeters distance to the obstacle in front of the ultrasound sensor, 0 if there
+     *                    is none, so the echo never arrives
+     */
+    public synchronized void setObstacleDistance(int centimeters) {
+        mObstacleDistance = centimeters;
+    }
+
+
+    @Override
+    protected void setup() {
+        stopWheels();
+        turnHead(US_CENTER_ANGLE, DEFAULT_DELAY);
+        mCurrentState = RobotCommand.MODE_MANUAL_CONTROL;
+    }
+
+
+    /**
+     * distance_4_5() of the sketch, the trigger and the wait for the echo
+     */
+    private int distance() {
+        delayMicroseconds(12);
+
+        if (mObstacleDistance == 0) {
+            delayMicroseconds(PULSE_IN_TIMEOUT_MICROS);
+            mTelemetry.set(RobotTelemetry.SENSOR_DISTANCE, 0);
+            return 0;
+        }
+
+        long microseconds = mObstacleDistance * 29 * 2;
+        delayMicroseconds(microseconds);
+
+        int distance = (int) (microseconds / 29 / 2);
+        mTelemetry.set(RobotTelemetry.SENSOR_DISTANCE, distance);
+        return distance;
+    }
+
+
+    private void turnHead(int angle, int delayDuration) {
+        delay(delayDuration);
+        mLastHeadAngle = angle;
+    }
+
+
+    private boolean isObstacle(int distance) {
+        return distance != 0 && distance < OBSTACLE_DISTANCE;
+    }
+
+
+    private boolean searchObstacles(int angle) {
+        turnHead(angle, SEARCHING_OBSTACLES_HEAD_DELAY);
+
+        if (isObstacle(distance())) {
+            delay(300);
+            return true;
+        }
+
+        delay(150);
+        return false;
+    }
+
+
+    private boolean checkCenterObstacle() {
+        if (!mWasGoingForward) {
+            turnHead(US_CENTER_ANGLE, SEARCHING_OBSTACLES_HEAD_DELAY);
+        }
+
+        if (isObstacle(distance())) {
+            stopWheels();
+            delay(300);
+            return true;
+        }
+
+        return false;
+    }
+
+
+    private void turnHeadTo(int angle) {
+        if (mLastHeadAngle != angle) {
+            turnHead(angle, DEFAULT_DELAY);
+        }
+    }
+
+
+    @Override
+    protected void goForwards() {
+        turnHeadTo(US_CENTER_ANGLE);
+        super.goForwards();
+    }
+
+
+    @Override
+    protected void goBackwards() {
+        turnHeadTo(US_CENTER_ANGLE);
+
+        if (mCurrentState == RobotCommand.MODE_OBSTACLES_AVOIDER) {
+            // The three tones of the sketch
+            delay(300 + 300 + 500);
+        }
+
+        super.goBackwards();
+    }
+
+
+    @Override
+    protected void goLeft() {
+        turnHeadTo(US_LEFT_ANGLE);
+        super.goLeft();
+    }
+
+
+    @Override
+    protected void goRight() {
+        turnHeadTo(US_RIGHT_ANGLE);
+        super.goRight();
+    }
+
+
+    @Override
+    protected void checkData(byte[] data) {
+        switch (data[0]) {
+            case 'I':
+                apply(RobotCommand.MODE, RobotCommand.MODE_LINE_FOLLOWER);
+                break;
+            case 'G':
+                apply(RobotCommand.MODE, RobotCommand.MODE_LIGHT_AVOIDER);
+                break;
+            case 'B':
+                apply(RobotCommand.MODE, RobotCommand.MODE_OBSTACLES_AVOIDER);
+                break;
+            case 'M':
+                apply(RobotCommand.MODE, RobotCommand.MODE_MANUAL_CONTROL);
+                break;
+            case 'S':
+                apply(RobotCommand.STOP, 0);
+                break;
+            case 'U':
+                apply(RobotCommand.FORWARD, 0);
+                break;
+            case 'D':
+                apply(RobotCommand.BACKWARD, 0);
+                break;
+            case 'L':
+                apply(RobotCommand.LEFT, 0);
+                break;
+            case 'R':
+                apply(RobotCommand.RIGHT, 0);
+                break;
+        }
+    }
+
+
+    @Override
+    protected boolean applyCommand(int opcode, int arg) {
+        if (opcode != RobotCommand.MODE) {
+            return applyMovement(opcode, arg);
+        }
+
+        switch (arg) {
+            case RobotCommand.MODE_LINE_FOLLOWER:
+            case RobotCommand.MODE_LIGHT_AVOIDER:
+                mCurrentState = arg;
+                return true;
+
+            case RobotCommand.MODE_OBSTACLES_AVOIDER:
+                mCurrentState = arg;
+                mLastUsState = US_STATE_CHECK_NOT_STARTED;
+                return true;
+
+            case RobotCommand.MODE_MANUAL_CONTROL:
+                mCurrentState = arg;
+                stopWheels();
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+
+    @Override
+    protected void runMode() {
+        if (mCurrentState == RobotCommand.MODE_LINE_FOLLOWER) {
+            followTheLine();
+        } else if (mCurrentState == RobotCommand.MODE_LIGHT_AVOIDER) {
+            avoidTheLight();
+        } else if (mCurrentState == RobotCommand.MODE_OBSTACLES_AVOIDER) {
+            avoidTheObstacles();
+        }
+    }
+
+
+    private void avoidTheObstacles() {
+        switch (mLastUsState) {
+            case US_STATE_CHECK_NOT_STARTED:
+                if (!checkCenterObstacle()) {
+                    mLastUsState = US_STATE_CHECK_NOT_STARTED;
+                    if (!mWasGoingForward) {
+                        mWasGoingForward = true;
+                        // The three tones of the sketch
+                        delay(100 + 100 + 300);
+                    }
+                    goForwards();
+                } else {
+                    mLastUsState = US_STATE_CHECK_CENTER;
+                    mWasGoingForward = false;
+                }
+                break;
+
+            case US_STATE_CHECK_CENTER:
+                boolean rightObstacle = searchObstacles(US_RIGHT_ANGLE);
+                delay(US_WAITING_FOR_RESPONSE_DELAY);
+                if (!rightObstacle) {
+                    mLastUsState = US_STATE_CHECK_NOT_STARTED;
+                    goRight();
+                    delay(900);
+                    stopWheels();
+                } else {
+                    mLastUsState = US_STATE_CHECK_RIGHT;
+                }
+                break;
+
+            case US_STATE_CHECK_RIGHT:
+                boolean leftObstacle = searchObstacles(US_LEFT_ANGLE);
+                delay(US_WAITING_FOR_RESPONSE_DELAY);
+                if (!leftObstacle) {
+                    mLastUsState = US_STATE_CHECK_NOT_STARTED;
+                    goLeft();
+                    delay(900);
+                    stopWheels();
+                } else {
+                    mLastUsState = US_STATE_CHECK_LEFT;
+                }
+                break;
+
+            case US_STATE_CHECK_LEFT:
+                mLastUsState = US_STATE_CHECK_CENTER;
+                goBackwards();
+                break;
+        }
+    }
+
+
+    /**
+     * @return angle of the servo of the head
+     */
+    public synchronized int getHeadAngle() {
+        return mLastHeadAngle;
+    }
+
+}
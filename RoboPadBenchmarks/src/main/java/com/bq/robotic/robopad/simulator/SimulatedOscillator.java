@@ -0,0 +1,119 @@
+package com.bq.robotic.robopad.simulator;
+
+
+/**
+ * Port of the Oscillator library of the Crab: a servo that follows a sine wave, sampled every
+ * {@link #SAMPLING_PERIOD} milliseconds when the sketch calls {@link #refresh(long)}. The
+ * parameters are unsigned ints in the board, so they keep their 16 bits here too.
+ */
+
+public class SimulatedOscillator {
+
+    /**
+     * _TS of the library, in milliseconds
+     */
+    public static final int SAMPLING_PERIOD = 30;
+
+    private int mAmplitude = 45;
+    private int mOffset;
+    private int mPeriod;
+    private double mPhase0;
+
+    private int mPosition;
+    private double mPhase;
+    private double mInc;
+
+    private long mPreviousMillis;
+
+    private long mSamples;
+
+
+    public SimulatedOscillator() {
+        setT(2000);
+    }
+
+
+    public void setA(int amplitude) {
+        mAmplitude = amplitude & 0xFFFF;
+    }
+
+
+    public void setO(int offset) {
+        mOffset = offset & 0xFFFF;
+    }
+
+
+    /**
+     * @param phase0 phase in radians
+     */
+    public void setPh(double phase0) {
+        mPhase0 = phase0;
+    }
+
+
+    public void setT(int period) {
+        mPeriod = period & 0xFFFF;
+
+        // Integer division of unsigned ints, as in the library
+        int samples = mPeriod / SAMPLING_PERIOD;
+        mInc = 2 * Math.PI / samples;
+    }
+
+
+    /**
+     * @param millis millis() of the board
+     * @return true if a new sample was written to the servo
+     */
+    public boolean refresh(long millis) {
+        if (millis - mPreviousMillis <= SAMPLING_PERIOD) {
+            return false;
+        }
+
+        mPreviousMillis = millis;
+        mPosition = (int) Math.round(mAmplitude * Math.sin(mPhase + mPhase0) + mOffset);
+        mPhase += mInc;
+        mSamples++;
+
+        return true;
+    }
+
+
+    /**
+     * @return millis() of the board when the next sample is taken
+     */
+    public long getNextSampleMillis() {
+        return mPreviousMillis + SAMPLING_PERIOD + 1;
+    }
+
+
+    public int getAmplitude() {
+        return mAmplitude;
+    }
+
+
+    public int getPeriod() {
+        return mPeriod;
+    }
+
+
+    /**
+     * @return phase difference in radians
+     */
+    public double getPhase0() {
+        return mPhase0;
+    }
+
+
+    /**
+     * @return angle of the last sample, relative to the 90 degrees of the center of the servo
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+
+    public long getSamples() {
+        return mSamples;
+    }
+
+}
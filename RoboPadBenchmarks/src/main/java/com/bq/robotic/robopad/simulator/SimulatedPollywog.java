@@ -0,0 +1,100 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.connection.RobotCommand;
+
+
+/**
+ * robopad_pollywog_droid_arduino: two wheels and the line follower mode
+ */
+
+public class SimulatedPollywog extends SimulatedPrintbot {
+
+    public static final int BAUD_RATE = 38400;
+
+
+    public SimulatedPollywog() {
+        super(BAUD_RATE);
+    }
+
+
+    @Override
+    public String getName() {
+        return "Pollywog";
+    }
+
+
+    @Override
+    protected void setup() {
+        stopWheels();
+        mCurrentState = RobotCommand.MODE_MANUAL_CONTROL;
+    }
+
+
+    @Override
+    protected void checkData(byte[] data) {
+        switch (data[0]) {
+            case 'I':
+                apply(RobotCommand.MODE, RobotCommand.MODE_LINE_FOLLOWER);
+                break;
+            case 'M':
+                apply(RobotCommand.MODE, RobotCommand.MODE_MANUAL_CONTROL);
+                break;
+            case 'S':
+                apply(RobotCommand.STOP, 0);
+                break;
+            case 'U':
+                apply(RobotCommand.FORWARD, 0);
+                break;
+            case 'D':
+                apply(RobotCommand.BACKWARD, 0);
+                break;
+            case 'L':
+                apply(RobotCommand.LEFT, 0);
+                break;
+            case 'R':
+                apply(RobotCommand.RIGHT, 0);
+                break;
+        }
+    }
+
+
+    @Override
+    protected boolean applyCommand(int opcode, int arg) {
+        if (opcode != RobotCommand.MODE) {
+            return applyMovement(opcode, arg);
+        }
+
+        if (arg == RobotCommand.MODE_LINE_FOLLOWER) {
+            mCurrentState = RobotCommand.MODE_LINE_FOLLOWER;
+            return true;
+        } else if (arg == RobotCommand.MODE_MANUAL_CONTROL) {
+            mCurrentState = RobotCommand.MODE_MANUAL_CONTROL;
+            stopWheels();
+            return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * The Pollywog follows the line moving each wheel on its own
+     */
+    @Override
+    protected void runMode() {
+        if (mCurrentState != RobotCommand.MODE_LINE_FOLLOWER) {
+            return;
+        }
+
+        readLineSensors();
+
+        // The sketch reads the left sensor as the right one
+        mLeftWheel = mLeftIR == BLACK ? LEFT_WHEEL_FORWARD_VALUE : WHEEL_STOP_VALUE;
+        delay(DEFAULT_DELAY);
+
+        mRightWheel = mRightIR == BLACK ? RIGHT_WHEEL_FORWARD_VALUE : WHEEL_STOP_VALUE;
+        delay(DEFAULT_DELAY);
+    }
+
+}
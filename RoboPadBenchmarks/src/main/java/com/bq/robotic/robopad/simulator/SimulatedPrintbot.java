@@ -0,0 +1,185 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.connection.RobotTelemetry;
+
+
+/**
+ * The parts shared by the sketches of the printbots with two wheels, the Beetle, the Evolution
+ * and the Pollywog: the movements, that write the two wheels, and the sensors of the autonomous
+ * modes.
+ */
+
+public abstract class SimulatedPrintbot extends SimulatedRobot {
+
+    public static final int DEFAULT_DELAY = 10;
+
+    public static final int BLACK = 0;
+    public static final int WHITE = 1;
+
+    /**
+     * lightLimitValue of the sketches
+     */
+    public static final int LIGHT_LIMIT_VALUE = 200;
+
+    // Values read by digitalRead() of the infrared sensors
+    protected int mLeftIR = BLACK;
+    protected int mRightIR = BLACK;
+
+    // Values read by analogRead() of the light sensors, from 0 to 1023
+    protected int mLeftLDR = 1023;
+    protected int mRightLDR = 1023;
+
+
+    protected SimulatedPrintbot(int baudRate) {
+        super(baudRate);
+    }
+
+
+    /**
+     * @param left value of the left infrared sensor, {@link #BLACK} over the line
+     * @param right value of the right infrared sensor
+     */
+    public synchronized void setLineSensors(int left, int right) {
+        mLeftIR = left;
+        mRightIR = right;
+    }
+
+
+    /**
+     * @param left value of the left light sensor, from 0 to 1023
+     * @param right value of the right light sensor
+     */
+    public synchronized void setLightSensors(int left, int right) {
+        mLeftLDR = left;
+        mRightLDR = right;
+    }
+
+
+    protected void writeWheels(int left, int right) {
+        mLeftWheel = left;
+        mRightWheel = right;
+    }
+
+
+    protected void stopWheels() {
+        writeWheels(WHEEL_STOP_VALUE, WHEEL_STOP_VALUE);
+    }
+
+
+    protected void goForwards() {
+        writeWheels(LEFT_WHEEL_FORWARD_VALUE, RIGHT_WHEEL_FORWARD_VALUE);
+    }
+
+
+    protected void goBackwards() {
+        writeWheels(LEFT_WHEEL_BACKWARDS_VALUE, RIGHT_WHEEL_BACKWARDS_VALUE);
+    }
+
+
+    protected void goLeft() {
+        writeWheels(WHEEL_STOP_VALUE, RIGHT_WHEEL_FORWARD_VALUE);
+    }
+
+
+    protected void goRight() {
+        writeWheels(LEFT_WHEEL_FORWARD_VALUE, WHEEL_STOP_VALUE);
+    }
+
+
+    /**
+     * drive() of the sketches
+     *
+     * @param leftSpeed speed of the left wheel in percent of the full speed, negative backwards
+     * @param rightSpeed speed of the right wheel
+     */
+    protected void drive(int leftSpeed, int rightSpeed) {
+        writeWheels(WHEEL_STOP_VALUE + (LEFT_WHEEL_FORWARD_VALUE - WHEEL_STOP_VALUE) * leftSpeed / RobotCommand.DRIVE_MAX_SPEED,
+                WHEEL_STOP_VALUE + (RIGHT_WHEEL_FORWARD_VALUE - WHEEL_STOP_VALUE) * rightSpeed / RobotCommand.DRIVE_MAX_SPEED);
+    }
+
+
+    /**
+     * The movements, the drive of the joystick and the stop, the same in the three sketches
+     *
+     * @param arg the argument of the command, only used by the drive
+     * @return true if it is one of them
+     */
+    protected boolean applyMovement(int opcode, int arg) {
+        switch (opcode) {
+            case RobotCommand.STOP:
+                stopWheels();
+                return true;
+
+            case RobotCommand.FORWARD:
+                goForwards();
+                return true;
+
+            case RobotCommand.BACKWARD:
+                goBackwards();
+                return true;
+
+            case RobotCommand.LEFT:
+                goLeft();
+                return true;
+
+            case RobotCommand.RIGHT:
+                goRight();
+                return true;
+
+            case RobotCommand.DRIVE:
+                // RP_DRIVE_LEFT() and RP_DRIVE_RIGHT()
+                drive(arg >> 8, (byte) arg);
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+
+    /**
+     * The reads of the infrared sensors, given to the telemetry
+     */
+    protected void readLineSensors() {
+        mTelemetry.set(RobotTelemetry.SENSOR_IR_LEFT, mLeftIR);
+        mTelemetry.set(RobotTelemetry.SENSOR_IR_RIGHT, mRightIR);
+    }
+
+
+    /**
+     * followTheLine() of the Beetle and the Evolution
+     */
+    protected void followTheLine() {
+        readLineSensors();
+
+        // The sketches read the left sensor as the right one
+        int rightIR = mLeftIR;
+        int leftIR = mRightIR;
+
+        if (rightIR == WHITE && leftIR == BLACK) {
+            goRight();
+        } else if (rightIR == BLACK && leftIR == WHITE) {
+            goLeft();
+        } else {
+            goForwards();
+        }
+    }
+
+
+    /**
+     * avoidTheLight() of the Beetle and the Evolution
+     */
+    protected void avoidTheLight() {
+        mTelemetry.set(RobotTelemetry.SENSOR_LDR_LEFT, mLeftLDR);
+        mTelemetry.set(RobotTelemetry.SENSOR_LDR_RIGHT, mRightLDR);
+
+        mRightWheel = mRightLDR < LIGHT_LIMIT_VALUE ? WHEEL_STOP_VALUE : RIGHT_WHEEL_FORWARD_VALUE;
+        delay(DEFAULT_DELAY);
+
+        mLeftWheel = mLeftLDR < LIGHT_LIMIT_VALUE ? WHEEL_STOP_VALUE : LEFT_WHEEL_FORWARD_VALUE;
+        delay(DEFAULT_DELAY);
+    }
+
+}
@@ -0,0 +1,120 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.connection.RobotCommand;
+
+
+/**
+ * robopad_rhino_droid_arduino: two tracks moved on their own and the charge, which keeps the
+ * sketch busy for more than 2 seconds
+ */
+
+public class SimulatedRhino extends SimulatedRobot {
+
+    public static final int BAUD_RATE = 38400;
+
+
+    public SimulatedRhino() {
+        super(BAUD_RATE);
+    }
+
+
+    @Override
+    public String getName() {
+        return "Rhino";
+    }
+
+
+    @Override
+    protected void setup() {
+        stopWheels();
+    }
+
+
+    private void stopWheels() {
+        moveLeftWheel(WHEEL_STOP_VALUE);
+        moveRightWheel(WHEEL_STOP_VALUE);
+    }
+
+
+    private void moveLeftWheel(int value) {
+        mLeftWheel = value;
+    }
+
+
+    private void moveRightWheel(int value) {
+        mRightWheel = value;
+    }
+
+
+    private static int trackOf(byte direction) {
+        switch (direction) {
+            case 'U':
+                return RobotCommand.TRACK_UP;
+            case 'D':
+                return RobotCommand.TRACK_DOWN;
+            case 'S':
+                return RobotCommand.TRACK_STOP;
+            default:
+                return Integer.MIN_VALUE;
+        }
+    }
+
+
+    @Override
+    protected void checkData(byte[] data) {
+        if (data[0] == 'S') {
+            apply(RobotCommand.STOP, 0);
+        } else if (data[0] == 'C') {
+            apply(RobotCommand.CHARGE, 0);
+        } else if (data[0] == 'L' && trackOf(data[1]) != Integer.MIN_VALUE) {
+            apply(RobotCommand.LEFT_TRACK, trackOf(data[1]));
+        } else if (data[0] == 'R' && trackOf(data[1]) != Integer.MIN_VALUE) {
+            apply(RobotCommand.RIGHT_TRACK, trackOf(data[1]));
+        }
+    }
+
+
+    @Override
+    protected boolean applyCommand(int opcode, int arg) {
+        switch (opcode) {
+            case RobotCommand.STOP:
+                mLeftWheel = WHEEL_STOP_VALUE;
+                mRightWheel = WHEEL_STOP_VALUE;
+                return true;
+
+            case RobotCommand.CHARGE:
+                moveLeftWheel(LEFT_WHEEL_BACKWARDS_VALUE);
+                moveRightWheel(RIGHT_WHEEL_BACKWARDS_VALUE);
+                delay(800);
+                moveLeftWheel(LEFT_WHEEL_FORWARD_VALUE);
+                moveRightWheel(RIGHT_WHEEL_FORWARD_VALUE);
+                delay(1400);
+                stopWheels();
+                return true;
+
+            case RobotCommand.LEFT_TRACK:
+                moveLeftWheel(trackValue(arg, LEFT_WHEEL_FORWARD_VALUE, LEFT_WHEEL_BACKWARDS_VALUE));
+                return true;
+
+            case RobotCommand.RIGHT_TRACK:
+                moveRightWheel(trackValue(arg, RIGHT_WHEEL_FORWARD_VALUE, RIGHT_WHEEL_BACKWARDS_VALUE));
+                return true;
+
+            default:
+                return false;
+        }
+    }
+
+
+    private static int trackValue(int direction, int up, int down) {
+        if (direction == RobotCommand.TRACK_UP) {
+            return up;
+        } else if (direction == RobotCommand.TRACK_DOWN) {
+            return down;
+        }
+
+        return WHEEL_STOP_VALUE;
+    }
+
+}
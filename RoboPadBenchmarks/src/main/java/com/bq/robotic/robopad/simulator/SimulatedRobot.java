@@ -0,0 +1,460 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.connection.LoopbackTransport;
+import com.bq.robotic.robopad.connection.RobotCommand;
+
+import java.util.Arrays;
+
+
+/**
+ * A sketch of the robots running on a virtual Arduino, to measure how many commands each robot
+ * can really apply without the robot on the desk. The subclasses reproduce the sketch of each
+ * robot: its state machine, the decoding of the legacy ASCII commands and of the binary frames,
+ * and every delay() of the sketch, which is the real cost of applying a command in these boards.
+ *
+ * The time of the board is virtual, in nanoseconds in the same clock than
+ * {@link System#nanoTime()}. Each pass of loop() advances it by the delays of the sketch plus
+ * {@link #LOOP_NANOS}, and while the sketch has nothing to do the time jumps to the arrival of
+ * the next byte, so the simulation of seconds of the robot takes a few milliseconds.
+ *
+ * As a {@link LoopbackTransport.Receiver} it can be put behind the {@link LoopbackTransport} of
+ * the app's command path: the frames arrive at the wall clock time when they are written and
+ * the sketch runs until it has read them. The tools that don't need the app write the bytes
+ * with {@link #write(byte[], int, int, long)} at the times they choose and then call
+ * {@link #runUntil(long)}.
+ *
+ * Every command applied by the sketch is recorded with the time when the sketch started to
+ * apply it, as a {@link RobotCommand}, so it can be compared with the commands sent.
+ */
+
+public abstract class SimulatedRobot implements LoopbackTransport.Receiver {
+
+    public static final long MILLIS = 1000000L;
+    public static final long MICROS = 1000L;
+
+    /**
+     * Time of a pass of loop() without delays. The reads of the sensors and the computations of
+     * the sketches are not modelled
+     */
+    public static final long LOOP_NANOS = 20 * MICROS;
+
+    /**
+     * Values of the continuous rotation servos of the wheels, the same in all the sketches
+     */
+    public static final int WHEEL_STOP_VALUE = 90;
+    public static final int LEFT_WHEEL_FORWARD_VALUE = 0;
+    public static final int LEFT_WHEEL_BACKWARDS_VALUE = 180;
+    public static final int RIGHT_WHEEL_FORWARD_VALUE = 180;
+    public static final int RIGHT_WHEEL_BACKWARDS_VALUE = 0;
+
+    protected final SimulatedSerial mSerial;
+
+    private final RoboPadFrameDecoder mFrameDecoder = new RoboPadFrameDecoder();
+    private final RoboPadStateTracker mStateTracker = new RoboPadStateTracker();
+    private final RoboPadCommandReader mCommandReader = new RoboPadCommandReader();
+    private final RoboPadHeartbeat mHeartbeat = new RoboPadHeartbeat();
+
+    /**
+     * The sketches with sensors give it the values that they read
+     */
+    protected final RoboPadTelemetry mTelemetry = new RoboPadTelemetry();
+
+    private long mNow;
+    private long mBootTime;
+
+    /**
+     * currentState of the sketches, a RobotCommand.MODE_* value
+     */
+    protected int mCurrentState = RobotCommand.MODE_MANUAL_CONTROL;
+
+    protected int mLeftWheel = WHEEL_STOP_VALUE;
+    protected int mRightWheel = WHEEL_STOP_VALUE;
+
+    private long[] mAppliedCommands = new long[1024];
+    private long[] mAppliedTimes = new long[1024];
+    private int mAppliedCount;
+
+    private long mFramesDecoded;
+    private long mLegacyCommands;
+    private long mHeartbeatStops;
+
+
+    /**
+     * @param baudRate speed given to Serial.begin() by the sketch
+     */
+    protected SimulatedRobot(int baudRate) {
+        mSerial = new SimulatedSerial(baudRate);
+    }
+
+
+    /**
+     * @return name of the robot, for the reports
+     */
+    public abstract String getName();
+
+
+    /**
+     * setup() of the sketch
+     */
+    protected abstract void setup();
+
+
+    /**
+     * The action of a command, the applyCommand() of the sketch, that checkData() also calls for
+     * the legacy commands
+     *
+     * @return true if the sketch understands the command
+     */
+    protected abstract boolean applyCommand(int opcode, int arg);
+
+
+    /**
+     * The setGait() of the sketches with oscillators, which change all their parameters at once
+     *
+     * @return true if the sketch understands the {@link RobotCommand#GAIT} frame
+     */
+    protected boolean applyGait(int leftAmplitude, int rightAmplitude, int period, int phase) {
+        return false;
+    }
+
+
+    /**
+     * The checkData() of the sketch for a legacy command, ended with a 0 as the command of the
+     * RoboPadCommandReader.
+     */
+    protected abstract void checkData(byte[] data);
+
+
+    /**
+     * The part of loop() after reading the serial port, as the autonomous modes
+     */
+    protected void runMode() {
+    }
+
+
+    /**
+     * @return until when the sketch only waits for the serial port if there is nothing to read,
+     * {@link Long#MAX_VALUE} if it has nothing else to do, or the current time if it is busy
+     */
+    protected long getIdleUntil() {
+        return mCurrentState == RobotCommand.MODE_MANUAL_CONTROL ? Long.MAX_VALUE : mNow;
+    }
+
+
+    /**
+     * Turn on the board and run setup()
+     *
+     * @param time when the board is turned on
+     */
+    public synchronized void powerOn(long time) {
+        mNow = time;
+        mBootTime = time;
+        setup();
+    }
+
+
+    /**
+     * A frame written by the app. The transport calls it once the frame is written, so its last
+     * byte arrives now, or later if the bytes written before have not arrived yet. The sketch
+     * runs until then.
+     */
+    @Override
+    public synchronized void onFrame(byte[] buffer, int offset, int length) {
+        long now = System.nanoTime();
+
+        mSerial.write(buffer, offset, length, now - length * mSerial.getNanosPerByte());
+        runUntil(now);
+    }
+
+
+    /**
+     * Bytes written by the app, they arrive after the previous ones at the speed of the serial
+     * port. The sketch doesn't run until {@link #runUntil(long)} is called.
+     *
+     * @param time when the first byte starts to arrive
+     */
+    public synchronized void write(byte[] buffer, int offset, int length, long time) {
+        mSerial.write(buffer, offset, length, time);
+    }
+
+
+    /**
+     * Run the sketch until the given time. The last pass of loop() can end after it.
+     */
+    public synchronized void runUntil(long time) {
+        while (mNow < time) {
+            if (mSerial.available(mNow) == 0) {
+                long idleUntil = Math.min(getIdleUntil(), mSerial.getNextArrivalTime());
+
+                long pollDeadline = mCommandReader.getPollDeadline();
+                if (pollDeadline != Long.MAX_VALUE) {
+                    idleUntil = Math.min(idleUntil, timeOfMicros(pollDeadline));
+                }
+
+                long heartbeatDeadline = mHeartbeat.getDeadline();
+                if (heartbeatDeadline != Long.MAX_VALUE) {
+                    idleUntil = Math.min(idleUntil, timeOfMillis(heartbeatDeadline));
+                }
+
+                if (idleUntil > mNow) {
+                    mNow = Math.min(idleUntil, time);
+                    continue;
+                }
+            }
+
+            loop();
+        }
+    }
+
+
+    /**
+     * The loop() of the sketches, the same in all of them
+     */
+    private void loop() {
+        mNow += LOOP_NANOS;
+
+        // The bytes are read as they arrive, frames and legacy commands
+        while (mSerial.available(mNow) > 0) {
+            int data = mSerial.read(mNow);
+
+            if (mFrameDecoder.isReceiving() || mFrameDecoder.hasFrames()
+                    || RoboPadFrameDecoder.isFrameStart(data)) {
+                boolean complete = mFrameDecoder.feed(data);
+                while (complete) {
+                    checkFrame();
+                    complete = mFrameDecoder.resume();
+                }
+
+            } else if (mCommandReader.feed(data, micros())) {
+                checkLegacyCommand();
+            }
+        }
+
+        if (mCommandReader.poll(micros())) {
+            checkLegacyCommand();
+        }
+
+        // The link was lost in the middle of a movement
+        if (mHeartbeat.expired(millis())) {
+            mHeartbeatStops++;
+            apply(RobotCommand.STOP, 0);
+            mStateTracker.reset();
+        }
+
+        runMode();
+
+        // Only the versions of the app that send frames expect the telemetry
+        if (mFrameDecoder.hasFrames()) {
+            String telemetry = mTelemetry.message(millis());
+            if (telemetry != null) {
+                mSerial.print(telemetry, mNow);
+            }
+        }
+    }
+
+
+    private void checkLegacyCommand() {
+        mLegacyCommands++;
+        checkData(mCommandReader.command());
+    }
+
+
+    private void checkFrame() {
+        mFramesDecoded++;
+
+        if (mFrameDecoder.opcode() == RobotCommand.STATE) {
+            while (mStateTracker.nextChange(mFrameDecoder)) {
+                apply(mStateTracker.opcode(), mStateTracker.arg());
+            }
+        } else if (mFrameDecoder.opcode() == RobotCommand.GAIT) {
+            long start = mNow;
+            if (applyGait(mFrameDecoder.arg(0), mFrameDecoder.arg(1), mFrameDecoder.arg(2),
+                    mFrameDecoder.arg(3))) {
+                record(RobotCommand.gait(mFrameDecoder.arg(0), mFrameDecoder.arg(1),
+                        mFrameDecoder.arg(2), mFrameDecoder.arg(3)), start);
+            }
+        } else {
+            apply(mFrameDecoder.opcode(), mFrameDecoder.arg(0));
+        }
+
+        mHeartbeat.update(mFrameDecoder, millis());
+
+        String ack = mFrameDecoder.ackMessage();
+        if (ack != null) {
+            mSerial.print(ack, mNow);
+        }
+    }
+
+
+    /**
+     * Apply a command and record it if the sketch understands it
+     */
+    protected void apply(int opcode, int arg) {
+        long start = mNow;
+
+        if (applyCommand(opcode, arg)) {
+            record(RobotCommand.of(opcode, arg), start);
+        }
+    }
+
+
+    private void record(long command, long start) {
+        if (mAppliedCount == mAppliedCommands.length) {
+            mAppliedCommands = Arrays.copyOf(mAppliedCommands, mAppliedCount * 2);
+            mAppliedTimes = Arrays.copyOf(mAppliedTimes, mAppliedCount * 2);
+        }
+
+        mAppliedCommands[mAppliedCount] = command;
+        mAppliedTimes[mAppliedCount] = start;
+        mAppliedCount++;
+    }
+
+
+    protected void delay(long millis) {
+        mNow += millis * MILLIS;
+    }
+
+
+    protected void delayMicroseconds(long micros) {
+        mNow += micros * MICROS;
+    }
+
+
+    /**
+     * @return millis() of the board, the milliseconds since it was turned on
+     */
+    protected long millis() {
+        return (mNow - mBootTime) / MILLIS;
+    }
+
+
+    /**
+     * @return micros() of the board
+     */
+    protected long micros() {
+        return (mNow - mBootTime) / MICROS;
+    }
+
+
+    /**
+     * @param millis a value of {@link #millis()}
+     * @return the virtual time of that moment
+     */
+    protected long timeOfMillis(long millis) {
+        return mBootTime + millis * MILLIS;
+    }
+
+
+    private long timeOfMicros(long micros) {
+        return mBootTime + micros * MICROS;
+    }
+
+
+    /**
+     * strtol(data + start, NULL, 10) of the C library, the buffer ends with a 0 or at its end
+     */
+    protected static int strtol(byte[] data, int start) {
+        int i = start;
+        while (i < data.length && (data[i] == ' ' || (data[i] >= '\t' && data[i] <= '\r'))) {
+            i++;
+        }
+
+        boolean negative = false;
+        if (i < data.length && (data[i] == '-' || data[i] == '+')) {
+            negative = data[i] == '-';
+            i++;
+        }
+
+        int value = 0;
+        while (i < data.length && data[i] >= '0' && data[i] <= '9') {
+            value = value * 10 + data[i] - '0';
+            i++;
+        }
+
+        return negative ? -value : value;
+    }
+
+
+    public synchronized long getTime() {
+        return mNow;
+    }
+
+
+    public SimulatedSerial getSerial() {
+        return mSerial;
+    }
+
+
+    public synchronized int getMode() {
+        return mCurrentState;
+    }
+
+
+    /**
+     * @return value written to the servo of the left wheel, from 0 to 180
+     */
+    public synchronized int getLeftWheel() {
+        return mLeftWheel;
+    }
+
+
+    /**
+     * @return value written to the servo of the right wheel, from 0 to 180
+     */
+    public synchronized int getRightWheel() {
+        return mRightWheel;
+    }
+
+
+    public synchronized int getAppliedCount() {
+        return mAppliedCount;
+    }
+
+
+    /**
+     * @return the {@link RobotCommand} applied in the given position, with the argument that the
+     * sketch decoded
+     */
+    public synchronized long getAppliedCommand(int index) {
+        return mAppliedCommands[index];
+    }
+
+
+    /**
+     * @return when the sketch started to apply the command of the given position
+     */
+    public synchronized long getAppliedTime(int index) {
+        return mAppliedTimes[index];
+    }
+
+
+    public synchronized long getFramesDecoded() {
+        return mFramesDecoded;
+    }
+
+
+    /**
+     * @return number of legacy commands read by the sketch
+     */
+    public synchronized long getLegacyCommands() {
+        return mLegacyCommands;
+    }
+
+
+    /**
+     * @return number of times that the robot stopped by itself because the heartbeats stopped
+     */
+    public synchronized long getHeartbeatStops() {
+        return mHeartbeatStops;
+    }
+
+
+    /**
+     * @return number of headers that didn't start a good frame
+     */
+    public synchronized long getFramesDiscarded() {
+        return mFrameDecoder.getFramesDiscarded();
+    }
+
+}
@@ -0,0 +1,202 @@
+package com.bq.robotic.robopad.simulator;
+
+
+/**
+ * The hardware serial port of the Arduino as seen by a sketch, in the virtual time of the
+ * {@link SimulatedRobot}. The bytes written by the app arrive one by one at the speed of the
+ * serial link and they are stored in the 64 bytes receive buffer of the Arduino core, so the
+ * bytes that arrive while it is full are lost, as in the board.
+ */
+
+public class SimulatedSerial {
+
+    /**
+     * SERIAL_RX_BUFFER_SIZE of the Arduino core for the boards with 2 KB of RAM or more
+     */
+    public static final int RX_BUFFER_SIZE = 64;
+
+    /**
+     * Start bit, 8 data bits and stop bit
+     */
+    private static final int BITS_PER_BYTE = 10;
+
+    // Bytes written by the app that have not arrived yet, in order of arrival
+    private static final int PENDING_CAPACITY = 1 << 16;
+
+    /**
+     * Receives the messages written by the sketch
+     */
+    public interface MessageListener {
+        /**
+         * @param message the text written by the sketch, as "&&A12%%"
+         * @param time when its last byte leaves the board, in the virtual time of the robot
+         */
+        void onMessage(String message, long time);
+    }
+
+    private final int mBytesPerSecond;
+    private final long mNanosPerByte;
+
+    private final byte[] mPendingBytes = new byte[PENDING_CAPACITY];
+    private final long[] mPendingTimes = new long[PENDING_CAPACITY];
+    private int mPendingHead;
+    private int mPendingCount;
+    private long mLastArrivalTime;
+
+    private final byte[] mRxBuffer = new byte[RX_BUFFER_SIZE];
+    private int mRxHead;
+    private int mRxCount;
+
+    private long mTxFreeTime;
+    private MessageListener mMessageListener;
+
+    private long mBytesReceived;
+    private long mBytesOverflowed;
+    private long mBytesSent;
+
+
+    /**
+     * @param baudRate speed of the serial port given to Serial.begin() by the sketch
+     */
+    public SimulatedSerial(int baudRate) {
+        mBytesPerSecond = baudRate / BITS_PER_BYTE;
+        mNanosPerByte = BITS_PER_BYTE * 1000000000L / baudRate;
+    }
+
+
+    public void setMessageListener(MessageListener listener) {
+        mMessageListener = listener;
+    }
+
+
+    /**
+     * Bytes written by the app. They arrive after the ones written before, one after the other.
+     *
+     * @param buffer the bytes
+     * @param offset position of the first byte in the buffer
+     * @param length number of bytes
+     * @param time when the first byte starts to arrive
+     */
+    public void write(byte[] buffer, int offset, int length, long time) {
+        if (mPendingCount + length > PENDING_CAPACITY) {
+            throw new IllegalStateException("the sketch is not reading the serial port");
+        }
+
+        long arrivalTime = Math.max(time, mLastArrivalTime);
+
+        for (int i = 0; i < length; i++) {
+            arrivalTime += mNanosPerByte;
+
+            int index = (mPendingHead + mPendingCount) & (PENDING_CAPACITY - 1);
+            mPendingBytes[index] = buffer[offset + i];
+            mPendingTimes[index] = arrivalTime;
+            mPendingCount++;
+        }
+
+        mLastArrivalTime = arrivalTime;
+    }
+
+
+    /**
+     * @return arrival time of the next byte that is not in the receive buffer yet, or
+     * {@link Long#MAX_VALUE} if the app has not written more bytes
+     */
+    public long getNextArrivalTime() {
+        return mPendingCount == 0 ? Long.MAX_VALUE : mPendingTimes[mPendingHead];
+    }
+
+
+    public int available(long now) {
+        receive(now);
+        return mRxCount;
+    }
+
+
+    /**
+     * @return the next byte of the receive buffer, or -1 if it is empty
+     */
+    public int peek(long now) {
+        receive(now);
+        return mRxCount == 0 ? -1 : mRxBuffer[mRxHead] & 0xFF;
+    }
+
+
+    /**
+     * @return the next byte of the receive buffer, or -1 if it is empty
+     */
+    public int read(long now) {
+        int data = peek(now);
+
+        if (data != -1) {
+            mRxHead = (mRxHead + 1) & (RX_BUFFER_SIZE - 1);
+            mRxCount--;
+        }
+
+        return data;
+    }
+
+
+    /**
+     * Serial.print(), which only waits if the transmit buffer is full. The listener gets the
+     * whole message with the time when it has been sent.
+     */
+    public void print(String message, long now) {
+        mTxFreeTime = Math.max(now, mTxFreeTime) + message.length() * mNanosPerByte;
+        mBytesSent += message.length();
+
+        if (mMessageListener != null) {
+            mMessageListener.onMessage(message, mTxFreeTime);
+        }
+    }
+
+
+    /**
+     * Move to the receive buffer the bytes arrived until now
+     */
+    private void receive(long now) {
+        while (mPendingCount > 0 && mPendingTimes[mPendingHead] <= now) {
+            if (mRxCount < RX_BUFFER_SIZE) {
+                mRxBuffer[(mRxHead + mRxCount) & (RX_BUFFER_SIZE - 1)] = mPendingBytes[mPendingHead];
+                mRxCount++;
+                mBytesReceived++;
+            } else {
+                mBytesOverflowed++;
+            }
+
+            mPendingHead = (mPendingHead + 1) & (PENDING_CAPACITY - 1);
+            mPendingCount--;
+        }
+    }
+
+
+    public int getBytesPerSecond() {
+        return mBytesPerSecond;
+    }
+
+
+    /**
+     * @return time that a byte takes to arrive
+     */
+    public long getNanosPerByte() {
+        return mNanosPerByte;
+    }
+
+
+    public long getBytesReceived() {
+        return mBytesReceived;
+    }
+
+
+    /**
+     * @return bytes lost because they arrived when the receive buffer was full
+     */
+    public long getBytesOverflowed() {
+        return mBytesOverflowed;
+    }
+
+
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+}
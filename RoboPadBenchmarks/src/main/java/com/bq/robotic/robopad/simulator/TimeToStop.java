@@ -0,0 +1,227 @@
+package com.bq.robotic.robopad.simulator;
+
+
+import com.bq.robotic.robopad.benchmarks.BenchmarkRobotListener;
+import com.bq.robotic.robopad.connection.CommandEncoder;
+import com.bq.robotic.robopad.connection.CommandWriter;
+import com.bq.robotic.robopad.connection.FrameCommandEncoder;
+import com.bq.robotic.robopad.connection.LatencyHistogram;
+import com.bq.robotic.robopad.connection.LegacyCommandEncoder;
+import com.bq.robotic.robopad.connection.LoopbackTransport;
+import com.bq.robotic.robopad.connection.RobotCommand;
+import com.bq.robotic.robopad.utils.RoboPadConstants;
+
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * Time from the stop button to the stop of the robot while the link is saturated, with and
+ * without the priority lane of the {@link CommandWriter}. The controller of each robot sends
+ * movements and values of its continuous controls faster than the link can write them, as the
+ * claw task of the Beetle or the sliders of the Crab, and a stop every
+ * {@link #STOP_INTERVAL_NANOS}. The time to stop ends when the {@link SimulatedRobot} applies
+ * the stop. After each stop the controller only sends values of the continuous controls for
+ * {@link #QUIET_NANOS}, so a movement applied after the stop in that time was sent before it
+ * and restarts the robot. A stop never applied, because the queue was full or because the
+ * robot was still writing the traffic before it when the run ended, is lost.
+ *
+ * Usage: TimeToStop [seconds of each run, 3 by default]
+ */
+
+public class TimeToStop {
+
+    private static final long SECOND = 1000000000L;
+    private static final long MILLIS = 1000000L;
+
+    // Faster than the serial port of the robots with both protocols
+    private static final long TRAFFIC_INTERVAL_NANOS = 2 * MILLIS;
+    private static final long STOP_INTERVAL_NANOS = 250 * MILLIS;
+    private static final long QUIET_NANOS = 150 * MILLIS;
+
+    private static final long DRAIN_NANOS = 5 * SECOND;
+
+    /**
+     * A robot and the traffic that its controller sends
+     */
+    private abstract static class Robot {
+
+        abstract SimulatedRobot create();
+
+        /**
+         * @param i position of the command in the traffic
+         * @return the command, never equal to the previous one of its field
+         */
+        abstract long traffic(int i);
+
+        /**
+         * @return a value of a continuous control, never equal to the previous one
+         */
+        abstract long control(int i);
+    }
+
+    private static final Robot[] ROBOTS = {
+            new Robot() {
+                @Override
+                SimulatedRobot create() {
+                    return new SimulatedBeetle();
+                }
+
+                @Override
+                long traffic(int i) {
+                    if (i % 2 == 1) {
+                        return control(i);
+                    }
+                    return RobotCommand.of(i % 4 == 0 ? RobotCommand.FORWARD : RobotCommand.LEFT);
+                }
+
+                @Override
+                long control(int i) {
+                    return RobotCommand.of(RobotCommand.CLAW, RoboPadConstants.MAX_OPEN_CLAW_POS
+                            + (i * 7) % (RoboPadConstants.MIN_CLOSE_CLAW_POS - RoboPadConstants.MAX_OPEN_CLAW_POS));
+                }
+            },
+            new Robot() {
+                @Override
+                SimulatedRobot create() {
+                    return new SimulatedCrab();
+                }
+
+                @Override
+                long traffic(int i) {
+                    if (i % 2 == 1) {
+                        return control(i);
+                    }
+                    return RobotCommand.of(i % 4 == 0 ? RobotCommand.FORWARD : RobotCommand.BACKWARD);
+                }
+
+                @Override
+                long control(int i) {
+                    return RobotCommand.of(RobotCommand.PHASE, RoboPadConstants.MIN_PHASE
+                            + (i * 7) % (RoboPadConstants.MAX_PHASE - RoboPadConstants.MIN_PHASE + 1));
+                }
+            }
+    };
+
+
+    public static void main(String[] args) {
+        int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 3;
+
+        System.out.println("   robot, protocol, lanes   stops   lost  p50 ms  max ms  restarts"
+                + "  flushed  writer max ms");
+
+        for (Robot robot : ROBOTS) {
+            for (RoboPadConstants.commandProtocolValues protocol
+                    : RoboPadConstants.commandProtocolValues.values()) {
+                run(robot, protocol, false, seconds);
+                run(robot, protocol, true, seconds);
+            }
+        }
+    }
+
+
+    private static CommandEncoder createEncoder(RoboPadConstants.commandProtocolValues protocol) {
+        if (protocol == RoboPadConstants.commandProtocolValues.BINARY_FRAMES) {
+            return new FrameCommandEncoder();
+        }
+        return new LegacyCommandEncoder();
+    }
+
+
+    private static void run(Robot robot, RoboPadConstants.commandProtocolValues protocol,
+                            boolean priorityLanes, int seconds) {
+        SimulatedRobot simulated = robot.create();
+        simulated.powerOn(System.nanoTime() - 10 * SECOND);
+
+        LoopbackTransport transport = new LoopbackTransport(simulated,
+                simulated.getSerial().getBytesPerSecond());
+        transport.open();
+
+        CommandWriter writer = new CommandWriter(transport, createEncoder(protocol));
+        writer.setPriorityLanes(priorityLanes);
+        BenchmarkRobotListener listener = new BenchmarkRobotListener(writer);
+        writer.start();
+
+        long start = System.nanoTime();
+        long end = start + seconds * SECOND;
+        long[] stopTimes = new long[(int) (seconds * SECOND / STOP_INTERVAL_NANOS) + 1];
+        int stops = 0;
+        long nextStop = start + STOP_INTERVAL_NANOS;
+        int i = 0;
+
+        for (long time = start; time < end; time += TRAFFIC_INTERVAL_NANOS) {
+            long remaining;
+            while ((remaining = time - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+
+            if (time >= nextStop && stops < stopTimes.length) {
+                stopTimes[stops++] = System.nanoTime();
+                listener.onSendCommand(RobotCommand.of(RobotCommand.STOP));
+                nextStop += STOP_INTERVAL_NANOS;
+            } else if (stops > 0 && time - stopTimes[stops - 1] < QUIET_NANOS) {
+                listener.onSendCommand(robot.control(i++ | 1));
+            } else {
+                listener.onSendCommand(robot.traffic(i++));
+            }
+        }
+
+        // Let the writer empty its queue, that takes long without the priority lane
+        long lastFrames = -1;
+        long drainEnd = System.nanoTime() + DRAIN_NANOS;
+        while (transport.getFramesWritten() != lastFrames && System.nanoTime() < drainEnd) {
+            lastFrames = transport.getFramesWritten();
+            LockSupport.parkNanos(200 * MILLIS);
+        }
+
+        writer.stop();
+        transport.close();
+        simulated.runUntil(simulated.getTime() + DRAIN_NANOS);
+
+        // Each stop ends at the first stop applied after it, and a movement applied after that
+        // one in the quiet time is a restart of the robot
+        LatencyHistogram timesToStop = new LatencyHistogram();
+        int restarts = 0;
+        int applied = 0;
+        for (int stop = 0; stop < stops; stop++) {
+            long quietEnd = stopTimes[stop] + QUIET_NANOS;
+
+            while (applied < simulated.getAppliedCount()
+                    && (simulated.getAppliedTime(applied) < stopTimes[stop]
+                    || RobotCommand.opcode(simulated.getAppliedCommand(applied)) != RobotCommand.STOP)) {
+                applied++;
+            }
+            if (applied == simulated.getAppliedCount()) {
+                break;
+            }
+
+            timesToStop.record(simulated.getAppliedTime(applied) - stopTimes[stop]);
+
+            for (applied++; applied < simulated.getAppliedCount()
+                    && simulated.getAppliedTime(applied) < quietEnd; applied++) {
+                if (isMovement(simulated.getAppliedCommand(applied))) {
+                    restarts++;
+                    break;
+                }
+            }
+        }
+
+        System.out.println(String.format("%8s, %s, %-5s %7d %6d %7s %7s %9d %8d %14s",
+                simulated.getName(), protocol, priorityLanes ? "on" : "off",
+                timesToStop.getCount(), stops - timesToStop.getCount(), millis(timesToStop.getPercentileMicros(50)),
+                millis(timesToStop.getMaxMicros()), restarts, writer.getFlushedCommands(),
+                millis(writer.getMaxTimeToStopNanos() / 1000)));
+    }
+
+
+    private static boolean isMovement(long command) {
+        int opcode = RobotCommand.opcode(command);
+        return opcode == RobotCommand.FORWARD || opcode == RobotCommand.BACKWARD
+                || opcode == RobotCommand.LEFT || opcode == RobotCommand.RIGHT;
+    }
+
+
+    private static String millis(long micros) {
+        return (micros / 1000) + "." + (micros % 1000) / 100;
+    }
+
+}